@@ -19,6 +19,8 @@ package com.yammer.httptunnel;
 import org.jboss.netty.channel.DefaultChannelConfig;
 import org.jboss.netty.channel.socket.SocketChannelConfig;
 
+import com.yammer.httptunnel.util.IncomingBuffer;
+
 /**
  * Configuration for HTTP tunnels. Where possible, properties set on this
  * configuration will be applied to the two channels that service sending and
@@ -56,16 +58,49 @@ public abstract class HttpTunnelChannelConfig extends DefaultChannelConfig imple
 	 */
 	public static final int DEFAULT_PING_DELAY = 5;
 
+	/**
+	 * The default level for the incoming buffer's high water mark, presently
+	 * set to 1MByte, the most a single poll response can carry.
+	 */
+	public static final int DEFAULT_INCOMING_HIGH_WATER_MARK = IncomingBuffer.DEFAULT_HIGH_WATER_MARK;
+
+	/**
+	 * The default level for the incoming buffer's low water mark, presently
+	 * set to 512KByte.
+	 */
+	public static final int DEFAULT_INCOMING_LOW_WATER_MARK = IncomingBuffer.DEFAULT_LOW_WATER_MARK;
+
+	/**
+	 * The default maximum size (in bytes) of the incoming buffer, presently
+	 * unbounded.
+	 */
+	public static final int DEFAULT_INCOMING_BOUNDS = IncomingBuffer.DEFAULT_BOUNDS;
+
 	static final String HIGH_WATER_MARK_OPTION = "writeBufferhHighWaterMark";
 	static final String LOW_WATER_MARK_OPTION = "writeBufferLowWaterMark";
+	static final String INCOMING_HIGH_WATER_MARK_OPTION = "incomingBufferHighWaterMark";
+	static final String INCOMING_LOW_WATER_MARK_OPTION = "incomingBufferLowWaterMark";
+	static final String INCOMING_BOUNDS_OPTION = "incomingBufferBounds";
+	static final String READ_COALESCING_LIMIT_OPTION = "readCoalescingLimit";
+	static final String SATURATION_POLICY_OPTION = "saturationPolicy";
 
 	private int writeBufferLowWaterMark;
 	private int writeBufferHighWaterMark;
+	private int incomingBufferLowWaterMark;
+	private int incomingBufferHighWaterMark;
+	private int incomingBufferBounds;
+	private int readCoalescingLimit;
+	private SaturationPolicy saturationPolicy;
 	private int pingDelay;
 
 	protected HttpTunnelChannelConfig() {
 		writeBufferLowWaterMark = DEFAULT_LOW_WATER_MARK;
 		writeBufferHighWaterMark = DEFAULT_HIGH_WATER_MARK;
+		incomingBufferLowWaterMark = DEFAULT_INCOMING_LOW_WATER_MARK;
+		incomingBufferHighWaterMark = DEFAULT_INCOMING_HIGH_WATER_MARK;
+		incomingBufferBounds = DEFAULT_INCOMING_BOUNDS;
+		readCoalescingLimit = 0;
+		saturationPolicy = SaturationPolicy.WATER_MARKS;
 		pingDelay = DEFAULT_PING_DELAY;
 	}
 
@@ -146,6 +181,119 @@ public abstract class HttpTunnelChannelConfig extends DefaultChannelConfig imple
 		this.writeBufferLowWaterMark = writeBufferLowWaterMark;
 	}
 
+	/**
+	 * @return the current value (in bytes) of the incoming buffer's high water
+	 *         mark.
+	 */
+	public int getIncomingBufferHighWaterMark() {
+		return incomingBufferHighWaterMark;
+	}
+
+	/**
+	 * The incoming buffer holds data received from the other end of the tunnel
+	 * until the application reads it. Once more than this many bytes are
+	 * buffered the buffer is over capacity until it drains to the
+	 * {@link #setIncomingBufferLowWaterMark(int) low water mark}. While the
+	 * buffer is over capacity, or the channel is set unreadable, the client
+	 * stops polling for more so that data is held back at the server instead,
+	 * and writers there see the tunnel become unwritable.
+	 */
+	public void setIncomingBufferHighWaterMark(int incomingBufferHighWaterMark) {
+		if (incomingBufferHighWaterMark <= incomingBufferLowWaterMark)
+			throw new IllegalArgumentException("Incoming buffer high water mark must be strictly greater than the low water mark");
+
+		if (incomingBufferHighWaterMark < MIN_HIGH_WATER_MARK)
+			throw new IllegalArgumentException("Cannot set incoming buffer high water mark lower than " + MIN_HIGH_WATER_MARK);
+
+		if (incomingBufferHighWaterMark > incomingBufferBounds)
+			throw new IllegalArgumentException("Incoming buffer high water mark must not be greater than the bounds");
+
+		this.incomingBufferHighWaterMark = incomingBufferHighWaterMark;
+	}
+
+	/**
+	 * @return the current value (in bytes) of the incoming buffer's low water
+	 *         mark.
+	 */
+	public int getIncomingBufferLowWaterMark() {
+		return incomingBufferLowWaterMark;
+	}
+
+	/**
+	 * The level to which the incoming buffer must drain, once over its
+	 * {@link #setIncomingBufferHighWaterMark(int) high water mark}, before it
+	 * is no longer over capacity.
+	 */
+	public void setIncomingBufferLowWaterMark(int incomingBufferLowWaterMark) {
+		if (incomingBufferLowWaterMark >= incomingBufferHighWaterMark)
+			throw new IllegalArgumentException("Incoming buffer low water mark must be strictly less than the high water mark");
+
+		if (incomingBufferLowWaterMark < MIN_LOW_WATER_MARK)
+			throw new IllegalArgumentException("Cannot set incoming buffer low water mark lower than " + MIN_LOW_WATER_MARK);
+
+		this.incomingBufferLowWaterMark = incomingBufferLowWaterMark;
+	}
+
+	/**
+	 * @return the current value (in bytes) of the maximum size of the incoming
+	 *         buffer.
+	 */
+	public int getIncomingBufferBounds() {
+		return incomingBufferBounds;
+	}
+
+	/**
+	 * The most data (in bytes) the incoming buffer will hold. Messages which
+	 * would take it over this size are dropped.
+	 */
+	public void setIncomingBufferBounds(int incomingBufferBounds) {
+		if (incomingBufferBounds < incomingBufferHighWaterMark)
+			throw new IllegalArgumentException("Incoming buffer bounds must not be less than the high water mark");
+
+		this.incomingBufferBounds = incomingBufferBounds;
+	}
+
+	/**
+	 * @return the current value (in bytes) of the read coalescing limit, or
+	 *         zero if reads are not coalesced.
+	 */
+	public int getReadCoalescingLimit() {
+		return readCoalescingLimit;
+	}
+
+	/**
+	 * When messages have queued up in the incoming buffer, for instance while
+	 * the channel was unreadable, consecutive messages are merged into a
+	 * single buffer of up to this many bytes, delivered in one message
+	 * received event. This saves a trip through the pipeline per message, and
+	 * suits decoders which handle larger inputs better. Zero, the default,
+	 * delivers each message as it was received.
+	 */
+	public void setReadCoalescingLimit(int readCoalescingLimit) {
+		if (readCoalescingLimit < 0)
+			throw new IllegalArgumentException("Read coalescing limit must not be negative");
+
+		this.readCoalescingLimit = readCoalescingLimit;
+	}
+
+	public SaturationPolicy getSaturationPolicy() {
+		return saturationPolicy;
+	}
+
+	/**
+	 * Sets the policy deciding when too much data is queued to be sent, and
+	 * the channel should become unwritable. The default,
+	 * {@link SaturationPolicy#WATER_MARKS}, uses the write buffer water
+	 * marks, while {@link QueueDelaySaturationPolicy} uses how long data has
+	 * been queued. Must be set before the first write.
+	 */
+	public void setSaturationPolicy(SaturationPolicy saturationPolicy) {
+		if (saturationPolicy == null)
+			throw new NullPointerException("saturationPolicy");
+
+		this.saturationPolicy = saturationPolicy;
+	}
+
 	@Override
 	public boolean setOption(String key, Object value) {
 		if (HIGH_WATER_MARK_OPTION.equals(key)) {
@@ -156,6 +304,26 @@ public abstract class HttpTunnelChannelConfig extends DefaultChannelConfig imple
 			this.setWriteBufferLowWaterMark((Integer) value);
 			return true;
 		}
+		else if (INCOMING_HIGH_WATER_MARK_OPTION.equals(key)) {
+			this.setIncomingBufferHighWaterMark((Integer) value);
+			return true;
+		}
+		else if (INCOMING_LOW_WATER_MARK_OPTION.equals(key)) {
+			this.setIncomingBufferLowWaterMark((Integer) value);
+			return true;
+		}
+		else if (INCOMING_BOUNDS_OPTION.equals(key)) {
+			this.setIncomingBufferBounds((Integer) value);
+			return true;
+		}
+		else if (READ_COALESCING_LIMIT_OPTION.equals(key)) {
+			this.setReadCoalescingLimit((Integer) value);
+			return true;
+		}
+		else if (SATURATION_POLICY_OPTION.equals(key)) {
+			this.setSaturationPolicy((SaturationPolicy) value);
+			return true;
+		}
 
 		return super.setOption(key, value);
 	}
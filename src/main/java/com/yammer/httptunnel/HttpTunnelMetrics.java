@@ -0,0 +1,317 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.httptunnel.util.IncomingBuffer;
+import com.yammer.httptunnel.util.StripedCounter;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Metrics shared by all tunnels created by a single channel factory, reported
+ * to the {@link MetricsRegistry} given to that factory. Aggregate gauges cover
+ * every open tunnel, and optionally each tunnel also reports its own metrics
+ * (scoped by its name), which are removed from the registry once it closes.
+ */
+public class HttpTunnelMetrics {
+
+	private final MetricsRegistry registry;
+	private final Class<?> type;
+	private final boolean scoped;
+
+	private final Set<TunnelMetrics> tunnels;
+	private final CopyOnWriteArrayList<MetricName> names;
+	private final ConcurrentMap<String, StripedCounter> aggregateCounters;
+
+	private final StripedCounter messagesSent;
+	private final StripedCounter bytesSent;
+	private final StripedCounter messagesReceived;
+	private final StripedCounter bytesReceived;
+
+	/**
+	 * Creates a new set of metrics, reported under the given type.
+	 *
+	 * @param scoped
+	 *            whether each tunnel should additionally report its own
+	 *            metrics.
+	 */
+	public HttpTunnelMetrics(MetricsRegistry registry, Class<?> type, boolean scoped) {
+		this.registry = registry;
+		this.type = type;
+		this.scoped = scoped;
+
+		tunnels = Collections.newSetFromMap(new ConcurrentHashMap<TunnelMetrics, Boolean>());
+		names = new CopyOnWriteArrayList<MetricName>();
+		aggregateCounters = new ConcurrentHashMap<String, StripedCounter>();
+
+		messagesSent = new StripedCounter();
+		bytesSent = new StripedCounter();
+		messagesReceived = new StripedCounter();
+		bytesReceived = new StripedCounter();
+
+		this.newGauge(type, "tunnels", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return tunnels.size();
+			}
+		});
+
+		this.newGauge(type, "incomingBuffer", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				int size = 0;
+				for (TunnelMetrics tunnel : tunnels)
+					size += tunnel.incomingBuffer.size();
+
+				return size;
+			}
+		});
+
+		this.newGauge(type, "incomingBufferBytes", new Gauge<Long>() {
+			@Override
+			public Long value() {
+				long size = 0;
+				for (TunnelMetrics tunnel : tunnels)
+					size += tunnel.incomingBuffer.getBufferedBytes();
+
+				return size;
+			}
+		});
+
+		this.newCounterGauge("messagesSent", messagesSent);
+		this.newCounterGauge("bytesSent", bytesSent);
+		this.newCounterGauge("messagesReceived", messagesReceived);
+		this.newCounterGauge("bytesReceived", bytesReceived);
+	}
+
+	private void newCounterGauge(String name, final StripedCounter counter) {
+		this.newGauge(type, name, new Gauge<Long>() {
+			@Override
+			public Long value() {
+				return counter.sum();
+			}
+		});
+	}
+
+	/**
+	 * @return the registry these metrics are reported to, which may be used to
+	 *         register further metrics.
+	 */
+	public MetricsRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * @return true if each tunnel reports its own metrics.
+	 */
+	public boolean isScoped() {
+		return scoped;
+	}
+
+	/**
+	 * Registers a gauge which will be removed from the registry when these
+	 * metrics are released.
+	 */
+	public <T> Gauge<T> newGauge(Class<?> type, String name, Gauge<T> gauge) {
+		return registry.newGauge(this.track(new MetricName(type, name)), gauge);
+	}
+
+	/**
+	 * Registers a meter which will be removed from the registry when these
+	 * metrics are released.
+	 */
+	public Meter newMeter(Class<?> type, String name, String eventType) {
+		return registry.newMeter(this.track(new MetricName(type, name)), eventType, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Registers a timer which will be removed from the registry when these
+	 * metrics are released.
+	 */
+	public Timer newTimer(Class<?> type, String name) {
+		return registry.newTimer(this.track(new MetricName(type, name)), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Registers a histogram which will be removed from the registry when these
+	 * metrics are released.
+	 */
+	public Histogram newHistogram(Class<?> type, String name) {
+		return registry.newHistogram(this.track(new MetricName(type, name)), false);
+	}
+
+	private MetricName track(MetricName name) {
+		names.addIfAbsent(name);
+		return name;
+	}
+
+	/**
+	 * Returns the counter with the given name, shared by all tunnels, creating
+	 * and registering it if required. The counter is reported as a gauge of
+	 * its total.
+	 */
+	public StripedCounter getAggregateCounter(String name) {
+		final StripedCounter counter = aggregateCounters.get(name);
+		if (counter != null)
+			return counter;
+
+		final StripedCounter newCounter = new StripedCounter();
+		final StripedCounter existingCounter = aggregateCounters.putIfAbsent(name, newCounter);
+		if (existingCounter != null)
+			return existingCounter;
+
+		this.newCounterGauge(name, newCounter);
+		return newCounter;
+	}
+
+	/**
+	 * Starts tracking a newly opened tunnel.
+	 *
+	 * @param scope
+	 *            the name the tunnel's own metrics are reported under, if
+	 *            enabled.
+	 */
+	public TunnelMetrics newTunnel(String scope, IncomingBuffer<?> incomingBuffer) {
+		final TunnelMetrics tunnel = new TunnelMetrics(scope, incomingBuffer);
+		tunnels.add(tunnel);
+
+		return tunnel;
+	}
+
+	/**
+	 * Removes the aggregate metrics from the registry. Any tunnels still open
+	 * will continue to update their own metrics until closed.
+	 */
+	public void release() {
+		for (MetricName name : names)
+			registry.removeMetric(name);
+
+		names.clear();
+	}
+
+	/**
+	 * Metrics for a single tunnel, which also feed the aggregate metrics.
+	 */
+	public class TunnelMetrics {
+
+		private final IncomingBuffer<?> incomingBuffer;
+		private final List<MetricName> names;
+
+		private final Counter messagesSent;
+		private final Counter bytesSent;
+		private final Counter messagesReceived;
+		private final Counter bytesReceived;
+
+		private TunnelMetrics(String scope, final IncomingBuffer<?> incomingBuffer) {
+			this.incomingBuffer = incomingBuffer;
+
+			names = new CopyOnWriteArrayList<MetricName>();
+
+			if (scoped) {
+				final MetricName incomingBufferName = new MetricName(type, "incomingBuffer", scope);
+				registry.newGauge(incomingBufferName, new Gauge<Integer>() {
+					@Override
+					public Integer value() {
+						return incomingBuffer.size();
+					}
+				});
+
+				names.add(incomingBufferName);
+
+				final MetricName incomingBufferBytesName = new MetricName(type, "incomingBufferBytes", scope);
+				registry.newGauge(incomingBufferBytesName, new Gauge<Long>() {
+					@Override
+					public Long value() {
+						return incomingBuffer.getBufferedBytes();
+					}
+				});
+
+				names.add(incomingBufferBytesName);
+
+				messagesSent = this.newCounter("messagesSent", scope);
+				bytesSent = this.newCounter("bytesSent", scope);
+				messagesReceived = this.newCounter("messagesReceived", scope);
+				bytesReceived = this.newCounter("bytesReceived", scope);
+			}
+			else {
+				messagesSent = null;
+				bytesSent = null;
+				messagesReceived = null;
+				bytesReceived = null;
+			}
+		}
+
+		private Counter newCounter(String name, String scope) {
+			final MetricName metricName = new MetricName(type, name, scope);
+			names.add(metricName);
+
+			return registry.newCounter(metricName);
+		}
+
+		/**
+		 * Records a message of the given size being sent through the tunnel.
+		 */
+		public void messageSent(int size) {
+			HttpTunnelMetrics.this.messagesSent.increment();
+			HttpTunnelMetrics.this.bytesSent.add(size);
+
+			if (scoped) {
+				messagesSent.inc();
+				bytesSent.inc(size);
+			}
+		}
+
+		/**
+		 * Records a message of the given size being received from the tunnel.
+		 */
+		public void messageReceived(int size) {
+			HttpTunnelMetrics.this.messagesReceived.increment();
+			HttpTunnelMetrics.this.bytesReceived.add(size);
+
+			if (scoped) {
+				messagesReceived.inc();
+				bytesReceived.inc(size);
+			}
+		}
+
+		/**
+		 * Stops tracking this tunnel, removing its own metrics from the
+		 * registry.
+		 */
+		public void close() {
+			tunnels.remove(this);
+
+			for (MetricName name : names)
+				registry.removeMetric(name);
+
+			names.clear();
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live transport statistics for a single tunnel, available from either end of
+ * it. Round trip times are smoothed as TCP does (RFC 6298), and goodput is an
+ * exponentially decaying average of payload bytes per second, which falls
+ * back towards zero while the tunnel is idle. Sending and receiving are from
+ * the point of view of the end the statistics belong to, so a client's send
+ * goodput is the tunnel's upstream goodput, and a server's is downstream.
+ * <p>
+ * The update methods are called by the tunnel itself.
+ */
+public class HttpTunnelStatistics {
+
+	// RFC 6298 smoothing factors
+	private static final double RTT_ALPHA = 1.0 / 8;
+	private static final double RTT_BETA = 1.0 / 4;
+
+	// Time constant of the goodput averages
+	private static final long GOODPUT_WINDOW = TimeUnit.SECONDS.toNanos(2);
+
+	private final AtomicLong queuedBytes;
+	private final RateEstimator sendGoodput;
+	private final RateEstimator receiveGoodput;
+
+	private volatile long smoothedRtt;
+	private volatile long rttVariance;
+
+	public HttpTunnelStatistics() {
+		queuedBytes = new AtomicLong(0);
+		sendGoodput = new RateEstimator();
+		receiveGoodput = new RateEstimator();
+
+		smoothedRtt = 0;
+		rttVariance = 0;
+	}
+
+	/**
+	 * @return the smoothed round trip time, or 0 if none has been measured.
+	 */
+	public long getSmoothedRtt(TimeUnit unit) {
+		return unit.convert(smoothedRtt, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the mean deviation of the round trip time, or 0 if none has
+	 *         been measured.
+	 */
+	public long getRttVariance(TimeUnit unit) {
+		return unit.convert(rttVariance, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the rate, in bytes per second, at which payload is being sent.
+	 */
+	public double getSendGoodput() {
+		return sendGoodput.rate(System.nanoTime());
+	}
+
+	/**
+	 * @return the rate, in bytes per second, at which payload is being
+	 *         received.
+	 */
+	public double getReceiveGoodput() {
+		return receiveGoodput.rate(System.nanoTime());
+	}
+
+	/**
+	 * @return the number of payload bytes written to the tunnel but not yet
+	 *         sent.
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * @return how long the currently queued bytes should take to send at the
+	 *         current send goodput, or -1 if data is queued but nothing has
+	 *         been sent recently enough to estimate it.
+	 */
+	public long getEstimatedDrainTime(TimeUnit unit) {
+		return this.getEstimatedDrainTime(unit, System.nanoTime());
+	}
+
+	long getEstimatedDrainTime(TimeUnit unit, long now) {
+		final long queued = queuedBytes.get();
+		if (queued <= 0)
+			return 0;
+
+		final double goodput = sendGoodput.rate(now);
+		if (goodput <= 0)
+			return -1;
+
+		return unit.convert((long) (queued / goodput * TimeUnit.SECONDS.toNanos(1)), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Records a round trip time measurement.
+	 */
+	public synchronized void rttSampled(long rtt, TimeUnit unit) {
+		final long sample = unit.toNanos(rtt);
+
+		if (smoothedRtt == 0) {
+			smoothedRtt = sample;
+			rttVariance = sample / 2;
+			return;
+		}
+
+		rttVariance = (long) ((1 - RTT_BETA) * rttVariance + RTT_BETA * Math.abs(smoothedRtt - sample));
+		smoothedRtt = (long) ((1 - RTT_ALPHA) * smoothedRtt + RTT_ALPHA * sample);
+	}
+
+	/**
+	 * Records a change in the number of bytes waiting to be sent.
+	 */
+	public void queueSizeChanged(int delta) {
+		queuedBytes.addAndGet(delta);
+	}
+
+	/**
+	 * Records a message of the given size being sent.
+	 */
+	public void messageSent(int size) {
+		this.messageSent(size, System.nanoTime());
+	}
+
+	void messageSent(int size, long now) {
+		sendGoodput.update(size, now);
+	}
+
+	/**
+	 * Records a message of the given size being received.
+	 */
+	public void messageReceived(int size) {
+		this.messageReceived(size, System.nanoTime());
+	}
+
+	void messageReceived(int size, long now) {
+		receiveGoodput.update(size, now);
+	}
+
+	double getSendGoodput(long now) {
+		return sendGoodput.rate(now);
+	}
+
+	double getReceiveGoodput(long now) {
+		return receiveGoodput.rate(now);
+	}
+
+	/**
+	 * An exponentially decaying average of bytes per second: each update adds
+	 * to the rate, which continuously decays towards zero between updates.
+	 */
+	private static class RateEstimator {
+
+		private double rate;
+		private long lastUpdate;
+
+		RateEstimator() {
+			rate = 0;
+			lastUpdate = 0;
+		}
+
+		synchronized void update(int bytes, long now) {
+			rate = this.decayed(now) + bytes * ((double) TimeUnit.SECONDS.toNanos(1) / GOODPUT_WINDOW);
+			lastUpdate = now;
+		}
+
+		synchronized double rate(long now) {
+			return this.decayed(now);
+		}
+
+		private double decayed(long now) {
+			if (rate == 0)
+				return 0;
+
+			final long elapsed = Math.max(0, now - lastUpdate);
+			return rate * Math.exp(-(double) elapsed / GOODPUT_WINDOW);
+		}
+	}
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel;
+
+/**
+ * The cause of the failure of a write whose {@link OutboundMessage} expired
+ * before it could be sent, so was dropped.
+ */
+public class MessageExpiredException extends Exception {
+
+	private static final long serialVersionUID = -6270718911652426071L;
+
+	public MessageExpiredException() {
+		super("Message expired before it could be sent");
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel;
+
+/**
+ * The priority class of data written to an HTTP tunnel. Queued messages of a
+ * higher class are sent before those of a lower class, although lower classes
+ * are still served periodically so they are never starved.
+ *
+ * @see OutboundMessage
+ */
+public enum MessagePriority {
+	/**
+	 * For small, latency sensitive messages such as control messages.
+	 */
+	HIGH,
+
+	/**
+	 * The priority of data written without an {@link OutboundMessage}
+	 * wrapper.
+	 */
+	NORMAL,
+
+	/**
+	 * For bulk transfers which may be delayed in favour of other data.
+	 */
+	LOW;
+}
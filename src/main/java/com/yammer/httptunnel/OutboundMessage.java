@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Data written to an HTTP tunnel channel along with how it should be sent.
+ * Tunnel channels accept either a plain {@link ChannelBuffer}, or one wrapped
+ * in an outbound message.
+ * <p>
+ * Queued messages are reordered by priority only as a whole, the fragments
+ * of a single message are always sent in order without other data between
+ * them. Applications should use a framing which allows for messages being
+ * reordered, and split large transfers in to several messages so that higher
+ * priority messages can be sent between them.
+ * <p>
+ * A message may also be given a time to live, for data which is worthless
+ * once it is stale. A message which expires before any of it has been sent
+ * is dropped, and its write fails with a {@link MessageExpiredException}.
+ * A message which has started to be sent is always sent in full.
+ */
+public class OutboundMessage {
+
+	/**
+	 * @return the data of a message written to a tunnel channel.
+	 */
+	public static ChannelBuffer getData(Object message) {
+		if (message instanceof OutboundMessage)
+			return ((OutboundMessage) message).getData();
+
+		return (ChannelBuffer) message;
+	}
+
+	/**
+	 * @return the priority of a message written to a tunnel channel, which is
+	 *         {@link MessagePriority#NORMAL} unless it was given.
+	 */
+	public static MessagePriority getPriority(Object message) {
+		if (message instanceof OutboundMessage)
+			return ((OutboundMessage) message).getPriority();
+
+		return MessagePriority.NORMAL;
+	}
+
+	/**
+	 * @return true if a message written to a tunnel channel has expired.
+	 */
+	public static boolean isExpired(Object message) {
+		if (message instanceof OutboundMessage)
+			return ((OutboundMessage) message).isExpired();
+
+		return false;
+	}
+
+	private final ChannelBuffer data;
+	private final MessagePriority priority;
+	private final boolean expires;
+	private final long deadline;
+
+	public OutboundMessage(ChannelBuffer data, MessagePriority priority) {
+		this(data, priority, false, 0);
+	}
+
+	/**
+	 * Constructs a message which expires once the given time has passed
+	 * since it was constructed.
+	 */
+	public OutboundMessage(ChannelBuffer data, MessagePriority priority, long timeToLive, TimeUnit unit) {
+		this(data, priority, true, System.nanoTime() + unit.toNanos(timeToLive));
+
+		if (timeToLive < 0)
+			throw new IllegalArgumentException("Time to live must not be negative");
+	}
+
+	private OutboundMessage(ChannelBuffer data, MessagePriority priority, boolean expires, long deadline) {
+		if (data == null)
+			throw new NullPointerException("data");
+
+		if (priority == null)
+			throw new NullPointerException("priority");
+
+		this.data = data;
+		this.priority = priority;
+		this.expires = expires;
+		this.deadline = deadline;
+	}
+
+	public ChannelBuffer getData() {
+		return data;
+	}
+
+	public MessagePriority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @return true if this message has a time to live.
+	 */
+	public boolean expires() {
+		return expires;
+	}
+
+	public boolean isExpired() {
+		return expires && System.nanoTime() - deadline >= 0;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel;
+
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.httptunnel.state.SaturationStateChange;
+import com.yammer.httptunnel.util.SaturationMonitor;
+
+/**
+ * Saturates a tunnel based on how long data waits in its queue rather than
+ * how much is queued, in the style of CoDel, so that the same settings suit
+ * both slow and fast links. A tunnel becomes saturated once queued data has
+ * waited longer than the target delay for a whole interval, and desaturated
+ * once data is sent having waited less than the target, or the queue
+ * empties. Data which has not left the queue counts as having waited since
+ * the queue last made progress, so a stalled tunnel also becomes saturated.
+ *
+ * Data counts as queued until its write completes, which on the client
+ * includes the round trip of the request carrying it, so the target should
+ * allow for that.
+ */
+public class QueueDelaySaturationPolicy implements SaturationPolicy {
+
+	public static final long DEFAULT_TARGET = TimeUnit.MILLISECONDS.toNanos(50);
+	public static final long DEFAULT_INTERVAL = TimeUnit.MILLISECONDS.toNanos(500);
+
+	private final long target;
+	private final long interval;
+
+	/**
+	 * Constructs a new policy with the default target delay (50ms) and
+	 * interval (500ms).
+	 */
+	public QueueDelaySaturationPolicy() {
+		this(DEFAULT_TARGET, DEFAULT_INTERVAL, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Constructs a new policy.
+	 *
+	 * @param target
+	 *            the longest data may wait in the queue without the tunnel
+	 *            being considered saturated.
+	 * @param interval
+	 *            how long the target must be exceeded for before the tunnel
+	 *            becomes saturated, which should be at least a round trip.
+	 */
+	public QueueDelaySaturationPolicy(long target, long interval, TimeUnit unit) {
+		if (target <= 0)
+			throw new IllegalArgumentException("Target must be greater than 0");
+
+		if (interval < 0)
+			throw new IllegalArgumentException("Interval must not be negative");
+
+		this.target = unit.toNanos(target);
+		this.interval = unit.toNanos(interval);
+	}
+
+	public long getTarget(TimeUnit unit) {
+		return unit.convert(target, TimeUnit.NANOSECONDS);
+	}
+
+	public long getInterval(TimeUnit unit) {
+		return unit.convert(interval, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public SaturationMonitor newMonitor(HttpTunnelChannelConfig config) {
+		return new Monitor();
+	}
+
+	private class Monitor implements SaturationMonitor {
+		private long queuedBytes;
+		private long lastProgressTime;
+		private long aboveTargetUntil;
+		private boolean saturated;
+
+		Monitor() {
+			queuedBytes = 0;
+			lastProgressTime = 0;
+			aboveTargetUntil = 0;
+			saturated = false;
+		}
+
+		@Override
+		public synchronized SaturationStateChange messageQueued(int size) {
+			final long now = System.nanoTime();
+			if (queuedBytes == 0)
+				lastProgressTime = now;
+
+			queuedBytes += size;
+
+			// Whatever is at the head of the queue has waited at least since
+			// the queue last made progress
+			return this.sample(now - lastProgressTime, now, false);
+		}
+
+		@Override
+		public synchronized SaturationStateChange messageSent(int size, long sojournTime) {
+			final long now = System.nanoTime();
+
+			queuedBytes -= size;
+			lastProgressTime = now;
+
+			if (queuedBytes <= 0) {
+				queuedBytes = 0;
+				return this.sample(0, now, true);
+			}
+
+			return this.sample(sojournTime, now, true);
+		}
+
+		// Only data which has left the queue shows it is draining quickly
+		// enough to desaturate
+		private SaturationStateChange sample(long sojournTime, long now, boolean sent) {
+			if (sojournTime < target) {
+				if (!sent)
+					return SaturationStateChange.NO_CHANGE;
+
+				aboveTargetUntil = 0;
+				if (!saturated)
+					return SaturationStateChange.NO_CHANGE;
+
+				saturated = false;
+				return SaturationStateChange.DESATURATED;
+			}
+
+			if (saturated)
+				return SaturationStateChange.NO_CHANGE;
+
+			if (aboveTargetUntil == 0) {
+				aboveTargetUntil = now + interval;
+				return SaturationStateChange.NO_CHANGE;
+			}
+
+			if (now - aboveTargetUntil < 0)
+				return SaturationStateChange.NO_CHANGE;
+
+			saturated = true;
+			return SaturationStateChange.SATURATED;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel;
+
+import com.yammer.httptunnel.state.SaturationStateChange;
+import com.yammer.httptunnel.util.SaturationManager;
+import com.yammer.httptunnel.util.SaturationMonitor;
+
+/**
+ * Decides when a tunnel has so much data queued to send that it should stop
+ * accepting writes, making the channel unwritable until the queue drains.
+ * Set through {@link HttpTunnelChannelConfig#setSaturationPolicy}.
+ */
+public interface SaturationPolicy {
+
+	/**
+	 * Saturates a tunnel when the number of bytes queued exceeds the write
+	 * buffer high water mark, and desaturates it once they fall to the low
+	 * water mark. This is the default.
+	 */
+	public static final SaturationPolicy WATER_MARKS = new SaturationPolicy() {
+		@Override
+		public SaturationMonitor newMonitor(final HttpTunnelChannelConfig config) {
+			return new SaturationManager(config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark()) {
+				@Override
+				public SaturationStateChange messageQueued(int size) {
+					this.updateThresholds(config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark());
+					return super.messageQueued(size);
+				}
+			};
+		}
+	};
+
+	/**
+	 * @return a new monitor for the queue of a single tunnel, which may read
+	 *         its settings from the given configuration.
+	 */
+	public SaturationMonitor newMonitor(HttpTunnelChannelConfig config);
+}
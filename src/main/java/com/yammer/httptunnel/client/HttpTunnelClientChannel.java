@@ -17,10 +17,18 @@
 package com.yammer.httptunnel.client;
 
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.net.ssl.SSLContext;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.AbstractChannel;
 import org.jboss.netty.channel.ChannelFactory;
@@ -39,16 +47,21 @@ import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
 
+import com.yammer.httptunnel.HttpTunnelMetrics;
+import com.yammer.httptunnel.HttpTunnelMetrics.TunnelMetrics;
+import com.yammer.httptunnel.HttpTunnelStatistics;
+import com.yammer.httptunnel.OutboundMessage;
 import com.yammer.httptunnel.state.BindState;
 import com.yammer.httptunnel.state.ConnectState;
 import com.yammer.httptunnel.state.SaturationStateChange;
+import com.yammer.httptunnel.trace.MessageTrace;
+import com.yammer.httptunnel.trace.MessageTracer;
+import com.yammer.httptunnel.trace.TunnelEventListener;
 import com.yammer.httptunnel.util.ConsolidatingFutureListener;
 import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
 import com.yammer.httptunnel.util.IncomingBuffer;
-import com.yammer.httptunnel.util.SaturationManager;
-import com.yammer.httptunnel.util.WriteFragmenter;
-import com.yammer.metrics.Metrics;
-import com.yammer.metrics.core.Gauge;
+import com.yammer.httptunnel.util.SaturationMonitor;
+import com.yammer.httptunnel.util.SslHandlerFactory;
 
 /**
  * The client end of an HTTP tunnel, created by an
@@ -67,15 +80,21 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(HttpTunnelClientChannel.class);
 
 	private final ClientSocketChannelFactory outboundFactory;
+	private final SslHandlerFactory sslHandlerFactory;
+	private final ProxyResolver proxyResolver;
+	private final HttpTunnelClientChannelPool pool;
+	private final ScheduledExecutorService timer;
 
 	private final HttpTunnelClientChannelConfig config;
-	private final SaturationManager saturationManager;
+	private volatile SaturationMonitor saturationMonitor;
 
 	private final AtomicBoolean opened;
 	private final AtomicReference<BindState> bindState;
 	private final AtomicReference<ConnectState> connectState;
 	private final AtomicReference<ChannelFuture> connectFuture;
 
+	private final WorkerCallbacks callbacks;
+
 	private final HttpTunnelClientChannelProxyHandler sendHttpHandler;
 	private final HttpTunnelClientChannelSendHandler sendHandler;
 
@@ -83,6 +102,8 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 	private final HttpTunnelClientChannelPollHandler pollHandler;
 
 	private final IncomingBuffer<ChannelBuffer> incomingBuffer;
+	private final TunnelMetrics metrics;
+	private final HttpTunnelStatistics statistics;
 
 	private SocketChannel sendChannel;
 	private SocketChannel pollChannel;
@@ -93,33 +114,40 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 	/**
 	 * @see HttpTunnelClientChannelFactory#newChannel(ChannelPipeline)
 	 */
-	protected HttpTunnelClientChannel(ChannelFactory factory, ChannelPipeline pipeline, HttpTunnelClientChannelSink sink, ClientSocketChannelFactory outboundFactory, ChannelGroup realConnections) {
+	protected HttpTunnelClientChannel(ChannelFactory factory, ChannelPipeline pipeline, HttpTunnelClientChannelSink sink, ClientSocketChannelFactory outboundFactory, ChannelGroup realConnections, HttpTunnelMetrics metrics, SslHandlerFactory sslHandlerFactory, ProxyAuthCache proxyAuthCache, ProxyResolver proxyResolver, HttpTunnelClientChannelPool pool, ScheduledExecutorService timer) {
 		super(null, factory, pipeline, sink);
 
 		this.outboundFactory = outboundFactory;
+		this.sslHandlerFactory = sslHandlerFactory;
+		this.proxyResolver = proxyResolver;
+		this.pool = pool;
+		this.timer = timer;
 
-		final WorkerCallbacks callbackProxy = new WorkerCallbacks();
+		callbacks = new WorkerCallbacks();
 
 		incomingBuffer = new IncomingBuffer<ChannelBuffer>(this);
-
-		Metrics.newGauge(HttpTunnelClientChannel.class, "incomingBuffer", new Gauge<Integer>() {
-		    @Override
-		    public Integer value() {
-		        return incomingBuffer.size();
-		    }
+		incomingBuffer.setDeliveryListener(new Runnable() {
+			@Override
+			public void run() {
+				resumePollingIfReady();
+			}
 		});
 
+		// The tunnel ID isn't known yet, so scope by the channel ID instead
+		this.metrics = metrics.newTunnel(String.valueOf(this.getId()), incomingBuffer);
+		statistics = new HttpTunnelStatistics();
+
 		sendChannel = outboundFactory.newChannel(Channels.pipeline(new SimpleChannelHandler()));
 		pollChannel = outboundFactory.newChannel(Channels.pipeline(new SimpleChannelHandler()));
 
 		config = new HttpTunnelClientChannelConfig(sendChannel.getConfig(), pollChannel.getConfig());
-		saturationManager = new SaturationManager(config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark());
+		saturationMonitor = null;
 
-		sendHttpHandler = new HttpTunnelClientChannelProxyHandler();
-		sendHandler = new HttpTunnelClientChannelSendHandler(callbackProxy);
+		sendHttpHandler = new HttpTunnelClientChannelProxyHandler(proxyAuthCache);
+		sendHandler = new HttpTunnelClientChannelSendHandler(callbacks, metrics);
 
-		pollHttpHandler = new HttpTunnelClientChannelProxyHandler();
-		pollHandler = new HttpTunnelClientChannelPollHandler(callbackProxy);
+		pollHttpHandler = new HttpTunnelClientChannelProxyHandler(proxyAuthCache);
+		pollHandler = new HttpTunnelClientChannelPollHandler(callbacks, metrics);
 
 		opened = new AtomicBoolean(true);
 		bindState = new AtomicReference<BindState>(BindState.UNBOUND);
@@ -143,6 +171,13 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 		return config;
 	}
 
+	/**
+	 * @return live round trip time and goodput statistics for this tunnel.
+	 */
+	public HttpTunnelStatistics getStatistics() {
+		return statistics;
+	}
+
 	@Override
 	public boolean isBound() {
 		return bindState.get() == BindState.BOUND;
@@ -199,6 +234,12 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 		if (LOG.isDebugEnabled())
 			LOG.debug("HTTP Tunnel client channel closing");
 
+		metrics.close();
+
+		final TunnelEventListener listener = config.getEventListener();
+		if (listener != null)
+			listener.tunnelClosed(this, false);
+
 		int openChannels = 0;
 		if (sendChannel.isOpen())
 			openChannels++;
@@ -357,24 +398,152 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 		remoteAddress = addr;
 		connectFuture.set(future);
 
+		// Take over an idle tunnel from the pool if there is one, unless we
+		// have been bound to a specific address
+		if (pool != null && bindState.get() == BindState.UNBOUND) {
+			final HttpTunnelClientChannel pooled = pool.take(addr, config);
+			if (pooled != null) {
+				this.adopt(pooled);
+				return;
+			}
+		}
+
 		// Check if we are already bound or should bind to an address
 		if (bindState.compareAndSet(BindState.UNBOUND, BindState.BINDING))
 			this.internalDoBind(new InetSocketAddress(0), Channels.future(this));
 
-        SocketAddress connectAddr = remoteAddress;
-        try {
-            final List<Proxy> proxies = ProxySelector.getDefault().select(new URI(String.format("http://%s:%d", addr.getHostString(), addr.getPort())));
-            final Proxy proxy = proxies.get(0);
+		// Secured tunnels connect directly, as proxies would need to be asked
+		// to CONNECT to the server
+		final List<Proxy> proxies;
+		if (config.getSslContext() != null) {
+			this.initSsl(sendChannel.getPipeline());
+			proxies = Collections.singletonList(Proxy.NO_PROXY);
+		}
+		else
+			proxies = proxyResolver.select(addr);
 
-            if (proxy.type() == Proxy.Type.HTTP)
-                connectAddr = proxy.address();
-        }
-        catch (URISyntaxException e) {
-            if (LOG.isWarnEnabled())
-                LOG.warn("Unable to parse proxy address", e);
-        }
+		this.connectSendChannel(addr, proxies.iterator());
+	}
 
-		Channels.connect(sendChannel, connectAddr);
+	/**
+	 * Connects the send channel through the next of the given proxies, moving
+	 * on to the one after if that fails.
+	 */
+	private synchronized void connectSendChannel(final InetSocketAddress addr, final Iterator<Proxy> proxies) {
+		final Proxy proxy = proxies.next();
+		final SocketAddress connectAddr = proxy.type() == Proxy.Type.HTTP ? proxy.address() : addr;
+
+		sendChannel.connect(connectAddr).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (future.isSuccess()) {
+					proxyResolver.connectSucceeded(addr, proxy);
+
+					// Connect the poll channel the same way while the tunnel
+					// is being opened, ready to poll as soon as it has been
+					connectPollChannel(connectAddr);
+					return;
+				}
+
+				proxyResolver.connectFailed(addr, proxy, future.getCause());
+
+				// Give up if we have been closed in the mean time
+				if (!opened.get() || connectState.get() != ConnectState.CONNECTING)
+					return;
+
+				if (!proxies.hasNext()) {
+					internalFailConnect(future.getCause());
+					return;
+				}
+
+				if (LOG.isDebugEnabled())
+					LOG.debug("HTTP Tunnel client channel failed to connect via " + proxy + ", trying next");
+
+				reopenSendChannel();
+				connectSendChannel(addr, proxies);
+			}
+		});
+	}
+
+	/**
+	 * Takes over the connections of an idle pooled tunnel in place of our own,
+	 * which are yet to be connected, completing the connection immediately.
+	 */
+	private synchronized void adopt(HttpTunnelClientChannel pooled) {
+		if (LOG.isDebugEnabled())
+			LOG.debug("HTTP Tunnel client channel taking over pooled tunnel " + pooled.tunnelId);
+
+		final SocketChannel unusedSendChannel = sendChannel;
+		final SocketChannel unusedPollChannel = pollChannel;
+
+		synchronized (pooled) {
+			sendChannel = pooled.sendChannel;
+			pollChannel = pooled.pollChannel;
+			tunnelId = pooled.tunnelId;
+
+			// Our handlers carry on the tunnel from here, the poll handler
+			// polling again once the outstanding poll is answered
+			sendHandler.adoptTunnel(tunnelId);
+			pollHandler.adoptTunnel(tunnelId);
+
+			sendChannel.getPipeline().replace(HttpTunnelClientChannelSendHandler.NAME, HttpTunnelClientChannelSendHandler.NAME, sendHandler);
+			pollChannel.getPipeline().replace(HttpTunnelClientChannelPollHandler.NAME, HttpTunnelClientChannelPollHandler.NAME, pollHandler);
+
+			// Data the pooled tunnel has received is delivered to us
+			callbacks.takeOver(pooled.callbacks);
+
+			// A poll the pooled tunnel deferred is answered to our handler
+			pooled.pollHandler.resumePolling();
+
+			pooled.handOver();
+		}
+
+		config.setChannelConfigs(sendChannel.getConfig(), pollChannel.getConfig());
+
+		unusedSendChannel.close();
+		unusedPollChannel.close();
+
+		bindState.set(BindState.BOUND);
+		Channels.fireChannelBound(this, sendChannel.getLocalAddress());
+
+		callbacks.fullyEstablished();
+	}
+
+	/**
+	 * Marks this channel as opened for the tunnel pool. Data received is held,
+	 * without polling for more, until another channel takes over the tunnel.
+	 */
+	void setPooled() {
+		callbacks.setPooled();
+	}
+
+	/**
+	 * Closes this pooled tunnel once another channel has taken over its
+	 * connections, leaving them open.
+	 */
+	private synchronized void handOver() {
+		opened.set(false);
+		connectState.set(ConnectState.DISCONNECTED);
+
+		metrics.close();
+		this.setClosed();
+	}
+
+	private synchronized void connectPollChannel(SocketAddress connectAddr) {
+		this.initSsl(pollChannel.getPipeline());
+		Channels.connect(pollChannel, connectAddr);
+	}
+
+	/**
+	 * Replaces the send channel, which is closed by a failed connection
+	 * attempt, with a new one.
+	 */
+	private synchronized void reopenSendChannel() {
+		final ChannelPipeline pipeline = Channels.pipeline();
+		this.initSendPipeline(pipeline);
+		this.initSsl(pipeline);
+
+		sendChannel = outboundFactory.newChannel(pipeline);
 	}
 
 	synchronized ChannelFuture internalDisconnect(ChannelFuture future) {
@@ -433,26 +602,40 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 	synchronized ChannelFuture sendMessage(MessageEvent message) {
 		final ChannelFuture messageFuture = message.getFuture();
 
-		if (!this.isConnected()) {
+		// With fast open, writes made while connecting are sent with (or
+		// straight after) the open tunnel request
+		final boolean fastOpen = config.isFastOpen() && connectState.get() == ConnectState.CONNECTING;
+
+		if (!this.isConnected() && !fastOpen) {
 			final Exception error = new IllegalStateException("Unable to send message when not connected");
 			messageFuture.setFailure(error);
 			return messageFuture;
 		}
 
-		saturationManager.updateThresholds(config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark());
+		// Created on the first write, once the configuration has been applied
+		if (saturationMonitor == null)
+			saturationMonitor = config.getSaturationPolicy().newMonitor(config);
 
 		// Deliver the message using the underlying channel
-		final ChannelBuffer messageBuffer = (ChannelBuffer) message.getMessage();
+		final ChannelBuffer messageBuffer = OutboundMessage.getData(message.getMessage());
 		final int messageSize = messageBuffer.readableBytes();
 
-		updateSaturationStatus(messageSize);
+		final SaturationMonitor monitor = saturationMonitor;
+		final long queuedTime = System.nanoTime();
+
+		statistics.queueSizeChanged(messageSize);
+		this.updateSaturationStatus(monitor.messageQueued(messageSize));
+		metrics.messageSent(messageSize);
 
-		Channels.write(sendChannel, messageBuffer).addListener(new ChannelFutureListener() {
+		Channels.write(sendChannel, message.getMessage()).addListener(new ChannelFutureListener() {
 			@Override
 			public void operationComplete(ChannelFuture future) throws Exception {
-				updateSaturationStatus(-messageSize);
+				statistics.queueSizeChanged(-messageSize);
+				updateSaturationStatus(monitor.messageSent(messageSize, System.nanoTime() - queuedTime));
 
 				if (future.isSuccess()) {
+					statistics.messageSent(messageSize);
+
 					// Fire a write complete event
 					Channels.fireWriteComplete(HttpTunnelClientChannel.this, messageSize);
 
@@ -472,11 +655,21 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 
 		// Update the incoming buffer
 		incomingBuffer.onInterestOpsChanged();
+		this.resumePollingIfReady();
 
 		future.setSuccess();
 		return future;
 	}
 
+	/**
+	 * Sends the poll deferred while the application was not keeping up with
+	 * the data received, if it now is.
+	 */
+	private void resumePollingIfReady() {
+		if (callbacks.isReadyToReceive())
+			pollHandler.resumePolling();
+	}
+
 	synchronized void internalFailConnect(Throwable cause) {
 		if (LOG.isDebugEnabled())
 			LOG.debug("HTTP Tunnel client channel failed");
@@ -504,7 +697,6 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 		pipeline.addLast("aggregator", new HttpChunkAggregator(HttpTunnelMessageUtils.MAX_BODY_SIZE)); // upstream
 		pipeline.addLast(HttpTunnelClientChannelProxyHandler.NAME, sendHttpHandler); // proxy auth, etc
 		pipeline.addLast(HttpTunnelClientChannelSendHandler.NAME, sendHandler); // both
-		pipeline.addLast("writeFragmenter", new WriteFragmenter(HttpTunnelMessageUtils.MAX_BODY_SIZE));
 	}
 
 	private void initPollPipeline(ChannelPipeline pipeline) {
@@ -515,21 +707,39 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 		pipeline.addLast(HttpTunnelClientChannelPollHandler.NAME, pollHandler); // both
 	}
 
-	void updateSaturationStatus(int queueSizeDelta) {
-		final SaturationStateChange transition = saturationManager.queueSizeChanged(queueSizeDelta);
+	/**
+	 * Adds TLS to the given pipeline, if enabled, ready for connecting to the
+	 * server. Every connection uses the server's address as given to connect,
+	 * so they share a cached session.
+	 */
+	private void initSsl(ChannelPipeline pipeline) {
+		final SSLContext sslContext = config.getSslContext();
+		if (sslContext != null)
+			sslHandlerFactory.addFirst(pipeline, sslContext, remoteAddress);
+	}
+
+	void updateSaturationStatus(SaturationStateChange transition) {
 		switch (transition) {
 			case SATURATED: {
 				this.fireWriteEnabled(false);
+				this.fireSaturationChanged(true);
 				break;
 			}
 
 			case DESATURATED: {
 				this.fireWriteEnabled(true);
+				this.fireSaturationChanged(false);
 				break;
 			}
 		}
 	}
 
+	private void fireSaturationChanged(boolean saturated) {
+		final TunnelEventListener listener = config.getEventListener();
+		if (listener != null)
+			listener.saturationChanged(this, saturated);
+	}
+
 	private void fireWriteEnabled(boolean enabled) {
 		int ops = OP_READ;
 		if (!enabled)
@@ -545,9 +755,53 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 	private class WorkerCallbacks implements HttpTunnelClientWorkerOwner {
 
 		private String serverHostName;
+		private List<ChannelBuffer> earlyMessages;
+		private boolean pooled;
+		private WorkerCallbacks adopter;
 
 		public WorkerCallbacks() {
 			serverHostName = null;
+			earlyMessages = new ArrayList<ChannelBuffer>();
+			pooled = false;
+			adopter = null;
+		}
+
+		synchronized void setPooled() {
+			pooled = true;
+		}
+
+		/**
+		 * Takes the data held by a pooled tunnel, and any it receives from
+		 * now on, to be delivered once we are fully established.
+		 */
+		void takeOver(WorkerCallbacks pooled) {
+			synchronized (pooled) {
+				synchronized (this) {
+					earlyMessages.addAll(pooled.earlyMessages);
+				}
+
+				pooled.earlyMessages = null;
+				pooled.adopter = this;
+			}
+		}
+
+		/**
+		 * @return the data received before the connected event fired, unless
+		 *         we are pooled, in which case it is kept for the channel
+		 *         which takes us over.
+		 */
+		private synchronized List<ChannelBuffer> takeEarlyMessages() {
+			if (pooled)
+				return Collections.emptyList();
+
+			final List<ChannelBuffer> messages = earlyMessages;
+			earlyMessages = null;
+
+			return messages;
+		}
+
+		private synchronized boolean isHoldingMessages() {
+			return pooled && earlyMessages != null && !earlyMessages.isEmpty();
 		}
 
 		@Override
@@ -564,10 +818,22 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 		public void onTunnelOpened(String tunnelId) {
 			HttpTunnelClientChannel.this.tunnelId = tunnelId;
 
-			final HttpTunnelClientChannelPollHandler pollHandler = pollChannel.getPipeline().get(HttpTunnelClientChannelPollHandler.class);
 			pollHandler.setTunnelId(tunnelId);
 
-			Channels.connect(pollChannel, sendChannel.getRemoteAddress());
+			synchronized (HttpTunnelClientChannel.this) {
+				// The poll channel has usually connected by now
+				if (pollChannel.isConnected())
+					pollHandler.startPolling(pollChannel);
+				// If it failed to connect try again, otherwise it will start
+				// polling once connected
+				else if (!pollChannel.isOpen()) {
+					final ChannelPipeline pipeline = Channels.pipeline();
+					HttpTunnelClientChannel.this.initPollPipeline(pipeline);
+					pollChannel = outboundFactory.newChannel(pipeline);
+
+					HttpTunnelClientChannel.this.connectPollChannel(sendChannel.getRemoteAddress());
+				}
+			}
 		}
 
 		@Override
@@ -579,6 +845,16 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 			connectFuture.get().setSuccess();
 
 			Channels.fireChannelConnected(HttpTunnelClientChannel.this, remoteAddress);
+
+			// Deliver any data carried by a fast open response now that the
+			// application knows we are connected
+			final List<ChannelBuffer> messages = this.takeEarlyMessages();
+			for (ChannelBuffer message : messages)
+				this.onMessageReceived(message, null);
+
+			final TunnelEventListener listener = config.getEventListener();
+			if (listener != null)
+				listener.tunnelOpened(HttpTunnelClientChannel.this);
 		}
 
 		private synchronized void underlyingChannelReconnectFailed(Throwable cause) {
@@ -588,14 +864,20 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 
 		@Override
 		public synchronized void underlyingChannelFailed() {
+			final TunnelEventListener listener = config.getEventListener();
+
 			// The send channel has died, re-open it
 			if (!sendChannel.isOpen()) {
+				if (listener != null)
+					listener.reconnecting(HttpTunnelClientChannel.this, true);
+
 				final SocketAddress localAddress = sendChannel.getLocalAddress();
 				final SocketAddress remoteAddress = sendChannel.getRemoteAddress();
 
 				// Open a new channel using the send pipeline
 				final ChannelPipeline pipeline = Channels.pipeline();
 				HttpTunnelClientChannel.this.initSendPipeline(pipeline);
+				HttpTunnelClientChannel.this.initSsl(pipeline);
 				sendChannel = outboundFactory.newChannel(pipeline);
 
 				// Bind to the same local address as before
@@ -622,12 +904,16 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 
 			// The poll channel has died, re-open it
 			if (!pollChannel.isOpen()) {
+				if (listener != null)
+					listener.reconnecting(HttpTunnelClientChannel.this, false);
+
 				final SocketAddress localAddress = pollChannel.getLocalAddress();
 				final SocketAddress remoteAddress = pollChannel.getRemoteAddress();
 
 				// Open a new channel using the poll pipeline
 				final ChannelPipeline pipeline = Channels.pipeline();
 				HttpTunnelClientChannel.this.initPollPipeline(pipeline);
+				HttpTunnelClientChannel.this.initSsl(pipeline);
 				pollChannel = outboundFactory.newChannel(pipeline);
 
 				// Bind to the same local address as before
@@ -654,7 +940,24 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 		}
 
 		@Override
-		public void onMessageReceived(ChannelBuffer message) {
+		public void onMessageReceived(ChannelBuffer message, MessageTrace trace) {
+			// Hold on to data received before the connected event has fired,
+			// or while pooled. Once another channel has taken over this
+			// pooled tunnel the data is theirs
+			final WorkerCallbacks owner;
+			synchronized (this) {
+				owner = adopter;
+				if (owner == null && earlyMessages != null && opened.get()) {
+					earlyMessages.add(message);
+					return;
+				}
+			}
+
+			if (owner != null) {
+				owner.onMessageReceived(message, trace);
+				return;
+			}
+
 			if (!opened.get()) {
 				if (LOG.isWarnEnabled())
 					LOG.warn("Received message while channel is closed");
@@ -662,19 +965,49 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 				return;
 			}
 
+			final int messageSize = message.readableBytes();
+
+			incomingBuffer.updateThresholds(config.getIncomingBufferLowWaterMark(), config.getIncomingBufferHighWaterMark(), config.getIncomingBufferBounds());
+			incomingBuffer.setCoalescingLimit(config.getReadCoalescingLimit());
+
 			// Attempt to queue this message in the incoming buffer
-			if (!incomingBuffer.offer(message)) {
+			if (!incomingBuffer.offer(message, trace)) {
 				if (LOG.isWarnEnabled())
 					LOG.warn("Incoming buffer rejected message, dropping");
 
+				final TunnelEventListener listener = config.getEventListener();
+				if (listener != null)
+					listener.messageDropped(HttpTunnelClientChannel.this, messageSize);
+
 				return;
 			}
 
-			// If the buffer is over capacity start congestion control
-			if (incomingBuffer.overCapacity()) {
-				// TODO: Send a "stop sending shit" message!
-				// TODO: What about when to send the "start sending shit again"
-				// message?
+			metrics.messageReceived(messageSize);
+			statistics.messageReceived(messageSize);
+
+		}
+
+		@Override
+		public boolean isReadyToReceive() {
+			return HttpTunnelClientChannel.this.isReadable() && !incomingBuffer.overCapacity() && !this.isHoldingMessages();
+		}
+
+		@Override
+		public void onPollDeferred() {
+			final Runnable keepAlive = new Runnable() {
+				@Override
+				public void run() {
+					pollHandler.sendKeepAlive();
+				}
+			};
+
+			// Send a keep-alive after the ping delay, otherwise the server
+			// would time the tunnel out while the application isn't reading
+			try {
+				timer.schedule(keepAlive, config.getPingDelay(), TimeUnit.SECONDS);
+			}
+			catch (RejectedExecutionException e) {
+				keepAlive.run();
 			}
 		}
 
@@ -691,6 +1024,30 @@ public class HttpTunnelClientChannel extends AbstractChannel implements SocketCh
 			return config.getUserAgent();
 		}
 
+		@Override
+		public HttpTunnelStatistics getStatistics() {
+			return statistics;
+		}
+
+		@Override
+		public MessageTracer getMessageTracer() {
+			return config.getMessageTracer();
+		}
+
+		@Override
+		public boolean isFastOpen() {
+			return config.isFastOpen();
+		}
+
+		@Override
+		public void onSendCompleted(long roundTripTime) {
+			statistics.rttSampled(roundTripTime, TimeUnit.NANOSECONDS);
+
+			final TunnelEventListener listener = config.getEventListener();
+			if (listener != null)
+				listener.sendCompleted(HttpTunnelClientChannel.this, roundTripTime);
+		}
+
 		@Override
 		public boolean isConnecting() {
 			return HttpTunnelClientChannel.this.connectState.get() == ConnectState.CONNECTING;
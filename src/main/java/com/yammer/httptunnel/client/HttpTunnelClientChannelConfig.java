@@ -16,7 +16,11 @@
 
 package com.yammer.httptunnel.client;
 
+import javax.net.ssl.SSLContext;
+
 import com.yammer.httptunnel.HttpTunnelChannelConfig;
+import com.yammer.httptunnel.trace.MessageTracer;
+import com.yammer.httptunnel.trace.TunnelEventListener;
 import org.jboss.netty.channel.socket.SocketChannelConfig;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
@@ -36,21 +40,33 @@ public class HttpTunnelClientChannelConfig extends HttpTunnelChannelConfig {
 	public static final String DEFAULT_USER_AGENT = "HttpTunnel";
 
 	static final String USER_AGENT_OPTION = "userAgent";
+	static final String MESSAGE_TRACER_OPTION = "messageTracer";
+	static final String EVENT_LISTENER_OPTION = "eventListener";
+	static final String SSL_CONTEXT_OPTION = "sslContext";
+	static final String FAST_OPEN_OPTION = "fastOpen";
 
 	private static final String PROP_PKG = "org.jboss.netty.channel.socket.http.";
 
 	private static final String PROP_UserAgent = PROP_PKG + USER_AGENT_OPTION;
 
-	private final SocketChannelConfig sendChannelConfig;
-	private final SocketChannelConfig pollChannelConfig;
+	private volatile SocketChannelConfig sendChannelConfig;
+	private volatile SocketChannelConfig pollChannelConfig;
 
 	private String userAgent;
+	private volatile MessageTracer messageTracer;
+	private volatile TunnelEventListener eventListener;
+	private volatile SSLContext sslContext;
+	private volatile boolean fastOpen;
 
 	HttpTunnelClientChannelConfig(SocketChannelConfig sendChannelConfig, SocketChannelConfig pollChannelConfig) {
 		this.sendChannelConfig = sendChannelConfig;
 		this.pollChannelConfig = pollChannelConfig;
 
 		userAgent = System.getProperty(PROP_UserAgent, DEFAULT_USER_AGENT);
+		messageTracer = null;
+		eventListener = null;
+		sslContext = null;
+		fastOpen = false;
 	}
 
 	public String getUserAgent() {
@@ -61,10 +77,100 @@ public class HttpTunnelClientChannelConfig extends HttpTunnelChannelConfig {
 		this.userAgent = userAgent;
 	}
 
+	public MessageTracer getMessageTracer() {
+		return messageTracer;
+	}
+
+	/**
+	 * Sets the tracer which samples messages sent through this tunnel, or null
+	 * (the default) to disable tracing.
+	 */
+	public void setMessageTracer(MessageTracer messageTracer) {
+		this.messageTracer = messageTracer;
+	}
+
+	public TunnelEventListener getEventListener() {
+		return eventListener;
+	}
+
+	/**
+	 * Sets the listener notified of events in the life of this tunnel, or null
+	 * (the default) to disable them.
+	 */
+	public void setEventListener(TunnelEventListener eventListener) {
+		this.eventListener = eventListener;
+	}
+
+	public SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Sets the context used to secure the send and poll connections with TLS,
+	 * or null (the default) to use plain HTTP. Sessions are cached by the
+	 * context, so sharing one context between tunnels allows their
+	 * connections to resume each other's sessions rather than performing full
+	 * handshakes. A secured tunnel connects directly to the server, bypassing
+	 * any HTTP proxy. Must be set before connecting.
+	 */
+	public void setSslContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	public boolean isFastOpen() {
+		return fastOpen;
+	}
+
+	/**
+	 * Sets whether data may be written while the tunnel is still connecting
+	 * (false by default). The first such write is carried by the open tunnel
+	 * request, and the server may answer it with the first data it has to
+	 * send, saving a round trip for short request/response exchanges. The
+	 * server must support fast open. Must be set before connecting.
+	 */
+	public void setFastOpen(boolean fastOpen) {
+		this.fastOpen = fastOpen;
+	}
+
+	/**
+	 * Copies the options of the given configuration, for a pooled tunnel
+	 * opened on behalf of the channel it belongs to. The event listener isn't
+	 * copied, as pooled tunnels are hidden from the application until handed
+	 * out.
+	 */
+	void copyFrom(HttpTunnelClientChannelConfig config) {
+		userAgent = config.getUserAgent();
+		messageTracer = config.getMessageTracer();
+		sslContext = config.getSslContext();
+
+		HttpTunnelClientChannelConfig.copySocketOptions(config, this);
+	}
+
+	/**
+	 * Switches to configuring the given send and poll channels, which have
+	 * replaced those this configuration was created for, applying the socket
+	 * options set so far to them.
+	 */
+	void setChannelConfigs(SocketChannelConfig sendChannelConfig, SocketChannelConfig pollChannelConfig) {
+		HttpTunnelClientChannelConfig.copySocketOptions(this.sendChannelConfig, sendChannelConfig);
+		HttpTunnelClientChannelConfig.copySocketOptions(this.pollChannelConfig, pollChannelConfig);
+
+		this.sendChannelConfig = sendChannelConfig;
+		this.pollChannelConfig = pollChannelConfig;
+	}
+
+	private static void copySocketOptions(SocketChannelConfig from, SocketChannelConfig to) {
+		to.setTcpNoDelay(from.isTcpNoDelay());
+		to.setKeepAlive(from.isKeepAlive());
+		to.setReceiveBufferSize(from.getReceiveBufferSize());
+		to.setSendBufferSize(from.getSendBufferSize());
+		to.setSoLinger(from.getSoLinger());
+	}
+
 	/* HTTP TUNNEL SPECIFIC CONFIGURATION */
 	// TODO Support all options in the old tunnel (see
 	// HttpTunnelingSocketChannelConfig)
-	// Mostly SSL, virtual host, and URL prefix
+	// Mostly virtual host, and URL prefix
 	@Override
 	public boolean setOption(String key, Object value) {
 		if (USER_AGENT_OPTION.equalsIgnoreCase(key)) {
@@ -72,6 +178,26 @@ public class HttpTunnelClientChannelConfig extends HttpTunnelChannelConfig {
 			return true;
 		}
 
+		if (MESSAGE_TRACER_OPTION.equalsIgnoreCase(key)) {
+			this.setMessageTracer((MessageTracer) value);
+			return true;
+		}
+
+		if (EVENT_LISTENER_OPTION.equalsIgnoreCase(key)) {
+			this.setEventListener((TunnelEventListener) value);
+			return true;
+		}
+
+		if (SSL_CONTEXT_OPTION.equalsIgnoreCase(key)) {
+			this.setSslContext((SSLContext) value);
+			return true;
+		}
+
+		if (FAST_OPEN_OPTION.equalsIgnoreCase(key)) {
+			this.setFastOpen((Boolean) value);
+			return true;
+		}
+
 		return super.setOption(key, value);
 	}
 
@@ -16,11 +16,23 @@
 
 package com.yammer.httptunnel.client;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
 
+import com.yammer.httptunnel.HttpTunnelChannelConfig;
+import com.yammer.httptunnel.HttpTunnelMetrics;
+import com.yammer.httptunnel.util.SslHandlerFactory;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricsRegistry;
+
 /**
  * Factory used to create new client channels.
  *
@@ -33,20 +45,103 @@ public class HttpTunnelClientChannelFactory implements ClientSocketChannelFactor
 
 	private final ClientSocketChannelFactory factory;
 	private final ChannelGroup realConnections;
+	private final HttpTunnelMetrics metrics;
+	private final SslHandlerFactory sslHandlerFactory;
+	private final ProxyAuthCache proxyAuthCache;
+	private final ProxyResolver proxyResolver;
+
+	private final ScheduledExecutorService timer;
 
+	private volatile HttpTunnelClientChannelPool pool;
+
+	/**
+	 * Constructs a new factory reporting metrics to the default registry.
+	 */
 	public HttpTunnelClientChannelFactory(ClientSocketChannelFactory factory) {
+		this(factory, Metrics.defaultRegistry());
+	}
+
+	/**
+	 * Constructs a new factory reporting aggregate metrics to the given
+	 * registry.
+	 */
+	public HttpTunnelClientChannelFactory(ClientSocketChannelFactory factory, MetricsRegistry registry) {
+		this(factory, registry, false);
+	}
+
+	/**
+	 * Constructs a new factory reporting metrics to the given registry, and
+	 * optionally reporting metrics for each individual tunnel.
+	 */
+	public HttpTunnelClientChannelFactory(ClientSocketChannelFactory factory, MetricsRegistry registry, boolean perTunnelMetrics) {
 		this.factory = factory;
 
 		realConnections = new DefaultChannelGroup();
+		metrics = new HttpTunnelMetrics(registry, HttpTunnelClientChannel.class, perTunnelMetrics);
+		sslHandlerFactory = new SslHandlerFactory(metrics, HttpTunnelClientChannel.class);
+		proxyAuthCache = new ProxyAuthCache();
+		proxyResolver = new ProxyResolver();
+		timer = Executors.newSingleThreadScheduledExecutor();
+
+		pool = null;
+	}
+
+	public HttpTunnelMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Keeps up to the given number of idle tunnels open to each server
+	 * connected to, closing those left idle for longer than the server's
+	 * default ping delay.
+	 *
+	 * @see #enableTunnelPool(int, long, TimeUnit)
+	 */
+	public void enableTunnelPool(int size) {
+		this.enableTunnelPool(size, HttpTunnelChannelConfig.DEFAULT_PING_DELAY, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Keeps up to the given number of fully established, idle tunnels open to
+	 * each server connected to, so that later connections to the same server
+	 * complete immediately. The pool is topped up in the background as
+	 * tunnels are handed out. Idle tunnels are closed after the given time,
+	 * which should be below the server's ping timeout (twice its ping delay).
+	 * <p>
+	 * A server sees pooled tunnels as connected as soon as they are opened,
+	 * so this only suits protocols in which the client speaks first. Only
+	 * channels which are not explicitly bound before connecting use the pool.
+	 */
+	public synchronized void enableTunnelPool(int size, long idleTime, TimeUnit unit) {
+		if (pool != null)
+			throw new IllegalStateException("Tunnel pool already enabled");
+
+		pool = new HttpTunnelClientChannelPool(this, metrics, size, idleTime, unit);
 	}
 
 	@Override
 	public HttpTunnelClientChannel newChannel(ChannelPipeline pipeline) {
-		return new HttpTunnelClientChannel(this, pipeline, new HttpTunnelClientChannelSink(), factory, realConnections);
+		return new HttpTunnelClientChannel(this, pipeline, new HttpTunnelClientChannelSink(), factory, realConnections, metrics, sslHandlerFactory, proxyAuthCache, proxyResolver, pool, timer);
+	}
+
+	/**
+	 * Creates a channel to be connected and kept idle by the tunnel pool,
+	 * which holds on to any data received until it is taken over.
+	 */
+	HttpTunnelClientChannel newPooledChannel() {
+		final HttpTunnelClientChannel channel = new HttpTunnelClientChannel(this, Channels.pipeline(new SimpleChannelUpstreamHandler()), new HttpTunnelClientChannelSink(), factory, realConnections, metrics, sslHandlerFactory, proxyAuthCache, proxyResolver, null, timer);
+		channel.setPooled();
+
+		return channel;
 	}
 
 	@Override
 	public void releaseExternalResources() {
+		if (pool != null)
+			pool.release();
+
+		timer.shutdownNow();
+		metrics.release();
 		factory.releaseExternalResources();
 	}
 }
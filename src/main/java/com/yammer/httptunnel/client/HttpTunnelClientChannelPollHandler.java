@@ -18,7 +18,8 @@ package com.yammer.httptunnel.client;
 
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -33,13 +34,18 @@ import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
 
+import com.yammer.httptunnel.HttpTunnelMetrics;
+import com.yammer.httptunnel.trace.MessageTrace;
 import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
-import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.Meter;
 
 /**
- * Pipeline component which controls the client poll loop to the server.
+ * Pipeline component which controls the client poll loop to the server. The
+ * poll connection may be established before the tunnel has been opened, in
+ * which case polling starts as soon as the tunnel ID is known. While the
+ * application is not keeping up with the data received the next poll is
+ * deferred, leaving further data queued at the server.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Iain McGinniss (iain.mcginniss@onedrum.com)
@@ -52,18 +58,30 @@ class HttpTunnelClientChannelPollHandler extends SimpleChannelHandler {
 
 	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(HttpTunnelClientChannelPollHandler.class);
 
-	private final Meter connectionMeter = Metrics.newMeter(HttpTunnelClientChannelPollHandler.class, "channelOpen", "channelOpen", TimeUnit.SECONDS);
-	private final Meter pollMeter = Metrics.newMeter(HttpTunnelClientChannelPollHandler.class, "pollMeter", "pollMeter", TimeUnit.SECONDS);
-	private final Histogram requestSizes = Metrics.newHistogram(HttpTunnelClientChannelPollHandler.class, "requestSize");
+	private final Meter connectionMeter;
+	private final Meter pollMeter;
+	private final Meter deferredPollMeter;
+	private final Histogram requestSizes;
 
 	private final HttpTunnelClientWorkerOwner tunnelChannel;
 
-	private String tunnelId;
+	private final AtomicBoolean polling;
+	private final AtomicReference<Channel> deferredPoll;
+
+	private volatile String tunnelId;
 	private long pollTime;
 
-	public HttpTunnelClientChannelPollHandler(HttpTunnelClientWorkerOwner tunnelChannel) {
+	public HttpTunnelClientChannelPollHandler(HttpTunnelClientWorkerOwner tunnelChannel, HttpTunnelMetrics metrics) {
 		this.tunnelChannel = tunnelChannel;
 
+		connectionMeter = metrics.newMeter(HttpTunnelClientChannelPollHandler.class, "channelOpen", "channelOpen");
+		pollMeter = metrics.newMeter(HttpTunnelClientChannelPollHandler.class, "pollMeter", "pollMeter");
+		deferredPollMeter = metrics.newMeter(HttpTunnelClientChannelPollHandler.class, "deferredPolls", "deferredPolls");
+		requestSizes = metrics.newHistogram(HttpTunnelClientChannelPollHandler.class, "requestSize");
+
+		polling = new AtomicBoolean(false);
+		deferredPoll = new AtomicReference<Channel>(null);
+
 		tunnelId = null;
 		pollTime = 0;
 	}
@@ -72,8 +90,37 @@ class HttpTunnelClientChannelPollHandler extends SimpleChannelHandler {
 		this.tunnelId = tunnelId;
 	}
 
+	/**
+	 * Takes over an established tunnel from another poll handler, whose poll
+	 * request is still outstanding. We poll again once it is answered.
+	 */
+	public void adoptTunnel(String tunnelId) {
+		this.tunnelId = tunnelId;
+
+		polling.set(true);
+	}
+
 	@Override
 	public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		// Connected in parallel with opening the tunnel, wait for it to open
+		if (tunnelId == null) {
+			if (LOG.isDebugEnabled())
+				LOG.debug("Poll channel connected before tunnel opened - waiting for tunnel id");
+
+			return;
+		}
+
+		this.startPolling(ctx.getChannel());
+	}
+
+	/**
+	 * Starts polling the given channel, once it is connected and the tunnel
+	 * ID is known. Called on both events, and only polls once.
+	 */
+	public void startPolling(Channel channel) {
+		if (!polling.compareAndSet(false, true))
+			return;
+
 		if (tunnelChannel.isConnecting() || tunnelChannel.isConnected()) {
 			if (LOG.isDebugEnabled())
 				LOG.debug("Poll channel for tunnel " + tunnelId + " established");
@@ -83,11 +130,15 @@ class HttpTunnelClientChannelPollHandler extends SimpleChannelHandler {
 		}
 
 		// Send our first poll data request
-		this.sendPoll(ctx.getChannel());
+		this.sendPoll(channel);
 	}
 
 	@Override
 	public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+		// A replacement channel will need to start polling again
+		polling.set(false);
+		deferredPoll.set(null);
+
 		if (!tunnelChannel.isConnecting() && !tunnelChannel.isConnected())
 			return;
 
@@ -111,8 +162,10 @@ class HttpTunnelClientChannelPollHandler extends SimpleChannelHandler {
 				LOG.debug("OK response received for poll on tunnel " + tunnelId + " after " + rtt + " ns");
 			}
 
-			tunnelChannel.onMessageReceived(response.getContent());
-			this.sendPoll(ctx.getChannel());
+			final MessageTrace trace = MessageTrace.resume(tunnelChannel.getMessageTracer(), response.getHeader(MessageTrace.HEADER));
+
+			tunnelChannel.onMessageReceived(response.getContent(), trace);
+			this.pollWhenReady(ctx.getChannel());
 		}
 		else if (HttpTunnelMessageUtils.isPingResponse(response)) {
 			if (LOG.isDebugEnabled()) {
@@ -120,7 +173,7 @@ class HttpTunnelClientChannelPollHandler extends SimpleChannelHandler {
 				LOG.debug("Ping response received for poll on tunnel " + tunnelId + " after " + rtt + " ns");
 			}
 
-			this.sendPoll(ctx.getChannel());
+			this.pollWhenReady(ctx.getChannel());
 		}
 		else if (HttpTunnelMessageUtils.isTunnelCloseResponse(response)) {
 			tunnelChannel.onDisconnectRequest(Channels.future(ctx.getChannel()));
@@ -155,7 +208,61 @@ class HttpTunnelClientChannelPollHandler extends SimpleChannelHandler {
 		super.writeComplete(ctx, e);
 	}
 
+	/**
+	 * Polls again if the application is ready to receive more data, otherwise
+	 * defers the poll until {@link #resumePolling()} is called.
+	 */
+	private void pollWhenReady(Channel channel) {
+		if (tunnelChannel.isReadyToReceive()) {
+			this.sendPoll(channel);
+			return;
+		}
+
+		if (LOG.isDebugEnabled())
+			LOG.debug("Deferring poll for tunnel " + tunnelId + " until the application catches up");
+
+		deferredPollMeter.mark();
+		deferredPoll.set(channel);
+
+		tunnelChannel.onPollDeferred();
+
+		// We may have caught up since checking, in which case nobody else will
+		// resume polling
+		if (tunnelChannel.isReadyToReceive())
+			this.resumePolling();
+	}
+
+	/**
+	 * Sends the deferred poll, if there is one.
+	 */
+	public void resumePolling() {
+		if (deferredPoll.get() == null)
+			return;
+
+		final Channel channel = deferredPoll.getAndSet(null);
+		if (channel != null)
+			this.sendPoll(channel, HttpTunnelMessageUtils.POLL_DEFERRED);
+	}
+
+	/**
+	 * Sends the deferred poll as a keep-alive, if there is one. The server
+	 * answers a keep-alive with a ping rather than data, after which the poll
+	 * is deferred again if the application still hasn't caught up.
+	 */
+	public void sendKeepAlive() {
+		if (deferredPoll.get() == null)
+			return;
+
+		final Channel channel = deferredPoll.getAndSet(null);
+		if (channel != null)
+			this.sendPoll(channel, HttpTunnelMessageUtils.POLL_KEEP_ALIVE);
+	}
+
 	private void sendPoll(Channel channel) {
+		this.sendPoll(channel, null);
+	}
+
+	private void sendPoll(Channel channel, String poll) {
 		if (!channel.isOpen())
 			return;
 
@@ -166,6 +273,9 @@ class HttpTunnelClientChannelPollHandler extends SimpleChannelHandler {
 		pollMeter.mark();
 
 		final HttpRequest request = HttpTunnelMessageUtils.createReceiveDataRequest(tunnelChannel.getServerHostName(), tunnelId, tunnelChannel.getUserAgent());
+		if (poll != null)
+			request.setHeader(HttpTunnelMessageUtils.POLL_HEADER, poll);
+
 		channel.write(request);
 	}
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.client;
+
+import java.net.InetSocketAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+
+import com.yammer.httptunnel.HttpTunnelMetrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+
+/**
+ * Keeps a small number of fully established, idle tunnels to each server
+ * connected to, so that connecting to the same server again can take over one
+ * of them rather than waiting for the send and poll connections to be made
+ * and the tunnel to be opened. A server's pool is filled by the first
+ * connection to it, and topped up in the background each time a tunnel is
+ * handed out. Tunnels left idle for too long are closed without being
+ * replaced, so the pools of servers no longer connected to empty.
+ */
+class HttpTunnelClientChannelPool {
+
+	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(HttpTunnelClientChannelPool.class);
+
+	private final HttpTunnelClientChannelFactory factory;
+	private final int size;
+	private final long idleTime;
+
+	private final ConcurrentMap<InetSocketAddress, Destination> destinations;
+	private final ScheduledExecutorService expiryExecutor;
+
+	private final Meter hits;
+	private final Meter misses;
+
+	private volatile boolean released;
+
+	HttpTunnelClientChannelPool(HttpTunnelClientChannelFactory factory, HttpTunnelMetrics metrics, int size, long idleTime, TimeUnit unit) {
+		this.factory = factory;
+		this.size = size;
+		this.idleTime = unit.toNanos(idleTime);
+
+		destinations = new ConcurrentHashMap<InetSocketAddress, Destination>();
+		expiryExecutor = Executors.newSingleThreadScheduledExecutor();
+
+		metrics.newGauge(HttpTunnelClientChannel.class, "pooledTunnels", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				int idle = 0;
+				for (Destination destination : destinations.values())
+					idle += destination.idle.size();
+
+				return idle;
+			}
+		});
+
+		hits = metrics.newMeter(HttpTunnelClientChannel.class, "poolHits", "connects");
+		misses = metrics.newMeter(HttpTunnelClientChannel.class, "poolMisses", "connects");
+
+		released = false;
+	}
+
+	/**
+	 * Takes an idle tunnel to the given server, opened with options matching
+	 * the given configuration, topping the pool back up.
+	 *
+	 * @return the tunnel, or null if none is available, in which case the
+	 *         caller should connect as normal.
+	 */
+	HttpTunnelClientChannel take(InetSocketAddress remoteAddress, HttpTunnelClientChannelConfig config) {
+		final Destination destination = this.getDestination(remoteAddress);
+
+		HttpTunnelClientChannel tunnel;
+		while ((tunnel = destination.idle.poll()) != null) {
+			destination.count.decrementAndGet();
+
+			if (tunnel.isConnected() && HttpTunnelClientChannelPool.matches(tunnel.getConfig(), config))
+				break;
+
+			// Closed by the server, or opened for a differently configured
+			// channel
+			tunnel.close();
+		}
+
+		if (tunnel != null)
+			hits.mark();
+		else
+			misses.mark();
+
+		this.fill(remoteAddress, destination, config);
+
+		return tunnel;
+	}
+
+	private Destination getDestination(InetSocketAddress remoteAddress) {
+		final Destination destination = destinations.get(remoteAddress);
+		if (destination != null)
+			return destination;
+
+		final Destination newDestination = new Destination();
+		final Destination existingDestination = destinations.putIfAbsent(remoteAddress, newDestination);
+
+		return existingDestination != null ? existingDestination : newDestination;
+	}
+
+	private static boolean matches(HttpTunnelClientChannelConfig pooled, HttpTunnelClientChannelConfig config) {
+		if (pooled.getSslContext() != config.getSslContext())
+			return false;
+
+		final String userAgent = pooled.getUserAgent();
+		return userAgent == null ? config.getUserAgent() == null : userAgent.equals(config.getUserAgent());
+	}
+
+	private void fill(InetSocketAddress remoteAddress, Destination destination, HttpTunnelClientChannelConfig config) {
+		while (!released) {
+			final int count = destination.count.get();
+			if (count >= size)
+				return;
+
+			if (destination.count.compareAndSet(count, count + 1))
+				this.open(remoteAddress, destination, config);
+		}
+	}
+
+	private void open(InetSocketAddress remoteAddress, final Destination destination, HttpTunnelClientChannelConfig config) {
+		final HttpTunnelClientChannel tunnel = factory.newPooledChannel();
+		tunnel.getConfig().copyFrom(config);
+
+		tunnel.connect(remoteAddress).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (!future.isSuccess()) {
+					if (LOG.isDebugEnabled())
+						LOG.debug("Failed to open pooled tunnel: " + future.getCause());
+
+					destination.count.decrementAndGet();
+					tunnel.close();
+					return;
+				}
+
+				if (released) {
+					tunnel.close();
+					return;
+				}
+
+				destination.idle.offer(tunnel);
+
+				final Runnable expiry = new Runnable() {
+					@Override
+					public void run() {
+						// Only if it hasn't been handed out in the mean time
+						if (destination.idle.remove(tunnel)) {
+							destination.count.decrementAndGet();
+							tunnel.close();
+						}
+					}
+				};
+
+				try {
+					expiryExecutor.schedule(expiry, idleTime, TimeUnit.NANOSECONDS);
+				}
+				catch (RejectedExecutionException e) {
+					// Released in the mean time
+					expiry.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Closes all idle tunnels. No more tunnels will be opened.
+	 */
+	void release() {
+		released = true;
+		expiryExecutor.shutdownNow();
+
+		for (Destination destination : destinations.values()) {
+			HttpTunnelClientChannel tunnel;
+			while ((tunnel = destination.idle.poll()) != null)
+				tunnel.close();
+		}
+	}
+
+	private static class Destination {
+		private final Queue<HttpTunnelClientChannel> idle;
+		// Idle tunnels plus those being opened
+		private final AtomicInteger count;
+
+		Destination() {
+			idle = new ConcurrentLinkedQueue<HttpTunnelClientChannel>();
+			count = new AtomicInteger(0);
+		}
+	}
+}
@@ -36,7 +36,9 @@ import com.yammer.httptunnel.util.StringUtils;
 
 /**
  * Pipeline component which controls proxy authentication requests as well as
- * injecting no-cache and keep-alive headers.
+ * injecting no-cache and keep-alive headers. Challenges and credentials are
+ * shared between every connection made by the tunnels of a factory, so once
+ * a proxy has challenged one of them the rest authenticate preemptively.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Iain McGinniss (iain.mcginniss@onedrum.com)
@@ -49,7 +51,7 @@ class HttpTunnelClientChannelProxyHandler extends SimpleChannelHandler {
 
 	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(HttpTunnelClientChannelProxyHandler.class);
 
-	private static class ProxyAuthHandler {
+	static class ProxyAuthHandler {
 		public static ProxyAuthHandler init(List<String> authRequests) throws ProxyAuthenticationException {
 			final Map<String, String> reqAuthSchemes = new HashMap<String, String>();
 
@@ -80,7 +82,7 @@ class HttpTunnelClientChannelProxyHandler extends SimpleChannelHandler {
 				// attempt to generate a header
 				final Map<String, String> params = new ParameterParser(authParams).split(',');
 
-				return new ProxyAuthHandler(supportedScheme, params);
+				return new ProxyAuthHandler(supportedScheme, params, null);
 			}
 
 			throw new ProxyAuthenticationException("Proxy requested unsupported proxy authentication scheme");
@@ -88,19 +90,37 @@ class HttpTunnelClientChannelProxyHandler extends SimpleChannelHandler {
 
 		private final AuthScheme scheme;
 		private final Map<String, String> challenge;
+		private final PasswordAuthentication credentials;
 
-		private ProxyAuthHandler(AuthScheme scheme, Map<String, String> challenge) {
+		private ProxyAuthHandler(AuthScheme scheme, Map<String, String> challenge, PasswordAuthentication credentials) {
 			this.scheme = scheme;
 			this.challenge = challenge;
+			this.credentials = credentials;
 		}
 
-		public String authenticate(HttpRequest request, String username, String password) throws Exception {
-			return String.format("%s %s", StringUtils.capitalize(scheme.getName()), scheme.authenticate(request, challenge, username, password));
+		public ProxyAuthHandler withCredentials(PasswordAuthentication credentials) {
+			return new ProxyAuthHandler(scheme, challenge, credentials);
 		}
 
-        public AuthScheme getScheme() {
-            return scheme;
-        }
+		public String authenticate(HttpRequest request) throws Exception {
+			return String.format("%s %s", StringUtils.capitalize(scheme.getName()), scheme.authenticate(request, challenge, credentials.getUserName(), new String(credentials.getPassword())));
+		}
+
+		public AuthScheme getScheme() {
+			return scheme;
+		}
+
+		public PasswordAuthentication getCredentials() {
+			return credentials;
+		}
+
+		/**
+		 * @return true if the challenge only rejected an expired nonce, rather
+		 *         than the credentials themselves.
+		 */
+		public boolean isStale() {
+			return "true".equalsIgnoreCase(challenge.get("stale"));
+		}
 	}
 
 	private static final List<AuthScheme> proxyAuthSchemes = new LinkedList<AuthScheme>();
@@ -112,14 +132,13 @@ class HttpTunnelClientChannelProxyHandler extends SimpleChannelHandler {
 		proxyAuthSchemes.add(new BasicAuthScheme());
 	}
 
-	private final AtomicReference<ProxyAuthHandler> proxyAuthHandler;
-    private final AtomicReference<PasswordAuthentication> proxyAuthCredentials;
-    private final AtomicReference<HttpRequest> lastRequest;
+	private final ProxyAuthCache authCache;
+	private final AtomicReference<HttpRequest> lastRequest;
+
+	public HttpTunnelClientChannelProxyHandler(ProxyAuthCache authCache) {
+		this.authCache = authCache;
 
-	public HttpTunnelClientChannelProxyHandler() {
-		proxyAuthHandler = new AtomicReference<ProxyAuthHandler>();
-        proxyAuthCredentials = new AtomicReference<PasswordAuthentication>();
-        lastRequest = new AtomicReference<HttpRequest>();
+		lastRequest = new AtomicReference<HttpRequest>();
 	}
 
 	@Override
@@ -134,35 +153,49 @@ class HttpTunnelClientChannelProxyHandler extends SimpleChannelHandler {
 
 	@Override
 	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-        final HttpRequest lastRequest = this.lastRequest.getAndSet(null);
+		final HttpRequest lastRequest = this.lastRequest.getAndSet(null);
 		final HttpResponse response = (HttpResponse) e.getMessage();
 
 		if (HttpTunnelMessageUtils.isProxyAuthResponse(response)) {
 			if (LOG.isDebugEnabled())
 				LOG.debug("tunnel received HTTP 407 proxy auth required response");
 
-			// Generate a proxy authentication header - throws an exception if
-			// no supported auth method or credentials
-            final ProxyAuthHandler handler = ProxyAuthHandler.init(response.getHeaders(HttpHeaders.Names.PROXY_AUTHENTICATE));
-			if (!proxyAuthHandler.compareAndSet(null, handler))
-				throw new ProxyAuthenticationException("Received HTTP 407 response even though we already provided credentials");
+			// Parse the new challenge - throws an exception if there is no
+			// supported auth method
+			final ProxyAuthHandler challenge = ProxyAuthHandler.init(response.getHeaders(HttpHeaders.Names.PROXY_AUTHENTICATE));
 
-            final InetSocketAddress remoteAddress = (InetSocketAddress) e.getRemoteAddress();
-            final String prompt = String.format("Credentials required for proxy at %s:%d", remoteAddress.getHostString(), remoteAddress.getPort());
+			final InetSocketAddress remoteAddress = (InetSocketAddress) e.getRemoteAddress();
+			final ProxyAuthHandler previous = authCache.get(remoteAddress);
 
-            final PasswordAuthentication auth = Authenticator.requestPasswordAuthentication(remoteAddress.getAddress(), remoteAddress.getPort(), "HTTP", prompt, handler.getScheme().toString());
-            if (!proxyAuthCredentials.compareAndSet(null, auth))
-                throw new ProxyAuthenticationException("Received HTTP 407 response even though we already provided credentials");
+			// Unless only the nonce expired, a challenge in response to a
+			// request we authenticated means the credentials were rejected
+			if (lastRequest != null && lastRequest.containsHeader(HttpHeaders.Names.PROXY_AUTHORIZATION) && !challenge.isStale()) {
+				if (previous != null)
+					authCache.invalidate(remoteAddress, previous);
 
-            if (lastRequest != null) {
-                if (LOG.isDebugEnabled())
-                    LOG.debug("Resending rejected request");
+				throw new ProxyAuthenticationException("Proxy rejected our credentials");
+			}
 
-                this.writeRequested(ctx, new DownstreamMessageEvent(e.getChannel(), Channels.future(e.getChannel()), lastRequest, e.getRemoteAddress()));
-            }
+			// Reuse the credentials already given for this proxy, if any
+			PasswordAuthentication auth = previous == null ? null : previous.getCredentials();
+			if (auth == null) {
+				final String prompt = String.format("Credentials required for proxy at %s:%d", remoteAddress.getHostString(), remoteAddress.getPort());
 
-			if (LOG.isDebugEnabled())
-				LOG.debug("resending request with proxy credentials");
+				auth = Authenticator.requestPasswordAuthentication(remoteAddress.getAddress(), remoteAddress.getPort(), "HTTP", prompt, challenge.getScheme().getName());
+				if (auth == null)
+					throw new ProxyAuthenticationException("No credentials available for proxy at " + remoteAddress);
+			}
+
+			authCache.put(remoteAddress, challenge.withCredentials(auth));
+
+			if (lastRequest != null) {
+				if (LOG.isDebugEnabled())
+					LOG.debug("resending request with proxy credentials");
+
+				// Remove the stale credentials before sending it again
+				lastRequest.removeHeader(HttpHeaders.Names.PROXY_AUTHORIZATION);
+				this.writeRequested(ctx, new DownstreamMessageEvent(e.getChannel(), Channels.future(e.getChannel()), lastRequest, e.getRemoteAddress()));
+			}
 
 			return;
 		}
@@ -174,20 +207,17 @@ class HttpTunnelClientChannelProxyHandler extends SimpleChannelHandler {
 	public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
 		final HttpRequest request = (HttpRequest) e.getMessage();
 
-		// If we have a proxy auth header, add it into the request
-        final ProxyAuthHandler handler = proxyAuthHandler.get();
-        final PasswordAuthentication auth = proxyAuthCredentials.get();
-		if (handler != null && auth != null) {
-            final String proxyAuthHeader = handler.authenticate(request, auth.getUserName(), new String(auth.getPassword()));
-            request.setHeader(HttpHeaders.Names.PROXY_AUTHORIZATION, proxyAuthHeader);
-		}
+		// If this proxy has challenged us before, authenticate preemptively
+		final ProxyAuthHandler handler = authCache.get(ctx.getChannel().getRemoteAddress());
+		if (handler != null)
+			request.setHeader(HttpHeaders.Names.PROXY_AUTHORIZATION, handler.authenticate(request));
 
 		// request the connection be kept open for pipeling
 		request.setHeader(HttpHeaders.Names.CONNECTION, "Keep-Alive");
 		// request any proxy doesn't try give us a cached response
 		request.setHeader(HttpHeaders.Names.PRAGMA, "No-Cache");
 
-        lastRequest.set(request);
+		lastRequest.set(request);
 		ctx.sendDownstream(e);
 	}
 }
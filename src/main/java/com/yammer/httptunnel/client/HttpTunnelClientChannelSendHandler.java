@@ -18,7 +18,8 @@ package com.yammer.httptunnel.client;
 
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -26,6 +27,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
@@ -34,21 +36,33 @@ import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.channel.WriteCompletionEvent;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
 
+import com.yammer.httptunnel.HttpTunnelMetrics;
+import com.yammer.httptunnel.MessageExpiredException;
+import com.yammer.httptunnel.OutboundMessage;
+import com.yammer.httptunnel.trace.MessageTrace;
+import com.yammer.httptunnel.trace.TraceStage;
+import com.yammer.httptunnel.util.ChannelFutureAggregator;
 import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+import com.yammer.httptunnel.util.MessagePriorityQueue;
+import com.yammer.httptunnel.util.StripedCounter;
 import com.yammer.httptunnel.util.TimedMessageEventWrapper;
-import com.yammer.metrics.Metrics;
-import com.yammer.metrics.core.Gauge;
+import com.yammer.httptunnel.util.WriteFragmenter;
 import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.Timer;
 
 /**
  * Pipeline component which deals with sending data from the client to server.
+ * Writes are split in to fragments of at most
+ * {@link HttpTunnelMessageUtils#MAX_BODY_SIZE} bytes, each sent in its own
+ * request, and queued writes are sent in order of their priority. Writes of an
+ * {@link OutboundMessage} which expires while queued are dropped.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Iain McGinniss (iain.mcginniss@onedrum.com)
@@ -61,42 +75,52 @@ class HttpTunnelClientChannelSendHandler extends SimpleChannelHandler {
 
 	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(HttpTunnelClientChannelSendHandler.class);
 
-	private final Meter connectionMeter = Metrics.newMeter(HttpTunnelClientChannelSendHandler.class, "channelOpen", "channelOpen", TimeUnit.SECONDS);
-	private final Timer requestTimer = Metrics.newTimer(HttpTunnelClientChannelSendHandler.class, "requests", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
-	private final Histogram requestSizes = Metrics.newHistogram(HttpTunnelClientChannelPollHandler.class, "requestSize");
+	private final Meter connectionMeter;
+	private final Timer requestTimer;
+	private final Histogram requestSizes;
+	private final StripedCounter queuedWriteCount;
+	private final StripedCounter expiredWriteCount;
 
 	private final HttpTunnelClientWorkerOwner tunnelChannel;
 	private final AtomicBoolean disconnecting;
-	private final ConcurrentLinkedQueue<TimedMessageEventWrapper> queuedWrites;
+	private final MessagePriorityQueue<QueuedWrite> queuedWrites;
 	private final AtomicInteger pendingRequestCount;
 
-	private String tunnelId;
+	private volatile String tunnelId;
 	private ChannelStateEvent postShutdownEvent;
 	private long sendRequestTime;
+	private MessageTrace sendRequestTrace;
 
-	public HttpTunnelClientChannelSendHandler(HttpTunnelClientWorkerOwner tunnelChannel) {
+	public HttpTunnelClientChannelSendHandler(HttpTunnelClientWorkerOwner tunnelChannel, HttpTunnelMetrics metrics) {
 		this.tunnelChannel = tunnelChannel;
 
+		connectionMeter = metrics.newMeter(HttpTunnelClientChannelSendHandler.class, "channelOpen", "channelOpen");
+		requestTimer = metrics.newTimer(HttpTunnelClientChannelSendHandler.class, "requests");
+		requestSizes = metrics.newHistogram(HttpTunnelClientChannelSendHandler.class, "requestSize");
+		queuedWriteCount = metrics.getAggregateCounter("queuedWrites");
+		expiredWriteCount = metrics.getAggregateCounter("expiredMessages");
+
 		disconnecting = new AtomicBoolean(false);
-		queuedWrites = new ConcurrentLinkedQueue<TimedMessageEventWrapper>();
+		queuedWrites = new MessagePriorityQueue<QueuedWrite>();
 		pendingRequestCount = new AtomicInteger(0);
 
-		Metrics.newGauge(HttpTunnelClientChannelSendHandler.class, "queuedWrites", new Gauge<Integer>() {
-		    @Override
-		    public Integer value() {
-		        return queuedWrites.size();
-		    }
-		});
-
 		tunnelId = null;
 		postShutdownEvent = null;
 		sendRequestTime = 0;
+		sendRequestTrace = null;
 	}
 
 	public String getTunnelId() {
 		return tunnelId;
 	}
 
+	/**
+	 * Takes over an established, idle tunnel from another send handler.
+	 */
+	public void adoptTunnel(String tunnelId) {
+		this.tunnelId = tunnelId;
+	}
+
 	@Override
 	public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
 		// If this tunnel has already been opened then don't try open it
@@ -104,12 +128,41 @@ class HttpTunnelClientChannelSendHandler extends SimpleChannelHandler {
 			if (LOG.isDebugEnabled())
 				LOG.debug("connection to " + e.getValue() + " succeeded - sending open tunnel request");
 
-			final HttpRequest request = HttpTunnelMessageUtils.createOpenTunnelRequest(tunnelChannel.getServerHostName(), tunnelChannel.getUserAgent());
+			// With fast open the first write made while connecting is
+			// carried by the open request, which takes its place
+			final TimedMessageEventWrapper initialWrite = tunnelChannel.isFastOpen() ? this.pollQueuedWrite() : null;
+
+			final HttpRequest request;
+			final ChannelFuture future;
+			final TimedMessageEventWrapper wrapper;
+
 			final Channel channel = ctx.getChannel();
-			final DownstreamMessageEvent event = new DownstreamMessageEvent(channel, Channels.future(channel), request, channel.getRemoteAddress());
 
-			queuedWrites.offer(new TimedMessageEventWrapper(event, requestTimer.time()));
-			pendingRequestCount.incrementAndGet();
+			if (initialWrite != null) {
+				queuedWriteCount.add(-1);
+
+				final HttpRequest initialRequest = (HttpRequest) initialWrite.getEvent().getMessage();
+
+				request = HttpTunnelMessageUtils.createOpenTunnelRequest(tunnelChannel.getServerHostName(), tunnelChannel.getUserAgent(), initialRequest.getContent());
+				future = initialWrite.getEvent().getFuture();
+
+				final DownstreamMessageEvent event = new DownstreamMessageEvent(channel, future, request, channel.getRemoteAddress());
+				wrapper = new TimedMessageEventWrapper(event, initialWrite.getContext(), initialWrite.getTrace());
+			}
+			else {
+				request = HttpTunnelMessageUtils.createOpenTunnelRequest(tunnelChannel.getServerHostName(), tunnelChannel.getUserAgent());
+				future = Channels.future(channel);
+
+				final DownstreamMessageEvent event = new DownstreamMessageEvent(channel, future, request, channel.getRemoteAddress());
+				wrapper = new TimedMessageEventWrapper(event, requestTimer.time());
+
+				pendingRequestCount.incrementAndGet();
+			}
+
+			// Writes queued while connecting must wait for the tunnel ID, so
+			// the open request goes ahead of them
+			this.sendRequest(ctx, wrapper);
+			return;
 		}
 
 		// Send our first chunk of data
@@ -137,22 +190,39 @@ class HttpTunnelClientChannelSendHandler extends SimpleChannelHandler {
 		final HttpResponse response = (HttpResponse) e.getMessage();
 
 		if (HttpTunnelMessageUtils.isOKResponse(response)) {
-			if (LOG.isDebugEnabled()) {
-				long rtt = System.nanoTime() - sendRequestTime;
+			final long rtt = System.nanoTime() - sendRequestTime;
+			tunnelChannel.onSendCompleted(rtt);
+
+			if (LOG.isDebugEnabled())
 				LOG.debug("OK response received for tunnel " + tunnelId + ", after " + rtt + " ns");
+
+			if (sendRequestTrace != null) {
+				sendRequestTrace.stageCompleted(TraceStage.ACKNOWLEDGED);
+				sendRequestTrace = null;
 			}
 
 			this.sendNextAfterResponse(ctx);
 		}
 		else if (HttpTunnelMessageUtils.isTunnelOpenResponse(response)) {
 			tunnelId = HttpTunnelMessageUtils.extractCookie(response);
+			tunnelChannel.getStatistics().rttSampled(System.nanoTime() - sendRequestTime, TimeUnit.NANOSECONDS);
 
 			if (LOG.isDebugEnabled())
 				LOG.debug("tunnel open request accepted - id " + tunnelId);
 
+			if (sendRequestTrace != null) {
+				sendRequestTrace.stageCompleted(TraceStage.ACKNOWLEDGED);
+				sendRequestTrace = null;
+			}
+
 			connectionMeter.mark();
 			tunnelChannel.onTunnelOpened(tunnelId);
 
+			// A fast open response may carry the first data from the server
+			final ChannelBuffer content = response.getContent();
+			if (content != null && content.readable())
+				tunnelChannel.onMessageReceived(content, null);
+
 			this.sendNextAfterResponse(ctx);
 		}
 		else if (HttpTunnelMessageUtils.isTunnelCloseResponse(response)) {
@@ -215,17 +285,101 @@ class HttpTunnelClientChannelSendHandler extends SimpleChannelHandler {
 			if (LOG.isDebugEnabled())
 				LOG.debug("sending next request for tunnel " + tunnelId);
 
-			final TimedMessageEventWrapper wrapper = queuedWrites.poll();
-			try {
-				sendRequestTime = System.nanoTime();
-				ctx.sendDownstream(wrapper.getEvent());
+			final TimedMessageEventWrapper wrapper = this.pollQueuedWrite();
+			if (wrapper == null) {
+				// Dropping expired writes may leave only the close request
+				if (disconnecting.get() && pendingRequestCount.get() > 0)
+					this.sendQueuedData(ctx);
+
+				return;
 			}
-			finally {
-				wrapper.getContext().stop();
+
+			queuedWriteCount.add(-1);
+
+			// Requests queued before the tunnel was opened have no ID yet
+			final HttpRequest request = (HttpRequest) wrapper.getEvent().getMessage();
+			if (HttpTunnelMessageUtils.extractTunnelId(request) == null)
+				request.setHeader(HttpHeaders.Names.COOKIE, tunnelId);
+
+			this.sendRequest(ctx, wrapper);
+		}
+	}
+
+	/**
+	 * Takes the next request to send from the queued writes, all of whose
+	 * fragments are sent before moving on to another write. Writes which have
+	 * expired before any of their fragments were sent are dropped, and no
+	 * longer count as pending.
+	 *
+	 * @return the next request, or null if there are no queued writes.
+	 */
+	private synchronized TimedMessageEventWrapper pollQueuedWrite() {
+		for (;;) {
+			final QueuedWrite write = queuedWrites.peek();
+			if (write == null)
+				return null;
+
+			if (write.isExpired()) {
+				queuedWrites.poll();
+
+				final int requestCount = write.getRequestCount();
+				final int remaining = pendingRequestCount.addAndGet(-requestCount);
+
+				queuedWriteCount.add(-requestCount);
+				expiredWriteCount.increment();
+
+				if (LOG.isDebugEnabled())
+					LOG.debug("dropping expired write for tunnel " + tunnelId);
+
+				write.expire();
+
+				// Nothing else is waiting to be sent
+				if (remaining == 0)
+					return null;
+
+				continue;
 			}
+
+			final TimedMessageEventWrapper request = write.nextRequest();
+			if (!write.hasRequests())
+				queuedWrites.poll();
+			else
+				queuedWrites.taken();
+
+			return request;
+		}
+	}
+
+	private synchronized void sendRequest(ChannelHandlerContext ctx, TimedMessageEventWrapper wrapper) {
+		final MessageTrace trace = wrapper.getTrace();
+		if (trace != null)
+			this.traceRequest(wrapper.getEvent(), trace);
+
+		try {
+			sendRequestTime = System.nanoTime();
+			sendRequestTrace = trace;
+			ctx.sendDownstream(wrapper.getEvent());
+		}
+		finally {
+			wrapper.getContext().stop();
 		}
 	}
 
+	private void traceRequest(MessageEvent event, final MessageTrace trace) {
+		trace.stageCompleted(TraceStage.QUEUED);
+
+		final HttpRequest request = (HttpRequest) event.getMessage();
+		request.setHeader(MessageTrace.HEADER, trace.toHeader());
+
+		event.getFuture().addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (future.isSuccess())
+					trace.stageCompleted(TraceStage.WRITTEN);
+			}
+		});
+	}
+
 	@Override
 	public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
 		if (LOG.isDebugEnabled())
@@ -243,14 +397,38 @@ class HttpTunnelClientChannelSendHandler extends SimpleChannelHandler {
 			return;
 		}
 
-		final ChannelBuffer data = (ChannelBuffer) e.getMessage();
-		final HttpRequest request = HttpTunnelMessageUtils.createSendDataRequest(tunnelChannel.getServerHostName(), tunnelId, data, tunnelChannel.getUserAgent());
+		final Object message = e.getMessage();
+		final List<ChannelBuffer> fragments = WriteFragmenter.split(OutboundMessage.getData(message), HttpTunnelMessageUtils.MAX_BODY_SIZE);
+		final List<TimedMessageEventWrapper> requests = new ArrayList<TimedMessageEventWrapper>(fragments.size());
 
 		final Channel channel = ctx.getChannel();
-		final DownstreamMessageEvent translatedEvent = new DownstreamMessageEvent(channel, future, request, channel.getRemoteAddress());
+		final MessageTrace trace = MessageTrace.start(tunnelChannel.getMessageTracer());
 
-		queuedWrites.offer(new TimedMessageEventWrapper(translatedEvent, requestTimer.time()));
-		if (pendingRequestCount.incrementAndGet() == 1)
+		if (fragments.size() == 1)
+			requests.add(this.createSendRequest(channel, future, fragments.get(0), trace));
+		else {
+			final ChannelFutureAggregator aggregator = new ChannelFutureAggregator(future);
+
+			for (int i = 0; i < fragments.size(); i++) {
+				final ChannelFuture fragmentFuture = Channels.future(channel);
+				aggregator.addFuture(fragmentFuture);
+
+				// Only the last fragment is traced
+				final boolean lastFragment = i == fragments.size() - 1;
+				requests.add(this.createSendRequest(channel, fragmentFuture, fragments.get(i), lastFragment ? trace : null));
+			}
+		}
+
+		// Queued while holding our lock, so that a write counted as pending is
+		// always visible when it is due to be sent
+		synchronized (this) {
+			queuedWrites.offer(new QueuedWrite(message, requests), OutboundMessage.getPriority(message));
+		}
+
+		queuedWriteCount.add(requests.size());
+
+		// Writes made before the tunnel has been opened are sent once it has
+		if (pendingRequestCount.addAndGet(requests.size()) == requests.size() && tunnelId != null)
 			this.sendQueuedData(ctx);
 		else {
 			if (LOG.isDebugEnabled())
@@ -258,6 +436,13 @@ class HttpTunnelClientChannelSendHandler extends SimpleChannelHandler {
 		}
 	}
 
+	private TimedMessageEventWrapper createSendRequest(Channel channel, ChannelFuture future, ChannelBuffer data, MessageTrace trace) {
+		final HttpRequest request = HttpTunnelMessageUtils.createSendDataRequest(tunnelChannel.getServerHostName(), tunnelId, data, tunnelChannel.getUserAgent());
+		final DownstreamMessageEvent translatedEvent = new DownstreamMessageEvent(channel, future, request, channel.getRemoteAddress());
+
+		return new TimedMessageEventWrapper(translatedEvent, requestTimer.time(), trace);
+	}
+
 	@Override
 	public void writeComplete(ChannelHandlerContext ctx, WriteCompletionEvent e) throws Exception {
 		requestSizes.update(e.getWrittenAmount());
@@ -305,4 +490,45 @@ class HttpTunnelClientChannelSendHandler extends SimpleChannelHandler {
 		if (pendingRequestCount.incrementAndGet() == 1)
 			this.sendQueuedData(ctx);
 	}
+
+	/**
+	 * The requests carrying the fragments of a single write.
+	 */
+	private static class QueuedWrite {
+		private final Object message;
+		private final List<TimedMessageEventWrapper> requests;
+		private int nextRequest;
+
+		QueuedWrite(Object message, List<TimedMessageEventWrapper> requests) {
+			this.message = message;
+			this.requests = requests;
+
+			nextRequest = 0;
+		}
+
+		boolean hasRequests() {
+			return nextRequest < requests.size();
+		}
+
+		TimedMessageEventWrapper nextRequest() {
+			return requests.get(nextRequest++);
+		}
+
+		int getRequestCount() {
+			return requests.size();
+		}
+
+		/**
+		 * @return true if the write has expired before any of it was sent.
+		 */
+		boolean isExpired() {
+			return nextRequest == 0 && OutboundMessage.isExpired(message);
+		}
+
+		void expire() {
+			final Exception error = new MessageExpiredException();
+			for (TimedMessageEventWrapper request : requests)
+				request.getEvent().getFuture().setFailure(error);
+		}
+	}
 }
@@ -21,6 +21,10 @@ import java.net.InetSocketAddress;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelFuture;
 
+import com.yammer.httptunnel.HttpTunnelStatistics;
+import com.yammer.httptunnel.trace.MessageTrace;
+import com.yammer.httptunnel.trace.MessageTracer;
+
 /**
  * Interface which is used by the send and poll "worker" channels to notify the
  * virtual tunnel channel of key events, and to get access to higher level
@@ -71,8 +75,20 @@ interface HttpTunnelClientWorkerOwner {
 	 *
 	 * @param content
 	 *            the data received from the server
+	 * @param trace
+	 *            the trace of the message, or null if it isn't being traced
+	 */
+	public void onMessageReceived(ChannelBuffer content, MessageTrace trace);
+
+	/**
+	 * The send channel handler calls this method when the server acknowledges
+	 * a send request.
+	 *
+	 * @param roundTripTime
+	 *            the time taken for the request to be acknowledged, in
+	 *            nanoseconds
 	 */
-	public void onMessageReceived(ChannelBuffer content);
+	public void onSendCompleted(long roundTripTime);
 
 	/**
 	 * @return the name of the server with whom we are communicating with - this
@@ -84,6 +100,37 @@ interface HttpTunnelClientWorkerOwner {
 
 	public String getUserAgent();
 
+	/**
+	 * @return the statistics of the tunnel, which the send handler updates
+	 *         with the round trip time of the open tunnel request.
+	 */
+	public HttpTunnelStatistics getStatistics();
+
+	/**
+	 * @return the configured message tracer, or null if tracing is disabled.
+	 */
+	public MessageTracer getMessageTracer();
+
+	/**
+	 * @return true if data written while connecting should be carried by the
+	 *         open tunnel request.
+	 */
+	public boolean isFastOpen();
+
+	/**
+	 * @return true if the application is keeping up with the data received,
+	 *         so the poll handler may poll for more.
+	 */
+	public boolean isReadyToReceive();
+
+	/**
+	 * The poll handler calls this method when it defers its next poll as the
+	 * application is not ready to receive. Polling must be resumed once it is,
+	 * and in any case within the ping delay so the server doesn't time the
+	 * tunnel out.
+	 */
+	public void onPollDeferred();
+
 	public boolean isConnecting();
 
 	public boolean isConnected();
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.client;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.yammer.httptunnel.client.HttpTunnelClientChannelProxyHandler.ProxyAuthHandler;
+
+/**
+ * The most recent challenge, and the credentials supplied for it, from each
+ * proxy used by the tunnels created by a single channel factory. Connections
+ * through a proxy already in the cache authenticate their first request
+ * preemptively, rather than waiting to be challenged.
+ */
+class ProxyAuthCache {
+
+	private final ConcurrentMap<SocketAddress, ProxyAuthHandler> handlers;
+
+	ProxyAuthCache() {
+		handlers = new ConcurrentHashMap<SocketAddress, ProxyAuthHandler>();
+	}
+
+	/**
+	 * @return the handler for the given proxy, or null if it has not yet
+	 *         challenged us.
+	 */
+	ProxyAuthHandler get(SocketAddress proxyAddress) {
+		if (proxyAddress == null)
+			return null;
+
+		return handlers.get(proxyAddress);
+	}
+
+	void put(SocketAddress proxyAddress, ProxyAuthHandler handler) {
+		handlers.put(proxyAddress, handler);
+	}
+
+	/**
+	 * Removes the given handler, if it is still the one held for the proxy, so
+	 * that credentials which have been rejected are not used again.
+	 */
+	void invalidate(SocketAddress proxyAddress, ProxyAuthHandler handler) {
+		handlers.remove(proxyAddress, handler);
+	}
+}
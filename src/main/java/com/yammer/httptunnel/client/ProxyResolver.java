@@ -0,0 +1,189 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+
+/**
+ * Chooses the proxies, if any, through which the tunnels created by a single
+ * channel factory connect. Decisions made by the {@link ProxySelector}, which
+ * may be slow (evaluating a PAC script, for example), are cached for each
+ * server for a while. Proxies which fail to connect are moved to the end of
+ * the list returned for a while, so connections try the others first. A
+ * failed direct connection only says something about the server connected
+ * to, so is only moved to the end of the list for that server.
+ */
+class ProxyResolver {
+
+	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(ProxyResolver.class);
+
+	static final long DEFAULT_DECISION_TTL = TimeUnit.MINUTES.toNanos(1);
+	static final long DEFAULT_FAILURE_PENALTY = TimeUnit.SECONDS.toNanos(30);
+
+	private final ProxySelector selector;
+	private final long decisionTtl;
+	private final long failurePenalty;
+
+	private final ConcurrentMap<InetSocketAddress, Decision> decisions;
+	private final ConcurrentMap<Proxy, Long> failedUntil;
+	private final ConcurrentMap<InetSocketAddress, Long> directFailedUntil;
+
+	ProxyResolver() {
+		this(null, DEFAULT_DECISION_TTL, DEFAULT_FAILURE_PENALTY);
+	}
+
+	/**
+	 * @param selector
+	 *            the selector to consult, or null to use the default at the
+	 *            time.
+	 */
+	ProxyResolver(ProxySelector selector, long decisionTtl, long failurePenalty) {
+		this.selector = selector;
+		this.decisionTtl = decisionTtl;
+		this.failurePenalty = failurePenalty;
+
+		decisions = new ConcurrentHashMap<InetSocketAddress, Decision>();
+		failedUntil = new ConcurrentHashMap<Proxy, Long>();
+		directFailedUntil = new ConcurrentHashMap<InetSocketAddress, Long>();
+	}
+
+	/**
+	 * @return the proxies to try, in order, when connecting to the given
+	 *         server. {@link Proxy#NO_PROXY} stands for a direct connection.
+	 */
+	List<Proxy> select(InetSocketAddress server) {
+		return this.select(server, System.nanoTime());
+	}
+
+	List<Proxy> select(InetSocketAddress server, long now) {
+		Decision decision = decisions.get(server);
+		if (decision == null || now - decision.time > decisionTtl) {
+			decision = new Decision(this.lookup(server), now);
+			decisions.put(server, decision);
+		}
+
+		// Try healthy proxies first, keeping the order given by the selector
+		final List<Proxy> healthy = new ArrayList<Proxy>(decision.proxies.size());
+		final List<Proxy> failed = new ArrayList<Proxy>(0);
+		for (Proxy proxy : decision.proxies) {
+			final Long until = proxy.type() == Proxy.Type.HTTP ? failedUntil.get(proxy) : directFailedUntil.get(server);
+			if (until != null && now - until < 0)
+				failed.add(proxy);
+			else
+				healthy.add(proxy);
+		}
+
+		healthy.addAll(failed);
+		return healthy;
+	}
+
+	private List<Proxy> lookup(InetSocketAddress server) {
+		final ProxySelector selector = this.selector != null ? this.selector : ProxySelector.getDefault();
+		if (selector == null)
+			return Collections.singletonList(Proxy.NO_PROXY);
+
+		final List<Proxy> proxies = new ArrayList<Proxy>();
+
+		try {
+			for (Proxy proxy : selector.select(ProxyResolver.toUri(server))) {
+				// Only HTTP proxies are supported, anything else connects
+				// directly
+				final Proxy candidate = proxy.type() == Proxy.Type.HTTP ? proxy : Proxy.NO_PROXY;
+				if (!proxies.contains(candidate))
+					proxies.add(candidate);
+			}
+		}
+		catch (URISyntaxException e) {
+			if (LOG.isWarnEnabled())
+				LOG.warn("Unable to parse proxy address", e);
+		}
+
+		if (proxies.isEmpty())
+			proxies.add(Proxy.NO_PROXY);
+
+		return proxies;
+	}
+
+	/**
+	 * Records a failure to connect through the given proxy, so that it is
+	 * tried after any others for a while, and tells the selector about it.
+	 */
+	void connectFailed(InetSocketAddress server, Proxy proxy, Throwable cause) {
+		this.connectFailed(server, proxy, cause, System.nanoTime());
+	}
+
+	void connectFailed(InetSocketAddress server, Proxy proxy, Throwable cause, long now) {
+		if (proxy.type() != Proxy.Type.HTTP) {
+			directFailedUntil.put(server, now + failurePenalty);
+			return;
+		}
+
+		failedUntil.put(proxy, now + failurePenalty);
+
+		final ProxySelector selector = this.selector != null ? this.selector : ProxySelector.getDefault();
+		if (selector == null)
+			return;
+
+		try {
+			final IOException error = cause instanceof IOException ? (IOException) cause : new IOException(String.valueOf(cause));
+			selector.connectFailed(ProxyResolver.toUri(server), proxy.address(), error);
+		}
+		catch (URISyntaxException e) {
+			// Already reported when selecting
+		}
+	}
+
+	/**
+	 * Records a successful connection to the given server through the given
+	 * proxy.
+	 */
+	void connectSucceeded(InetSocketAddress server, Proxy proxy) {
+		if (proxy.type() != Proxy.Type.HTTP)
+			directFailedUntil.remove(server);
+		else
+			failedUntil.remove(proxy);
+	}
+
+	private static URI toUri(InetSocketAddress server) throws URISyntaxException {
+		return new URI(String.format("http://%s:%d", server.getHostString(), server.getPort()));
+	}
+
+	private static final class Decision {
+
+		private final List<Proxy> proxies;
+		private final long time;
+
+		private Decision(List<Proxy> proxies, long time) {
+			this.proxies = proxies;
+			this.time = time;
+		}
+	}
+}
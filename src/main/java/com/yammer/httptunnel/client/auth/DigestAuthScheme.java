@@ -23,6 +23,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.handler.codec.http.HttpRequest;
 
@@ -85,12 +86,12 @@ public class DigestAuthScheme implements AuthScheme {
 		return StringUtils.bytesToHex(digest.digest());
 	}
 
-	private String cnonce;
-	private int counter;
+	private final String cnonce;
+	private final AtomicInteger counter;
 
 	public DigestAuthScheme() {
 		cnonce = DigestAuthScheme.generateNonce();
-		counter = 0;
+		counter = new AtomicInteger(0);
 	}
 
 	@Override
@@ -123,12 +124,14 @@ public class DigestAuthScheme implements AuthScheme {
 		if (!StringUtils.inStringArray(qopOptions, "auth"))
 			throw new ProxyAuthenticationException("No supported QOP found");
 
-		counter++;
+		// The nonce count must increase with every request, including those
+		// authenticated preemptively by different connections
+		final int count = counter.incrementAndGet();
 
 		response.add("qop=auth");
 		response.add(String.format("cnonce=\"%s\"", cnonce));
 
-		final String nc = StringUtils.leftPad(Integer.toHexString(counter), 8, '0');
+		final String nc = StringUtils.leftPad(Integer.toHexString(count), 8, '0');
 		response.add(String.format("nc=%s", nc));
 
 		// If the opaque param is set, copy it over
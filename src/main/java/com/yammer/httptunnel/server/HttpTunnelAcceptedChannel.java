@@ -17,9 +17,8 @@
 package com.yammer.httptunnel.server;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -42,16 +41,24 @@ import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
 
+import com.yammer.httptunnel.HttpTunnelMetrics.TunnelMetrics;
+import com.yammer.httptunnel.HttpTunnelStatistics;
+import com.yammer.httptunnel.MessageExpiredException;
+import com.yammer.httptunnel.OutboundMessage;
 import com.yammer.httptunnel.state.SaturationStateChange;
+import com.yammer.httptunnel.trace.MessageTrace;
+import com.yammer.httptunnel.trace.TraceStage;
+import com.yammer.httptunnel.trace.TunnelEventListener;
 import com.yammer.httptunnel.util.ChannelFutureAggregator;
+import com.yammer.httptunnel.util.EncodedResponseTemplate;
 import com.yammer.httptunnel.util.ForwardingFutureListener;
 import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
 import com.yammer.httptunnel.util.IncomingBuffer;
+import com.yammer.httptunnel.util.MessagePriorityQueue;
 import com.yammer.httptunnel.util.QueuedResponse;
-import com.yammer.httptunnel.util.SaturationManager;
+import com.yammer.httptunnel.util.SaturationMonitor;
+import com.yammer.httptunnel.util.TunnelId;
 import com.yammer.httptunnel.util.WriteFragmenter;
-import com.yammer.metrics.Metrics;
-import com.yammer.metrics.core.Gauge;
 
 /**
  * Represents the server end of an HTTP tunnel, created after a legal tunnel
@@ -71,60 +78,123 @@ public class HttpTunnelAcceptedChannel extends AbstractChannel implements Socket
 
 	private final HttpTunnelServerChannel parent;
 	private final HttpTunnelAcceptedChannelConfig config;
-	private final SaturationManager saturationManager;
+	private final AtomicReference<SaturationMonitor> saturationMonitor;
 	private final InetSocketAddress remoteAddress;
 	private final InetSocketAddress localAddress;
-	private final String tunnelId;
+	private final TunnelId tunnelId;
+	private final byte[] encodedTunnelId;
+	private final long creationTime;
 
 	private final AtomicBoolean opened;
 
 	private final AtomicReference<Channel> pollChannel;
-	private final Queue<QueuedResponse> queuedResponses;
+	private final AtomicBoolean draining;
+	private final AtomicBoolean scheduled;
+	private final AtomicBoolean throttled;
+	private volatile TrafficShaper.TunnelShaping shaping;
+	private final MessagePriorityQueue<QueuedMessage> queuedMessages;
 	private final IncomingBuffer<ChannelBuffer> incomingBuffer;
+	private final TunnelMetrics metrics;
+	private final HttpTunnelServerMetrics serverMetrics;
+	private final HttpTunnelStatistics statistics;
+	private volatile long pollStartTime;
+	private volatile long lastResponseTime;
 
 	private final ScheduledExecutorService pingExecutor;
 	private final Runnable pingResponder;
 	private final Runnable pingTimeout;
+	private final Runnable throttleRetry;
 	private final Object pingLock;
 	private ScheduledFuture<?> pingTimeoutFuture;
-	
-	protected HttpTunnelAcceptedChannel(HttpTunnelServerChannel parent, ChannelFactory factory, ChannelPipeline pipeline, ChannelSink sink, InetSocketAddress remoteAddress, String tunnelId) {
+
+	// Guarded by the poll response scheduler
+	long schedulerDeficit;
+
+	protected HttpTunnelAcceptedChannel(HttpTunnelServerChannel parent, ChannelFactory factory, ChannelPipeline pipeline, ChannelSink sink, InetSocketAddress remoteAddress, TunnelId tunnelId) {
 		super(parent, factory, pipeline, sink);
 
 		this.parent = parent;
 		this.remoteAddress = remoteAddress;
 		this.tunnelId = tunnelId;
 
+		encodedTunnelId = EncodedResponseTemplate.toHeaderBytes(tunnelId.toString());
+		creationTime = System.nanoTime();
 		localAddress = parent.getLocalAddress();
 		config = new HttpTunnelAcceptedChannelConfig();
 
-		saturationManager = new SaturationManager(config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark());
+		saturationMonitor = new AtomicReference<SaturationMonitor>(null);
 
 		opened = new AtomicBoolean(true);
 
 		pollChannel = new AtomicReference<Channel>(null);
-		queuedResponses = new ConcurrentLinkedQueue<QueuedResponse>();
+		draining = new AtomicBoolean(false);
+		scheduled = new AtomicBoolean(false);
+		throttled = new AtomicBoolean(false);
+		shaping = null;
+		queuedMessages = new MessagePriorityQueue<QueuedMessage>();
 
 		incomingBuffer = new IncomingBuffer<ChannelBuffer>(this);
 
-		Metrics.newGauge(HttpTunnelAcceptedChannel.class, "incomingBuffer", new Gauge<Integer>() {
-		    @Override
-		    public Integer value() {
-		        return incomingBuffer.size();
-		    }
-		});
+		metrics = parent.getMetrics().newTunnel(tunnelId.toString(), incomingBuffer);
+		serverMetrics = parent.getServerMetrics();
+		statistics = new HttpTunnelStatistics();
+		pollStartTime = 0;
+		lastResponseTime = 0;
 
 		pingExecutor = Executors.newSingleThreadScheduledExecutor();
 		pingResponder = new PingResponder();
 		pingTimeout = new PingTimeout();
+		throttleRetry = new ThrottleRetry();
 		pingLock = new Object();
 		pingTimeoutFuture = null;
+
+		schedulerDeficit = 0;
 	}
 
-	String getTunnelId() {
+	TunnelId getTunnelId() {
 		return tunnelId;
 	}
 
+	byte[] getEncodedTunnelId() {
+		return encodedTunnelId;
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} at which this tunnel was opened.
+	 */
+	long getCreationTime() {
+		return creationTime;
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} at which the latest poll request
+	 *         arrived, or 0 if there has been none.
+	 */
+	long getLastPollTime() {
+		return pollStartTime;
+	}
+
+	/**
+	 * Starts shaping this tunnel's traffic, which must be done before the
+	 * client learns of the tunnel.
+	 */
+	void setShaping(TrafficShaper.TunnelShaping shaping) {
+		this.shaping = shaping;
+	}
+
+	long getIncomingBufferedBytes() {
+		return incomingBuffer.getBufferedBytes();
+	}
+
+	/**
+	 * @return live round trip time and goodput statistics for this tunnel.
+	 *         Round trip times are measured from answering a poll request to
+	 *         the client's next poll arriving.
+	 */
+	public HttpTunnelStatistics getStatistics() {
+		return statistics;
+	}
+
 	@Override
 	public HttpTunnelAcceptedChannelConfig getConfig() {
 		return config;
@@ -158,7 +228,11 @@ public class HttpTunnelAcceptedChannel extends AbstractChannel implements Socket
 		return success;
 	}
 
-	synchronized ChannelFuture internalClose(boolean sendCloseRequest, ChannelFuture future) {
+	ChannelFuture internalClose(boolean sendCloseRequest, ChannelFuture future) {
+		return this.internalClose(sendCloseRequest, false, future);
+	}
+
+	private synchronized ChannelFuture internalClose(boolean sendCloseRequest, boolean timedOut, ChannelFuture future) {
 		if (!opened.getAndSet(false)) {
 			future.setSuccess();
 			return future;
@@ -170,13 +244,26 @@ public class HttpTunnelAcceptedChannel extends AbstractChannel implements Socket
 			// response channel is already in use, client will be notified of
 			// close at next opportunity
 			if (channel != null && channel.isOpen())
-				Channels.write(channel, HttpTunnelMessageUtils.createTunnelCloseResponse());
+				Channels.write(channel, HttpTunnelMessageUtils.encodeTunnelCloseResponse());
 		}
 
 		Channels.fireChannelDisconnected(this);
 		Channels.fireChannelUnbound(this);
 
 		parent.removeTunnel(tunnelId);
+		metrics.close();
+
+		if (shaping != null)
+			shaping.close();
+
+		serverMetrics.tunnelsClosed.mark();
+		if (timedOut)
+			serverMetrics.tunnelsTimedOut.mark();
+
+		final TunnelEventListener listener = parent.getConfig().getEventListener();
+		if (listener != null)
+			listener.tunnelClosed(this, timedOut);
+
 		this.setClosed();
 
 		future.setSuccess();
@@ -199,7 +286,7 @@ public class HttpTunnelAcceptedChannel extends AbstractChannel implements Socket
 		incomingBuffer.onInterestOpsChanged();
 	}
 
-	void internalReceiveMessage(ChannelBuffer message) {
+	void internalReceiveMessage(ChannelBuffer message, MessageTrace trace) {
 		if (!opened.get()) {
 			if (LOG.isWarnEnabled())
 				LOG.warn("Received message while channel is closed");
@@ -207,14 +294,26 @@ public class HttpTunnelAcceptedChannel extends AbstractChannel implements Socket
 			return;
 		}
 
+		final int messageSize = message.readableBytes();
+
+		incomingBuffer.updateThresholds(config.getIncomingBufferLowWaterMark(), config.getIncomingBufferHighWaterMark(), config.getIncomingBufferBounds());
+		incomingBuffer.setCoalescingLimit(config.getReadCoalescingLimit());
+
 		// Attempt to queue this message in the incoming buffer
-		if (!incomingBuffer.offer(message)) {
+		if (!incomingBuffer.offer(message, trace)) {
 			if (LOG.isWarnEnabled())
 				LOG.warn("Incoming buffer rejected message, dropping");
 
+			final TunnelEventListener listener = parent.getConfig().getEventListener();
+			if (listener != null)
+				listener.messageDropped(this, messageSize);
+
 			return;
 		}
 
+		metrics.messageReceived(messageSize);
+		statistics.messageReceived(messageSize);
+
 		// If the buffer is over capacity start congestion control
 		if (incomingBuffer.overCapacity()) {
 			// TODO: Send a "stop sending shit" message!
@@ -223,7 +322,25 @@ public class HttpTunnelAcceptedChannel extends AbstractChannel implements Socket
 		}
 	}
 
-	synchronized ChannelFuture sendMessage(MessageEvent message) {
+	/**
+	 * Delivers the data carried by a fast open request. This is done directly
+	 * rather than through the incoming buffer, so that any reply the
+	 * application writes while handling it is queued by the time we answer
+	 * the open request.
+	 */
+	void internalReceiveInitialMessage(ChannelBuffer message, MessageTrace trace) {
+		final int messageSize = message.readableBytes();
+
+		metrics.messageReceived(messageSize);
+		statistics.messageReceived(messageSize);
+
+		if (trace != null)
+			trace.stageCompleted(TraceStage.BUFFERED);
+
+		Channels.fireMessageReceived(this, message, remoteAddress);
+	}
+
+	ChannelFuture sendMessage(MessageEvent message) {
 		final ChannelFuture messageFuture = message.getFuture();
 
 		if (!this.isConnected()) {
@@ -232,98 +349,411 @@ public class HttpTunnelAcceptedChannel extends AbstractChannel implements Socket
 			return messageFuture;
 		}
 
-		saturationManager.updateThresholds(config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark());
-
 		// Deliver the message using the underlying channel
-		final ChannelBuffer messageBuffer = (ChannelBuffer) message.getMessage();
+		final ChannelBuffer messageBuffer = OutboundMessage.getData(message.getMessage());
 		final int messageSize = messageBuffer.readableBytes();
 
-		updateSaturationStatus(messageSize);
+		final SaturationMonitor monitor = this.getSaturationMonitor();
+		final long queuedTime = System.nanoTime();
+
+		statistics.queueSizeChanged(messageSize);
+		this.updateSaturationStatus(monitor.messageQueued(messageSize));
+		metrics.messageSent(messageSize);
+		serverMetrics.bytesQueued.add(messageSize);
 
 		messageFuture.addListener(new ChannelFutureListener() {
 			@Override
 			public void operationComplete(ChannelFuture future) throws Exception {
-				updateSaturationStatus(-messageSize);
+				statistics.queueSizeChanged(-messageSize);
+				updateSaturationStatus(monitor.messageSent(messageSize, System.nanoTime() - queuedTime));
 			}
 		});
 
 		final ChannelFutureAggregator aggregator = new ChannelFutureAggregator(messageFuture);
 		final List<ChannelBuffer> fragments = WriteFragmenter.split(messageBuffer, HttpTunnelMessageUtils.MAX_BODY_SIZE);
+		final List<QueuedResponse> responses = new ArrayList<QueuedResponse>(fragments.size());
 
 		if (LOG.isDebugEnabled())
 			LOG.debug("routing outbound data for tunnel " + tunnelId);
 
+		// Every fragment future must be known to the aggregator before any
+		// fragment can be sent
 		for (ChannelBuffer fragment : fragments) {
 			final ChannelFuture fragmentFuture = Channels.future(this);
 			aggregator.addFuture(fragmentFuture);
 
-			queuedResponses.offer(new QueuedResponse(fragment, fragmentFuture));
+			responses.add(new QueuedResponse(fragment, fragmentFuture));
 		}
 
+		final MessageTrace trace = MessageTrace.start(parent.getConfig().getMessageTracer());
+
+		// The fragments are queued as a unit so that concurrent writers, and
+		// higher priority messages, can't interleave them
+		queuedMessages.offer(new QueuedMessage(message.getMessage(), responses, trace), OutboundMessage.getPriority(message.getMessage()));
+
 		this.sendQueuedData();
 
 		return messageFuture;
 	}
 
-	synchronized void pollQueuedData(Channel channel) {
-		if (!this.pollChannel.compareAndSet(null, channel))
+	void pollQueuedData(Channel channel) {
+		this.pollQueuedData(channel, true);
+	}
+
+	/**
+	 * Parks the given poll channel and answers it with any queued data. If
+	 * sampleRtt is false the client held the poll back, so the time since our
+	 * last response says nothing about the round trip time.
+	 */
+	void pollQueuedData(Channel channel, boolean sampleRtt) {
+		// Recorded before the channel is published, so whichever thread
+		// answers the poll sees when it arrived
+		final long now = System.nanoTime();
+		final long previousPollStartTime = pollStartTime;
+		pollStartTime = now;
+
+		if (!this.pollChannel.compareAndSet(null, channel)) {
+			pollStartTime = previousPollStartTime;
 			throw new IllegalStateException("Only one poll request at a time per tunnel allowed");
+		}
+
+		serverMetrics.polls.mark();
+
+		// The client polls again as soon as it has a response
+		final long responseTime = lastResponseTime;
+		if (responseTime != 0) {
+			lastResponseTime = 0;
+
+			if (sampleRtt)
+				statistics.rttSampled(now - responseTime, TimeUnit.NANOSECONDS);
+		}
 
 		this.sendQueuedData();
 	}
 
-	synchronized void sendQueuedData() {
+	/**
+	 * Answers a keep-alive poll, sent by a client which is holding back its
+	 * poll until the application catches up, with a ping rather than data.
+	 */
+	void keepAlive(Channel channel) {
+		serverMetrics.polls.mark();
+		serverMetrics.emptyPolls.mark();
+
+		// The client held back its poll, so the next one isn't a round trip
+		lastResponseTime = 0;
+
+		Channels.write(channel, HttpTunnelMessageUtils.encodeTunnelPingResponse(encodedTunnelId));
+	}
+
+	boolean hasQueuedData() {
+		return !queuedMessages.isEmpty();
+	}
+
+	void sendQueuedData() {
+		final PollResponseScheduler scheduler = parent.getConfig().getPollResponseScheduler();
+
+		// Only one thread drains at a time, if another thread holds the claim
+		// it will pick up anything we queued when it rechecks
+		while (draining.compareAndSet(false, true)) {
+			try {
+				this.drainQueuedData(scheduler != null, Integer.MAX_VALUE);
+			}
+			finally {
+				draining.set(false);
+			}
+
+			// Data or a poll channel may have arrived while we held the claim,
+			// unless the poll is being held back by traffic shaping
+			if (queuedMessages.isEmpty() || pollChannel.get() == null || throttled.get())
+				return;
+
+			// The scheduler answers the poll on this tunnel's turn
+			if (scheduler != null) {
+				if (scheduled.compareAndSet(false, true)) {
+					// Answer with a ping if the turn doesn't come before the
+					// client would give up on the poll
+					pingExecutor.schedule(pingResponder, config.getPingDelay(), TimeUnit.SECONDS);
+					scheduler.activate(this);
+				}
+
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Answers the waiting poll, if there still is one, with at most the given
+	 * number of bytes. Called by the scheduler on this tunnel's turn.
+	 *
+	 * @return the response sent, or null if there was none.
+	 */
+	QueuedResponse sendScheduledResponse(int maxLength) {
+		scheduled.set(false);
+
+		// Whoever holds the claim will see we are no longer scheduled and
+		// schedule us again
+		if (!draining.compareAndSet(false, true))
+			return null;
+
+		final QueuedResponse response;
+
+		try {
+			response = this.drainQueuedData(false, maxLength);
+		}
+		finally {
+			draining.set(false);
+		}
+
+		// A new poll may have arrived while we held the claim
+		if (!queuedMessages.isEmpty() && pollChannel.get() != null)
+			this.sendQueuedData();
+
+		return response;
+	}
+
+	// Must only be called while holding the draining claim. Unless the poll
+	// is to wait for its turn from the scheduler, it is answered with at most
+	// the given number of bytes
+	private QueuedResponse drainQueuedData(boolean awaitTurn, int maxLength) {
 		final Channel channel = pollChannel.getAndSet(null);
 		// no response channel, or another thread has already used it
 		if (channel == null || !channel.isOpen())
-			return;
+			return null;
+
+		final QueuedMessage message = this.peekQueuedMessage();
+		final long throttleDelay = message == null || shaping == null ? 0 : shaping.getDownstreamDelay();
+		// no data to send, waiting for a turn, or over the downstream limit,
+		// restore the response channel and bail out
+		if (message == null || awaitTurn || throttleDelay > 0) {
+			// A new poll request may have arrived since we took the channel,
+			// in which case answer the old one with a ping
+			if (!pollChannel.compareAndSet(null, channel)) {
+				serverMetrics.emptyPolls.mark();
+				Channels.write(channel, HttpTunnelMessageUtils.encodeTunnelPingResponse(encodedTunnelId));
+				return null;
+			}
 
-		final QueuedResponse messageToSend = queuedResponses.poll();
-		// no data to send, restore the response channel and bail out
-		if (messageToSend == null) {
-			pollChannel.set(channel);
+			if (message != null) {
+				if (throttleDelay > 0)
+					this.throttle(throttleDelay);
+
+				return null;
+			}
+
+			final TunnelEventListener listener = parent.getConfig().getEventListener();
+			if (listener != null)
+				listener.pollParked(this);
 
 			// Schedule a timeout that will respond with a ping and trigger a
 			// new poll request
 			pingExecutor.schedule(pingResponder, config.getPingDelay(), TimeUnit.SECONDS);
 
-			return;
+			return null;
 		}
 
+		final QueuedResponse messageToSend = message.nextFragment(shaping == null ? maxLength : Math.min(maxLength, shaping.getMaxResponseSize()));
+		if (shaping != null)
+			shaping.downstreamSent(messageToSend.getLength());
+
+		final boolean lastFragment = !message.hasFragments();
+
+		// A message stays at the head of the queue until its last fragment
+		// has been taken, which is the one traced
+		if (lastFragment)
+			queuedMessages.poll();
+		else
+			queuedMessages.taken();
+
+		final MessageTrace trace = lastFragment ? message.getTrace() : null;
+
 		if (LOG.isDebugEnabled())
 			LOG.debug("sending response for tunnel id " + tunnelId + " to " + channel.getRemoteAddress());
 
-		final HttpResponse response = HttpTunnelMessageUtils.createRecvDataResponse(messageToSend.getData());
-		final ChannelFuture future = messageToSend.getFuture();
+		final long pollWaitTime = System.nanoTime() - pollStartTime;
+		serverMetrics.pollWait.update(pollWaitTime, TimeUnit.NANOSECONDS);
+		serverMetrics.responseSize.update(messageToSend.getLength());
+
+		final TunnelEventListener listener = parent.getConfig().getEventListener();
+		if (listener != null)
+			listener.pollReleased(this, pollWaitTime, true);
+
+		final Object response = trace == null ? HttpTunnelMessageUtils.encodeRecvDataResponse(messageToSend.getData()) : this.createTracedResponse(messageToSend, trace);
+
+		lastResponseTime = System.nanoTime();
+
+		Channels.write(channel, response).addListener(new DeliveryListener(messageToSend, trace));
+
+		return messageToSend;
+	}
 
-		Channels.write(channel, response).addListener(new ForwardingFutureListener(future) {
+	// Must only be called while holding the draining claim
+	private QueuedMessage peekQueuedMessage() {
+		for (;;) {
+			final QueuedMessage message = queuedMessages.peek();
+			if (message == null || !message.isExpired())
+				return message;
+
+			queuedMessages.poll();
+			serverMetrics.expiredMessages.increment();
+
+			message.expire();
+		}
+	}
+
+	// Must only be called while holding the draining claim
+	private void throttle(long delay) {
+		if (!throttled.compareAndSet(false, true))
+			return;
+
+		serverMetrics.throttledPolls.mark();
+		pingExecutor.schedule(throttleRetry, delay, TimeUnit.NANOSECONDS);
+
+		// Answer with a ping if the client would otherwise give up on the
+		// poll first
+		if (delay >= TimeUnit.SECONDS.toNanos(config.getPingDelay()))
+			pingExecutor.schedule(pingResponder, config.getPingDelay(), TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Acknowledges a send request carrying the given number of bytes, after
+	 * a delay if the client is sending faster than traffic shaping allows.
+	 * The client sends no more data until it has the acknowledgement.
+	 */
+	void acknowledgeSend(final Channel channel, int size) {
+		final long delay = shaping == null ? 0 : shaping.upstreamReceived(size);
+		if (delay <= 0) {
+			Channels.write(channel, HttpTunnelMessageUtils.encodeSendDataResponse());
+			return;
+		}
+
+		serverMetrics.throttledSends.mark();
+		pingExecutor.schedule(new Runnable() {
 			@Override
-			public void operationComplete(ChannelFuture future) throws Exception {
-				if (future.isSuccess()) {
-					// Fire a write complete event
-					Channels.fireWriteComplete(HttpTunnelAcceptedChannel.this, messageToSend.getLength());
-				}
+			public void run() {
+				Channels.write(channel, HttpTunnelMessageUtils.encodeSendDataResponse());
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+	}
 
-				super.operationComplete(future);
+	/**
+	 * Answers the open request of a fast open, which carried the given number
+	 * of bytes, after a delay if that is more than traffic shaping allows.
+	 * The client sends no more data until it has the response.
+	 */
+	void respondToOpen(final Channel channel, int size) {
+		final long delay = shaping == null ? 0 : shaping.upstreamReceived(size);
+		if (delay <= 0) {
+			this.respondToOpen(channel);
+			return;
+		}
+
+		serverMetrics.throttledSends.mark();
+		pingExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				respondToOpen(channel);
 			}
-		});
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Answers the open request, carrying the first queued data if the
+	 * application has already written some and traffic shaping allows.
+	 */
+	private void respondToOpen(Channel channel) {
+		QueuedResponse messageToSend = null;
+		MessageTrace trace = null;
+
+		// The client can't poll until it has our response, so we only compete
+		// with writers briefly holding the claim, in which case the data waits
+		// for the first poll
+		if (draining.compareAndSet(false, true)) {
+			try {
+				final QueuedMessage message = this.peekQueuedMessage();
+				// Over the downstream limit the data waits for the first
+				// poll, which is held back until the limit allows
+				if (message != null && (shaping == null || shaping.getDownstreamDelay() <= 0)) {
+					messageToSend = message.nextFragment(shaping == null ? Integer.MAX_VALUE : shaping.getMaxResponseSize());
+					if (shaping != null)
+						shaping.downstreamSent(messageToSend.getLength());
+
+					if (!message.hasFragments()) {
+						queuedMessages.poll();
+						trace = message.getTrace();
+					}
+					else
+						queuedMessages.taken();
+				}
+			}
+			finally {
+				draining.set(false);
+			}
+		}
+
+		if (messageToSend == null) {
+			Channels.write(channel, HttpTunnelMessageUtils.encodeTunnelOpenResponse(encodedTunnelId));
+			return;
+		}
+
+		if (LOG.isDebugEnabled())
+			LOG.debug("sending open response with data for tunnel id " + tunnelId + " to " + channel.getRemoteAddress());
+
+		serverMetrics.responseSize.update(messageToSend.getLength());
+
+		final HttpResponse response = HttpTunnelMessageUtils.createTunnelOpenResponse(tunnelId.toString(), messageToSend.getData());
+		if (trace != null) {
+			trace.stageCompleted(TraceStage.QUEUED);
+			response.setHeader(MessageTrace.HEADER, trace.toHeader());
+		}
+
+		lastResponseTime = System.nanoTime();
+
+		Channels.write(channel, response).addListener(new DeliveryListener(messageToSend, trace));
+	}
+
+	// Traced responses carry an extra header, so can't use the pre-encoded
+	// template
+	private HttpResponse createTracedResponse(QueuedResponse messageToSend, MessageTrace trace) {
+		trace.stageCompleted(TraceStage.QUEUED);
+
+		final HttpResponse response = HttpTunnelMessageUtils.createRecvDataResponse(messageToSend.getData());
+		response.setHeader(MessageTrace.HEADER, trace.toHeader());
+
+		return response;
 	}
 
-	void updateSaturationStatus(int queueSizeDelta) {
-		final SaturationStateChange transition = saturationManager.queueSizeChanged(queueSizeDelta);
+	// Created on the first write, once the configuration has been applied
+	private SaturationMonitor getSaturationMonitor() {
+		final SaturationMonitor monitor = saturationMonitor.get();
+		if (monitor != null)
+			return monitor;
+
+		saturationMonitor.compareAndSet(null, config.getSaturationPolicy().newMonitor(config));
+		return saturationMonitor.get();
+	}
+
+	void updateSaturationStatus(SaturationStateChange transition) {
 		switch (transition) {
 			case SATURATED: {
 				this.fireWriteEnabled(false);
+				this.fireSaturationChanged(true);
 				break;
 			}
 
 			case DESATURATED: {
 				this.fireWriteEnabled(true);
+				this.fireSaturationChanged(false);
 				break;
 			}
 		}
 	}
 
+	private void fireSaturationChanged(boolean saturated) {
+		final TunnelEventListener listener = parent.getConfig().getEventListener();
+		if (listener != null)
+			listener.saturationChanged(this, saturated);
+	}
+
 	private void fireWriteEnabled(boolean enabled) {
 		int ops = OP_READ;
 		if (!enabled)
@@ -343,6 +773,106 @@ public class HttpTunnelAcceptedChannel extends AbstractChannel implements Socket
 		}
 	}
 
+	private static class QueuedMessage {
+		private final Object message;
+		private final List<QueuedResponse> fragments;
+		private final MessageTrace trace;
+		private int nextFragment;
+		private boolean started;
+
+		QueuedMessage(Object message, List<QueuedResponse> fragments, MessageTrace trace) {
+			this.message = message;
+			this.fragments = fragments;
+			this.trace = trace;
+
+			nextFragment = 0;
+			started = false;
+		}
+
+		boolean hasFragments() {
+			return nextFragment < fragments.size();
+		}
+
+		/**
+		 * @return true if the message has expired before any of it was sent.
+		 */
+		boolean isExpired() {
+			return !started && OutboundMessage.isExpired(message);
+		}
+
+		void expire() {
+			final Exception error = new MessageExpiredException();
+			for (QueuedResponse fragment : fragments)
+				fragment.getFuture().setFailure(error);
+		}
+
+		/**
+		 * Takes the next fragment, or only its first maxLength bytes if it is
+		 * longer, in which case the rest remains the next fragment. The
+		 * fragment's future completes once all of it has been sent.
+		 */
+		QueuedResponse nextFragment(int maxLength) {
+			// Even part of a fragment means the message must be sent in full
+			started = true;
+
+			final QueuedResponse fragment = fragments.get(nextFragment);
+			if (fragment.getLength() <= maxLength) {
+				nextFragment++;
+				return fragment;
+			}
+
+			final ChannelBuffer data = fragment.getData();
+			final ChannelFuture fragmentFuture = fragment.getFuture();
+			final ChannelFuture headFuture = Channels.future(fragmentFuture.getChannel());
+
+			headFuture.addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(ChannelFuture future) throws Exception {
+					if (!future.isSuccess())
+						fragmentFuture.setFailure(future.getCause());
+				}
+			});
+
+			fragments.set(nextFragment, new QueuedResponse(data.slice(data.readerIndex() + maxLength, data.readableBytes() - maxLength), fragmentFuture));
+			return new QueuedResponse(data.slice(data.readerIndex(), maxLength), headFuture);
+		}
+
+		MessageTrace getTrace() {
+			return trace;
+		}
+	}
+
+	/**
+	 * Completes a queued response once it has been written to the client.
+	 */
+	private class DeliveryListener extends ForwardingFutureListener {
+		private final QueuedResponse messageToSend;
+		private final MessageTrace trace;
+
+		DeliveryListener(QueuedResponse messageToSend, MessageTrace trace) {
+			super(messageToSend.getFuture());
+
+			this.messageToSend = messageToSend;
+			this.trace = trace;
+		}
+
+		@Override
+		public void operationComplete(ChannelFuture future) throws Exception {
+			if (future.isSuccess()) {
+				if (trace != null)
+					trace.stageCompleted(TraceStage.WRITTEN);
+
+				serverMetrics.bytesDelivered.add(messageToSend.getLength());
+				statistics.messageSent(messageToSend.getLength());
+
+				// Fire a write complete event
+				Channels.fireWriteComplete(HttpTunnelAcceptedChannel.this, messageToSend.getLength());
+			}
+
+			super.operationComplete(future);
+		}
+	}
+
 	private class PingResponder implements Runnable {
 		@Override
 		public void run() {
@@ -354,8 +884,22 @@ public class HttpTunnelAcceptedChannel extends AbstractChannel implements Socket
 			if (LOG.isDebugEnabled())
 				LOG.debug("sending ping for tunnel id " + tunnelId + " to " + channel.getRemoteAddress());
 
-			final HttpResponse response = HttpTunnelMessageUtils.createTunnelPingResponse(tunnelId);
-			Channels.write(channel, response);
+			serverMetrics.emptyPolls.mark();
+			lastResponseTime = System.nanoTime();
+
+			final TunnelEventListener listener = parent.getConfig().getEventListener();
+			if (listener != null)
+				listener.pollReleased(HttpTunnelAcceptedChannel.this, lastResponseTime - pollStartTime, false);
+
+			Channels.write(channel, HttpTunnelMessageUtils.encodeTunnelPingResponse(encodedTunnelId));
+		}
+	}
+
+	private class ThrottleRetry implements Runnable {
+		@Override
+		public void run() {
+			throttled.set(false);
+			sendQueuedData();
 		}
 	}
 
@@ -364,7 +908,7 @@ public class HttpTunnelAcceptedChannel extends AbstractChannel implements Socket
 		public void run() {
 			// We haven't received any poll in 2 * the ping delay, the channel
 			// is dead
-			internalClose(true, Channels.future(HttpTunnelAcceptedChannel.this));
+			internalClose(true, true, Channels.future(HttpTunnelAcceptedChannel.this));
 		}
 	}
 }
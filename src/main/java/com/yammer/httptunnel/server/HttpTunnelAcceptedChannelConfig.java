@@ -24,6 +24,10 @@ import com.yammer.httptunnel.HttpTunnelChannelConfig;
  * These properties largely have no effect in the current implementation, and
  * exist for API compatibility with TCP channels. With the exception of high /
  * low water marks, any changes in the values will not be honoured.
+ *
+ * The scheduling weight determines the share of response bandwidth this
+ * tunnel receives relative to others when the server channel has a
+ * {@link PollResponseScheduler}.
  */
 public class HttpTunnelAcceptedChannelConfig extends HttpTunnelChannelConfig {
 
@@ -32,7 +36,40 @@ public class HttpTunnelAcceptedChannelConfig extends HttpTunnelChannelConfig {
 	private static final int FAKE_RECEIVE_BUFFER_SIZE = 16 * 1024; // 16kb
 	private static final int DEFAULT_TRAFFIC_CLASS = 0; // based on RFC 791
 
-	HttpTunnelAcceptedChannelConfig() { }
+	static final String SCHEDULING_WEIGHT_OPTION = "schedulingWeight";
+
+	public static final int DEFAULT_SCHEDULING_WEIGHT = 1;
+
+	private volatile int schedulingWeight;
+
+	HttpTunnelAcceptedChannelConfig() {
+		schedulingWeight = DEFAULT_SCHEDULING_WEIGHT;
+	}
+
+	public int getSchedulingWeight() {
+		return schedulingWeight;
+	}
+
+	/**
+	 * Sets the weight of this tunnel, which may send the scheduler's quantum
+	 * multiplied by its weight in each round.
+	 */
+	public void setSchedulingWeight(int schedulingWeight) {
+		if (schedulingWeight < 1)
+			throw new IllegalArgumentException("Scheduling weight must be at least 1");
+
+		this.schedulingWeight = schedulingWeight;
+	}
+
+	@Override
+	public boolean setOption(String key, Object value) {
+		if (SCHEDULING_WEIGHT_OPTION.equals(key)) {
+			this.setSchedulingWeight((Integer) value);
+			return true;
+		}
+
+		return super.setOption(key, value);
+	}
 
 	@Override
 	public boolean isTcpNoDelay() {
@@ -20,7 +20,11 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.channels.ClosedChannelException;
+import java.util.HashMap;
+import java.util.Map;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -28,13 +32,16 @@ import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
-import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
 
+import com.yammer.httptunnel.trace.MessageTrace;
 import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+import com.yammer.httptunnel.util.HttpTunnelRequest;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
 
 /**
  * Upstream handler which is responsible for determining whether a received HTTP
@@ -53,37 +60,81 @@ class HttpTunnelAcceptedChannelHandler extends SimpleChannelUpstreamHandler {
 	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(HttpTunnelAcceptedChannelHandler.class);
 
 	private final HttpTunnelServerChannel parent;
+	private final HttpTunnelServerMetrics metrics;
+	private final HttpTunnelRequestRouter router;
 
 	public HttpTunnelAcceptedChannelHandler(HttpTunnelServerChannel parent) {
 		this.parent = parent;
+
+		metrics = parent.getServerMetrics();
+
+		final Map<String, HttpTunnelEndpoint> tunnelEndpoints = new HashMap<String, HttpTunnelEndpoint>();
+
+		// send channel
+		tunnelEndpoints.put(HttpTunnelMessageUtils.OPEN_TUNNEL_REQUEST_URI, new TimedEndpoint(metrics.openRequests) {
+			@Override
+			protected void handleTimed(Channel channel, HttpTunnelRequest request) {
+				HttpTunnelAcceptedChannelHandler.this.handleOpenTunnel(channel, request);
+			}
+		});
+
+		// send channel
+		tunnelEndpoints.put(HttpTunnelMessageUtils.CLIENT_SEND_REQUEST_URI, new TimedEndpoint(metrics.sendRequests) {
+			@Override
+			protected void handleTimed(Channel channel, HttpTunnelRequest request) {
+				HttpTunnelAcceptedChannelHandler.this.handleSendData(channel, request);
+			}
+		});
+
+		// poll channel
+		tunnelEndpoints.put(HttpTunnelMessageUtils.CLIENT_RECV_REQUEST_URI, new TimedEndpoint(metrics.pollRequests) {
+			@Override
+			protected void handleTimed(Channel channel, HttpTunnelRequest request) {
+				HttpTunnelAcceptedChannelHandler.this.handleReceiveData(channel, request);
+			}
+		});
+
+		// send channel
+		tunnelEndpoints.put(HttpTunnelMessageUtils.CLOSE_TUNNEL_REQUEST_URI, new TimedEndpoint(metrics.closeRequests) {
+			@Override
+			protected void handleTimed(Channel channel, HttpTunnelRequest request) {
+				HttpTunnelAcceptedChannelHandler.this.handleCloseTunnel(channel, request);
+			}
+		});
+
+		router = new HttpTunnelRequestRouter(parent.getConfig(), tunnelEndpoints);
 	}
 
 	@Override
 	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-		final HttpRequest request = (HttpRequest) e.getMessage();
-		final String userAgent = parent.getConfig().getUserAgent();
+		final HttpTunnelRequest request = this.toTunnelRequest(e.getMessage());
+		final Channel channel = ctx.getChannel();
 
 		try {
-			// send channel
-			if (HttpTunnelMessageUtils.isOpenTunnelRequest(request, userAgent))
-				this.handleOpenTunnel(ctx);
-			// send channel
-			else if (HttpTunnelMessageUtils.isSendDataRequest(request, userAgent))
-				this.handleSendData(ctx, request);
-			// poll channel
-			else if (HttpTunnelMessageUtils.isReceiveDataRequest(request, userAgent))
-				this.handleReceiveData(ctx, request);
-			// send channel
-			else if (HttpTunnelMessageUtils.isCloseTunnelRequest(request, userAgent))
-				this.handleCloseTunnel(ctx, request);
-			else
+			final HttpTunnelEndpoint endpoint = router.route(request);
+			if (endpoint == null) {
+				metrics.invalidRequests.mark();
 				throw new IllegalArgumentException("invalid request to netty HTTP tunnel gateway");
+			}
+
+			endpoint.handle(channel, request);
 		}
 		catch (Exception ex) {
-			this.respondWithRejection(ctx, request, ex.getMessage());
+			this.respondWithRejection(channel, request, ex.getMessage());
 		}
 	}
 
+	/**
+	 * Requests are normally decoded directly in to their compact form, but if
+	 * the generic HTTP decoder was required we need to convert them.
+	 */
+	private HttpTunnelRequest toTunnelRequest(Object message) {
+		if (message instanceof HttpTunnelRequest)
+			return (HttpTunnelRequest) message;
+
+		return HttpTunnelRequest.fromHttpRequest((HttpRequest) message);
+	}
+
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
 		final Throwable error = e.getCause();
@@ -105,23 +156,39 @@ class HttpTunnelAcceptedChannelHandler extends SimpleChannelUpstreamHandler {
 			LOG.warn("Exception from HttpTunnel accepted channel handler: " + error);
 	}
 
-	private void handleOpenTunnel(ChannelHandlerContext ctx) {
-		final InetSocketAddress remoteAddress = (InetSocketAddress) ctx.getChannel().getRemoteAddress();
+	private void handleOpenTunnel(Channel channel, HttpTunnelRequest request) {
+		final InetSocketAddress remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
 		final HttpTunnelAcceptedChannel tunnel = parent.createTunnel(remoteAddress);
 
+		final TrafficShaper shaper = parent.getConfig().getTrafficShaper();
+		if (shaper != null)
+			tunnel.setShaping(shaper.newTunnel(request));
+
 		tunnel.ping();
 
 		if (LOG.isDebugEnabled())
-			LOG.debug("open tunnel request received from " + ctx.getChannel().getRemoteAddress() + " - allocated ID " + tunnel.getTunnelId());
+			LOG.debug("open tunnel request received from " + channel.getRemoteAddress() + " - allocated ID " + tunnel.getTunnelId());
 
-		this.respondWith(ctx, HttpTunnelMessageUtils.createTunnelOpenResponse(tunnel.getTunnelId()));
+		// A fast open request carries the first data sent through the tunnel,
+		// and our response may carry the reply
+		if (request.getContent().readable()) {
+			final MessageTrace trace = MessageTrace.resume(parent.getConfig().getMessageTracer(), request.getTrace());
+			final int size = request.getContent().readableBytes();
+
+			tunnel.internalReceiveInitialMessage(request.getContent(), trace);
+			tunnel.respondToOpen(channel, size);
+			return;
+		}
+
+		this.respondWith(channel, HttpTunnelMessageUtils.encodeTunnelOpenResponse(tunnel.getEncodedTunnelId()));
 	}
 
-	private void handleCloseTunnel(ChannelHandlerContext ctx, HttpRequest request) {
-		final HttpTunnelAcceptedChannel tunnel = parent.getTunnel(HttpTunnelMessageUtils.extractTunnelId(request));
+	private void handleCloseTunnel(Channel channel, HttpTunnelRequest request) {
+		final HttpTunnelAcceptedChannel tunnel = parent.getTunnel(request.getTunnelId());
 		if (tunnel == null) {
 			// If the tunnel doesn't exist then close it on the other end
-			this.respondWith(ctx, HttpTunnelMessageUtils.createTunnelCloseResponse()).addListener(ChannelFutureListener.CLOSE);
+			metrics.unknownTunnelRequests.mark();
+			this.respondWith(channel, HttpTunnelMessageUtils.encodeTunnelCloseResponse()).addListener(ChannelFutureListener.CLOSE);
 			return;
 		}
 
@@ -131,14 +198,15 @@ class HttpTunnelAcceptedChannelHandler extends SimpleChannelUpstreamHandler {
 			LOG.debug("close tunnel request received for tunnel " + tunnel.getTunnelId());
 
 		tunnel.internalClose(false, Channels.future(tunnel));
-		this.respondWith(ctx, HttpTunnelMessageUtils.createTunnelCloseResponse()).addListener(ChannelFutureListener.CLOSE);
+		this.respondWith(channel, HttpTunnelMessageUtils.encodeTunnelCloseResponse()).addListener(ChannelFutureListener.CLOSE);
 	}
 
-	private void handleSendData(ChannelHandlerContext ctx, HttpRequest request) {
-		final HttpTunnelAcceptedChannel tunnel = parent.getTunnel(HttpTunnelMessageUtils.extractTunnelId(request));
+	private void handleSendData(Channel channel, HttpTunnelRequest request) {
+		final HttpTunnelAcceptedChannel tunnel = parent.getTunnel(request.getTunnelId());
 		if (tunnel == null) {
 			// If the tunnel doesn't exist then close it on the other end
-			this.respondWith(ctx, HttpTunnelMessageUtils.createTunnelCloseResponse()).addListener(ChannelFutureListener.CLOSE);
+			metrics.unknownTunnelRequests.mark();
+			this.respondWith(channel, HttpTunnelMessageUtils.encodeTunnelCloseResponse()).addListener(ChannelFutureListener.CLOSE);
 			return;
 		}
 
@@ -147,20 +215,24 @@ class HttpTunnelAcceptedChannelHandler extends SimpleChannelUpstreamHandler {
 		if (LOG.isDebugEnabled())
 			LOG.debug("send data request received for tunnel " + tunnel.getTunnelId());
 
-		if (HttpHeaders.getContentLength(request, 0) == 0 || request.getContent() == null || request.getContent().readableBytes() == 0) {
-			this.respondWithRejection(ctx, request, "Send data requests must contain data");
+		if (!request.getContent().readable()) {
+			this.respondWithRejection(channel, request, "Send data requests must contain data");
 			return;
 		}
 
-		tunnel.internalReceiveMessage(request.getContent());
-		this.respondWith(ctx, HttpTunnelMessageUtils.createSendDataResponse());
+		final MessageTrace trace = MessageTrace.resume(parent.getConfig().getMessageTracer(), request.getTrace());
+		final int size = request.getContent().readableBytes();
+
+		tunnel.internalReceiveMessage(request.getContent(), trace);
+		tunnel.acknowledgeSend(channel, size);
 	}
 
-	private void handleReceiveData(ChannelHandlerContext ctx, HttpRequest request) {
-		final HttpTunnelAcceptedChannel tunnel = parent.getTunnel(HttpTunnelMessageUtils.extractTunnelId(request));
+	private void handleReceiveData(Channel channel, HttpTunnelRequest request) {
+		final HttpTunnelAcceptedChannel tunnel = parent.getTunnel(request.getTunnelId());
 		if (tunnel == null) {
 			// If the tunnel doesn't exist then close it on the other end
-			this.respondWith(ctx, HttpTunnelMessageUtils.createTunnelCloseResponse()).addListener(ChannelFutureListener.CLOSE);
+			metrics.unknownTunnelRequests.mark();
+			this.respondWith(channel, HttpTunnelMessageUtils.encodeTunnelCloseResponse()).addListener(ChannelFutureListener.CLOSE);
 			return;
 		}
 
@@ -169,15 +241,31 @@ class HttpTunnelAcceptedChannelHandler extends SimpleChannelUpstreamHandler {
 		if (LOG.isDebugEnabled())
 			LOG.debug("poll data request received for tunnel " + tunnel.getTunnelId());
 
-		tunnel.pollQueuedData(ctx.getChannel());
+		// A keep-alive only stops the tunnel timing out, the client isn't
+		// ready for any more data
+		if (request.isKeepAlive()) {
+			tunnel.keepAlive(channel);
+			return;
+		}
+
+		tunnel.pollQueuedData(channel, !request.isDeferred());
 	}
 
 	/**
 	 * Sends the provided response back on the channel, returning the created
 	 * ChannelFuture for this operation.
 	 */
-	private ChannelFuture respondWith(ChannelHandlerContext ctx, HttpResponse response) {
-		return Channels.write(ctx.getChannel(), response);
+	private ChannelFuture respondWith(Channel channel, HttpResponse response) {
+		return Channels.write(channel, response);
+	}
+
+	/**
+	 * Sends the provided pre-encoded response back on the channel, bypassing
+	 * the HTTP response encoder, returning the created ChannelFuture for this
+	 * operation.
+	 */
+	private ChannelFuture respondWith(Channel channel, ChannelBuffer encodedResponse) {
+		return Channels.write(channel, encodedResponse);
 	}
 
 	/**
@@ -185,18 +273,46 @@ class HttpTunnelAcceptedChannelHandler extends SimpleChannelUpstreamHandler {
 	 * message, and asynchronously closes the channel after this is successfully
 	 * sent.
 	 */
-	private void respondWithRejection(ChannelHandlerContext ctx, HttpRequest rejectedRequest, String errorMessage) {
+	private void respondWithRejection(Channel channel, HttpTunnelRequest rejectedRequest, String errorMessage) {
 		if (LOG.isDebugEnabled()) {
-			final SocketAddress remoteAddress = ctx.getChannel().getRemoteAddress();
+			final SocketAddress remoteAddress = channel.getRemoteAddress();
 
-			String tunnelId = HttpTunnelMessageUtils.extractTunnelId(rejectedRequest);
+			String tunnelId = rejectedRequest.getTunnelId();
 			if (tunnelId == null)
 				tunnelId = "<UNKNOWN>";
 
 			LOG.debug("Rejecting request from " + remoteAddress + " representing tunnel " + tunnelId + ": " + errorMessage);
 		}
 
+		metrics.rejectedRequests.mark();
+
 		final HttpResponse rejection = HttpTunnelMessageUtils.createRejection(rejectedRequest, errorMessage);
-		this.respondWith(ctx, rejection).addListener(ChannelFutureListener.CLOSE);
+		this.respondWith(channel, rejection).addListener(ChannelFutureListener.CLOSE);
+	}
+
+	/**
+	 * An endpoint which records how long each request takes to handle.
+	 */
+	private abstract static class TimedEndpoint implements HttpTunnelEndpoint {
+
+		private final Timer timer;
+
+		TimedEndpoint(Timer timer) {
+			this.timer = timer;
+		}
+
+		@Override
+		public void handle(Channel channel, HttpTunnelRequest request) {
+			final TimerContext context = timer.time();
+
+			try {
+				this.handleTimed(channel, request);
+			}
+			finally {
+				context.stop();
+			}
+		}
+
+		protected abstract void handleTimed(Channel channel, HttpTunnelRequest request);
 	}
 }
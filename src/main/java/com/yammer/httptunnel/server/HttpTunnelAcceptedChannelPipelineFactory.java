@@ -16,15 +16,15 @@
 
 package com.yammer.httptunnel.server;
 
+import javax.net.ssl.SSLContext;
+
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
-import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
-import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
 
-import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+import com.yammer.httptunnel.util.SslHandlerFactory;
 
 /**
  * Creates pipelines for incoming http tunnel connections, capable of decoding
@@ -38,9 +38,14 @@ import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
  */
 class HttpTunnelAcceptedChannelPipelineFactory implements ChannelPipelineFactory {
 
+	private final HttpTunnelServerChannel parent;
 	private final ChannelHandler channelHandler;
+	private final SslHandlerFactory sslHandlerFactory;
 
 	public HttpTunnelAcceptedChannelPipelineFactory(HttpTunnelServerChannel parent) {
+		this.parent = parent;
+
+		sslHandlerFactory = new SslHandlerFactory(parent.getMetrics(), HttpTunnelServerChannel.class);
 		channelHandler = new HttpTunnelAcceptedChannelHandler(parent);
 	}
 
@@ -49,10 +54,14 @@ class HttpTunnelAcceptedChannelPipelineFactory implements ChannelPipelineFactory
 		final ChannelPipeline pipeline = Channels.pipeline();
 
 		pipeline.addLast("httpResponseEncoder", new HttpResponseEncoder());
-		pipeline.addLast("httpRequestDecoder", new HttpRequestDecoder());
-		pipeline.addLast("httpChunkAggregator", new HttpChunkAggregator(HttpTunnelMessageUtils.MAX_BODY_SIZE));
+		// Replaces itself with a generic decoder and aggregator if required
+		pipeline.addLast(HttpTunnelRequestDecoder.NAME, new HttpTunnelRequestDecoder());
 		pipeline.addLast("messageSwitchClient", channelHandler);
 
+		final SSLContext sslContext = parent.getConfig().getSslContext();
+		if (sslContext != null)
+			sslHandlerFactory.addFirst(pipeline, sslContext, null);
+
 		return pipeline;
 	}
 }
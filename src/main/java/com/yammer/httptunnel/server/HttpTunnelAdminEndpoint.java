@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.server;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.util.CharsetUtil;
+
+import com.yammer.httptunnel.HttpTunnelStatistics;
+import com.yammer.httptunnel.util.HttpTunnelRequest;
+
+/**
+ * An optional endpoint which lists the tunnels open on a server channel, one
+ * per line as tab separated values, preceded by a header line naming the
+ * columns. Times are in milliseconds, and goodput in bytes per second. The
+ * tunnels are read without locking, so the snapshot is cheap to take but not
+ * atomic: tunnels opened or closed while it is being taken may or may not be
+ * included.
+ * <p>
+ * The endpoint isn't registered by default; since it reveals every tunnel's
+ * ID it should only be registered on servers whose listener isn't publicly
+ * reachable:
+ *
+ * <pre>
+ * channel.getConfig().addEndpoint(HttpTunnelAdminEndpoint.DEFAULT_PATH, new HttpTunnelAdminEndpoint(channel));
+ * </pre>
+ */
+public class HttpTunnelAdminEndpoint implements HttpTunnelEndpoint {
+
+	/**
+	 * The path the endpoint is conventionally registered at.
+	 */
+	public static final String DEFAULT_PATH = "/http-tunnel/admin/tunnels";
+
+	private static final String HEADER = "id\tremoteAddress\tage\tsinceLastPoll\tqueuedBytes\tincomingBytes\tinterestOps\tsendGoodput\treceiveGoodput\n";
+
+	// Rough size of each line, to avoid growing the buffer repeatedly
+	private static final int ESTIMATED_LINE_LENGTH = 96;
+
+	private final HttpTunnelServerChannel serverChannel;
+
+	public HttpTunnelAdminEndpoint(HttpTunnelServerChannel serverChannel) {
+		this.serverChannel = serverChannel;
+	}
+
+	@Override
+	public void handle(Channel channel, HttpTunnelRequest request) {
+		final ChannelBuffer content = this.snapshot(System.nanoTime());
+
+		final HttpResponse response = new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.OK);
+		response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/tab-separated-values; charset=US-ASCII");
+		response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, Integer.toString(content.readableBytes()));
+		response.setContent(content);
+
+		Channels.write(channel, response);
+	}
+
+	ChannelBuffer snapshot(long now) {
+		final StringBuilder builder = new StringBuilder(HEADER.length() + serverChannel.getTunnelCount() * ESTIMATED_LINE_LENGTH);
+		builder.append(HEADER);
+
+		for (HttpTunnelAcceptedChannel tunnel : serverChannel.getTunnels()) {
+			final HttpTunnelStatistics statistics = tunnel.getStatistics();
+			final InetSocketAddress remoteAddress = tunnel.getRemoteAddress();
+			final long lastPollTime = tunnel.getLastPollTime();
+
+			builder.append(tunnel.getTunnelId()).append('\t');
+			builder.append(remoteAddress == null ? "-" : remoteAddress.toString()).append('\t');
+			builder.append(TimeUnit.NANOSECONDS.toMillis(now - tunnel.getCreationTime())).append('\t');
+
+			if (lastPollTime == 0)
+				builder.append('-');
+			else
+				builder.append(TimeUnit.NANOSECONDS.toMillis(now - lastPollTime));
+
+			builder.append('\t');
+			builder.append(statistics.getQueuedBytes()).append('\t');
+			builder.append(tunnel.getIncomingBufferedBytes()).append('\t');
+			builder.append(tunnel.getInterestOps()).append('\t');
+			builder.append(Math.round(statistics.getSendGoodput())).append('\t');
+			builder.append(Math.round(statistics.getReceiveGoodput())).append('\n');
+		}
+
+		return ChannelBuffers.copiedBuffer(builder, CharsetUtil.US_ASCII);
+	}
+}
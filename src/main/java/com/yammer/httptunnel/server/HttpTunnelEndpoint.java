@@ -0,0 +1,39 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.server;
+
+import org.jboss.netty.channel.Channel;
+
+import com.yammer.httptunnel.util.HttpTunnelRequest;
+
+/**
+ * This interface is used by the server end of an http tunnel to service
+ * requests to a specific path. Alongside the built in tunnel endpoints,
+ * additional endpoints (for example stats or health probes) may be registered
+ * using {@link HttpTunnelServerChannelConfig#addEndpoint(String, HttpTunnelEndpoint)}.
+ */
+public interface HttpTunnelEndpoint {
+
+	/**
+	 * Handles the given request, which was received on the given underlying
+	 * HTTP connection. The response should be written to the channel, which may
+	 * be either an {@link org.jboss.netty.handler.codec.http.HttpResponse} or a
+	 * pre-encoded {@link org.jboss.netty.buffer.ChannelBuffer}. Any exception
+	 * thrown will result in the request being rejected.
+	 */
+	public void handle(Channel channel, HttpTunnelRequest request) throws Exception;
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.server;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+
+import com.yammer.httptunnel.trace.MessageTrace;
+import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+import com.yammer.httptunnel.util.HttpTunnelRequest;
+
+/**
+ * Lightweight decoder for the requests used by the HTTP tunnel protocol. The
+ * request line and the few headers the tunnel cares about (Cookie,
+ * Content-Length, User-Agent and the trace and poll markers) are extracted in
+ * a single pass over the received bytes, producing an
+ * {@link HttpTunnelRequest} without building a header map. Anything unusual (a method other than POST, chunked bodies,
+ * continuation lines, oversized headers etc) causes this decoder to replace
+ * itself with the generic {@link HttpRequestDecoder} and
+ * {@link HttpChunkAggregator} for the remainder of the connection.
+ *
+ * This decoder is stateful, so a new instance is required per pipeline.
+ */
+class HttpTunnelRequestDecoder extends FrameDecoder {
+
+	public static final String NAME = "httpTunnelRequestDecoder";
+
+	static final String FALLBACK_DECODER_NAME = "httpRequestDecoder";
+	static final String FALLBACK_AGGREGATOR_NAME = "httpChunkAggregator";
+
+	/**
+	 * The maximum size of the request line and headers combined, beyond which
+	 * we fall back to the generic decoder.
+	 */
+	static final int MAX_HEADER_SIZE = 8192;
+
+	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(HttpTunnelRequestDecoder.class);
+
+	private static final byte[] POST_PREFIX = HttpTunnelRequestDecoder.toBytes("POST ");
+	private static final byte[] ABSOLUTE_URI_PREFIX = HttpTunnelRequestDecoder.toBytes("http://");
+	private static final byte[] HTTP_1_0 = HttpTunnelRequestDecoder.toBytes("HTTP/1.0");
+	private static final byte[] HTTP_1_1 = HttpTunnelRequestDecoder.toBytes("HTTP/1.1");
+
+	// Header names are compared case insensitively against these lower case
+	// forms
+	private static final byte[] COOKIE = HttpTunnelRequestDecoder.toBytes("cookie");
+	private static final byte[] CONTENT_LENGTH = HttpTunnelRequestDecoder.toBytes("content-length");
+	private static final byte[] USER_AGENT = HttpTunnelRequestDecoder.toBytes("user-agent");
+	private static final byte[] TRANSFER_ENCODING = HttpTunnelRequestDecoder.toBytes("transfer-encoding");
+	private static final byte[] EXPECT = HttpTunnelRequestDecoder.toBytes("expect");
+	private static final byte[] TRACE = HttpTunnelRequestDecoder.toBytes(MessageTrace.HEADER.toLowerCase());
+	private static final byte[] POLL = HttpTunnelRequestDecoder.toBytes(HttpTunnelMessageUtils.POLL_HEADER.toLowerCase());
+
+	// Known paths are matched against these to avoid allocating a new string
+	// per request
+	private static final String[] KNOWN_PATHS = {
+		HttpTunnelMessageUtils.OPEN_TUNNEL_REQUEST_URI,
+		HttpTunnelMessageUtils.CLOSE_TUNNEL_REQUEST_URI,
+		HttpTunnelMessageUtils.CLIENT_SEND_REQUEST_URI,
+		HttpTunnelMessageUtils.CLIENT_RECV_REQUEST_URI
+	};
+
+	private static byte[] toBytes(String value) {
+		final byte[] bytes = new byte[value.length()];
+
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) value.charAt(i);
+
+		return bytes;
+	}
+
+	private static boolean matches(ChannelBuffer buffer, int index, int length, byte[] expected) {
+		if (length != expected.length)
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			if (buffer.getByte(index + i) != expected[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	private static boolean matchesIgnoreCase(ChannelBuffer buffer, int index, int length, byte[] expected) {
+		if (length != expected.length)
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			byte b = buffer.getByte(index + i);
+			if (b >= 'A' && b <= 'Z')
+				b += 'a' - 'A';
+
+			if (b != expected[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	private static boolean matches(ChannelBuffer buffer, int index, int length, String expected) {
+		if (expected == null || length != expected.length())
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			if ((buffer.getByte(index + i) & 0xFF) != expected.charAt(i))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns a string for the given range of bytes, reusing the previous
+	 * value if it is identical. Since a connection is almost always used by a
+	 * single tunnel, this avoids allocating a new string per request.
+	 */
+	private static String toString(ChannelBuffer buffer, int index, int length, String previous) {
+		if (HttpTunnelRequestDecoder.matches(buffer, index, length, previous))
+			return previous;
+
+		final char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = (char) (buffer.getByte(index + i) & 0xFF);
+
+		return new String(chars);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	// State for the request currently being decoded
+	private HttpVersion version;
+	private String path;
+	private String tunnelId;
+	private String userAgent;
+	private String trace;
+	private String poll;
+	private int contentLength;
+	private int headerLength;
+
+	public HttpTunnelRequestDecoder() {
+		this.reset();
+	}
+
+	private void reset() {
+		version = null;
+		path = null;
+		trace = null;
+		poll = null;
+		contentLength = 0;
+		headerLength = -1;
+
+		// tunnelId and userAgent are deliberately kept, so the strings can be
+		// reused by the next request if they match
+	}
+
+	@Override
+	protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+		final int start = buffer.readerIndex();
+
+		// We haven't yet seen the end of the headers for this request
+		if (headerLength < 0 && !this.decodeHeaders(buffer, start, buffer.writerIndex())) {
+			// Something unusual, let the generic decoder deal with it
+			if (headerLength == -2 || buffer.readableBytes() > MAX_HEADER_SIZE)
+				return this.fallback(ctx, buffer);
+
+			return null;
+		}
+
+		// Wait until the full body has arrived
+		if (buffer.readableBytes() < headerLength + contentLength)
+			return null;
+
+		buffer.skipBytes(headerLength);
+
+		final HttpTunnelRequest request = new HttpTunnelRequest(HttpMethod.POST, path, version, tunnelId, userAgent, trace, poll, buffer.readBytes(contentLength));
+
+		this.reset();
+		return request;
+	}
+
+	/**
+	 * Attempts to decode the request line and headers, returning true if the
+	 * headers are complete. If the request is not one we can handle, the
+	 * header length is set to -2.
+	 */
+	private boolean decodeHeaders(ChannelBuffer buffer, int start, int end) {
+		boolean requestLine = true;
+		boolean sawCookie = false;
+		boolean sawUserAgent = false;
+
+		int lineStart = start;
+
+		for (int i = start; i < end; i++) {
+			if (buffer.getByte(i) != '\n')
+				continue;
+
+			// We only handle CRLF line endings
+			if (i == lineStart || buffer.getByte(i - 1) != '\r')
+				return this.unsupported();
+
+			final int lineLength = i - 1 - lineStart;
+
+			// An empty line marks the end of the headers
+			if (lineLength == 0) {
+				if (requestLine)
+					return this.unsupported();
+
+				if (!sawCookie)
+					tunnelId = null;
+
+				if (!sawUserAgent)
+					userAgent = null;
+
+				headerLength = i + 1 - start;
+				return true;
+			}
+
+			if (requestLine) {
+				if (!this.decodeRequestLine(buffer, lineStart, lineLength))
+					return this.unsupported();
+
+				requestLine = false;
+			}
+			else {
+				// Continuation lines aren't supported
+				if (HttpTunnelRequestDecoder.isWhitespace(buffer.getByte(lineStart)))
+					return this.unsupported();
+
+				final int nameEnd = buffer.indexOf(lineStart, lineStart + lineLength, (byte) ':');
+				if (nameEnd < 0)
+					return this.unsupported();
+
+				final int nameLength = nameEnd - lineStart;
+
+				// Trim whitespace surrounding the value
+				int valueStart = nameEnd + 1;
+				int valueEnd = lineStart + lineLength;
+
+				while (valueStart < valueEnd && HttpTunnelRequestDecoder.isWhitespace(buffer.getByte(valueStart)))
+					valueStart++;
+
+				while (valueEnd > valueStart && HttpTunnelRequestDecoder.isWhitespace(buffer.getByte(valueEnd - 1)))
+					valueEnd--;
+
+				final int valueLength = valueEnd - valueStart;
+
+				if (HttpTunnelRequestDecoder.matchesIgnoreCase(buffer, lineStart, nameLength, COOKIE)) {
+					if (sawCookie)
+						return this.unsupported();
+
+					tunnelId = HttpTunnelRequestDecoder.toString(buffer, valueStart, valueLength, tunnelId);
+					sawCookie = true;
+				}
+				else if (HttpTunnelRequestDecoder.matchesIgnoreCase(buffer, lineStart, nameLength, USER_AGENT)) {
+					if (sawUserAgent)
+						return this.unsupported();
+
+					userAgent = HttpTunnelRequestDecoder.toString(buffer, valueStart, valueLength, userAgent);
+					sawUserAgent = true;
+				}
+				else if (HttpTunnelRequestDecoder.matchesIgnoreCase(buffer, lineStart, nameLength, TRACE)) {
+					// Only sampled requests carry a trace, so it isn't worth
+					// trying to reuse the string
+					trace = HttpTunnelRequestDecoder.toString(buffer, valueStart, valueLength, null);
+				}
+				else if (HttpTunnelRequestDecoder.matchesIgnoreCase(buffer, lineStart, nameLength, POLL)) {
+					if (HttpTunnelRequestDecoder.matches(buffer, valueStart, valueLength, HttpTunnelMessageUtils.POLL_KEEP_ALIVE))
+						poll = HttpTunnelMessageUtils.POLL_KEEP_ALIVE;
+					else
+						poll = HttpTunnelRequestDecoder.toString(buffer, valueStart, valueLength, HttpTunnelMessageUtils.POLL_DEFERRED);
+				}
+				else if (HttpTunnelRequestDecoder.matchesIgnoreCase(buffer, lineStart, nameLength, CONTENT_LENGTH)) {
+					if (!this.decodeContentLength(buffer, valueStart, valueLength))
+						return this.unsupported();
+				}
+				else if (HttpTunnelRequestDecoder.matchesIgnoreCase(buffer, lineStart, nameLength, TRANSFER_ENCODING) || HttpTunnelRequestDecoder.matchesIgnoreCase(buffer, lineStart, nameLength, EXPECT)) {
+					return this.unsupported();
+				}
+			}
+
+			lineStart = i + 1;
+		}
+
+		return false;
+	}
+
+	private boolean decodeRequestLine(ChannelBuffer buffer, int start, int length) {
+		final int end = start + length;
+
+		if (length <= POST_PREFIX.length || !HttpTunnelRequestDecoder.matches(buffer, start, POST_PREFIX.length, POST_PREFIX))
+			return false;
+
+		int uriStart = start + POST_PREFIX.length;
+		final int uriEnd = buffer.indexOf(uriStart, end, (byte) ' ');
+		if (uriEnd < 0)
+			return false;
+
+		// Requests via a proxy use an absolute URI, skip over the host
+		if (uriEnd - uriStart > ABSOLUTE_URI_PREFIX.length && HttpTunnelRequestDecoder.matches(buffer, uriStart, ABSOLUTE_URI_PREFIX.length, ABSOLUTE_URI_PREFIX)) {
+			uriStart = buffer.indexOf(uriStart + ABSOLUTE_URI_PREFIX.length, uriEnd, (byte) '/');
+			if (uriStart < 0)
+				return false;
+		}
+
+		if (uriStart == uriEnd || buffer.getByte(uriStart) != '/')
+			return false;
+
+		// Anything requiring proper URI parsing is left to the generic decoder
+		for (int i = uriStart; i < uriEnd; i++) {
+			final byte b = buffer.getByte(i);
+			if (b == '?' || b == '#' || b == '%' || b < ' ' || b > '~')
+				return false;
+		}
+
+		path = null;
+		for (String knownPath : KNOWN_PATHS) {
+			if (HttpTunnelRequestDecoder.matches(buffer, uriStart, uriEnd - uriStart, knownPath)) {
+				path = knownPath;
+				break;
+			}
+		}
+
+		if (path == null)
+			path = HttpTunnelRequestDecoder.toString(buffer, uriStart, uriEnd - uriStart, null);
+
+		final int versionStart = uriEnd + 1;
+		final int versionLength = end - versionStart;
+
+		if (HttpTunnelRequestDecoder.matches(buffer, versionStart, versionLength, HTTP_1_0))
+			version = HttpVersion.HTTP_1_0;
+		else if (HttpTunnelRequestDecoder.matches(buffer, versionStart, versionLength, HTTP_1_1))
+			version = HttpVersion.HTTP_1_1;
+		else
+			return false;
+
+		return true;
+	}
+
+	private boolean decodeContentLength(ChannelBuffer buffer, int start, int length) {
+		if (length == 0)
+			return false;
+
+		long value = 0;
+		for (int i = start; i < start + length; i++) {
+			final byte b = buffer.getByte(i);
+			if (b < '0' || b > '9')
+				return false;
+
+			value = value * 10 + (b - '0');
+
+			// Oversized requests are rejected by the generic aggregator
+			if (value > HttpTunnelMessageUtils.MAX_BODY_SIZE)
+				return false;
+		}
+
+		contentLength = (int) value;
+		return true;
+	}
+
+	private boolean unsupported() {
+		headerLength = -2;
+		return false;
+	}
+
+	/**
+	 * Replaces this decoder with the generic HTTP decoder and aggregator,
+	 * handing over any data received so far.
+	 */
+	private Object fallback(ChannelHandlerContext ctx, ChannelBuffer buffer) {
+		if (LOG.isDebugEnabled())
+			LOG.debug("falling back to generic HTTP decoder for connection from " + ctx.getChannel().getRemoteAddress());
+
+		final ChannelPipeline pipeline = ctx.getPipeline();
+
+		pipeline.addAfter(ctx.getName(), FALLBACK_AGGREGATOR_NAME, new HttpChunkAggregator(HttpTunnelMessageUtils.MAX_BODY_SIZE));
+		pipeline.addAfter(ctx.getName(), FALLBACK_DECODER_NAME, new HttpRequestDecoder());
+		pipeline.remove(this);
+
+		// The remaining data is passed on to the generic decoder
+		return buffer.readBytes(buffer.readableBytes());
+	}
+}
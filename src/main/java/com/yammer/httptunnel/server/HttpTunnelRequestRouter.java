@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.netty.handler.codec.http.HttpMethod;
+
+import com.yammer.httptunnel.util.HttpTunnelRequest;
+
+/**
+ * Routing table mapping request paths to the endpoint which services them. The
+ * tunnel endpoints are fixed at construction and only accept POST requests
+ * from the configured user-agent, while any additional endpoints are looked up
+ * from the server configuration.
+ */
+class HttpTunnelRequestRouter {
+
+	private final HttpTunnelServerChannelConfig config;
+	private final Map<String, HttpTunnelEndpoint> tunnelEndpoints;
+
+	public HttpTunnelRequestRouter(HttpTunnelServerChannelConfig config, Map<String, HttpTunnelEndpoint> tunnelEndpoints) {
+		this.config = config;
+		this.tunnelEndpoints = new HashMap<String, HttpTunnelEndpoint>(tunnelEndpoints);
+	}
+
+	/**
+	 * @return the endpoint which should service the given request, or null if
+	 *         there is no such endpoint.
+	 */
+	public HttpTunnelEndpoint route(HttpTunnelRequest request) {
+		final String path = request.getPath();
+		if (path == null)
+			return null;
+
+		final HttpTunnelEndpoint endpoint = tunnelEndpoints.get(path);
+		if (endpoint != null) {
+			if (!HttpMethod.POST.equals(request.getMethod()) || !config.getUserAgent().equals(request.getUserAgent()))
+				return null;
+
+			return endpoint;
+		}
+
+		return config.getEndpoint(path);
+	}
+}
@@ -17,8 +17,6 @@
 package com.yammer.httptunnel.server;
 
 import java.net.InetSocketAddress;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -37,7 +35,10 @@ import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
 
+import com.yammer.httptunnel.HttpTunnelMetrics;
+import com.yammer.httptunnel.trace.TunnelEventListener;
 import com.yammer.httptunnel.state.BindState;
+import com.yammer.httptunnel.util.TunnelId;
 import com.yammer.httptunnel.util.TunnelIdGenerator;
 
 /**
@@ -56,25 +57,23 @@ public class HttpTunnelServerChannel extends AbstractServerChannel implements Se
 
 	private static final InternalLogger LOG = InternalLoggerFactory.getInstance(HttpTunnelServerChannel.class);
 
-	private static final Random random;
-
-	static {
-		random = new Random();
-	}
-
-	private final String tunnelIdPrefix;
-	private final ConcurrentHashMap<String, HttpTunnelAcceptedChannel> tunnels;
+	private final TunnelRegistry tunnels;
 	private final ServerSocketChannel realChannel;
 	private final HttpTunnelServerChannelConfig config;
+	private final HttpTunnelMetrics metrics;
+	private final HttpTunnelServerMetrics serverMetrics;
 
 	private final AtomicBoolean opened;
 	private final AtomicReference<BindState> bindState;
 
-	protected HttpTunnelServerChannel(ChannelFactory factory, ChannelPipeline pipeline, ChannelSink sink, ServerSocketChannelFactory inboundFactory, ChannelGroup realConnections) {
+	protected HttpTunnelServerChannel(ChannelFactory factory, ChannelPipeline pipeline, ChannelSink sink, ServerSocketChannelFactory inboundFactory, ChannelGroup realConnections, HttpTunnelMetrics metrics) {
 		super(factory, pipeline, sink);
 
-		tunnelIdPrefix = Long.toHexString(random.nextLong());
-		tunnels = new ConcurrentHashMap<String, HttpTunnelAcceptedChannel>();
+		this.metrics = metrics;
+
+		serverMetrics = new HttpTunnelServerMetrics(metrics);
+
+		tunnels = new OpenAddressingTunnelRegistry();
 
 		config = new HttpTunnelServerChannelConfig();
 		realChannel = inboundFactory.newChannel(this.createRealPipeline(realConnections));
@@ -93,6 +92,14 @@ public class HttpTunnelServerChannel extends AbstractServerChannel implements Se
 		return config;
 	}
 
+	HttpTunnelMetrics getMetrics() {
+		return metrics;
+	}
+
+	HttpTunnelServerMetrics getServerMetrics() {
+		return serverMetrics;
+	}
+
 	@Override
 	public InetSocketAddress getLocalAddress() {
 		return this.isBound() ? realChannel.getLocalAddress() : null;
@@ -250,15 +257,20 @@ public class HttpTunnelServerChannel extends AbstractServerChannel implements Se
 			throw new ChannelPipelineException("Failed to initialize a pipeline.", e);
 		}
 
-		final String tunnelId = String.format("%s_%s", tunnelIdPrefix, tunnelIdGenerator.generateId());
+		final TunnelId tunnelId = tunnelIdGenerator.generateId();
 		final HttpTunnelAcceptedChannel tunnel = new HttpTunnelAcceptedChannel(this, this.getFactory(), childPipeline, new HttpTunnelAcceptedChannelSink(), remoteAddress, tunnelId);
 
-		tunnels.put(tunnelId, tunnel);
+		tunnels.put(tunnel);
+		serverMetrics.tunnelsOpened.mark();
 
 		Channels.fireChannelOpen(tunnel);
 		Channels.fireChannelBound(tunnel, this.getLocalAddress());
 		Channels.fireChannelConnected(tunnel, remoteAddress);
 
+		final TunnelEventListener listener = config.getEventListener();
+		if (listener != null)
+			listener.tunnelOpened(tunnel);
+
 		return tunnel;
 	}
 
@@ -266,13 +278,33 @@ public class HttpTunnelServerChannel extends AbstractServerChannel implements Se
 		if (tunnelId == null)
 			throw new IllegalArgumentException("no tunnel id specified in request");
 
-		return tunnels.get(tunnelId);
+		// Malformed IDs can't belong to any tunnel
+		if (!TunnelId.isValid(tunnelId))
+			return null;
+
+		return tunnels.get(TunnelId.parseMostSignificantBits(tunnelId), TunnelId.parseLeastSignificantBits(tunnelId));
+	}
+
+	public HttpTunnelAcceptedChannel getTunnel(TunnelId tunnelId) {
+		return tunnels.get(tunnelId.getMostSignificantBits(), tunnelId.getLeastSignificantBits());
 	}
 
-	public HttpTunnelAcceptedChannel removeTunnel(String tunnelId) {
+	public HttpTunnelAcceptedChannel removeTunnel(TunnelId tunnelId) {
 		return tunnels.remove(tunnelId);
 	}
 
+	/**
+	 * @return the open tunnels, which may be iterated without blocking tunnels
+	 *         being opened or closed.
+	 */
+	Iterable<HttpTunnelAcceptedChannel> getTunnels() {
+		return tunnels;
+	}
+
+	int getTunnelCount() {
+		return tunnels.size();
+	}
+
 	private ChannelPipeline createRealPipeline(ChannelGroup realConnections) {
 		final ChannelPipelineFactory realPipelineFactory = new HttpTunnelAcceptedChannelPipelineFactory(this);
 
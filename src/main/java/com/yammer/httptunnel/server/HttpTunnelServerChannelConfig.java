@@ -18,13 +18,19 @@ package com.yammer.httptunnel.server;
 
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.SSLContext;
 
 import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.socket.ServerSocketChannel;
 import org.jboss.netty.channel.socket.ServerSocketChannelConfig;
 
+import com.yammer.httptunnel.trace.MessageTracer;
+import com.yammer.httptunnel.trace.TunnelEventListener;
 import com.yammer.httptunnel.util.DefaultTunnelIdGenerator;
+import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
 import com.yammer.httptunnel.util.TunnelIdGenerator;
 
 /**
@@ -43,6 +49,11 @@ public class HttpTunnelServerChannelConfig implements ServerSocketChannelConfig
 	static final String USER_AGENT_OPTION = "userAgent";
 	static final String PIPELINE_FACTORY_OPTION = "pipelineFactory";
 	static final String TUNNEL_ID_GENERATOR_OPTION = "tunnelIdGenerator";
+	static final String MESSAGE_TRACER_OPTION = "messageTracer";
+	static final String EVENT_LISTENER_OPTION = "eventListener";
+	static final String SSL_CONTEXT_OPTION = "sslContext";
+	static final String POLL_RESPONSE_SCHEDULER_OPTION = "pollResponseScheduler";
+	static final String TRAFFIC_SHAPER_OPTION = "trafficShaper";
 
 	private static final String PROP_PKG = "org.jboss.netty.channel.socket.http.";
 
@@ -52,6 +63,12 @@ public class HttpTunnelServerChannelConfig implements ServerSocketChannelConfig
 	private ServerSocketChannel realChannel;
 	private TunnelIdGenerator tunnelIdGenerator;
 	private ChannelPipelineFactory pipelineFactory;
+	private volatile MessageTracer messageTracer;
+	private volatile TunnelEventListener eventListener;
+	private volatile SSLContext sslContext;
+	private volatile PollResponseScheduler pollResponseScheduler;
+	private volatile TrafficShaper trafficShaper;
+	private final Map<String, HttpTunnelEndpoint> endpoints;
 
 	HttpTunnelServerChannelConfig() {
 		userAgent = System.getProperty(PROP_UserAgent, DEFAULT_USER_AGENT);
@@ -60,6 +77,12 @@ public class HttpTunnelServerChannelConfig implements ServerSocketChannelConfig
 		tunnelIdGenerator = new DefaultTunnelIdGenerator();
 
 		pipelineFactory = null;
+		messageTracer = null;
+		eventListener = null;
+		sslContext = null;
+		pollResponseScheduler = null;
+		trafficShaper = null;
+		endpoints = new ConcurrentHashMap<String, HttpTunnelEndpoint>();
 	}
 
 	void setRealChannel(ServerSocketChannel realChannel) {
@@ -146,6 +169,94 @@ public class HttpTunnelServerChannelConfig implements ServerSocketChannelConfig
 		this.tunnelIdGenerator = tunnelIdGenerator;
 	}
 
+	public MessageTracer getMessageTracer() {
+		return messageTracer;
+	}
+
+	/**
+	 * Sets the tracer which samples messages sent through tunnels accepted by
+	 * this channel, or null (the default) to disable tracing.
+	 */
+	public void setMessageTracer(MessageTracer messageTracer) {
+		this.messageTracer = messageTracer;
+	}
+
+	public TunnelEventListener getEventListener() {
+		return eventListener;
+	}
+
+	/**
+	 * Sets the listener notified of events in the life of tunnels accepted by
+	 * this channel, or null (the default) to disable them.
+	 */
+	public void setEventListener(TunnelEventListener eventListener) {
+		this.eventListener = eventListener;
+	}
+
+	public SSLContext getSslContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Sets the context used to secure incoming connections with TLS, or null
+	 * (the default) to accept plain HTTP. Clients may resume sessions held in
+	 * the context's server session cache rather than performing full
+	 * handshakes. Applies to connections accepted after it is set.
+	 */
+	public void setSslContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	public PollResponseScheduler getPollResponseScheduler() {
+		return pollResponseScheduler;
+	}
+
+	/**
+	 * Sets the scheduler which shares response bandwidth between the tunnels
+	 * accepted by this channel, or null (the default) to answer each poll as
+	 * soon as there is data for it.
+	 */
+	public void setPollResponseScheduler(PollResponseScheduler pollResponseScheduler) {
+		this.pollResponseScheduler = pollResponseScheduler;
+	}
+
+	public TrafficShaper getTrafficShaper() {
+		return trafficShaper;
+	}
+
+	/**
+	 * Sets the shaper which limits the rate of traffic through tunnels
+	 * accepted by this channel, or null (the default) for no limits. Applies
+	 * to tunnels opened after it is set.
+	 */
+	public void setTrafficShaper(TrafficShaper trafficShaper) {
+		this.trafficShaper = trafficShaper;
+	}
+
+	/**
+	 * Registers an additional endpoint to service requests to the given path,
+	 * alongside the tunnel endpoints. The tunnel endpoint paths are reserved
+	 * and cannot be replaced.
+	 */
+	public void addEndpoint(String path, HttpTunnelEndpoint endpoint) {
+		if (HttpTunnelMessageUtils.isTunnelRequestPath(path))
+			throw new IllegalArgumentException("Cannot replace the tunnel endpoint at " + path);
+
+		endpoints.put(path, endpoint);
+	}
+
+	public HttpTunnelEndpoint removeEndpoint(String path) {
+		return endpoints.remove(path);
+	}
+
+	/**
+	 * @return the additional endpoint registered for the given path, or null
+	 *         if there is none.
+	 */
+	public HttpTunnelEndpoint getEndpoint(String path) {
+		return endpoints.get(path);
+	}
+
 	@Override
 	public void setPerformancePreferences(int connectionTime, int latency, int bandwidth) {
 		this.getWrappedConfig().setPerformancePreferences(connectionTime, latency, bandwidth);
@@ -168,6 +279,31 @@ public class HttpTunnelServerChannelConfig implements ServerSocketChannelConfig
 			return true;
 		}
 
+		if (MESSAGE_TRACER_OPTION.equalsIgnoreCase(key)) {
+			this.setMessageTracer((MessageTracer) value);
+			return true;
+		}
+
+		if (EVENT_LISTENER_OPTION.equalsIgnoreCase(key)) {
+			this.setEventListener((TunnelEventListener) value);
+			return true;
+		}
+
+		if (SSL_CONTEXT_OPTION.equalsIgnoreCase(key)) {
+			this.setSslContext((SSLContext) value);
+			return true;
+		}
+
+		if (POLL_RESPONSE_SCHEDULER_OPTION.equalsIgnoreCase(key)) {
+			this.setPollResponseScheduler((PollResponseScheduler) value);
+			return true;
+		}
+
+		if (TRAFFIC_SHAPER_OPTION.equalsIgnoreCase(key)) {
+			this.setTrafficShaper((TrafficShaper) value);
+			return true;
+		}
+
 		return this.getWrappedConfig().setOption(key, value);
 	}
 
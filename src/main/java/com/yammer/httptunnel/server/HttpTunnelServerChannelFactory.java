@@ -21,6 +21,10 @@ import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
 
+import com.yammer.httptunnel.HttpTunnelMetrics;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricsRegistry;
+
 /**
  * Factory used to create new server channels.
  *
@@ -33,20 +37,46 @@ public class HttpTunnelServerChannelFactory implements ServerSocketChannelFactor
 
 	private final ServerSocketChannelFactory factory;
 	private final ChannelGroup realConnections;
+	private final HttpTunnelMetrics metrics;
 
+	/**
+	 * Constructs a new factory reporting metrics to the default registry.
+	 */
 	public HttpTunnelServerChannelFactory(ServerSocketChannelFactory factory) {
+		this(factory, Metrics.defaultRegistry());
+	}
+
+	/**
+	 * Constructs a new factory reporting aggregate metrics to the given
+	 * registry.
+	 */
+	public HttpTunnelServerChannelFactory(ServerSocketChannelFactory factory, MetricsRegistry registry) {
+		this(factory, registry, false);
+	}
+
+	/**
+	 * Constructs a new factory reporting metrics to the given registry, and
+	 * optionally reporting metrics for each individual tunnel.
+	 */
+	public HttpTunnelServerChannelFactory(ServerSocketChannelFactory factory, MetricsRegistry registry, boolean perTunnelMetrics) {
 		this.factory = factory;
 
 		realConnections = new DefaultChannelGroup();
+		metrics = new HttpTunnelMetrics(registry, HttpTunnelServerChannel.class, perTunnelMetrics);
+	}
+
+	public HttpTunnelMetrics getMetrics() {
+		return metrics;
 	}
 
 	@Override
 	public HttpTunnelServerChannel newChannel(ChannelPipeline pipeline) {
-		return new HttpTunnelServerChannel(this, pipeline, new HttpTunnelServerChannelSink(), factory, realConnections);
+		return new HttpTunnelServerChannel(this, pipeline, new HttpTunnelServerChannelSink(), factory, realConnections, metrics);
 	}
 
 	@Override
 	public void releaseExternalResources() {
+		metrics.release();
 		factory.releaseExternalResources();
 	}
 }
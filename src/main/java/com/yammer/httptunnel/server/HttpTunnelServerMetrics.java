@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.server;
+
+import com.yammer.httptunnel.HttpTunnelMetrics;
+import com.yammer.httptunnel.util.StripedCounter;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.util.RatioGauge;
+
+/**
+ * Metrics covering the server's request path, shared by every tunnel accepted
+ * by a server channel: the latency of each tunnel endpoint, how long poll
+ * requests wait for data, how many polls are answered with only a ping, bytes
+ * queued versus delivered, messages which expired before they were sent, how
+ * often traffic shaping holds back polls and sends, and the tunnel lifecycle.
+ * They are registered through the factory's {@link HttpTunnelMetrics}, so are
+ * removed along with its other metrics.
+ */
+class HttpTunnelServerMetrics {
+
+	final Timer openRequests;
+	final Timer sendRequests;
+	final Timer pollRequests;
+	final Timer closeRequests;
+
+	final Meter invalidRequests;
+	final Meter unknownTunnelRequests;
+	final Meter rejectedRequests;
+
+	final Timer pollWait;
+	final Meter polls;
+	final Meter emptyPolls;
+	final Histogram responseSize;
+
+	final Meter throttledPolls;
+	final Meter throttledSends;
+
+	final StripedCounter bytesQueued;
+	final StripedCounter bytesDelivered;
+	final StripedCounter expiredMessages;
+
+	final Meter tunnelsOpened;
+	final Meter tunnelsClosed;
+	final Meter tunnelsTimedOut;
+
+	HttpTunnelServerMetrics(HttpTunnelMetrics metrics) {
+		openRequests = metrics.newTimer(HttpTunnelAcceptedChannelHandler.class, "openRequests");
+		sendRequests = metrics.newTimer(HttpTunnelAcceptedChannelHandler.class, "sendRequests");
+		pollRequests = metrics.newTimer(HttpTunnelAcceptedChannelHandler.class, "pollRequests");
+		closeRequests = metrics.newTimer(HttpTunnelAcceptedChannelHandler.class, "closeRequests");
+
+		invalidRequests = metrics.newMeter(HttpTunnelAcceptedChannelHandler.class, "invalidRequests", "requests");
+		unknownTunnelRequests = metrics.newMeter(HttpTunnelAcceptedChannelHandler.class, "unknownTunnelRequests", "requests");
+		rejectedRequests = metrics.newMeter(HttpTunnelAcceptedChannelHandler.class, "rejectedRequests", "requests");
+
+		pollWait = metrics.newTimer(HttpTunnelAcceptedChannel.class, "pollWait");
+		polls = metrics.newMeter(HttpTunnelAcceptedChannel.class, "polls", "polls");
+		emptyPolls = metrics.newMeter(HttpTunnelAcceptedChannel.class, "emptyPolls", "polls");
+		responseSize = metrics.newHistogram(HttpTunnelAcceptedChannel.class, "responseSize");
+
+		throttledPolls = metrics.newMeter(HttpTunnelAcceptedChannel.class, "throttledPolls", "polls");
+		throttledSends = metrics.newMeter(HttpTunnelAcceptedChannel.class, "throttledSends", "requests");
+
+		metrics.newGauge(HttpTunnelAcceptedChannel.class, "emptyPollRatio", new RatioGauge() {
+			@Override
+			protected double getNumerator() {
+				return emptyPolls.oneMinuteRate();
+			}
+
+			@Override
+			protected double getDenominator() {
+				return polls.oneMinuteRate();
+			}
+		});
+
+		bytesQueued = metrics.getAggregateCounter("bytesQueued");
+		bytesDelivered = metrics.getAggregateCounter("bytesDelivered");
+		expiredMessages = metrics.getAggregateCounter("expiredMessages");
+
+		tunnelsOpened = metrics.newMeter(HttpTunnelAcceptedChannel.class, "opened", "tunnels");
+		tunnelsClosed = metrics.newMeter(HttpTunnelAcceptedChannel.class, "closed", "tunnels");
+		tunnelsTimedOut = metrics.newMeter(HttpTunnelAcceptedChannel.class, "timedOut", "tunnels");
+	}
+}
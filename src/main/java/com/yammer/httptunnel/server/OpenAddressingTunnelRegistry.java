@@ -0,0 +1,250 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.server;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.yammer.httptunnel.util.TunnelId;
+
+/**
+ * A {@link TunnelRegistry} backed by a linear probing hash table keyed on the
+ * random (least significant) half of the tunnel ID, held as a primitive long.
+ * Lookups are lock free and never allocate; a candidate found by key is
+ * confirmed against the full ID of the tunnel itself, so a lookup racing with
+ * a slot being reused can never return the wrong tunnel. Tunnels are opened
+ * and closed far less often than they are looked up, so modifications are
+ * serialised and the table is rebuilt once live entries and removal markers
+ * fill half of it.
+ */
+class OpenAddressingTunnelRegistry implements TunnelRegistry {
+
+	private static final int MINIMUM_CAPACITY = 64;
+
+	private static final Object REMOVED = new Object();
+
+	private static int hash(long key) {
+		// Finalisation step of MurmurHash3, in case a custom generator does
+		// not produce uniformly distributed IDs
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+
+		return (int) key;
+	}
+
+	private static int capacityFor(int size) {
+		int capacity = MINIMUM_CAPACITY;
+		while (capacity < size * 4)
+			capacity <<= 1;
+
+		return capacity;
+	}
+
+	private volatile Table table;
+	private volatile int size;
+	private int used;
+
+	public OpenAddressingTunnelRegistry() {
+		table = new Table(MINIMUM_CAPACITY);
+		size = 0;
+		used = 0;
+	}
+
+	@Override
+	public HttpTunnelAcceptedChannel get(long mostSignificantBits, long leastSignificantBits) {
+		final Table table = this.table;
+
+		int index = OpenAddressingTunnelRegistry.hash(leastSignificantBits) & table.mask;
+		for (int probes = 0; probes <= table.mask; probes++) {
+			final Object value = table.values.get(index);
+			if (value == null)
+				return null;
+
+			if (value != REMOVED && table.keys[index] == leastSignificantBits) {
+				final HttpTunnelAcceptedChannel tunnel = (HttpTunnelAcceptedChannel) value;
+				if (tunnel.getTunnelId().matches(mostSignificantBits, leastSignificantBits))
+					return tunnel;
+			}
+
+			index = (index + 1) & table.mask;
+		}
+
+		return null;
+	}
+
+	@Override
+	public synchronized HttpTunnelAcceptedChannel put(HttpTunnelAcceptedChannel tunnel) {
+		final TunnelId tunnelId = tunnel.getTunnelId();
+		final long key = tunnelId.getLeastSignificantBits();
+		final Table table = this.table;
+
+		int free = -1;
+		int index = OpenAddressingTunnelRegistry.hash(key) & table.mask;
+
+		while (true) {
+			final Object value = table.values.get(index);
+			if (value == null)
+				break;
+
+			if (value == REMOVED) {
+				if (free < 0)
+					free = index;
+			}
+			else if (table.keys[index] == key && ((HttpTunnelAcceptedChannel) value).getTunnelId().equals(tunnelId)) {
+				table.values.set(index, tunnel);
+				return (HttpTunnelAcceptedChannel) value;
+			}
+
+			index = (index + 1) & table.mask;
+		}
+
+		if (free < 0) {
+			free = index;
+			used++;
+		}
+
+		// The key must be written before the value is published
+		table.keys[free] = key;
+		table.values.set(free, tunnel);
+		size++;
+
+		if (used * 2 > table.keys.length)
+			this.rebuild();
+
+		return null;
+	}
+
+	@Override
+	public synchronized HttpTunnelAcceptedChannel remove(TunnelId tunnelId) {
+		final long key = tunnelId.getLeastSignificantBits();
+		final Table table = this.table;
+
+		int index = OpenAddressingTunnelRegistry.hash(key) & table.mask;
+		while (true) {
+			final Object value = table.values.get(index);
+			if (value == null)
+				return null;
+
+			if (value != REMOVED && table.keys[index] == key && ((HttpTunnelAcceptedChannel) value).getTunnelId().equals(tunnelId)) {
+				// Leave the key in place so the probe sequence is unbroken
+				table.values.set(index, REMOVED);
+				size--;
+
+				return (HttpTunnelAcceptedChannel) value;
+			}
+
+			index = (index + 1) & table.mask;
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Iterator<HttpTunnelAcceptedChannel> iterator() {
+		return new TableIterator(table);
+	}
+
+	private void rebuild() {
+		final Table table = this.table;
+		final Table rebuilt = new Table(OpenAddressingTunnelRegistry.capacityFor(size));
+
+		for (int i = 0; i < table.keys.length; i++) {
+			final Object value = table.values.get(i);
+			if (value == null || value == REMOVED)
+				continue;
+
+			int index = OpenAddressingTunnelRegistry.hash(table.keys[i]) & rebuilt.mask;
+			while (rebuilt.values.get(index) != null)
+				index = (index + 1) & rebuilt.mask;
+
+			rebuilt.keys[index] = table.keys[i];
+			rebuilt.values.set(index, value);
+		}
+
+		used = size;
+		this.table = rebuilt;
+	}
+
+	/**
+	 * Walks the slots of the table which was current when iteration started,
+	 * so a concurrent rebuild can't cause tunnels to be skipped or repeated.
+	 */
+	private static final class TableIterator implements Iterator<HttpTunnelAcceptedChannel> {
+
+		private final Table table;
+		private int index;
+		private HttpTunnelAcceptedChannel next;
+
+		private TableIterator(Table table) {
+			this.table = table;
+
+			index = 0;
+			next = this.advance();
+		}
+
+		private HttpTunnelAcceptedChannel advance() {
+			while (index < table.keys.length) {
+				final Object value = table.values.get(index++);
+				if (value != null && value != REMOVED)
+					return (HttpTunnelAcceptedChannel) value;
+			}
+
+			return null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public HttpTunnelAcceptedChannel next() {
+			if (next == null)
+				throw new NoSuchElementException();
+
+			final HttpTunnelAcceptedChannel tunnel = next;
+			next = this.advance();
+
+			return tunnel;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static final class Table {
+
+		private final long[] keys;
+		private final AtomicReferenceArray<Object> values;
+		private final int mask;
+
+		private Table(int capacity) {
+			keys = new long[capacity];
+			values = new AtomicReferenceArray<Object>(capacity);
+			mask = capacity - 1;
+		}
+	}
+}
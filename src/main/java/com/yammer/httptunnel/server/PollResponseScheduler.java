@@ -0,0 +1,175 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.server;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import com.yammer.httptunnel.util.QueuedResponse;
+
+/**
+ * Shares the bandwidth used by poll responses between the tunnels accepted by
+ * a server channel, using deficit round robin. Rather than answering a poll
+ * with a full response as soon as data is queued, a tunnel with both data and
+ * a waiting poll joins a queue of active tunnels which are served in turn.
+ * Each round a tunnel's deficit is topped up by the quantum multiplied by its
+ * scheduling weight, and its response is limited to its remaining deficit, so
+ * tunnels with a large backlog cannot starve the others. The total size of
+ * responses being written at once is bounded by a window, further responses
+ * being sent as earlier ones complete.
+ *
+ * A single scheduler may be shared by several server channels.
+ */
+public class PollResponseScheduler {
+
+	public static final int DEFAULT_QUANTUM = 64 * 1024; // 64kb
+	public static final int DEFAULT_WINDOW = 4 * 1024 * 1024; // 4mb
+
+	private final int quantum;
+	private final int window;
+
+	// Guarded by this, as is the deficit of each tunnel
+	private final Deque<HttpTunnelAcceptedChannel> active;
+	private long bytesInFlight;
+
+	/**
+	 * Constructs a new scheduler with the default quantum and window.
+	 */
+	public PollResponseScheduler() {
+		this(DEFAULT_QUANTUM, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Constructs a new scheduler.
+	 *
+	 * @param quantum
+	 *            the number of bytes a tunnel of weight 1 may send each round.
+	 * @param window
+	 *            the maximum number of bytes of responses being written at
+	 *            once, across all tunnels.
+	 */
+	public PollResponseScheduler(int quantum, int window) {
+		if (quantum <= 0)
+			throw new IllegalArgumentException("Quantum must be greater than 0");
+
+		if (window < quantum)
+			throw new IllegalArgumentException("Window must not be less than the quantum");
+
+		this.quantum = quantum;
+		this.window = window;
+
+		active = new ArrayDeque<HttpTunnelAcceptedChannel>();
+		bytesInFlight = 0;
+	}
+
+	public int getQuantum() {
+		return quantum;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * @return the number of tunnels waiting for a turn.
+	 */
+	public synchronized int getActiveTunnels() {
+		return active.size();
+	}
+
+	/**
+	 * @return the number of bytes of responses currently being written.
+	 */
+	public synchronized long getBytesInFlight() {
+		return bytesInFlight;
+	}
+
+	/**
+	 * Adds a tunnel with queued data and a waiting poll to the end of the
+	 * round. The tunnel must not already be waiting for a turn.
+	 */
+	void activate(HttpTunnelAcceptedChannel tunnel) {
+		synchronized (this) {
+			active.add(tunnel);
+		}
+
+		this.schedule();
+	}
+
+	private void schedule() {
+		for (;;) {
+			final HttpTunnelAcceptedChannel tunnel;
+			final int limit;
+
+			synchronized (this) {
+				if (bytesInFlight >= window)
+					return;
+
+				tunnel = active.poll();
+				if (tunnel == null)
+					return;
+
+				// A tunnel which spent its deficit on its last turn starts a
+				// new round
+				if (tunnel.schedulerDeficit <= 0)
+					tunnel.schedulerDeficit += (long) quantum * tunnel.getConfig().getSchedulingWeight();
+
+				limit = (int) Math.min(tunnel.schedulerDeficit, window - bytesInFlight);
+				bytesInFlight += limit;
+			}
+
+			final QueuedResponse response = tunnel.sendScheduledResponse(limit);
+			final int sent = response == null ? 0 : response.getLength();
+
+			synchronized (this) {
+				bytesInFlight -= limit - sent;
+				tunnel.schedulerDeficit -= sent;
+
+				// An idle tunnel doesn't keep its credit for later
+				if (!tunnel.hasQueuedData())
+					tunnel.schedulerDeficit = 0;
+			}
+
+			if (response != null)
+				response.getFuture().addListener(new ResponseListener(sent));
+		}
+	}
+
+	/**
+	 * Releases the window taken by a response once it has been written, and
+	 * gives the next tunnel its turn.
+	 */
+	private class ResponseListener implements ChannelFutureListener {
+		private final int size;
+
+		ResponseListener(int size) {
+			this.size = size;
+		}
+
+		@Override
+		public void operationComplete(ChannelFuture future) throws Exception {
+			synchronized (PollResponseScheduler.this) {
+				bytesInFlight -= size;
+			}
+
+			PollResponseScheduler.this.schedule();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.server;
+
+import com.yammer.httptunnel.util.HttpTunnelRequest;
+
+/**
+ * Determines which tenant a tunnel belongs to from the request which opened
+ * it, so that a {@link TrafficShaper} can limit the combined traffic of all
+ * tunnels belonging to a tenant.
+ */
+public interface TenantClassifier {
+
+	/**
+	 * Classifies tunnels by the user agent they were opened with.
+	 */
+	public static final TenantClassifier USER_AGENT = new TenantClassifier() {
+		@Override
+		public String getTenant(HttpTunnelRequest openRequest) {
+			final String userAgent = openRequest.getUserAgent();
+			return userAgent == null ? "" : userAgent;
+		}
+	};
+
+	/**
+	 * @return the key of the tenant the tunnel opened by the given request
+	 *         belongs to, which must not be null. This method must be thread
+	 *         safe.
+	 */
+	public String getTenant(HttpTunnelRequest openRequest);
+}
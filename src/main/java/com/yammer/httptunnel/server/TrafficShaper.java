@@ -0,0 +1,253 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.httptunnel.util.HttpTunnelRequest;
+import com.yammer.httptunnel.util.TokenBucket;
+
+/**
+ * Limits the rate of bytes sent upstream (from the client) and downstream
+ * (to the client) through the tunnels accepted by a server channel, both for
+ * each tunnel and for all the tunnels belonging to a tenant, as determined
+ * by a {@link TenantClassifier}. Data is never dropped: a tunnel over its
+ * downstream limit delays answering polls, and a tunnel over its upstream
+ * limit delays acknowledging send requests, so that the client holds back
+ * further data. The data carried by a fast open request, and its response,
+ * count towards the limits in the same way.
+ *
+ * Rates are in bytes per second, and 0 (the default) means unlimited. Each
+ * limit allows bursts of one second's worth of bytes. Changes to the rates
+ * apply to tunnels opened afterwards, and to tenants once all of their
+ * current tunnels have closed.
+ */
+public class TrafficShaper {
+
+	public static final long UNLIMITED = 0;
+
+	private volatile TenantClassifier tenantClassifier;
+	private volatile long tunnelUpstreamRate;
+	private volatile long tunnelDownstreamRate;
+	private volatile long tenantUpstreamRate;
+	private volatile long tenantDownstreamRate;
+	private final Map<String, long[]> tenantRates;
+
+	// Guarded by this
+	private final Map<String, Tenant> tenants;
+
+	public TrafficShaper() {
+		tenantClassifier = TenantClassifier.USER_AGENT;
+		tunnelUpstreamRate = UNLIMITED;
+		tunnelDownstreamRate = UNLIMITED;
+		tenantUpstreamRate = UNLIMITED;
+		tenantDownstreamRate = UNLIMITED;
+		tenantRates = new ConcurrentHashMap<String, long[]>();
+
+		tenants = new HashMap<String, Tenant>();
+	}
+
+	public TenantClassifier getTenantClassifier() {
+		return tenantClassifier;
+	}
+
+	/**
+	 * Sets the classifier which determines the tenant of each tunnel. By
+	 * default tunnels are classified by their user agent.
+	 */
+	public void setTenantClassifier(TenantClassifier tenantClassifier) {
+		if (tenantClassifier == null)
+			throw new NullPointerException("tenantClassifier");
+
+		this.tenantClassifier = tenantClassifier;
+	}
+
+	/**
+	 * Sets the rates each tunnel is limited to.
+	 */
+	public void setTunnelRates(long upstreamRate, long downstreamRate) {
+		TrafficShaper.validateRates(upstreamRate, downstreamRate);
+
+		tunnelUpstreamRate = upstreamRate;
+		tunnelDownstreamRate = downstreamRate;
+	}
+
+	/**
+	 * Sets the rates the tunnels of each tenant are limited to in total,
+	 * unless the tenant has its own rates.
+	 */
+	public void setTenantRates(long upstreamRate, long downstreamRate) {
+		TrafficShaper.validateRates(upstreamRate, downstreamRate);
+
+		tenantUpstreamRate = upstreamRate;
+		tenantDownstreamRate = downstreamRate;
+	}
+
+	/**
+	 * Sets the rates the tunnels of the given tenant are limited to in total,
+	 * in place of the rates shared by all tenants.
+	 */
+	public void setTenantRates(String tenant, long upstreamRate, long downstreamRate) {
+		TrafficShaper.validateRates(upstreamRate, downstreamRate);
+
+		tenantRates.put(tenant, new long[] { upstreamRate, downstreamRate });
+	}
+
+	private static void validateRates(long upstreamRate, long downstreamRate) {
+		if (upstreamRate < 0 || downstreamRate < 0)
+			throw new IllegalArgumentException("Rates must not be negative");
+	}
+
+	private static TokenBucket newBucket(long rate) {
+		return rate == UNLIMITED ? null : new TokenBucket(rate, rate);
+	}
+
+	/**
+	 * @return the number of tenants with open tunnels.
+	 */
+	public synchronized int getTenantCount() {
+		return tenants.size();
+	}
+
+	/**
+	 * Starts shaping the traffic of a tunnel opened by the given request.
+	 */
+	TunnelShaping newTunnel(HttpTunnelRequest openRequest) {
+		final String key = tenantClassifier.getTenant(openRequest);
+
+		final Tenant tenant;
+
+		synchronized (this) {
+			Tenant existing = tenants.get(key);
+			if (existing == null) {
+				final long[] rates = tenantRates.get(key);
+				if (rates == null)
+					existing = new Tenant(key, tenantUpstreamRate, tenantDownstreamRate);
+				else
+					existing = new Tenant(key, rates[0], rates[1]);
+
+				tenants.put(key, existing);
+			}
+
+			existing.tunnels++;
+			tenant = existing;
+		}
+
+		return new TunnelShaping(tenant, tunnelUpstreamRate, tunnelDownstreamRate);
+	}
+
+	private synchronized void release(Tenant tenant) {
+		if (--tenant.tunnels == 0)
+			tenants.remove(tenant.key);
+	}
+
+	private static long getDelay(TokenBucket first, TokenBucket second) {
+		final long firstDelay = first == null ? 0 : first.getDelay(TimeUnit.NANOSECONDS);
+		final long secondDelay = second == null ? 0 : second.getDelay(TimeUnit.NANOSECONDS);
+
+		return Math.max(firstDelay, secondDelay);
+	}
+
+	private static void consume(TokenBucket first, TokenBucket second, long bytes) {
+		if (first != null)
+			first.consume(bytes);
+
+		if (second != null)
+			second.consume(bytes);
+	}
+
+	private static class Tenant {
+		private final String key;
+		private final TokenBucket upstream;
+		private final TokenBucket downstream;
+		private int tunnels;
+
+		Tenant(String key, long upstreamRate, long downstreamRate) {
+			this.key = key;
+
+			upstream = TrafficShaper.newBucket(upstreamRate);
+			downstream = TrafficShaper.newBucket(downstreamRate);
+			tunnels = 0;
+		}
+	}
+
+	/**
+	 * The limits applying to a single tunnel, including those of its tenant.
+	 */
+	class TunnelShaping {
+		private final Tenant tenant;
+		private final TokenBucket upstream;
+		private final TokenBucket downstream;
+
+		TunnelShaping(Tenant tenant, long upstreamRate, long downstreamRate) {
+			this.tenant = tenant;
+
+			upstream = TrafficShaper.newBucket(upstreamRate);
+			downstream = TrafficShaper.newBucket(downstreamRate);
+		}
+
+		String getTenant() {
+			return tenant.key;
+		}
+
+		/**
+		 * @return the largest response which should be sent at once, so that
+		 *         one response doesn't run up a debt of more than a second.
+		 */
+		int getMaxResponseSize() {
+			long size = Integer.MAX_VALUE;
+
+			if (downstream != null)
+				size = Math.min(size, downstream.getBurst());
+
+			if (tenant.downstream != null)
+				size = Math.min(size, tenant.downstream.getBurst());
+
+			return (int) size;
+		}
+
+		/**
+		 * @return how long in nanoseconds until a poll may be answered.
+		 */
+		long getDownstreamDelay() {
+			return TrafficShaper.getDelay(downstream, tenant.downstream);
+		}
+
+		void downstreamSent(int bytes) {
+			TrafficShaper.consume(downstream, tenant.downstream, bytes);
+		}
+
+		/**
+		 * @return how long in nanoseconds until the send request carrying the
+		 *         given number of bytes should be acknowledged.
+		 */
+		long upstreamReceived(int bytes) {
+			TrafficShaper.consume(upstream, tenant.upstream, bytes);
+			return TrafficShaper.getDelay(upstream, tenant.upstream);
+		}
+
+		/**
+		 * Stops shaping the tunnel, once it has closed.
+		 */
+		void close() {
+			TrafficShaper.this.release(tenant);
+		}
+	}
+}
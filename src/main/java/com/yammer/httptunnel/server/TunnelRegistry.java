@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.server;
+
+import com.yammer.httptunnel.util.TunnelId;
+
+/**
+ * Holds the tunnels currently open on a server channel, keyed by their tunnel
+ * ID. Implementations must be thread safe, and lookups (which happen on every
+ * request) should be lock free. Iteration should also be lock free, and is
+ * weakly consistent: tunnels registered or removed during iteration may or may
+ * not be seen.
+ */
+interface TunnelRegistry extends Iterable<HttpTunnelAcceptedChannel> {
+
+	/**
+	 * Registers the given tunnel under its tunnel ID.
+	 *
+	 * @return the tunnel previously registered under the same ID, or null.
+	 */
+	public HttpTunnelAcceptedChannel put(HttpTunnelAcceptedChannel tunnel);
+
+	/**
+	 * @return the tunnel whose ID consists of the given bits, or null if there
+	 *         is no such tunnel.
+	 */
+	public HttpTunnelAcceptedChannel get(long mostSignificantBits, long leastSignificantBits);
+
+	/**
+	 * Removes the tunnel with the given ID.
+	 *
+	 * @return the removed tunnel, or null if there was no such tunnel.
+	 */
+	public HttpTunnelAcceptedChannel remove(TunnelId tunnelId);
+
+	/**
+	 * @return the number of registered tunnels.
+	 */
+	public int size();
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.trace;
+
+/**
+ * The state of a single traced message at one end of the tunnel, recording
+ * when its current stage started.
+ */
+public class MessageTrace {
+
+	/**
+	 * The header carrying the trace ID, and the wall clock time at which the
+	 * message was sent, from one end of the tunnel to the other.
+	 */
+	public static final String HEADER = "X-HttpTunnel-Trace";
+
+	/**
+	 * Decides whether to trace a newly written message.
+	 *
+	 * @param tracer
+	 *            the configured tracer, which may be null.
+	 * @return the new trace, or null if the message is not to be traced.
+	 */
+	public static MessageTrace start(MessageTracer tracer) {
+		if (tracer == null)
+			return null;
+
+		final String traceId = tracer.newTrace();
+		if (traceId == null)
+			return null;
+
+		return new MessageTrace(tracer, traceId);
+	}
+
+	/**
+	 * Continues the trace of a message received from the other end of the
+	 * tunnel, recording its transit time.
+	 *
+	 * @param tracer
+	 *            the configured tracer, which may be null.
+	 * @param header
+	 *            the value of the trace header, which may be null.
+	 * @return the continued trace, or null if the message is not being traced
+	 *         or the header is malformed.
+	 */
+	public static MessageTrace resume(MessageTracer tracer, String header) {
+		if (tracer == null || header == null)
+			return null;
+
+		final int separator = header.lastIndexOf(';');
+		if (separator <= 0)
+			return null;
+
+		final long sentTime;
+		try {
+			sentTime = Long.parseLong(header.substring(separator + 1));
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+
+		final MessageTrace trace = new MessageTrace(tracer, header.substring(0, separator));
+
+		// Clocks which are out of step can give a negative transit time
+		final long transit = Math.max(0, System.currentTimeMillis() - sentTime);
+		tracer.stageCompleted(trace.traceId, TraceStage.TRANSIT, transit * 1000000L);
+
+		return trace;
+	}
+
+	private final MessageTracer tracer;
+	private final String traceId;
+
+	private volatile long stageStartTime;
+
+	private MessageTrace(MessageTracer tracer, String traceId) {
+		this.tracer = tracer;
+		this.traceId = traceId;
+
+		stageStartTime = System.nanoTime();
+	}
+
+	public String getTraceId() {
+		return traceId;
+	}
+
+	/**
+	 * Records the end of the given stage, and the start of the next.
+	 */
+	public void stageCompleted(TraceStage stage) {
+		final long now = System.nanoTime();
+
+		tracer.stageCompleted(traceId, stage, now - stageStartTime);
+		stageStartTime = now;
+	}
+
+	/**
+	 * @return the value of the trace header to send with the message.
+	 */
+	public String toHeader() {
+		return traceId + ";" + System.currentTimeMillis();
+	}
+}
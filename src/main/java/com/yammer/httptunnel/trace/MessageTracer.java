@@ -0,0 +1,47 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.trace;
+
+/**
+ * Receives the timings of sampled messages as they pass through a tunnel. A
+ * tracer is opt in, configured on the client channel or server channel; when
+ * none is configured nothing is traced, and the only cost is a null check per
+ * message.
+ * <p>
+ * The end writing a message decides whether to trace it, and the trace ID is
+ * carried to the other end in a header, where it is traced regardless of
+ * sampling as long as that end has a tracer configured.
+ */
+public interface MessageTracer {
+	/**
+	 * Called as each message is written, to decide whether it should be
+	 * traced. This is called for every message, so must be cheap.
+	 *
+	 * @return the ID of the new trace, or null if the message should not be
+	 *         traced. IDs must be legal in an HTTP header value, and must not
+	 *         contain ';'.
+	 */
+	public String newTrace();
+
+	/**
+	 * Called as a traced message completes a stage.
+	 *
+	 * @param duration
+	 *            the time spent in the stage, in nanoseconds.
+	 */
+	public void stageCompleted(String traceId, TraceStage stage, long duration);
+}
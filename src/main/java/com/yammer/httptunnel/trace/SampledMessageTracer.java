@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.trace;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * A {@link MessageTracer} which traces one in every given number of messages,
+ * and reports the time spent in each stage as a timer.
+ */
+public class SampledMessageTracer implements MessageTracer {
+
+	private final int sampleInterval;
+	private final AtomicLong messageCount;
+	private final Random random;
+	private final Map<TraceStage, Timer> timers;
+
+	/**
+	 * @param sampleInterval
+	 *            how many messages to write for each one traced.
+	 */
+	public SampledMessageTracer(MetricsRegistry registry, int sampleInterval) {
+		if (sampleInterval < 1)
+			throw new IllegalArgumentException("Sample interval must be at least 1");
+
+		this.sampleInterval = sampleInterval;
+
+		messageCount = new AtomicLong(0);
+		random = new Random();
+
+		timers = new EnumMap<TraceStage, Timer>(TraceStage.class);
+		for (TraceStage stage : TraceStage.values())
+			timers.put(stage, registry.newTimer(SampledMessageTracer.class, stage.name().toLowerCase(), TimeUnit.MILLISECONDS, TimeUnit.SECONDS));
+	}
+
+	@Override
+	public String newTrace() {
+		if (messageCount.incrementAndGet() % sampleInterval != 0)
+			return null;
+
+		return Long.toHexString(random.nextLong());
+	}
+
+	@Override
+	public void stageCompleted(String traceId, TraceStage stage, long duration) {
+		timers.get(stage).update(duration, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.trace;
+
+/**
+ * The stages a traced message passes through. Each stage is timed from the
+ * end of the previous one, using the clock of the end the stage takes place
+ * on.
+ */
+public enum TraceStage {
+	/**
+	 * From the application writing the message until it is taken from the
+	 * write queue: on the client, waiting for the previous send request to
+	 * complete, and on the server waiting for a poll request to arrive. Large
+	 * messages are timed until their last fragment is taken.
+	 */
+	QUEUED,
+
+	/**
+	 * From being taken from the write queue until written to the underlying
+	 * connection.
+	 */
+	WRITTEN,
+
+	/**
+	 * From being written until the server acknowledges the send request. Only
+	 * measured by the client.
+	 */
+	ACKNOWLEDGED,
+
+	/**
+	 * From the sending end taking the message from its queue until the
+	 * receiving end reads it, including any proxies in between. This compares
+	 * the wall clocks of both ends, so is only meaningful if they are
+	 * synchronised.
+	 */
+	TRANSIT,
+
+	/**
+	 * From being read by the receiving end until it is delivered to the
+	 * application, waiting in the incoming buffer.
+	 */
+	BUFFERED;
+}
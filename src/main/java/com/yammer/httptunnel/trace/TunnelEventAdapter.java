@@ -0,0 +1,58 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.trace;
+
+import org.jboss.netty.channel.Channel;
+
+/**
+ * A {@link TunnelEventListener} which ignores every event, to be extended by
+ * listeners which are only interested in some of them.
+ */
+public class TunnelEventAdapter implements TunnelEventListener {
+
+	@Override
+	public void tunnelOpened(Channel tunnel) {
+	}
+
+	@Override
+	public void tunnelClosed(Channel tunnel, boolean timedOut) {
+	}
+
+	@Override
+	public void pollParked(Channel tunnel) {
+	}
+
+	@Override
+	public void pollReleased(Channel tunnel, long waitTime, boolean data) {
+	}
+
+	@Override
+	public void sendCompleted(Channel tunnel, long roundTripTime) {
+	}
+
+	@Override
+	public void saturationChanged(Channel tunnel, boolean saturated) {
+	}
+
+	@Override
+	public void reconnecting(Channel tunnel, boolean sendChannel) {
+	}
+
+	@Override
+	public void messageDropped(Channel tunnel, int size) {
+	}
+}
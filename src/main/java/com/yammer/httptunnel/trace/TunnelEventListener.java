@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.trace;
+
+import org.jboss.netty.channel.Channel;
+
+/**
+ * Receives notable events in the life of a tunnel, as an alternative to debug
+ * logging which is cheap enough to leave enabled in production: events are
+ * only raised if a listener is configured, and carry primitive values rather
+ * than formatted messages. A listener can forward them to a profiler or
+ * event recorder, such as a JDK Flight Recorder event on JVMs which support
+ * it.
+ * <p>
+ * Events are raised on I/O and timer threads, so listeners must be thread
+ * safe and must not block. {@link TunnelEventAdapter} provides empty
+ * implementations of every method.
+ */
+public interface TunnelEventListener {
+	/**
+	 * A tunnel has been opened.
+	 */
+	public void tunnelOpened(Channel tunnel);
+
+	/**
+	 * A tunnel has been closed.
+	 *
+	 * @param timedOut
+	 *            true if the server closed the tunnel because the client
+	 *            stopped polling.
+	 */
+	public void tunnelClosed(Channel tunnel, boolean timedOut);
+
+	/**
+	 * A poll request found no data waiting, so is being held until data is
+	 * written or the ping delay passes. Only raised by the server.
+	 */
+	public void pollParked(Channel tunnel);
+
+	/**
+	 * A poll request has been answered. Only raised by the server.
+	 *
+	 * @param waitTime
+	 *            how long the poll request was held, in nanoseconds.
+	 * @param data
+	 *            true if it was answered with data, false if with a ping.
+	 */
+	public void pollReleased(Channel tunnel, long waitTime, boolean data);
+
+	/**
+	 * A send request has been acknowledged by the server. Only raised by the
+	 * client.
+	 *
+	 * @param roundTripTime
+	 *            the time from sending the request to receiving the response,
+	 *            in nanoseconds.
+	 */
+	public void sendCompleted(Channel tunnel, long roundTripTime);
+
+	/**
+	 * The amount of data waiting to be sent has crossed one of the write
+	 * buffer water marks.
+	 *
+	 * @param saturated
+	 *            true if the high water mark was exceeded, false if the queue
+	 *            has fallen below the low water mark.
+	 */
+	public void saturationChanged(Channel tunnel, boolean saturated);
+
+	/**
+	 * An underlying connection failed and is being reconnected. Only raised
+	 * by the client.
+	 *
+	 * @param sendChannel
+	 *            true if the send connection failed, false if the poll
+	 *            connection.
+	 */
+	public void reconnecting(Channel tunnel, boolean sendChannel);
+
+	/**
+	 * A received message was dropped because the incoming buffer was full.
+	 */
+	public void messageDropped(Channel tunnel, int size);
+}
@@ -16,12 +16,16 @@
 
 package com.yammer.httptunnel.util;
 
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
 /**
- * Default implementation of TunnelIdGenerator, which uses a
- * {@link java.security.SecureRandom SecureRandom} generator to produce 32-bit
- * tunnel identifiers.
+ * Default implementation of TunnelIdGenerator, which produces 128-bit tunnel
+ * identifiers. The most significant 64 bits hold a 16-bit node ID followed by
+ * the 48-bit creation time in milliseconds, and the least significant 64 bits
+ * are drawn from a {@link java.security.SecureRandom SecureRandom} generator.
+ * Each thread uses its own generator, seeded from a shared source, so
+ * generating an ID never contends on a lock.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Iain McGinniss (iain.mcginniss@onedrum.com)
@@ -30,7 +34,14 @@ import java.security.SecureRandom;
  */
 public class DefaultTunnelIdGenerator implements TunnelIdGenerator {
 
-	private final SecureRandom generator;
+	private static final String ALGORITHM = "SHA1PRNG";
+	private static final int SEED_SIZE = 32;
+
+	private static final long TIMESTAMP_MASK = (1L << 48) - 1;
+
+	private final SecureRandom seedSource;
+	private final long nodeBits;
+	private final ThreadLocal<SecureRandom> generator;
 
 	/**
 	 * Constructs a new instance using a new {@link SecureRandom} instance.
@@ -40,17 +51,52 @@ public class DefaultTunnelIdGenerator implements TunnelIdGenerator {
 	}
 
 	/**
-	 * Constructs a new instance using the provided {@link SecureRandom} instance.
+	 * Constructs a new instance using the provided {@link SecureRandom}
+	 * instance to choose a node ID and seed the per thread generators.
+	 */
+	public DefaultTunnelIdGenerator(SecureRandom seedSource) {
+		this(seedSource.nextInt(), seedSource);
+	}
+
+	/**
+	 * Constructs a new instance using the given node ID, of which only the
+	 * lower 16 bits are used, and the provided {@link SecureRandom} instance to
+	 * seed the per thread generators.
 	 */
-	public DefaultTunnelIdGenerator(SecureRandom generator) {
-		this.generator = generator;
+	public DefaultTunnelIdGenerator(int nodeId, SecureRandom seedSource) {
+		this.seedSource = seedSource;
+
+		nodeBits = (long) (nodeId & 0xFFFF) << 48;
+		generator = new ThreadLocal<SecureRandom>() {
+			@Override
+			protected SecureRandom initialValue() {
+				return DefaultTunnelIdGenerator.this.createGenerator();
+			}
+		};
+	}
+
+	private SecureRandom createGenerator() {
+		final byte[] seed = new byte[SEED_SIZE];
+
+		// The seed source is only touched once per thread
+		synchronized (seedSource) {
+			seedSource.nextBytes(seed);
+		}
+
+		try {
+			final SecureRandom random = SecureRandom.getInstance(ALGORITHM);
+			random.setSeed(seed);
+
+			return random;
+		}
+		catch (NoSuchAlgorithmException e) {
+			return new SecureRandom(seed);
+		}
 	}
 
 	@Override
-	public synchronized String generateId() {
-		// synchronized to ensure that this code is thread safe. The Sun
-		// standard implementations seem to be synchronized or lock free
-		// but are not documented as guaranteeing this
-		return Integer.toHexString(generator.nextInt());
+	public TunnelId generateId() {
+		final long timestamp = System.currentTimeMillis() & TIMESTAMP_MASK;
+		return new TunnelId(nodeBits | timestamp, generator.get().nextLong());
 	}
 }
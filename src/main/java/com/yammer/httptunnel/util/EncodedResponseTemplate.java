@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.util;
+
+import java.io.UnsupportedEncodingException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+
+/**
+ * An immutable, pre-encoded HTTP response. The response is run through the
+ * standard {@link HttpResponseEncoder} exactly once, and the resulting bytes
+ * are then reused for every subsequent write, bypassing the encoder entirely.
+ * A template may optionally contain a single slot (for example the tunnel ID
+ * cookie) which is filled in at write time without re-encoding the rest of the
+ * response.
+ */
+public class EncodedResponseTemplate {
+
+	/**
+	 * The value used to mark the position of the slot within a response, prior
+	 * to encoding.
+	 */
+	public static final String SLOT_MARKER = "__HTTP_TUNNEL_SLOT__";
+
+	private static final String HEADER_CHARSET = "ASCII";
+
+	/**
+	 * Encodes the given response into a template without a slot.
+	 */
+	public static EncodedResponseTemplate encode(HttpResponse response) {
+		final byte[] bytes = EncodedResponseTemplate.toBytes(response);
+		return new EncodedResponseTemplate(bytes, null);
+	}
+
+	/**
+	 * Encodes the given response into a template with a slot, which must be
+	 * marked within the response using {@link #SLOT_MARKER}.
+	 */
+	public static EncodedResponseTemplate encodeWithSlot(HttpResponse response) {
+		final byte[] bytes = EncodedResponseTemplate.toBytes(response);
+		final byte[] marker = EncodedResponseTemplate.toHeaderBytes(SLOT_MARKER);
+
+		final int index = EncodedResponseTemplate.indexOf(bytes, marker);
+		if (index < 0)
+			throw new IllegalArgumentException("Response does not contain a slot marker");
+
+		final byte[] prefix = new byte[index];
+		System.arraycopy(bytes, 0, prefix, 0, prefix.length);
+
+		final byte[] suffix = new byte[bytes.length - index - marker.length];
+		System.arraycopy(bytes, index + marker.length, suffix, 0, suffix.length);
+
+		return new EncodedResponseTemplate(prefix, suffix);
+	}
+
+	/**
+	 * Converts a header value into the bytes the {@link HttpResponseEncoder}
+	 * would produce for it, for use as a slot value.
+	 */
+	public static byte[] toHeaderBytes(String value) {
+		try {
+			return value.getBytes(HEADER_CHARSET);
+		}
+		catch (UnsupportedEncodingException e) {
+			// ASCII is meant to be supported on all platforms
+			throw new RuntimeException("ASCII encoding not supported!");
+		}
+	}
+
+	private static byte[] toBytes(HttpResponse response) {
+		final EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(new HttpResponseEncoder());
+
+		encoder.offer(response);
+
+		final ChannelBuffer encoded = ChannelBuffers.dynamicBuffer();
+		for (Object buffer : encoder.pollAll())
+			encoded.writeBytes((ChannelBuffer) buffer);
+
+		final byte[] bytes = new byte[encoded.readableBytes()];
+		encoded.readBytes(bytes);
+
+		return bytes;
+	}
+
+	private static int indexOf(byte[] haystack, byte[] needle) {
+		outer: for (int i = 0; i <= haystack.length - needle.length; i++) {
+			for (int j = 0; j < needle.length; j++) {
+				if (haystack[i + j] != needle[j])
+					continue outer;
+			}
+
+			return i;
+		}
+
+		return -1;
+	}
+
+	private final ChannelBuffer prefix;
+	private final ChannelBuffer suffix;
+
+	private EncodedResponseTemplate(byte[] prefix, byte[] suffix) {
+		this.prefix = ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(prefix));
+		this.suffix = suffix == null ? null : ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(suffix));
+	}
+
+	/**
+	 * @return true if this template contains a slot which must be filled.
+	 */
+	public boolean hasSlot() {
+		return suffix != null;
+	}
+
+	/**
+	 * @return a new buffer containing the encoded response. The returned buffer
+	 *         shares its content with the template, but has independent indexes
+	 *         so may be written directly to a channel.
+	 */
+	public ChannelBuffer create() {
+		if (this.hasSlot())
+			throw new IllegalStateException("Template contains a slot which must be filled");
+
+		return prefix.duplicate();
+	}
+
+	/**
+	 * @return a new buffer containing the encoded response, with the slot
+	 *         filled by the given value. The value is not copied, so must not be
+	 *         modified afterwards.
+	 */
+	public ChannelBuffer create(byte[] value) {
+		if (!this.hasSlot())
+			throw new IllegalStateException("Template does not contain a slot");
+
+		return ChannelBuffers.wrappedBuffer(prefix.duplicate(), ChannelBuffers.wrappedBuffer(value), suffix.duplicate());
+	}
+}
@@ -50,10 +50,24 @@ public class HttpTunnelMessageUtils {
 	public static final HttpVersion HTTP_VERSION = HttpVersion.HTTP_1_0;
 	public static final int MAX_BODY_SIZE = 1024 * 1024; // 1Mb
 
-	private static final String OPEN_TUNNEL_REQUEST_URI = "/http-tunnel/open";
-	private static final String CLOSE_TUNNEL_REQUEST_URI = "/http-tunnel/close";
-	private static final String CLIENT_SEND_REQUEST_URI = "/http-tunnel/send";
-	private static final String CLIENT_RECV_REQUEST_URI = "/http-tunnel/poll";
+	public static final String OPEN_TUNNEL_REQUEST_URI = "/http-tunnel/open";
+	public static final String CLOSE_TUNNEL_REQUEST_URI = "/http-tunnel/close";
+	public static final String CLIENT_SEND_REQUEST_URI = "/http-tunnel/send";
+	public static final String CLIENT_RECV_REQUEST_URI = "/http-tunnel/poll";
+
+	// Marks a poll which the client held back before sending. A keep-alive
+	// poll is answered with a ping rather than data, while a deferred poll
+	// was sent late so says nothing about the round trip time.
+	public static final String POLL_HEADER = "X-HttpTunnel-Poll";
+	public static final String POLL_KEEP_ALIVE = "keep-alive";
+	public static final String POLL_DEFERRED = "deferred";
+
+	// Pre-encoded control responses, written directly to the wire by the server
+	private static final EncodedResponseTemplate TUNNEL_OPEN_RESPONSE_TEMPLATE = EncodedResponseTemplate.encodeWithSlot(createTunnelOpenResponse(EncodedResponseTemplate.SLOT_MARKER));
+	private static final EncodedResponseTemplate TUNNEL_PING_RESPONSE_TEMPLATE = EncodedResponseTemplate.encodeWithSlot(createTunnelPingResponse(EncodedResponseTemplate.SLOT_MARKER));
+	private static final EncodedResponseTemplate TUNNEL_CLOSE_RESPONSE_TEMPLATE = EncodedResponseTemplate.encode(createTunnelCloseResponse());
+	private static final EncodedResponseTemplate SEND_DATA_RESPONSE_TEMPLATE = EncodedResponseTemplate.encode(createSendDataResponse());
+	private static final EncodedResponseTemplate RECV_DATA_RESPONSE_TEMPLATE = EncodedResponseTemplate.encodeWithSlot(createRecvDataResponseHeader(EncodedResponseTemplate.SLOT_MARKER));
 
 	public static HttpRequest createOpenTunnelRequest(SocketAddress host, String userAgent) {
 		return createOpenTunnelRequest(convertToHostString(host), userAgent);
@@ -67,10 +81,27 @@ public class HttpTunnelMessageUtils {
 		return request;
 	}
 
+	/**
+	 * Creates a fast open request, which carries the first data to be sent
+	 * through the new tunnel.
+	 */
+	public static HttpRequest createOpenTunnelRequest(String host, String userAgent, ChannelBuffer data) {
+		final HttpRequest request = createRequestTemplate(host, null, OPEN_TUNNEL_REQUEST_URI, userAgent);
+
+		request.setHeader(HttpHeaders.Names.CONTENT_LENGTH, Long.toString(data.readableBytes()));
+		request.setContent(data);
+
+		return request;
+	}
+
 	public static boolean isOpenTunnelRequest(HttpRequest request, String userAgent) {
 		return isRequestTo(request, OPEN_TUNNEL_REQUEST_URI, userAgent);
 	}
 
+	public static boolean isOpenTunnelRequest(HttpTunnelRequest request, String userAgent) {
+		return isRequestTo(request, OPEN_TUNNEL_REQUEST_URI, userAgent);
+	}
+
 	public static boolean checkHost(HttpRequest request, SocketAddress expectedHost) {
 		final String host = request.getHeader(HttpHeaders.Names.HOST);
 		return expectedHost == null ? host == null : convertToHostString(expectedHost).equals(host);
@@ -93,6 +124,10 @@ public class HttpTunnelMessageUtils {
 		return isRequestTo(request, CLIENT_SEND_REQUEST_URI, userAgent);
 	}
 
+	public static boolean isSendDataRequest(HttpTunnelRequest request, String userAgent) {
+		return isRequestTo(request, CLIENT_SEND_REQUEST_URI, userAgent);
+	}
+
 	public static HttpRequest createReceiveDataRequest(SocketAddress host, String tunnelId, String userAgent) {
 		return createReceiveDataRequest(convertToHostString(host), tunnelId, userAgent);
 	}
@@ -109,6 +144,10 @@ public class HttpTunnelMessageUtils {
 		return isRequestTo(request, CLIENT_RECV_REQUEST_URI, userAgent);
 	}
 
+	public static boolean isReceiveDataRequest(HttpTunnelRequest request, String userAgent) {
+		return isRequestTo(request, CLIENT_RECV_REQUEST_URI, userAgent);
+	}
+
 	public static HttpRequest createCloseTunnelRequest(String host, String tunnelId, String userAgent) {
 		final HttpRequest request = createRequestTemplate(host, tunnelId, CLOSE_TUNNEL_REQUEST_URI, userAgent);
 
@@ -121,6 +160,18 @@ public class HttpTunnelMessageUtils {
 		return isRequestTo(request, CLOSE_TUNNEL_REQUEST_URI, userAgent);
 	}
 
+	public static boolean isCloseTunnelRequest(HttpTunnelRequest request, String userAgent) {
+		return isRequestTo(request, CLOSE_TUNNEL_REQUEST_URI, userAgent);
+	}
+
+	/**
+	 * @return true if the given path is one of those used by the tunnel
+	 *         protocol itself.
+	 */
+	public static boolean isTunnelRequestPath(String path) {
+		return OPEN_TUNNEL_REQUEST_URI.equals(path) || CLOSE_TUNNEL_REQUEST_URI.equals(path) || CLIENT_SEND_REQUEST_URI.equals(path) || CLIENT_RECV_REQUEST_URI.equals(path);
+	}
+
 	public static boolean isServerToClientRequest(HttpRequest request, String userAgent) {
 		return isRequestTo(request, CLIENT_RECV_REQUEST_URI, userAgent);
 	}
@@ -183,6 +234,11 @@ public class HttpTunnelMessageUtils {
 		return userAgent.equals(request.getHeader(HttpHeaders.Names.USER_AGENT)) && HttpMethod.POST.equals(request.getMethod()) && uri.equals(decodedUri.getPath());
 	}
 
+	private static boolean isRequestTo(HttpTunnelRequest request, String uri, String userAgent) {
+		// The path has already been extracted by the decoder, no need to parse
+		return userAgent.equals(request.getUserAgent()) && HttpMethod.POST.equals(request.getMethod()) && uri.equals(request.getPath());
+	}
+
 	private static void setNoData(HttpRequest request) {
 		request.setHeader(HttpHeaders.Names.CONTENT_LENGTH, "0");
 		request.setContent(null);
@@ -210,6 +266,26 @@ public class HttpTunnelMessageUtils {
 		return response;
 	}
 
+	/**
+	 * Creates a response to a fast open request, which carries the first data
+	 * to be received from the new tunnel.
+	 */
+	public static HttpResponse createTunnelOpenResponse(String tunnelId, ChannelBuffer data) {
+		final HttpResponse response = createResponseTemplate(HttpResponseStatus.CREATED, data);
+
+		response.setHeader(HttpHeaders.Names.SET_COOKIE, tunnelId);
+
+		return response;
+	}
+
+	/**
+	 * @return the encoded form of {@link #createTunnelOpenResponse(String)},
+	 *         for writing directly to a channel.
+	 */
+	public static ChannelBuffer encodeTunnelOpenResponse(byte[] tunnelId) {
+		return TUNNEL_OPEN_RESPONSE_TEMPLATE.create(tunnelId);
+	}
+
 	public static boolean isTunnelOpenResponse(HttpResponse response) {
 		return isResponseWithCode(response, HttpResponseStatus.CREATED);
 	}
@@ -230,6 +306,14 @@ public class HttpTunnelMessageUtils {
 		return response;
 	}
 
+	/**
+	 * @return the encoded form of {@link #createTunnelPingResponse(String)},
+	 *         for writing directly to a channel.
+	 */
+	public static ChannelBuffer encodeTunnelPingResponse(byte[] tunnelId) {
+		return TUNNEL_PING_RESPONSE_TEMPLATE.create(tunnelId);
+	}
+
 	public static boolean isPingResponse(HttpResponse response) {
 		return isResponseWithCode(response, HttpResponseStatus.NO_CONTENT);
 	}
@@ -248,6 +332,14 @@ public class HttpTunnelMessageUtils {
 		return createResponseTemplate(HttpResponseStatus.RESET_CONTENT, null);
 	}
 
+	/**
+	 * @return the encoded form of {@link #createTunnelCloseResponse()}, for
+	 *         writing directly to a channel.
+	 */
+	public static ChannelBuffer encodeTunnelCloseResponse() {
+		return TUNNEL_CLOSE_RESPONSE_TEMPLATE.create();
+	}
+
 	public static boolean isTunnelCloseResponse(HttpResponse response) {
 		return isResponseWithCode(response, HttpResponseStatus.RESET_CONTENT);
 	}
@@ -263,10 +355,37 @@ public class HttpTunnelMessageUtils {
 		return createOKResponseTemplate(null);
 	}
 
+	/**
+	 * @return the encoded form of {@link #createSendDataResponse()}, for
+	 *         writing directly to a channel.
+	 */
+	public static ChannelBuffer encodeSendDataResponse() {
+		return SEND_DATA_RESPONSE_TEMPLATE.create();
+	}
+
 	public static HttpResponse createRecvDataResponse(ChannelBuffer data) {
 		return createOKResponseTemplate(data);
 	}
 
+	/**
+	 * @return the encoded form of {@link #createRecvDataResponse(ChannelBuffer)},
+	 *         for writing directly to a channel. The data is not copied.
+	 */
+	public static ChannelBuffer encodeRecvDataResponse(ChannelBuffer data) {
+		final byte[] contentLength = EncodedResponseTemplate.toHeaderBytes(Integer.toString(data.readableBytes()));
+		return ChannelBuffers.wrappedBuffer(RECV_DATA_RESPONSE_TEMPLATE.create(contentLength), data);
+	}
+
+	private static HttpResponse createRecvDataResponseHeader(String contentLength) {
+		final HttpResponse response = createOKResponseTemplate(ChannelBuffers.EMPTY_BUFFER);
+
+		// Only the header is encoded, the content is appended at write time
+		response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, contentLength);
+		response.setContent(null);
+
+		return response;
+	}
+
 	public static HttpResponse createRejection(HttpRequest request, String reason) {
 		final HttpVersion version = request != null ? request.getProtocolVersion() : HTTP_VERSION;
 		final ChannelBuffer reasonBuffer = ChannelBuffers.wrappedBuffer(toBytes(reason));
@@ -279,6 +398,15 @@ public class HttpTunnelMessageUtils {
 		return response;
 	}
 
+	public static HttpResponse createRejection(HttpTunnelRequest request, String reason) {
+		final HttpResponse response = createRejection((HttpRequest) null, reason);
+
+		if (request != null)
+			response.setProtocolVersion(request.getProtocolVersion());
+
+		return response;
+	}
+
 	public static boolean isRejection(HttpResponse response) {
 		return !HttpResponseStatus.OK.equals(response.getStatus());
 	}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.util;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+import com.yammer.httptunnel.trace.MessageTrace;
+
+/**
+ * A compact representation of a request received by the server end of an HTTP
+ * tunnel, holding only the parts of the request which are relevant to the
+ * tunnel protocol. Instances are either produced directly by the server's
+ * request decoder, or converted from a generic {@link HttpRequest}.
+ */
+public class HttpTunnelRequest {
+
+	/**
+	 * Converts a generic HTTP request, as produced by the standard request
+	 * decoder, in to its compact form.
+	 */
+	public static HttpTunnelRequest fromHttpRequest(HttpRequest request) {
+		String path;
+		try {
+			path = new URI(request.getUri()).getPath();
+		}
+		catch (URISyntaxException e) {
+			path = null;
+		}
+
+		ChannelBuffer content = request.getContent();
+		if (content == null || HttpHeaders.getContentLength(request, 0) == 0)
+			content = ChannelBuffers.EMPTY_BUFFER;
+
+		return new HttpTunnelRequest(request.getMethod(), path, request.getProtocolVersion(), request.getHeader(HttpHeaders.Names.COOKIE), request.getHeader(HttpHeaders.Names.USER_AGENT), request.getHeader(MessageTrace.HEADER), request.getHeader(HttpTunnelMessageUtils.POLL_HEADER), content);
+	}
+
+	private final HttpMethod method;
+	private final String path;
+	private final HttpVersion version;
+	private final String tunnelId;
+	private final String userAgent;
+	private final String trace;
+	private final String poll;
+	private final ChannelBuffer content;
+
+	public HttpTunnelRequest(HttpMethod method, String path, HttpVersion version, String tunnelId, String userAgent, ChannelBuffer content) {
+		this(method, path, version, tunnelId, userAgent, null, content);
+	}
+
+	public HttpTunnelRequest(HttpMethod method, String path, HttpVersion version, String tunnelId, String userAgent, String trace, ChannelBuffer content) {
+		this(method, path, version, tunnelId, userAgent, trace, null, content);
+	}
+
+	public HttpTunnelRequest(HttpMethod method, String path, HttpVersion version, String tunnelId, String userAgent, String trace, String poll, ChannelBuffer content) {
+		this.method = method;
+		this.path = path;
+		this.version = version;
+		this.tunnelId = tunnelId;
+		this.userAgent = userAgent;
+		this.trace = trace;
+		this.poll = poll;
+		this.content = content;
+	}
+
+	/**
+	 * @return the request method.
+	 */
+	public HttpMethod getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the path component of the request URI, or null if the URI could
+	 *         not be parsed.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the HTTP protocol version of the request.
+	 */
+	public HttpVersion getProtocolVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the tunnel ID provided in the cookie header, or null if none was
+	 *         provided.
+	 */
+	public String getTunnelId() {
+		return tunnelId;
+	}
+
+	/**
+	 * @return the user-agent header, or null if none was provided.
+	 */
+	public String getUserAgent() {
+		return userAgent;
+	}
+
+	/**
+	 * @return the trace header, or null if the request isn't being traced.
+	 */
+	public String getTrace() {
+		return trace;
+	}
+
+	/**
+	 * @return the poll header, or null if the poll wasn't held back by the
+	 *         client.
+	 */
+	public String getPoll() {
+		return poll;
+	}
+
+	/**
+	 * @return true if this is a keep-alive poll, which should be answered
+	 *         with a ping rather than data.
+	 */
+	public boolean isKeepAlive() {
+		return HttpTunnelMessageUtils.POLL_KEEP_ALIVE.equals(poll);
+	}
+
+	/**
+	 * @return true if this poll was held back by the client before being
+	 *         sent.
+	 */
+	public boolean isDeferred() {
+		return HttpTunnelMessageUtils.POLL_DEFERRED.equals(poll);
+	}
+
+	/**
+	 * @return the request body, which is empty if the request had no content.
+	 */
+	public ChannelBuffer getContent() {
+		return content;
+	}
+}
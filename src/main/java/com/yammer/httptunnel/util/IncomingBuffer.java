@@ -16,30 +16,47 @@
 
 package com.yammer.httptunnel.util;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.Channels;
 
+import com.yammer.httptunnel.trace.MessageTrace;
+import com.yammer.httptunnel.trace.TraceStage;
+
 /**
  * A buffer of incoming messages read from the HTTP tunnel. Messages are
- * buffered to allow for setting a channel unreadable. A buffered can have both
- * a capacity and an upper bound. When the buffer reaches it's capacity it is
- * marked as being over capacity, however will continue to accept messages until
- * the upper bound is exceeded.
+ * buffered to allow for setting a channel unreadable. The buffer is measured
+ * in bytes, and has high and low water marks as well as an upper bound. Once
+ * more than the high water mark is buffered it is marked as being over
+ * capacity until it drains to the low water mark, however will continue to
+ * accept messages until the upper bound would be exceeded. Optionally messages
+ * which have queued up are merged into a single buffer, up to a limit, when
+ * they are delivered.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Iain McGinniss (iain.mcginniss@onedrum.com)
  * @author Jamie Furness (jamie@onedrum.com)
  * @author OneDrum Ltd.
  */
-public class IncomingBuffer<T> implements Runnable {
+public class IncomingBuffer<T extends ChannelBuffer> implements Runnable {
+
+	/**
+	 * The default high water mark of the buffer, presently set to 1MByte.
+	 */
+	public static final int DEFAULT_HIGH_WATER_MARK = 1024 * 1024;
 
 	/**
-	 * The default maximum capacity of the buffer.
+	 * The default low water mark of the buffer, presently set to 512KByte.
 	 */
-	public static final int DEFAULT_CAPACITY = 10;
+	public static final int DEFAULT_LOW_WATER_MARK = 512 * 1024;
 
 	/**
 	 * The default maximum size of the buffer.
@@ -48,66 +65,171 @@ public class IncomingBuffer<T> implements Runnable {
 
 	private final Channel channel;
 	private final Queue<T> buffer;
+	private final Map<T, MessageTrace> traces;
 
-	private int capacity;
+	private int lowWaterMark;
+	private int highWaterMark;
 	private int bounds;
 
-	public IncomingBuffer(Channel channel) {
-		this(channel, DEFAULT_CAPACITY);
-	}
+	private volatile int bufferedMessages;
+	private volatile long bufferedBytes;
+	private volatile boolean overCapacity;
+	private volatile Runnable deliveryListener;
+	private volatile int coalescingLimit;
 
-	public IncomingBuffer(Channel channel, int capacity) {
-		this(channel, capacity, DEFAULT_BOUNDS);
+	public IncomingBuffer(Channel channel) {
+		this(channel, DEFAULT_LOW_WATER_MARK, DEFAULT_HIGH_WATER_MARK, DEFAULT_BOUNDS);
 	}
 
-	public IncomingBuffer(Channel channel, int capacity, int bounds) {
+	public IncomingBuffer(Channel channel, int lowWaterMark, int highWaterMark, int bounds) {
 		this.channel = channel;
-		this.capacity = capacity;
+		this.lowWaterMark = lowWaterMark;
+		this.highWaterMark = highWaterMark;
 		this.bounds = bounds;
 
 		buffer = new LinkedList<T>();
+		traces = new IdentityHashMap<T, MessageTrace>();
+
+		bufferedMessages = 0;
+		bufferedBytes = 0;
+		overCapacity = false;
+		deliveryListener = null;
+		coalescingLimit = 0;
 
 		new Thread(this).start();
 	}
 
 	/**
-	 * @return the current value of the maximum capacity of the buffer.
+	 * @return the current value (in bytes) of the low water mark.
 	 */
-	public int getCapacity() {
-		return capacity;
+	public synchronized int getLowWaterMark() {
+		return lowWaterMark;
 	}
 
-	public void setCapacity(int capacity) {
-		this.capacity = capacity;
+	/**
+	 * @return the current value (in bytes) of the high water mark.
+	 */
+	public synchronized int getHighWaterMark() {
+		return highWaterMark;
 	}
 
 	/**
-	 * @return the current value of the maximum size of the buffer.
+	 * @return the current value (in bytes) of the maximum size of the buffer.
 	 */
-	public int getBounds() {
+	public synchronized int getBounds() {
 		return bounds;
 	}
 
-	public void setBounds(int bounds) {
+	/**
+	 * Updates the water marks and bounds, which take effect as the buffer next
+	 * changes size.
+	 */
+	public synchronized void updateThresholds(int lowWaterMark, int highWaterMark, int bounds) {
+		this.lowWaterMark = lowWaterMark;
+		this.highWaterMark = highWaterMark;
 		this.bounds = bounds;
 	}
 
+	/**
+	 * @return the number of buffered messages.
+	 */
 	public int size() {
-		return buffer.size();
+		return bufferedMessages;
 	}
 
-	public synchronized boolean offer(T item) {
-		if (buffer.size() >= bounds)
+	/**
+	 * @return the number of readable bytes in the buffered messages.
+	 */
+	public long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+	/**
+	 * Sets a listener to be run after each message has been delivered, on
+	 * the delivering thread.
+	 */
+	public void setDeliveryListener(Runnable deliveryListener) {
+		this.deliveryListener = deliveryListener;
+	}
+
+	/**
+	 * @return the current value (in bytes) of the coalescing limit.
+	 */
+	public int getCoalescingLimit() {
+		return coalescingLimit;
+	}
+
+	/**
+	 * Sets the most data (in bytes) which may be delivered in a single
+	 * message event by merging queued messages. Messages larger than this are
+	 * still delivered on their own. Zero disables coalescing.
+	 */
+	public void setCoalescingLimit(int coalescingLimit) {
+		this.coalescingLimit = coalescingLimit;
+	}
+
+	public boolean offer(T item) {
+		return this.offer(item, null);
+	}
+
+	/**
+	 * Offers a message which may be being traced, in which case the time it
+	 * spends in the buffer is recorded.
+	 */
+	public synchronized boolean offer(T item, MessageTrace trace) {
+		final int size = item.readableBytes();
+		if (bufferedBytes + size > bounds)
 			return false;
 
 		buffer.offer(item);
+		this.bufferChanged(1, size);
+
+		if (trace != null)
+			traces.put(item, trace);
+
 		this.notifyAll();
 
 		return true;
 	}
 
+	/**
+	 * @return true once more than the high water mark has been buffered, until
+	 *         the buffer drains to the low water mark.
+	 */
 	public boolean overCapacity() {
-		return buffer.size() > capacity;
+		return overCapacity;
+	}
+
+	/**
+	 * Updates the size of the buffer, which must be done while holding its
+	 * lock so that the over capacity state is consistent with it.
+	 */
+	private void bufferChanged(int messagesDelta, int bytesDelta) {
+		bufferedMessages += messagesDelta;
+		bufferedBytes += bytesDelta;
+
+		if (bufferedBytes <= lowWaterMark)
+			overCapacity = false;
+		else if (bufferedBytes > highWaterMark)
+			overCapacity = true;
+	}
+
+	/**
+	 * Takes the next message from the buffer, which must not be empty, while
+	 * holding its lock.
+	 */
+	private T poll() {
+		final T item = buffer.poll();
+		this.bufferChanged(-1, -item.readableBytes());
+
+		// Only traced messages are kept in the map
+		if (!traces.isEmpty()) {
+			final MessageTrace trace = traces.remove(item);
+			if (trace != null)
+				trace.stageCompleted(TraceStage.BUFFERED);
+		}
+
+		return item;
 	}
 
 	public synchronized void onInterestOpsChanged() {
@@ -127,8 +249,31 @@ public class IncomingBuffer<T> implements Runnable {
 					catch (InterruptedException e) { }
 				}
 	
-				final T item = buffer.poll();
-				Channels.fireMessageReceived(channel, item);
+				final T item = this.poll();
+
+				// Merge any queued messages which fit within the limit with
+				// this one, rather than delivering each in turn
+				final int limit = coalescingLimit;
+				if (limit > 0 && !buffer.isEmpty() && item.readableBytes() + buffer.peek().readableBytes() <= limit) {
+					final List<ChannelBuffer> items = new ArrayList<ChannelBuffer>();
+					items.add(item);
+
+					int size = item.readableBytes();
+					while (!buffer.isEmpty() && size + buffer.peek().readableBytes() <= limit) {
+						final T next = this.poll();
+
+						items.add(next);
+						size += next.readableBytes();
+					}
+
+					Channels.fireMessageReceived(channel, ChannelBuffers.wrappedBuffer(items.toArray(new ChannelBuffer[items.size()])));
+				}
+				else
+					Channels.fireMessageReceived(channel, item);
+
+				final Runnable listener = deliveryListener;
+				if (listener != null)
+					listener.run();
 			}
 		}
 	}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.yammer.httptunnel.MessagePriority;
+
+/**
+ * A queue of outbound messages in several priority classes, with a single
+ * consumer. Messages are taken from the highest class with any queued, except
+ * that a class which has been passed over too many times in a row is served
+ * next, so that lower classes are never starved.
+ * <p>
+ * The consumer may send a message in several parts. Once it has
+ * {@link #taken()} part of a message, the class is only chosen again after
+ * that message has been removed with {@link #poll()}, so the parts of
+ * different messages are never interleaved. Until then a message which has
+ * only been peeked at may still be overtaken by a higher class.
+ * As with {@link MpscLinkedQueue}, callers must ensure only one thread
+ * consumes at a time.
+ */
+public class MessagePriorityQueue<E> {
+
+	/**
+	 * The default number of times in a row a class may be passed over in
+	 * favour of higher classes before it is served.
+	 */
+	public static final int DEFAULT_STARVATION_LIMIT = 8;
+
+	private final List<MpscLinkedQueue<E>> queues;
+	private final int[] passedOver;
+	private final int starvationLimit;
+
+	// The class of the message being sent, or -1 if one is to be chosen
+	private int current;
+	// The class chosen by the last peek while no message was being sent
+	private int peeked;
+
+	public MessagePriorityQueue() {
+		this(DEFAULT_STARVATION_LIMIT);
+	}
+
+	public MessagePriorityQueue(int starvationLimit) {
+		this.starvationLimit = starvationLimit;
+
+		final int classes = MessagePriority.values().length;
+
+		queues = new ArrayList<MpscLinkedQueue<E>>(classes);
+		for (int i = 0; i < classes; i++)
+			queues.add(new MpscLinkedQueue<E>());
+
+		passedOver = new int[classes];
+		current = -1;
+		peeked = -1;
+	}
+
+	/**
+	 * Adds the given message to the queue of its class. May be called by any
+	 * thread.
+	 */
+	public void offer(E element, MessagePriority priority) {
+		queues.get(priority.ordinal()).offer(element);
+	}
+
+	/**
+	 * Returns, without removing, the message to be sent next. Must only be
+	 * called by the consuming thread.
+	 *
+	 * @return the next message, or null if the queue is empty.
+	 */
+	public E peek() {
+		if (current >= 0)
+			return queues.get(current).peek();
+
+		peeked = this.choose();
+		return peeked < 0 ? null : queues.get(peeked).peek();
+	}
+
+	/**
+	 * Records that part of the message last returned by {@link #peek()} has
+	 * been sent, so its class is kept until it is removed. Must only be
+	 * called by the consuming thread.
+	 */
+	public void taken() {
+		if (current < 0 && peeked >= 0)
+			this.select(peeked);
+	}
+
+	/**
+	 * Removes the message last returned by {@link #peek()}, even if a higher
+	 * class has been offered a message since, or otherwise the message to be
+	 * sent next. The class of the following message is then chosen afresh.
+	 * Must only be called by the consuming thread.
+	 *
+	 * @return the removed message, or null if the queue is empty.
+	 */
+	public E poll() {
+		if (current < 0 && peeked < 0 && this.peek() == null)
+			return null;
+
+		this.taken();
+
+		final E element = queues.get(current).poll();
+		current = -1;
+		peeked = -1;
+
+		return element;
+	}
+
+	/**
+	 * @return true if no class has any messages visible to the consumer. May
+	 *         be called by any thread.
+	 */
+	public boolean isEmpty() {
+		for (MpscLinkedQueue<E> queue : queues) {
+			if (!queue.isEmpty())
+				return false;
+		}
+
+		return true;
+	}
+
+	private int choose() {
+		int selected = -1;
+
+		for (int i = 0; i < queues.size(); i++) {
+			if (queues.get(i).isEmpty())
+				continue;
+
+			// The highest class waiting, unless a lower one is starving
+			if (selected < 0)
+				selected = i;
+			else if (passedOver[i] >= starvationLimit) {
+				selected = i;
+				break;
+			}
+		}
+
+		return selected;
+	}
+
+	private void select(int selected) {
+		current = selected;
+
+		// Lower classes left waiting have been passed over once more
+		for (int i = 0; i < queues.size(); i++) {
+			if (i == selected || queues.get(i).isEmpty())
+				passedOver[i] = 0;
+			else if (i > selected)
+				passedOver[i]++;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded multiple producer, single consumer queue. Offering an element
+ * is wait free (a single atomic swap, with no retry loop under contention).
+ * Only one thread may poll at a time; callers must ensure this themselves, and
+ * that hand overs between consuming threads are safely published.
+ * <p>
+ * An element whose offer is still in progress may not yet be visible to the
+ * consumer, so a producer which needs the element to be consumed should
+ * arrange for the queue to be drained once its offer has returned.
+ */
+public class MpscLinkedQueue<E> {
+
+	private final AtomicReference<Node<E>> head;
+	private volatile Node<E> tail;
+
+	public MpscLinkedQueue() {
+		final Node<E> stub = new Node<E>(null);
+
+		head = new AtomicReference<Node<E>>(stub);
+		tail = stub;
+	}
+
+	/**
+	 * Adds the given element to the queue. May be called by any thread.
+	 */
+	public void offer(E element) {
+		if (element == null)
+			throw new NullPointerException("element");
+
+		final Node<E> node = new Node<E>(element);
+		final Node<E> previous = head.getAndSet(node);
+
+		previous.next = node;
+	}
+
+	/**
+	 * Returns, without removing, the element at the front of the queue. Must
+	 * only be called by the consuming thread.
+	 *
+	 * @return the front element, or null if the queue is empty.
+	 */
+	public E peek() {
+		final Node<E> next = tail.next;
+		return next == null ? null : next.element;
+	}
+
+	/**
+	 * Removes the element at the front of the queue. Must only be called by
+	 * the consuming thread.
+	 *
+	 * @return the removed element, or null if the queue is empty.
+	 */
+	public E poll() {
+		final Node<E> next = tail.next;
+		if (next == null)
+			return null;
+
+		final E element = next.element;
+
+		// The consumed node becomes the new stub
+		next.element = null;
+		tail = next;
+
+		return element;
+	}
+
+	/**
+	 * @return true if the queue has no elements visible to the consumer. May
+	 *         be called by any thread.
+	 */
+	public boolean isEmpty() {
+		return tail.next == null;
+	}
+
+	private static final class Node<E> {
+
+		private E element;
+		private volatile Node<E> next;
+
+		private Node(E element) {
+			this.element = element;
+		}
+	}
+}
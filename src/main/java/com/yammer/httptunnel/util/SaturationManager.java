@@ -32,7 +32,7 @@ import com.yammer.httptunnel.state.SaturationStateChange;
  * @author Jamie Furness (jamie@onedrum.com)
  * @author OneDrum Ltd.
  */
-public class SaturationManager {
+public class SaturationManager implements SaturationMonitor {
 	private final AtomicLong desaturationPoint;
 	private final AtomicLong saturationPoint;
 	private final AtomicLong queueSize;
@@ -61,6 +61,16 @@ public class SaturationManager {
 		return SaturationStateChange.NO_CHANGE;
 	}
 
+	@Override
+	public SaturationStateChange messageQueued(int size) {
+		return this.queueSizeChanged(size);
+	}
+
+	@Override
+	public SaturationStateChange messageSent(int size, long sojournTime) {
+		return this.queueSizeChanged(-size);
+	}
+
 	public void updateThresholds(long desaturationPoint, long saturationPoint) {
 		this.desaturationPoint.set(desaturationPoint);
 		this.saturationPoint.set(saturationPoint);
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.util;
+
+import com.yammer.httptunnel.state.SaturationStateChange;
+
+/**
+ * Follows the data queued to be sent through a single channel, to decide
+ * when the channel is saturated and should stop accepting writes. Created by
+ * the channel's {@link com.yammer.httptunnel.SaturationPolicy}.
+ */
+public interface SaturationMonitor {
+
+	/**
+	 * Data of the given size has been queued.
+	 */
+	public SaturationStateChange messageQueued(int size);
+
+	/**
+	 * Data of the given size has left the queue, having been written or
+	 * failed.
+	 *
+	 * @param sojournTime
+	 *            how long the data was queued, in nanoseconds.
+	 */
+	public SaturationStateChange messageSent(int size, long sojournTime);
+}
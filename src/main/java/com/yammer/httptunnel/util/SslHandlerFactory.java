@@ -0,0 +1,146 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.util;
+
+import java.net.InetSocketAddress;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.ssl.SslHandler;
+
+import com.yammer.httptunnel.HttpTunnelMetrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.util.RatioGauge;
+
+/**
+ * Adds TLS to the pipelines of the underlying connections, recording how many
+ * handshakes are performed and how many of those resumed a cached session
+ * rather than negotiating a new one.
+ * <p>
+ * Sessions are cached by the {@link SSLContext}, so connections only resume
+ * each other's sessions when their handlers are created from the same
+ * context. A client caches sessions by the server's host and port, so every
+ * send and poll connection of every tunnel to the same server, including
+ * those re-opened after a failure, may resume a single session.
+ */
+public class SslHandlerFactory {
+
+	public static final String NAME = "ssl";
+
+	private static final String HANDSHAKE_NAME = "sslHandshake";
+
+	private final Meter handshakes;
+	private final Meter resumedHandshakes;
+	private final Meter failedHandshakes;
+
+	/**
+	 * Creates a new factory, reporting its metrics under the given type.
+	 */
+	public SslHandlerFactory(HttpTunnelMetrics metrics, Class<?> type) {
+		handshakes = metrics.newMeter(type, "tlsHandshakes", "handshakes");
+		resumedHandshakes = metrics.newMeter(type, "tlsResumedHandshakes", "handshakes");
+		failedHandshakes = metrics.newMeter(type, "tlsFailedHandshakes", "handshakes");
+
+		metrics.newGauge(type, "tlsResumptionRatio", new RatioGauge() {
+			@Override
+			protected double getNumerator() {
+				return resumedHandshakes.count();
+			}
+
+			@Override
+			protected double getDenominator() {
+				return handshakes.count();
+			}
+		});
+	}
+
+	/**
+	 * Adds a TLS handler to the front of the given pipeline. The handshake is
+	 * performed as soon as the connection is established, and handlers
+	 * further up the pipeline are only told the channel is connected once it
+	 * has completed, so need not wait for it themselves.
+	 *
+	 * @param peer
+	 *            the server being connected to, or null if the pipeline is for
+	 *            the server end of a connection.
+	 */
+	public void addFirst(ChannelPipeline pipeline, SSLContext context, InetSocketAddress peer) {
+		final SSLEngine engine;
+		if (peer != null) {
+			engine = context.createSSLEngine(peer.getHostString(), peer.getPort());
+			engine.setUseClientMode(true);
+		}
+		else {
+			engine = context.createSSLEngine();
+			engine.setUseClientMode(false);
+		}
+
+		final SslHandler handler = new SslHandler(engine);
+
+		pipeline.addFirst(HANDSHAKE_NAME, new HandshakeHandler(handler));
+		pipeline.addFirst(NAME, handler);
+	}
+
+	public long getHandshakeCount() {
+		return handshakes.count();
+	}
+
+	public long getResumedHandshakeCount() {
+		return resumedHandshakes.count();
+	}
+
+	private class HandshakeHandler extends SimpleChannelUpstreamHandler {
+
+		private final SslHandler handler;
+
+		private HandshakeHandler(SslHandler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+			final long startTime = System.currentTimeMillis();
+
+			handler.handshake().addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(ChannelFuture future) throws Exception {
+					if (!future.isSuccess()) {
+						failedHandshakes.mark();
+						future.getChannel().close();
+						return;
+					}
+
+					handshakes.mark();
+
+					// A resumed session keeps the creation time of the
+					// handshake which first negotiated it
+					if (handler.getEngine().getSession().getCreationTime() < startTime)
+						resumedHandshakes.mark();
+
+					ctx.sendUpstream(e);
+				}
+			});
+		}
+	}
+}
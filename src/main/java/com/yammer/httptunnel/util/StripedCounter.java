@@ -0,0 +1,74 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which spreads updates over several cells, chosen by the updating
+ * thread, so that threads updating it concurrently rarely contend on the same
+ * cache line. Reading the total is comparatively expensive, so this is suited
+ * to counters which are updated on a hot path and read only for reporting.
+ */
+public class StripedCounter {
+
+	// Cells are spaced a cache line (64 bytes) apart
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells;
+	private final int mask;
+
+	/**
+	 * Constructs a new counter sized for the number of available processors.
+	 */
+	public StripedCounter() {
+		this(Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	/**
+	 * Constructs a new counter with at least the given number of cells.
+	 */
+	public StripedCounter(int concurrency) {
+		int stripes = 1;
+		while (stripes < concurrency)
+			stripes <<= 1;
+
+		cells = new AtomicLongArray(stripes * PADDING);
+		mask = stripes - 1;
+	}
+
+	public void increment() {
+		this.add(1);
+	}
+
+	public void add(long delta) {
+		final int stripe = (int) Thread.currentThread().getId() & mask;
+		cells.getAndAdd(stripe * PADDING, delta);
+	}
+
+	/**
+	 * @return the current total. Updates made concurrently with this call may
+	 *         or may not be included.
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < cells.length(); i += PADDING)
+			sum += cells.get(i);
+
+		return sum;
+	}
+}
@@ -2,16 +2,23 @@ package com.yammer.httptunnel.util;
 
 import org.jboss.netty.channel.MessageEvent;
 
+import com.yammer.httptunnel.trace.MessageTrace;
 import com.yammer.metrics.core.TimerContext;
 
 public class TimedMessageEventWrapper {
 
 	private final MessageEvent event;
 	private final TimerContext context;
+	private final MessageTrace trace;
 
 	public TimedMessageEventWrapper(MessageEvent event, TimerContext context) {
+		this(event, context, null);
+	}
+
+	public TimedMessageEventWrapper(MessageEvent event, TimerContext context, MessageTrace trace) {
 		this.event = event;
 		this.context = context;
+		this.trace = trace;
 	}
 
 	public MessageEvent getEvent() {
@@ -21,4 +28,11 @@ public class TimedMessageEventWrapper {
 	public TimerContext getContext() {
 		return context;
 	}
+
+	/**
+	 * @return the trace of the message, or null if it isn't being traced.
+	 */
+	public MessageTrace getTrace() {
+		return trace;
+	}
 }
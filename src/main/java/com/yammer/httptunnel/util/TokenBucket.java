@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting a flow of bytes to an average rate, while allowing
+ * bursts up to the bucket's size. Rather than refusing bytes when the bucket
+ * is empty, the bucket goes into debt, and the caller delays further traffic
+ * until the debt has been repaid. This suits flows which can't be split
+ * arbitrarily, such as whole requests which have already been received.
+ */
+public class TokenBucket {
+
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final long rate;
+	private final long burst;
+
+	// Guarded by this
+	private long tokens;
+	private long lastRefillTime;
+
+	/**
+	 * Constructs a new, full, bucket.
+	 *
+	 * @param rate
+	 *            the number of bytes added to the bucket each second.
+	 * @param burst
+	 *            the size of the bucket, in bytes.
+	 */
+	public TokenBucket(long rate, long burst) {
+		if (rate <= 0)
+			throw new IllegalArgumentException("Rate must be greater than 0");
+
+		if (burst <= 0)
+			throw new IllegalArgumentException("Burst must be greater than 0");
+
+		this.rate = rate;
+		this.burst = burst;
+
+		tokens = burst;
+		lastRefillTime = System.nanoTime();
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	public long getBurst() {
+		return burst;
+	}
+
+	/**
+	 * @return the number of bytes which may be sent immediately, or a negative
+	 *         number if the bucket is in debt.
+	 */
+	public synchronized long getTokens() {
+		this.refill();
+		return tokens;
+	}
+
+	/**
+	 * Takes the given number of bytes from the bucket, going into debt if
+	 * there are not enough.
+	 */
+	public synchronized void consume(long bytes) {
+		this.refill();
+		tokens -= bytes;
+	}
+
+	/**
+	 * @return how long until the bucket's debt is repaid, or 0 if it is not
+	 *         in debt.
+	 */
+	public synchronized long getDelay(TimeUnit unit) {
+		this.refill();
+		if (tokens >= 0)
+			return 0;
+
+		return unit.convert((long) Math.ceil(-tokens * NANOS_PER_SECOND / rate), TimeUnit.NANOSECONDS);
+	}
+
+	private void refill() {
+		final long now = System.nanoTime();
+		final long added = (long) ((now - lastRefillTime) * (double) rate / NANOS_PER_SECOND);
+		if (added <= 0)
+			return;
+
+		if (added >= burst - tokens) {
+			tokens = burst;
+			lastRefillTime = now;
+			return;
+		}
+
+		// Any fraction of a token not yet added is carried over to next time
+		lastRefillTime += (long) (added * NANOS_PER_SECOND / rate);
+		tokens += added;
+	}
+}
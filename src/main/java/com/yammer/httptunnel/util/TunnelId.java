@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.yammer.httptunnel.util;
+
+import java.util.Arrays;
+
+/**
+ * An immutable 128-bit tunnel identifier. On the wire an identifier is encoded
+ * as {@link #ENCODED_LENGTH} characters from the URL and cookie safe base64
+ * alphabet, each half of the identifier occupying 11 characters. The static
+ * parsing methods operate directly on the encoded form so that a tunnel can be
+ * looked up from a request without allocating.
+ */
+public final class TunnelId {
+
+	public static final int ENCODED_LENGTH = 22;
+
+	private static final int HALF_LENGTH = ENCODED_LENGTH / 2;
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+	private static final byte[] DECODE_TABLE;
+
+	static {
+		DECODE_TABLE = new byte[128];
+		Arrays.fill(DECODE_TABLE, (byte) -1);
+
+		for (int i = 0; i < ALPHABET.length; i++)
+			DECODE_TABLE[ALPHABET[i]] = (byte) i;
+	}
+
+	/**
+	 * @return true if the given string is a correctly encoded tunnel ID.
+	 */
+	public static boolean isValid(CharSequence encoded) {
+		if (encoded == null || encoded.length() != ENCODED_LENGTH)
+			return false;
+
+		for (int i = 0; i < ENCODED_LENGTH; i++) {
+			final int value = TunnelId.decode(encoded.charAt(i));
+			if (value < 0)
+				return false;
+
+			// The leading character of each half only carries 4 bits
+			if (i % HALF_LENGTH == 0 && value > 0xF)
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the most significant 64 bits of the given encoded tunnel ID,
+	 *         which must have been checked using {@link #isValid(CharSequence)}.
+	 */
+	public static long parseMostSignificantBits(CharSequence encoded) {
+		return TunnelId.parseHalf(encoded, 0);
+	}
+
+	/**
+	 * @return the least significant 64 bits of the given encoded tunnel ID,
+	 *         which must have been checked using {@link #isValid(CharSequence)}.
+	 */
+	public static long parseLeastSignificantBits(CharSequence encoded) {
+		return TunnelId.parseHalf(encoded, HALF_LENGTH);
+	}
+
+	/**
+	 * @return the tunnel ID represented by the given string, or null if it is
+	 *         not a valid tunnel ID.
+	 */
+	public static TunnelId fromString(String encoded) {
+		if (!TunnelId.isValid(encoded))
+			return null;
+
+		return new TunnelId(TunnelId.parseMostSignificantBits(encoded), TunnelId.parseLeastSignificantBits(encoded));
+	}
+
+	private static int decode(char c) {
+		return c < DECODE_TABLE.length ? DECODE_TABLE[c] : -1;
+	}
+
+	private static long parseHalf(CharSequence encoded, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + HALF_LENGTH; i++)
+			value = (value << 6) | TunnelId.decode(encoded.charAt(i));
+
+		return value;
+	}
+
+	private static void encodeHalf(long value, char[] encoded, int offset) {
+		for (int i = offset + HALF_LENGTH - 1; i >= offset; i--) {
+			encoded[i] = ALPHABET[(int) (value & 0x3F)];
+			value >>>= 6;
+		}
+	}
+
+	private final long mostSignificantBits;
+	private final long leastSignificantBits;
+
+	public TunnelId(long mostSignificantBits, long leastSignificantBits) {
+		this.mostSignificantBits = mostSignificantBits;
+		this.leastSignificantBits = leastSignificantBits;
+	}
+
+	public long getMostSignificantBits() {
+		return mostSignificantBits;
+	}
+
+	public long getLeastSignificantBits() {
+		return leastSignificantBits;
+	}
+
+	/**
+	 * @return true if this tunnel ID consists of the given bits.
+	 */
+	public boolean matches(long mostSignificantBits, long leastSignificantBits) {
+		return this.mostSignificantBits == mostSignificantBits && this.leastSignificantBits == leastSignificantBits;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+
+		if (!(o instanceof TunnelId))
+			return false;
+
+		final TunnelId other = (TunnelId) o;
+		return this.matches(other.mostSignificantBits, other.leastSignificantBits);
+	}
+
+	@Override
+	public int hashCode() {
+		final long hash = mostSignificantBits ^ leastSignificantBits;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	/**
+	 * @return the encoded form of this tunnel ID, as sent to clients.
+	 */
+	@Override
+	public String toString() {
+		final char[] encoded = new char[ENCODED_LENGTH];
+
+		TunnelId.encodeHalf(mostSignificantBits, encoded, 0);
+		TunnelId.encodeHalf(leastSignificantBits, encoded, HALF_LENGTH);
+
+		return new String(encoded);
+	}
+}
@@ -32,5 +32,5 @@ public interface TunnelIdGenerator {
 	 * ensure with high probability that it will not clash with an existing
 	 * tunnel ID). This method must be thread safe, and preferably lock free.
 	 */
-	public String generateId();
+	public TunnelId generateId();
 }
@@ -0,0 +1,149 @@
+package com.yammer.httptunnel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channels;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.HttpTunnelMetrics.TunnelMetrics;
+import com.yammer.httptunnel.client.HttpTunnelClientChannelFactory;
+import com.yammer.httptunnel.util.IncomingBuffer;
+import com.yammer.httptunnel.util.StripedCounter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class HttpTunnelMetricsTest {
+
+	private MetricsRegistry registry;
+	private FakeSocketChannel channel;
+
+	@Before
+	public void setUp() {
+		registry = new MetricsRegistry();
+		channel = new FakeSocketChannel(null, null, Channels.pipeline(), new FakeChannelSink()) {
+			@Override
+			public boolean isReadable() {
+				// Keep the messages in the buffer
+				return false;
+			}
+		};
+	}
+
+	private Object value(String name) {
+		return this.value(new MetricName(HttpTunnelMetricsTest.class, name));
+	}
+
+	private Object value(MetricName name) {
+		return ((Gauge<?>) registry.allMetrics().get(name)).value();
+	}
+
+	private IncomingBuffer<ChannelBuffer> createBuffer(int messages) {
+		final IncomingBuffer<ChannelBuffer> buffer = new IncomingBuffer<ChannelBuffer>(channel);
+		for (int i = 0; i < messages; i++)
+			buffer.offer(ChannelBuffers.EMPTY_BUFFER);
+
+		return buffer;
+	}
+
+	@Test
+	public void testAggregatesAcrossTunnels() {
+		final HttpTunnelMetrics metrics = new HttpTunnelMetrics(registry, HttpTunnelMetricsTest.class, false);
+
+		final TunnelMetrics first = metrics.newTunnel("first", this.createBuffer(2));
+		final TunnelMetrics second = metrics.newTunnel("second", this.createBuffer(3));
+
+		first.messageSent(10);
+		second.messageSent(20);
+		second.messageReceived(5);
+
+		assertEquals(2, this.value("tunnels"));
+		assertEquals(5, this.value("incomingBuffer"));
+		assertEquals(2L, this.value("messagesSent"));
+		assertEquals(30L, this.value("bytesSent"));
+		assertEquals(1L, this.value("messagesReceived"));
+		assertEquals(5L, this.value("bytesReceived"));
+
+		// Closed tunnels no longer contribute to the gauges
+		second.close();
+
+		assertEquals(1, this.value("tunnels"));
+		assertEquals(2, this.value("incomingBuffer"));
+		assertEquals(30L, this.value("bytesSent"));
+
+		// Nothing should be registered per tunnel
+		assertFalse(registry.allMetrics().containsKey(new MetricName(HttpTunnelMetricsTest.class, "incomingBuffer", "first")));
+	}
+
+	@Test
+	public void testScopedMetricsAreRemovedOnClose() {
+		final HttpTunnelMetrics metrics = new HttpTunnelMetrics(registry, HttpTunnelMetricsTest.class, true);
+		final TunnelMetrics tunnel = metrics.newTunnel("abc", this.createBuffer(1));
+
+		tunnel.messageSent(10);
+
+		final MetricName incomingBuffer = new MetricName(HttpTunnelMetricsTest.class, "incomingBuffer", "abc");
+		final MetricName bytesSent = new MetricName(HttpTunnelMetricsTest.class, "bytesSent", "abc");
+
+		assertEquals(1, this.value(incomingBuffer));
+		assertTrue(registry.allMetrics().containsKey(bytesSent));
+
+		tunnel.close();
+
+		assertFalse(registry.allMetrics().containsKey(incomingBuffer));
+		assertFalse(registry.allMetrics().containsKey(bytesSent));
+		assertEquals(10L, this.value("bytesSent"));
+	}
+
+	@Test
+	public void testIncomingBufferBytes() {
+		final HttpTunnelMetrics metrics = new HttpTunnelMetrics(registry, HttpTunnelMetricsTest.class, true);
+
+		final IncomingBuffer<ChannelBuffer> buffer = this.createBuffer(0);
+		buffer.offer(ChannelBuffers.wrappedBuffer(new byte[100]));
+		buffer.offer(ChannelBuffers.wrappedBuffer(new byte[23]));
+
+		metrics.newTunnel("abc", buffer);
+
+		assertEquals(123L, this.value("incomingBufferBytes"));
+		assertEquals(123L, this.value(new MetricName(HttpTunnelMetricsTest.class, "incomingBufferBytes", "abc")));
+	}
+
+	@Test
+	public void testAggregateCountersAreShared() {
+		final HttpTunnelMetrics metrics = new HttpTunnelMetrics(registry, HttpTunnelMetricsTest.class, false);
+
+		final StripedCounter counter = metrics.getAggregateCounter("queuedWrites");
+		counter.add(3);
+		metrics.getAggregateCounter("queuedWrites").add(-1);
+
+		assertEquals(2L, this.value("queuedWrites"));
+	}
+
+	@Test
+	public void testReleaseRemovesAggregateMetrics() {
+		final HttpTunnelMetrics metrics = new HttpTunnelMetrics(registry, HttpTunnelMetricsTest.class, false);
+		metrics.getAggregateCounter("queuedWrites");
+
+		metrics.release();
+
+		assertTrue(registry.allMetrics().isEmpty());
+	}
+
+	@Test
+	public void testReleasingClientFactoryRemovesMetrics() {
+		final HttpTunnelClientChannelFactory factory = new HttpTunnelClientChannelFactory(new FakeClientSocketChannelFactory(), registry);
+		factory.newChannel(Channels.pipeline());
+
+		assertFalse(registry.allMetrics().isEmpty());
+
+		factory.releaseExternalResources();
+
+		assertTrue(registry.allMetrics().isEmpty());
+	}
+}
@@ -0,0 +1,67 @@
+package com.yammer.httptunnel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpTunnelStatisticsTest {
+
+	private HttpTunnelStatistics statistics;
+
+	@Before
+	public void setUp() {
+		statistics = new HttpTunnelStatistics();
+	}
+
+	@Test
+	public void testRttSmoothing() {
+		assertEquals(0, statistics.getSmoothedRtt(TimeUnit.MILLISECONDS));
+
+		statistics.rttSampled(100, TimeUnit.MILLISECONDS);
+		assertEquals(100, statistics.getSmoothedRtt(TimeUnit.MILLISECONDS));
+		assertEquals(50, statistics.getRttVariance(TimeUnit.MILLISECONDS));
+
+		statistics.rttSampled(180, TimeUnit.MILLISECONDS);
+		assertEquals(110, statistics.getSmoothedRtt(TimeUnit.MILLISECONDS));
+		assertEquals(57, statistics.getRttVariance(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testGoodputConvergesAndDecays() {
+		final long interval = TimeUnit.MILLISECONDS.toNanos(10);
+
+		// 1000 bytes every 10ms is 100KB/s
+		long now = 0;
+		for (int i = 0; i < 2000; i++) {
+			now += interval;
+			statistics.messageSent(1000, now);
+		}
+
+		final double goodput = statistics.getSendGoodput(now);
+		assertTrue("goodput " + goodput, goodput > 95000 && goodput < 105000);
+		assertEquals(0, statistics.getReceiveGoodput(now), 0);
+
+		assertTrue(statistics.getSendGoodput(now + TimeUnit.SECONDS.toNanos(10)) < goodput / 100);
+	}
+
+	@Test
+	public void testEstimatedDrainTime() {
+		final long now = TimeUnit.SECONDS.toNanos(1);
+		assertEquals(0, statistics.getEstimatedDrainTime(TimeUnit.MILLISECONDS, now));
+
+		statistics.queueSizeChanged(5000);
+		assertEquals(5000, statistics.getQueuedBytes());
+		assertEquals(-1, statistics.getEstimatedDrainTime(TimeUnit.MILLISECONDS, now));
+
+		statistics.messageSent(20000, now);
+		final double goodput = statistics.getSendGoodput(now);
+		assertEquals((long) (5000 / goodput * 1000), statistics.getEstimatedDrainTime(TimeUnit.MILLISECONDS, now));
+
+		statistics.queueSizeChanged(-5000);
+		assertEquals(0, statistics.getEstimatedDrainTime(TimeUnit.MILLISECONDS, now));
+	}
+}
@@ -0,0 +1,64 @@
+package com.yammer.httptunnel;
+
+import static com.yammer.httptunnel.state.SaturationStateChange.*;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.util.SaturationMonitor;
+
+public class QueueDelaySaturationPolicyTest {
+
+	private SaturationMonitor monitor;
+
+	@Before
+	public void setUp() {
+		monitor = new QueueDelaySaturationPolicy(10, 0, TimeUnit.MILLISECONDS).newMonitor(null);
+	}
+
+	private static long millis(long millis) {
+		return TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	@Test
+	public void testSaturatesWhenDelayStaysAboveTarget() {
+		assertEquals(NO_CHANGE, monitor.messageQueued(100));
+		assertEquals(NO_CHANGE, monitor.messageQueued(100));
+		assertEquals(NO_CHANGE, monitor.messageQueued(100));
+
+		assertEquals(NO_CHANGE, monitor.messageSent(100, millis(20)));
+		assertEquals(SATURATED, monitor.messageSent(100, millis(30)));
+		assertEquals(DESATURATED, monitor.messageSent(100, millis(30)));
+	}
+
+	@Test
+	public void testDesaturatesWhenDelayFallsBelowTarget() {
+		for (int i = 0; i < 4; i++)
+			monitor.messageQueued(100);
+
+		monitor.messageSent(100, millis(20));
+		assertEquals(SATURATED, monitor.messageSent(100, millis(20)));
+		assertEquals(DESATURATED, monitor.messageSent(100, millis(1)));
+	}
+
+	@Test
+	public void testShortDelaysDoNotSaturate() {
+		for (int i = 0; i < 10; i++) {
+			assertEquals(NO_CHANGE, monitor.messageQueued(100000));
+			assertEquals(NO_CHANGE, monitor.messageSent(100000, millis(1)));
+		}
+	}
+
+	@Test
+	public void testStalledQueueSaturates() throws InterruptedException {
+		assertEquals(NO_CHANGE, monitor.messageQueued(100));
+
+		Thread.sleep(20);
+
+		assertEquals(NO_CHANGE, monitor.messageQueued(100));
+		assertEquals(SATURATED, monitor.messageQueued(100));
+	}
+}
@@ -17,6 +17,7 @@
 package com.yammer.httptunnel.client;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -28,6 +29,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import com.yammer.httptunnel.QueueDelaySaturationPolicy;
+import com.yammer.httptunnel.SaturationPolicy;
 import com.yammer.httptunnel.client.HttpTunnelClientChannelConfig;
 
 /**
@@ -290,4 +293,36 @@ public class HttpTunnelClientChannelConfigTest {
 					e.getMessage());
 		}
 	}
+
+	@Test
+	public void testSetIncomingBufferWaterMarksAsOptions() {
+		assertTrue(config.setOption("incomingBufferLowWaterMark", 16 * 1024));
+		assertTrue(config.setOption("incomingBufferHighWaterMark", 32 * 1024));
+		assertTrue(config.setOption("incomingBufferBounds", 64 * 1024));
+
+		assertEquals(16 * 1024, config.getIncomingBufferLowWaterMark());
+		assertEquals(32 * 1024, config.getIncomingBufferHighWaterMark());
+		assertEquals(64 * 1024, config.getIncomingBufferBounds());
+	}
+
+	@Test
+	public void testSetSaturationPolicyAsOption() {
+		assertSame(SaturationPolicy.WATER_MARKS, config.getSaturationPolicy());
+
+		final SaturationPolicy policy = new QueueDelaySaturationPolicy();
+		assertTrue(config.setOption("saturationPolicy", policy));
+		assertSame(policy, config.getSaturationPolicy());
+	}
+
+	@Test
+	public void testSetIncomingBufferBounds_lowerThanHigh() {
+		try {
+			config.setIncomingBufferBounds(config.getIncomingBufferHighWaterMark() - 1);
+			fail("expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			assertEquals(
+					"Incoming buffer bounds must not be less than the high water mark",
+					e.getMessage());
+		}
+	}
 }
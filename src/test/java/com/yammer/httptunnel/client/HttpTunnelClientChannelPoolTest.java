@@ -0,0 +1,159 @@
+package com.yammer.httptunnel.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.FakeChannelSink;
+import com.yammer.httptunnel.FakeClientSocketChannelFactory;
+import com.yammer.httptunnel.FakeSocketChannel;
+import com.yammer.httptunnel.UpstreamEventCatcher;
+import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+import com.yammer.httptunnel.util.NettyTestUtils;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class HttpTunnelClientChannelPoolTest {
+
+	private static final InetSocketAddress LOCAL_ADDRESS = InetSocketAddress.createUnresolved("localhost", 50123);
+	private static final InetSocketAddress REMOTE_ADDRESS = InetSocketAddress.createUnresolved("test.server.com", 12345);
+
+	private FakeClientSocketChannelFactory outboundFactory;
+	private HttpTunnelClientChannelFactory factory;
+
+	@Before
+	public void setUp() {
+		outboundFactory = new FakeClientSocketChannelFactory();
+
+		factory = new HttpTunnelClientChannelFactory(outboundFactory, new MetricsRegistry());
+		factory.enableTunnelPool(1, 1, TimeUnit.MINUTES);
+	}
+
+	@After
+	public void tearDown() {
+		factory.releaseExternalResources();
+	}
+
+	@Test
+	public void testConnectTakesOverPooledTunnel() {
+		final HttpTunnelClientChannel first = factory.newChannel(Channels.pipeline());
+		Channels.connect(first, REMOTE_ADDRESS);
+
+		// The first connection fills the pool, after its own send and poll
+		// channels
+		assertEquals(4, outboundFactory.createdChannels.size());
+		final FakeSocketChannel pooledSendChannel = outboundFactory.createdChannels.get(2);
+		final FakeSocketChannel pooledPollChannel = outboundFactory.createdChannels.get(3);
+
+		this.emulateOpen(pooledSendChannel, pooledPollChannel, "pooledTunnel");
+
+		final ChannelPipeline pipeline = Channels.pipeline();
+		final UpstreamEventCatcher upstreamCatcher = new UpstreamEventCatcher();
+		pipeline.addLast(UpstreamEventCatcher.NAME, upstreamCatcher);
+
+		final HttpTunnelClientChannel second = factory.newChannel(pipeline);
+		final ChannelFuture connectFuture = Channels.connect(second, REMOTE_ADDRESS);
+
+		assertTrue(connectFuture.isSuccess());
+		assertTrue(second.isConnected());
+		assertSame(pooledSendChannel.getLocalAddress(), second.getLocalAddress());
+
+		upstreamCatcher.events.poll(); // open
+		this.checkIsStateEvent(upstreamCatcher.events.poll(), ChannelState.BOUND);
+		this.checkIsStateEvent(upstreamCatcher.events.poll(), ChannelState.CONNECTED);
+
+		// Writes go straight out over the pooled tunnel's send channel
+		final FakeChannelSink sendSink = (FakeChannelSink) pooledSendChannel.sink;
+		sendSink.events.clear();
+
+		second.write(ChannelBuffers.wrappedBuffer(new byte[10]));
+
+		final ChannelEvent event = sendSink.events.poll();
+		assertNotNull(event);
+		final ChannelBuffer request = (ChannelBuffer) ((MessageEvent) event).getMessage();
+		assertTrue(request.toString(CharsetUtil.US_ASCII).contains("Cookie: pooledTunnel"));
+	}
+
+	@Test
+	public void testDataReceivedWhilePooledIsHandedOver() throws InterruptedException {
+		final HttpTunnelClientChannel first = factory.newChannel(Channels.pipeline());
+		Channels.connect(first, REMOTE_ADDRESS);
+
+		final FakeSocketChannel pooledPollChannel = outboundFactory.createdChannels.get(3);
+		this.emulateOpen(outboundFactory.createdChannels.get(2), pooledPollChannel, "pooledTunnel");
+
+		// The server speaks first, before the tunnel is taken from the pool
+		Channels.fireMessageReceived(pooledPollChannel, HttpTunnelMessageUtils.createRecvDataResponse(NettyTestUtils.createData(1234L)));
+
+		final BlockingQueue<ChannelBuffer> received = new LinkedBlockingQueue<ChannelBuffer>();
+		final HttpTunnelClientChannel second = factory.newChannel(Channels.pipeline(new SimpleChannelUpstreamHandler() {
+			@Override
+			public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+				received.add((ChannelBuffer) e.getMessage());
+			}
+		}));
+
+		assertTrue(Channels.connect(second, REMOTE_ADDRESS).isSuccess());
+
+		NettyTestUtils.assertEquals(NettyTestUtils.createData(1234L), received.poll(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testBoundChannelsDoNotUsePool() {
+		final HttpTunnelClientChannel first = factory.newChannel(Channels.pipeline());
+		Channels.connect(first, REMOTE_ADDRESS);
+
+		this.emulateOpen(outboundFactory.createdChannels.get(2), outboundFactory.createdChannels.get(3), "pooledTunnel");
+
+		final HttpTunnelClientChannel second = factory.newChannel(Channels.pipeline());
+		Channels.bind(second, LOCAL_ADDRESS);
+
+		assertFalse(Channels.connect(second, REMOTE_ADDRESS).isDone());
+	}
+
+	private void emulateOpen(FakeSocketChannel sendChannel, FakeSocketChannel pollChannel, String tunnelId) {
+		final FakeChannelSink sendSink = (FakeChannelSink) sendChannel.sink;
+		final FakeChannelSink pollSink = (FakeChannelSink) pollChannel.sink;
+
+		sendChannel.emulateConnected(LOCAL_ADDRESS, REMOTE_ADDRESS, this.findConnectFuture(sendSink));
+		Channels.fireMessageReceived(sendChannel, HttpTunnelMessageUtils.createTunnelOpenResponse(tunnelId));
+
+		pollChannel.emulateConnected(LOCAL_ADDRESS, REMOTE_ADDRESS, this.findConnectFuture(pollSink));
+	}
+
+	private ChannelFuture findConnectFuture(FakeChannelSink sink) {
+		for (ChannelEvent event : sink.events) {
+			if (event instanceof ChannelStateEvent && ((ChannelStateEvent) event).getState() == ChannelState.CONNECTED)
+				return event.getFuture();
+		}
+
+		throw new AssertionError("No connect request sent");
+	}
+
+	private void checkIsStateEvent(ChannelEvent event, ChannelState state) {
+		assertTrue(event instanceof ChannelStateEvent);
+		assertEquals(state, ((ChannelStateEvent) event).getState());
+	}
+}
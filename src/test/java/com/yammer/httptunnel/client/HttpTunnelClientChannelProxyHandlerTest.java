@@ -0,0 +1,166 @@
+package com.yammer.httptunnel.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.FakeChannelSink;
+import com.yammer.httptunnel.FakeSocketChannel;
+import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+
+public class HttpTunnelClientChannelProxyHandlerTest {
+
+	private static final InetSocketAddress PROXY_ADDRESS = new InetSocketAddress("127.0.0.1", 8888);
+
+	private ProxyAuthCache authCache;
+	private AtomicInteger credentialRequests;
+	private AtomicInteger failures;
+
+	@Before
+	public void setUp() {
+		authCache = new ProxyAuthCache();
+		credentialRequests = new AtomicInteger(0);
+		failures = new AtomicInteger(0);
+
+		Authenticator.setDefault(new Authenticator() {
+			@Override
+			protected PasswordAuthentication getPasswordAuthentication() {
+				credentialRequests.incrementAndGet();
+				return new PasswordAuthentication("user", "secret".toCharArray());
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		Authenticator.setDefault(null);
+	}
+
+	private FakeSocketChannel createChannel(FakeChannelSink sink) {
+		final ChannelPipeline pipeline = Channels.pipeline();
+		pipeline.addLast(HttpTunnelClientChannelProxyHandler.NAME, new HttpTunnelClientChannelProxyHandler(authCache));
+		pipeline.addLast("failures", new SimpleChannelUpstreamHandler() {
+			@Override
+			public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+				failures.incrementAndGet();
+			}
+		});
+
+		final FakeSocketChannel channel = new FakeSocketChannel(null, null, pipeline, sink);
+		channel.remoteAddress = PROXY_ADDRESS;
+
+		return channel;
+	}
+
+	private HttpRequest sendRequest(FakeSocketChannel channel, FakeChannelSink sink) {
+		Channels.write(channel, HttpTunnelMessageUtils.createOpenTunnelRequest("localhost", "test"));
+		return (HttpRequest) ((MessageEvent) sink.events.poll()).getMessage();
+	}
+
+	private void challenge(FakeSocketChannel channel, String... challenges) {
+		final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED);
+		for (String challenge : challenges)
+			response.addHeader(HttpHeaders.Names.PROXY_AUTHENTICATE, challenge);
+
+		Channels.fireMessageReceived(channel, response, PROXY_ADDRESS);
+	}
+
+	@Test
+	public void testLaterConnectionsAuthenticatePreemptively() {
+		final FakeChannelSink firstSink = new FakeChannelSink();
+		final FakeSocketChannel first = this.createChannel(firstSink);
+
+		assertFalse(this.sendRequest(first, firstSink).containsHeader(HttpHeaders.Names.PROXY_AUTHORIZATION));
+
+		this.challenge(first, "Basic realm=\"proxy\"");
+
+		final HttpRequest resent = (HttpRequest) ((MessageEvent) firstSink.events.poll()).getMessage();
+		assertEquals("Basic dXNlcjpzZWNyZXQ=", resent.getHeader(HttpHeaders.Names.PROXY_AUTHORIZATION));
+
+		final FakeChannelSink secondSink = new FakeChannelSink();
+		final FakeSocketChannel second = this.createChannel(secondSink);
+
+		assertEquals("Basic dXNlcjpzZWNyZXQ=", this.sendRequest(second, secondSink).getHeader(HttpHeaders.Names.PROXY_AUTHORIZATION));
+		assertEquals(1, credentialRequests.get());
+		assertEquals(0, failures.get());
+	}
+
+	@Test
+	public void testDigestNonceCountIncreases() {
+		final FakeChannelSink sink = new FakeChannelSink();
+		final FakeSocketChannel channel = this.createChannel(sink);
+
+		this.sendRequest(channel, sink);
+		this.challenge(channel, "Digest realm=\"proxy\", nonce=\"abc\", qop=\"auth\"");
+
+		final String first = ((HttpRequest) ((MessageEvent) sink.events.poll()).getMessage()).getHeader(HttpHeaders.Names.PROXY_AUTHORIZATION);
+		final String second = this.sendRequest(channel, sink).getHeader(HttpHeaders.Names.PROXY_AUTHORIZATION);
+
+		assertTrue(first.startsWith("Digest "));
+		assertTrue(first.contains("nonce=\"abc\""));
+		assertTrue(second.contains("nonce=\"abc\""));
+		assertTrue(this.nonceCount(second) > this.nonceCount(first));
+	}
+
+	@Test
+	public void testStaleNonceRefreshedWithoutNewCredentials() {
+		final FakeChannelSink sink = new FakeChannelSink();
+		final FakeSocketChannel channel = this.createChannel(sink);
+
+		this.sendRequest(channel, sink);
+		this.challenge(channel, "Digest realm=\"proxy\", nonce=\"abc\", qop=\"auth\"");
+		sink.events.clear();
+
+		this.sendRequest(channel, sink);
+		this.challenge(channel, "Digest realm=\"proxy\", nonce=\"def\", qop=\"auth\", stale=true");
+
+		final String resent = ((HttpRequest) ((MessageEvent) sink.events.poll()).getMessage()).getHeader(HttpHeaders.Names.PROXY_AUTHORIZATION);
+		assertTrue(resent.contains("nonce=\"def\""));
+		assertEquals(1, credentialRequests.get());
+		assertEquals(0, failures.get());
+	}
+
+	@Test
+	public void testRejectedCredentialsInvalidated() {
+		final FakeChannelSink sink = new FakeChannelSink();
+		final FakeSocketChannel channel = this.createChannel(sink);
+
+		this.sendRequest(channel, sink);
+		this.challenge(channel, "Basic realm=\"proxy\"");
+		sink.events.clear();
+
+		// Challenged again despite authenticating
+		this.sendRequest(channel, sink);
+		this.challenge(channel, "Basic realm=\"proxy\"");
+
+		assertEquals(1, failures.get());
+		assertTrue(sink.events.isEmpty());
+		assertFalse(this.sendRequest(channel, sink).containsHeader(HttpHeaders.Names.PROXY_AUTHORIZATION));
+	}
+
+	private int nonceCount(String header) {
+		final int start = header.indexOf("nc=") + 3;
+		return Integer.parseInt(header.substring(start, start + 8), 16);
+	}
+}
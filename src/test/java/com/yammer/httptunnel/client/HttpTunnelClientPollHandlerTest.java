@@ -17,6 +17,7 @@
 package com.yammer.httptunnel.client;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.net.InetAddress;
@@ -34,9 +35,11 @@ import org.junit.Test;
 
 import com.yammer.httptunnel.FakeChannelSink;
 import com.yammer.httptunnel.FakeSocketChannel;
+import com.yammer.httptunnel.HttpTunnelMetrics;
 import com.yammer.httptunnel.client.HttpTunnelClientChannelPollHandler;
 import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
 import com.yammer.httptunnel.util.NettyTestUtils;
+import com.yammer.metrics.core.MetricsRegistry;
 
 /**
  * @author The Netty Project (netty-dev@lists.jboss.org)
@@ -80,7 +83,7 @@ public class HttpTunnelClientPollHandlerTest {
 		listener = new MockChannelStateListener(USER_AGENT);
 		listener.serverHostName = HttpTunnelMessageUtils
 				.convertToHostString(SERVER_ADDRESS);
-		handler = new HttpTunnelClientChannelPollHandler(listener);
+		handler = new HttpTunnelClientChannelPollHandler(listener, new HttpTunnelMetrics(new MetricsRegistry(), HttpTunnelClientChannel.class, false));
 		handler.setTunnelId(TUNNEL_ID);
 		pipeline.addLast(HttpTunnelClientChannelPollHandler.NAME, handler);
 
@@ -100,6 +103,23 @@ public class HttpTunnelClientPollHandlerTest {
 		assertTrue(listener.fullyEstablished);
 	}
 
+	@Test
+	public void testWaitsForTunnelIdWhenConnectedEarly() {
+		handler.setTunnelId(null);
+
+		Channels.fireChannelConnected(channel, PROXY_ADDRESS);
+		assertTrue(sink.events.isEmpty());
+		assertFalse(listener.fullyEstablished);
+
+		handler.setTunnelId(TUNNEL_ID);
+		handler.startPolling(channel);
+		handler.startPolling(channel);
+
+		assertEquals(1, sink.events.size());
+		assertTrue(HttpTunnelMessageUtils.isServerToClientRequest(checkIsMessageEventContainingHttpRequest(sink.events.poll()), USER_AGENT));
+		assertTrue(listener.fullyEstablished);
+	}
+
 	@Test
 	public void testSendsReceivedDataSentUpstream() {
 		HttpResponse response = HttpTunnelMessageUtils
@@ -118,6 +138,68 @@ public class HttpTunnelClientPollHandlerTest {
 		checkIsMessageEventContainingHttpRequest(sink.events.poll());
 	}
 
+	@Test
+	public void testDefersPollUntilReadyToReceive() {
+		listener.readyToReceive = false;
+
+		HttpResponse response = HttpTunnelMessageUtils
+				.createRecvDataResponse(NettyTestUtils.createData(1234L));
+		Channels.fireMessageReceived(channel, response);
+		assertEquals(1, listener.messages.size());
+		assertTrue(sink.events.isEmpty());
+		assertEquals(1, listener.pollsDeferred);
+
+		listener.readyToReceive = true;
+		handler.resumePolling();
+		handler.resumePolling();
+
+		assertEquals(1, sink.events.size());
+		assertTrue(HttpTunnelMessageUtils.isServerToClientRequest(checkIsMessageEventContainingHttpRequest(sink.events.poll()), USER_AGENT));
+	}
+
+	@Test
+	public void testDefersPollAfterPingUntilReadyToReceive() {
+		listener.readyToReceive = false;
+
+		Channels.fireMessageReceived(channel, HttpTunnelMessageUtils.createTunnelPingResponse(TUNNEL_ID));
+		assertTrue(sink.events.isEmpty());
+
+		handler.resumePolling();
+		assertEquals(1, sink.events.size());
+	}
+
+	@Test
+	public void testMarksDeferredPoll() {
+		listener.readyToReceive = false;
+
+		Channels.fireMessageReceived(channel, HttpTunnelMessageUtils.createTunnelPingResponse(TUNNEL_ID));
+
+		listener.readyToReceive = true;
+		handler.resumePolling();
+
+		HttpRequest request = checkIsMessageEventContainingHttpRequest(sink.events.poll());
+		assertEquals(HttpTunnelMessageUtils.POLL_DEFERRED, request.getHeader(HttpTunnelMessageUtils.POLL_HEADER));
+	}
+
+	@Test
+	public void testSendsKeepAliveWhileDeferred() {
+		listener.readyToReceive = false;
+
+		Channels.fireMessageReceived(channel, HttpTunnelMessageUtils.createTunnelPingResponse(TUNNEL_ID));
+
+		handler.sendKeepAlive();
+		handler.sendKeepAlive();
+		assertEquals(1, sink.events.size());
+
+		HttpRequest request = checkIsMessageEventContainingHttpRequest(sink.events.poll());
+		assertEquals(HttpTunnelMessageUtils.POLL_KEEP_ALIVE, request.getHeader(HttpTunnelMessageUtils.POLL_HEADER));
+
+		// The keep-alive is answered with a ping, and the poll deferred again
+		Channels.fireMessageReceived(channel, HttpTunnelMessageUtils.createTunnelPingResponse(TUNNEL_ID));
+		assertTrue(sink.events.isEmpty());
+		assertEquals(2, listener.pollsDeferred);
+	}
+
 	private HttpRequest checkIsMessageEventContainingHttpRequest(
 			ChannelEvent event) {
 		assertTrue(event instanceof DownstreamMessageEvent);
@@ -23,9 +23,12 @@ import static org.junit.Assert.assertTrue;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelState;
 import org.jboss.netty.channel.Channels;
@@ -37,9 +40,14 @@ import org.junit.Test;
 
 import com.yammer.httptunnel.FakeChannelSink;
 import com.yammer.httptunnel.FakeSocketChannel;
+import com.yammer.httptunnel.HttpTunnelMetrics;
+import com.yammer.httptunnel.MessageExpiredException;
+import com.yammer.httptunnel.MessagePriority;
+import com.yammer.httptunnel.OutboundMessage;
 import com.yammer.httptunnel.client.HttpTunnelClientChannelSendHandler;
 import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
 import com.yammer.httptunnel.util.NettyTestUtils;
+import com.yammer.metrics.core.MetricsRegistry;
 
 /**
  * @author The Netty Project (netty-dev@lists.jboss.org)
@@ -73,7 +81,7 @@ public class HttpTunnelClientSendHandlerTest {
 		listener = new MockChannelStateListener(USER_AGENT);
 		listener.serverHostName = HttpTunnelMessageUtils
 				.convertToHostString(SERVER_ADDRESS);
-		handler = new HttpTunnelClientChannelSendHandler(listener);
+		handler = new HttpTunnelClientChannelSendHandler(listener, new HttpTunnelMetrics(new MetricsRegistry(), HttpTunnelClientChannel.class, false));
 		pipeline.addLast(HttpTunnelClientChannelSendHandler.NAME, handler);
 		channel = new FakeSocketChannel(null, null, pipeline, sink);
 		channel.remoteAddress = PROXY_ADDRESS;
@@ -128,6 +136,59 @@ public class HttpTunnelClientSendHandlerTest {
 		assertEquals(1, sink.events.size());
 	}
 
+	@Test
+	public void testFastOpenCarriesFirstWrite() {
+		listener.fastOpen = true;
+
+		channel.write(NettyTestUtils.createData(1234L));
+		channel.write(NettyTestUtils.createData(5678L));
+		assertEquals(0, sink.events.size());
+
+		Channels.fireChannelConnected(channel, PROXY_ADDRESS);
+		assertEquals(1, sink.events.size());
+		HttpRequest request = NettyTestUtils.checkIsDownstreamMessageEvent(
+				sink.events.poll(), HttpRequest.class);
+		assertTrue(HttpTunnelMessageUtils.isOpenTunnelRequest(request, USER_AGENT));
+		NettyTestUtils.assertEquals(NettyTestUtils.createData(1234L),
+				request.getContent());
+
+		Channels.fireMessageReceived(channel, HttpTunnelMessageUtils
+				.createTunnelOpenResponse("newTunnel",
+						NettyTestUtils.createData(4321L)));
+		assertEquals("newTunnel", listener.tunnelId);
+		assertEquals(1, listener.messages.size());
+		NettyTestUtils.assertEquals(NettyTestUtils.createData(4321L),
+				listener.messages.get(0));
+
+		// The write queued while opening is sent with the new tunnel ID
+		assertEquals(1, sink.events.size());
+		ChannelEvent sentEvent = sink.events.peek();
+		checkIsSendDataRequestWithData(sentEvent,
+				NettyTestUtils.createData(5678L));
+		assertEquals("newTunnel", HttpTunnelMessageUtils
+				.extractTunnelId((HttpRequest) ((DownstreamMessageEvent) sentEvent)
+						.getMessage()));
+	}
+
+	@Test
+	public void testWritesBeforeConnectWaitForOpenWithoutFastOpen() {
+		channel.write(NettyTestUtils.createData(1234L));
+		assertEquals(0, sink.events.size());
+
+		Channels.fireChannelConnected(channel, PROXY_ADDRESS);
+		assertEquals(1, sink.events.size());
+		HttpRequest request = NettyTestUtils.checkIsDownstreamMessageEvent(
+				sink.events.poll(), HttpRequest.class);
+		assertTrue(HttpTunnelMessageUtils.isOpenTunnelRequest(request, USER_AGENT));
+		assertEquals(0, HttpHeaders.getContentLength(request));
+
+		Channels.fireMessageReceived(channel,
+				HttpTunnelMessageUtils.createTunnelOpenResponse("newTunnel"));
+		assertEquals(1, sink.events.size());
+		checkIsSendDataRequestWithData(sink.events.poll(),
+				NettyTestUtils.createData(1234L));
+	}
+
 	@Test
 	public void testOnlyOneRequestAtATime() {
 		emulateConnectAndOpen();
@@ -199,6 +260,80 @@ public class HttpTunnelClientSendHandlerTest {
 		assertFalse(channel.write(NettyTestUtils.createData(1234L)).isSuccess());
 	}
 
+	@Test
+	public void testHigherPriorityWritesGoFirst() {
+		emulateConnectAndOpen();
+
+		channel.write(NettyTestUtils.createData(1L));
+		sink.events.clear();
+
+		channel.write(new OutboundMessage(NettyTestUtils.createData(2L), MessagePriority.LOW));
+		channel.write(NettyTestUtils.createData(3L));
+		channel.write(new OutboundMessage(NettyTestUtils.createData(4L), MessagePriority.HIGH));
+
+		final long[] expected = { 4L, 3L, 2L };
+		for (long value : expected) {
+			Channels.fireMessageReceived(channel, HttpTunnelMessageUtils.createSendDataResponse());
+			assertEquals(1, sink.events.size());
+			checkIsSendDataRequestWithData(sink.events.poll(), NettyTestUtils.createData(value));
+		}
+	}
+
+	@Test
+	public void testFragmentsOfAWriteAreNotInterleaved() {
+		emulateConnectAndOpen();
+
+		final ChannelBuffer large = ChannelBuffers.wrappedBuffer(new byte[HttpTunnelMessageUtils.MAX_BODY_SIZE + 1]);
+		final ChannelFuture largeFuture = channel.write(new OutboundMessage(large, MessagePriority.LOW));
+		channel.write(new OutboundMessage(NettyTestUtils.createData(1234L), MessagePriority.HIGH));
+
+		assertEquals(1, sink.events.size());
+		checkIsSendDataRequestWithData(sink.events.poll(), large.slice(0, HttpTunnelMessageUtils.MAX_BODY_SIZE));
+
+		Channels.fireMessageReceived(channel, HttpTunnelMessageUtils.createSendDataResponse());
+		checkIsSendDataRequestWithData(sink.events.poll(), large.slice(HttpTunnelMessageUtils.MAX_BODY_SIZE, 1));
+
+		Channels.fireMessageReceived(channel, HttpTunnelMessageUtils.createSendDataResponse());
+		checkIsSendDataRequestWithData(sink.events.poll(), NettyTestUtils.createData(1234L));
+		assertFalse(largeFuture.isDone());
+	}
+
+	@Test
+	public void testExpiredWritesAreDropped() {
+		emulateConnectAndOpen();
+
+		channel.write(NettyTestUtils.createData(1L));
+		sink.events.clear();
+
+		final ChannelFuture expiredFuture = channel.write(new OutboundMessage(NettyTestUtils.createData(2L), MessagePriority.NORMAL, 0, TimeUnit.MILLISECONDS));
+		final ChannelFuture liveFuture = channel.write(new OutboundMessage(NettyTestUtils.createData(3L), MessagePriority.NORMAL, 1, TimeUnit.MINUTES));
+
+		Channels.fireMessageReceived(channel, HttpTunnelMessageUtils.createSendDataResponse());
+		assertEquals(1, sink.events.size());
+		checkIsSendDataRequestWithData(sink.events.poll(), NettyTestUtils.createData(3L));
+
+		assertTrue(expiredFuture.isDone());
+		assertTrue(expiredFuture.getCause() instanceof MessageExpiredException);
+		assertFalse(liveFuture.isDone());
+	}
+
+	@Test
+	public void testWriteAfterExpiredWritesIsSentImmediately() {
+		emulateConnectAndOpen();
+
+		channel.write(NettyTestUtils.createData(1L));
+		sink.events.clear();
+
+		channel.write(new OutboundMessage(NettyTestUtils.createData(2L), MessagePriority.NORMAL, 0, TimeUnit.MILLISECONDS));
+
+		Channels.fireMessageReceived(channel, HttpTunnelMessageUtils.createSendDataResponse());
+		assertEquals(0, sink.events.size());
+
+		channel.write(NettyTestUtils.createData(3L));
+		assertEquals(1, sink.events.size());
+		checkIsSendDataRequestWithData(sink.events.poll(), NettyTestUtils.createData(3L));
+	}
+
 	private void checkIsSendDataRequestWithData(ChannelEvent event,
 			ChannelBuffer data) {
 		assertTrue(event instanceof DownstreamMessageEvent);
@@ -19,11 +19,15 @@ package com.yammer.httptunnel.client;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelFuture;
 
+import com.yammer.httptunnel.HttpTunnelStatistics;
 import com.yammer.httptunnel.client.HttpTunnelClientWorkerOwner;
+import com.yammer.httptunnel.trace.MessageTrace;
+import com.yammer.httptunnel.trace.MessageTracer;
 
 /**
  * @author The Netty Project (netty-dev@lists.jboss.org)
@@ -39,6 +43,16 @@ public class MockChannelStateListener implements HttpTunnelClientWorkerOwner {
 
 	public String serverHostName = null;
 
+	public HttpTunnelStatistics statistics = new HttpTunnelStatistics();
+
+	public MessageTracer messageTracer = null;
+
+	public boolean fastOpen = false;
+
+	public boolean readyToReceive = true;
+
+	public int pollsDeferred = 0;
+
 	private final String userAgent;
 
 	public MockChannelStateListener(String userAgent) {
@@ -56,7 +70,7 @@ public class MockChannelStateListener implements HttpTunnelClientWorkerOwner {
 	}
 
 	@Override
-	public void onMessageReceived(ChannelBuffer content) {
+	public void onMessageReceived(ChannelBuffer content, MessageTrace trace) {
 		messages.add(content);
 	}
 
@@ -80,6 +94,26 @@ public class MockChannelStateListener implements HttpTunnelClientWorkerOwner {
 		return userAgent;
 	}
 
+	@Override
+	public HttpTunnelStatistics getStatistics() {
+		return statistics;
+	}
+
+	@Override
+	public MessageTracer getMessageTracer() {
+		return messageTracer;
+	}
+
+	@Override
+	public boolean isFastOpen() {
+		return fastOpen;
+	}
+
+	@Override
+	public void onSendCompleted(long roundTripTime) {
+		statistics.rttSampled(roundTripTime, TimeUnit.NANOSECONDS);
+	}
+
 	@Override
 	public boolean isConnected() {
 		return true;
@@ -90,6 +124,16 @@ public class MockChannelStateListener implements HttpTunnelClientWorkerOwner {
 		// not relevant for test
 	}
 
+	@Override
+	public boolean isReadyToReceive() {
+		return readyToReceive;
+	}
+
+	@Override
+	public void onPollDeferred() {
+		pollsDeferred++;
+	}
+
 	@Override
 	public boolean isConnecting() {
 		return false;
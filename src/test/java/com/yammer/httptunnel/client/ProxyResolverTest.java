@@ -0,0 +1,113 @@
+package com.yammer.httptunnel.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProxyResolverTest {
+
+	private static final InetSocketAddress SERVER = InetSocketAddress.createUnresolved("tunnel.example.com", 80);
+	private static final InetSocketAddress OTHER_SERVER = InetSocketAddress.createUnresolved("other.example.com", 80);
+
+	private static final Proxy FIRST = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("first.example.com", 3128));
+	private static final Proxy SECOND = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("second.example.com", 3128));
+	private static final Proxy SOCKS = new Proxy(Proxy.Type.SOCKS, InetSocketAddress.createUnresolved("socks.example.com", 1080));
+
+	private static final long TTL = 1000;
+	private static final long PENALTY = 100;
+
+	private CountingSelector selector;
+	private ProxyResolver resolver;
+
+	@Before
+	public void setUp() {
+		selector = new CountingSelector(Arrays.asList(FIRST, SECOND, Proxy.NO_PROXY));
+		resolver = new ProxyResolver(selector, TTL, PENALTY);
+	}
+
+	@Test
+	public void testDecisionCached() {
+		assertEquals(Arrays.asList(FIRST, SECOND, Proxy.NO_PROXY), resolver.select(SERVER, 0));
+		assertEquals(Arrays.asList(FIRST, SECOND, Proxy.NO_PROXY), resolver.select(SERVER, TTL));
+		assertEquals(1, selector.selects);
+
+		resolver.select(SERVER, TTL + 1);
+		assertEquals(2, selector.selects);
+	}
+
+	@Test
+	public void testFailedProxyTriedLast() {
+		resolver.connectFailed(SERVER, FIRST, new IOException("refused"), 0);
+
+		assertEquals(Arrays.asList(SECOND, Proxy.NO_PROXY, FIRST), resolver.select(SERVER, PENALTY - 1));
+		assertEquals(Arrays.asList(FIRST.address()), selector.failures);
+
+		// Restored once the penalty has passed
+		assertEquals(Arrays.asList(FIRST, SECOND, Proxy.NO_PROXY), resolver.select(SERVER, PENALTY));
+	}
+
+	@Test
+	public void testSucceededProxyRestored() {
+		resolver.connectFailed(SERVER, FIRST, new IOException("refused"), 0);
+		resolver.connectSucceeded(SERVER, FIRST);
+
+		assertEquals(Arrays.asList(FIRST, SECOND, Proxy.NO_PROXY), resolver.select(SERVER, 0));
+	}
+
+	@Test
+	public void testFailedDirectConnectionOnlyAffectsServer() {
+		resolver = new ProxyResolver(new CountingSelector(Arrays.asList(Proxy.NO_PROXY, FIRST)), TTL, PENALTY);
+		resolver.connectFailed(SERVER, Proxy.NO_PROXY, new IOException("refused"), 0);
+
+		assertEquals(Arrays.asList(FIRST, Proxy.NO_PROXY), resolver.select(SERVER, 0));
+		assertEquals(Arrays.asList(Proxy.NO_PROXY, FIRST), resolver.select(OTHER_SERVER, 0));
+
+		resolver.connectSucceeded(SERVER, Proxy.NO_PROXY);
+		assertEquals(Arrays.asList(Proxy.NO_PROXY, FIRST), resolver.select(SERVER, 0));
+	}
+
+	@Test
+	public void testUnsupportedProxiesConnectDirectly() {
+		resolver = new ProxyResolver(new CountingSelector(Arrays.asList(SOCKS, FIRST, Proxy.NO_PROXY)), TTL, PENALTY);
+		assertEquals(Arrays.asList(Proxy.NO_PROXY, FIRST), resolver.select(SERVER, 0));
+
+		resolver = new ProxyResolver(new CountingSelector(new ArrayList<Proxy>()), TTL, PENALTY);
+		assertEquals(Arrays.asList(Proxy.NO_PROXY), resolver.select(SERVER, 0));
+	}
+
+	private static class CountingSelector extends ProxySelector {
+
+		private final List<Proxy> proxies;
+		private final List<SocketAddress> failures;
+		private int selects;
+
+		private CountingSelector(List<Proxy> proxies) {
+			this.proxies = proxies;
+
+			failures = new ArrayList<SocketAddress>();
+			selects = 0;
+		}
+
+		@Override
+		public List<Proxy> select(URI uri) {
+			selects++;
+			return proxies;
+		}
+
+		@Override
+		public void connectFailed(URI uri, SocketAddress address, IOException e) {
+			failures.add(address);
+		}
+	}
+}
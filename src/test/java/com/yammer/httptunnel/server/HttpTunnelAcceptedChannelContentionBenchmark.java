@@ -0,0 +1,164 @@
+package com.yammer.httptunnel.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import com.yammer.httptunnel.FakeSocketChannel;
+import com.yammer.httptunnel.util.HttpTunnelServerTestUtils;
+
+/**
+ * Micro benchmark measuring outbound throughput of a single tunnel while
+ * several application threads write to it concurrently, and a poller thread
+ * continually supplies poll channels which complete their writes immediately.
+ * Both the rate at which writers get their messages queued and the rate at
+ * which messages are delivered are reported. The serialised runs hold a lock
+ * around every call into the tunnel, as the synchronized outbound path used
+ * to, for comparison. Contention only shows up with several cores available.
+ * Run from an IDE or with <code>java -cp ... com.yammer.httptunnel.server.HttpTunnelAcceptedChannelContentionBenchmark</code>.
+ */
+public class HttpTunnelAcceptedChannelContentionBenchmark {
+
+	private static final int[] WRITER_COUNTS = { 1, 2, 4, 8 };
+	private static final int MESSAGES_PER_RUN = 400000;
+	private static final int WARMUP_RUNS = 3;
+	private static final int RUNS = 5;
+
+	private static final ChannelBuffer MESSAGE = ChannelBuffers.wrappedBuffer(new byte[64]);
+
+	public static void main(String[] args) throws Exception {
+		final HttpTunnelServerChannel serverChannel = createServerChannel();
+
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			run(serverChannel, 4, false, new long[2]);
+			run(serverChannel, 4, true, new long[2]);
+		}
+
+		for (int writers : WRITER_COUNTS) {
+			final long[] lockFreeTimes = new long[2];
+			final long[] serialisedTimes = new long[2];
+
+			for (int i = 0; i < RUNS; i++) {
+				run(serverChannel, writers, false, lockFreeTimes);
+				run(serverChannel, writers, true, serialisedTimes);
+			}
+
+			final double messages = (double) RUNS * MESSAGES_PER_RUN;
+
+			System.out.println(String.format("%d writer(s): lock free %.0f queued/ms %.0f delivered/ms, serialised %.0f queued/ms %.0f delivered/ms", writers, messages / (lockFreeTimes[0] / 1e6), messages / (lockFreeTimes[1] / 1e6), messages / (serialisedTimes[0] / 1e6), messages / (serialisedTimes[1] / 1e6)));
+		}
+
+		// The tunnels' ping executors are never shut down
+		System.exit(0);
+	}
+
+	private static HttpTunnelServerChannel createServerChannel() {
+		return HttpTunnelServerTestUtils.createServerChannel(new ChannelPipelineFactory() {
+			@Override
+			public ChannelPipeline getPipeline() {
+				return Channels.pipeline(new SimpleChannelUpstreamHandler());
+			}
+		});
+	}
+
+	/**
+	 * Adds the time taken for all writers to return and for all messages to
+	 * be delivered to the given totals.
+	 */
+	private static void run(HttpTunnelServerChannel serverChannel, int writers, final boolean serialised, long[] times) throws InterruptedException {
+		final HttpTunnelAcceptedChannel tunnel = HttpTunnelServerTestUtils.createTunnel(serverChannel);
+		final Object lock = new Object();
+
+		final AtomicInteger delivered = new AtomicInteger(0);
+		final FakeSocketChannel pollChannel = new FakeSocketChannel(null, null, Channels.pipeline(), new AbstractChannelSink() {
+			@Override
+			public void eventSunk(ChannelPipeline pipeline, ChannelEvent e) {
+				if (e instanceof MessageEvent) {
+					delivered.incrementAndGet();
+					e.getFuture().setSuccess();
+				}
+			}
+		});
+
+		final int messagesPerWriter = MESSAGES_PER_RUN / writers;
+		final int total = messagesPerWriter * writers;
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(writers);
+		for (int i = 0; i < writers; i++) {
+			final Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+
+					for (int j = 0; j < messagesPerWriter; j++) {
+						final MessageEvent message = new DownstreamMessageEvent(tunnel, Channels.future(tunnel), MESSAGE.duplicate(), null);
+
+						if (serialised) {
+							synchronized (lock) {
+								tunnel.sendMessage(message);
+							}
+						}
+						else
+							tunnel.sendMessage(message);
+					}
+
+					finished.countDown();
+				}
+			};
+
+			thread.start();
+		}
+
+		final long startTime = System.nanoTime();
+		start.countDown();
+
+		long writeTime = 0;
+
+		// Keep a poll request outstanding until everything is delivered
+		while (delivered.get() < total) {
+			if (writeTime == 0 && finished.getCount() == 0)
+				writeTime = System.nanoTime() - startTime;
+
+			try {
+				if (serialised) {
+					synchronized (lock) {
+						tunnel.pollQueuedData(pollChannel);
+					}
+				}
+				else
+					tunnel.pollQueuedData(pollChannel);
+			}
+			catch (IllegalStateException e) {
+				// Previous poll request is still waiting for data
+				Thread.yield();
+			}
+		}
+
+		final long deliveryTime = System.nanoTime() - startTime;
+
+		finished.await();
+		if (writeTime == 0)
+			writeTime = System.nanoTime() - startTime;
+
+		times[0] += writeTime;
+		times[1] += deliveryTime;
+
+		tunnel.close();
+	}
+}
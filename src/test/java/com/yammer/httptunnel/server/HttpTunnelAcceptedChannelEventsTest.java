@@ -0,0 +1,63 @@
+package com.yammer.httptunnel.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.trace.TunnelEventAdapter;
+import com.yammer.httptunnel.util.HttpTunnelServerTestUtils;
+
+public class HttpTunnelAcceptedChannelEventsTest {
+
+	private HttpTunnelServerChannel serverChannel;
+	private List<String> events;
+
+	@Before
+	public void setUp() {
+		serverChannel = HttpTunnelServerTestUtils.createServerChannel();
+
+		events = new ArrayList<String>();
+		serverChannel.getConfig().setEventListener(new TunnelEventAdapter() {
+			@Override
+			public void tunnelOpened(Channel tunnel) {
+				events.add("opened");
+			}
+
+			@Override
+			public void tunnelClosed(Channel tunnel, boolean timedOut) {
+				events.add("closed " + timedOut);
+			}
+
+			@Override
+			public void pollParked(Channel tunnel) {
+				events.add("parked");
+			}
+
+			@Override
+			public void pollReleased(Channel tunnel, long waitTime, boolean data) {
+				events.add("released " + data);
+			}
+		});
+	}
+
+	@Test
+	public void testPollLifecycle() {
+		final HttpTunnelAcceptedChannel tunnel = HttpTunnelServerTestUtils.createTunnel(serverChannel);
+
+		tunnel.pollQueuedData(HttpTunnelServerTestUtils.createCompletingRequestChannel());
+		HttpTunnelServerTestUtils.send(tunnel, ChannelBuffers.wrappedBuffer(new byte[10]));
+		tunnel.close();
+
+		assertEquals(4, events.size());
+		assertEquals("opened", events.get(0));
+		assertEquals("parked", events.get(1));
+		assertEquals("released true", events.get(2));
+		assertEquals("closed false", events.get(3));
+	}
+}
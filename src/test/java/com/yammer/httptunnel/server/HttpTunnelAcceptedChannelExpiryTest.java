@@ -0,0 +1,93 @@
+package com.yammer.httptunnel.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.MessageEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.FakeSocketChannel;
+import com.yammer.httptunnel.MessageExpiredException;
+import com.yammer.httptunnel.MessagePriority;
+import com.yammer.httptunnel.OutboundMessage;
+import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+import com.yammer.httptunnel.util.HttpTunnelServerTestUtils;
+import com.yammer.httptunnel.util.NettyTestUtils;
+
+public class HttpTunnelAcceptedChannelExpiryTest {
+
+	private HttpTunnelServerChannel serverChannel;
+	private HttpTunnelAcceptedChannel tunnel;
+
+	@Before
+	public void setUp() {
+		serverChannel = HttpTunnelServerTestUtils.createServerChannel();
+		tunnel = HttpTunnelServerTestUtils.createTunnel(serverChannel);
+	}
+
+	private ChannelFuture send(Object message) {
+		return HttpTunnelServerTestUtils.send(tunnel, message);
+	}
+
+	private MessageEvent poll() {
+		final FakeSocketChannel channel = HttpTunnelServerTestUtils.createRequestChannel();
+		tunnel.pollQueuedData(channel);
+
+		return HttpTunnelServerTestUtils.getResponse(channel);
+	}
+
+	private void assertResponse(ChannelBuffer expected, MessageEvent response) {
+		final ChannelBuffer encoded = NettyTestUtils.checkIsDownstreamMessageEvent(response, ChannelBuffer.class);
+		NettyTestUtils.assertEquals(HttpTunnelMessageUtils.encodeRecvDataResponse(expected), encoded);
+	}
+
+	@Test
+	public void testExpiredMessagesAreDropped() {
+		final ChannelFuture expiredFuture = this.send(new OutboundMessage(NettyTestUtils.createData(1L), MessagePriority.NORMAL, 0, TimeUnit.MILLISECONDS));
+		final ChannelFuture liveFuture = this.send(new OutboundMessage(NettyTestUtils.createData(2L), MessagePriority.NORMAL, 1, TimeUnit.MINUTES));
+
+		this.assertResponse(NettyTestUtils.createData(2L), this.poll());
+
+		assertTrue(expiredFuture.isDone());
+		assertTrue(expiredFuture.getCause() instanceof MessageExpiredException);
+		assertFalse(liveFuture.isDone());
+	}
+
+	@Test
+	public void testFragmentedMessageIsFailedWhole() {
+		final ChannelBuffer large = ChannelBuffers.wrappedBuffer(new byte[HttpTunnelMessageUtils.MAX_BODY_SIZE + 1]);
+		final ChannelFuture expiredFuture = this.send(new OutboundMessage(large, MessagePriority.NORMAL, 0, TimeUnit.MILLISECONDS));
+
+		assertFalse(expiredFuture.isDone());
+
+		this.send(NettyTestUtils.createData(3L));
+		this.assertResponse(NettyTestUtils.createData(3L), this.poll());
+
+		assertTrue(expiredFuture.getCause() instanceof MessageExpiredException);
+		assertEquals(8, tunnel.getStatistics().getQueuedBytes());
+	}
+
+	@Test
+	public void testPartlySentMessageIsNotExpired() throws InterruptedException {
+		serverChannel.getConfig().setPollResponseScheduler(new PollResponseScheduler(1000, 100000));
+		tunnel = HttpTunnelServerTestUtils.createTunnel(serverChannel);
+
+		final ChannelBuffer data = ChannelBuffers.wrappedBuffer(new byte[1500]);
+		final ChannelFuture future = this.send(new OutboundMessage(data, MessagePriority.NORMAL, 100, TimeUnit.MILLISECONDS));
+
+		// The scheduler's quantum splits the only fragment of the message
+		this.assertResponse(data.slice(0, 1000), this.poll());
+
+		Thread.sleep(150);
+
+		this.assertResponse(data.slice(1000, 500), this.poll());
+		assertFalse(future.isDone());
+	}
+}
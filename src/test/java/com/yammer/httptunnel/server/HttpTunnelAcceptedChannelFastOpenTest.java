@@ -0,0 +1,72 @@
+package com.yammer.httptunnel.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.FakeSocketChannel;
+import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+import com.yammer.httptunnel.util.HttpTunnelServerTestUtils;
+import com.yammer.httptunnel.util.NettyTestUtils;
+
+public class HttpTunnelAcceptedChannelFastOpenTest {
+
+	private HttpTunnelServerChannel serverChannel;
+	private FakeSocketChannel openChannel;
+	private boolean echo;
+
+	@Before
+	public void setUp() {
+		serverChannel = HttpTunnelServerTestUtils.createServerChannel(new ChannelPipelineFactory() {
+			@Override
+			public ChannelPipeline getPipeline() {
+				return Channels.pipeline(new SimpleChannelUpstreamHandler() {
+					@Override
+					public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+						if (echo)
+							e.getChannel().write(e.getMessage());
+					}
+				});
+			}
+		});
+
+		openChannel = HttpTunnelServerTestUtils.createRequestChannel();
+
+		echo = false;
+	}
+
+	@Test
+	public void testOpenResponseCarriesReply() {
+		echo = true;
+
+		final HttpTunnelAcceptedChannel tunnel = HttpTunnelServerTestUtils.createTunnel(serverChannel);
+		tunnel.internalReceiveInitialMessage(NettyTestUtils.createData(1234L), null);
+		tunnel.respondToOpen(openChannel, 8);
+
+		final HttpResponse response = NettyTestUtils.checkIsDownstreamMessageEvent(HttpTunnelServerTestUtils.getResponse(openChannel), HttpResponse.class);
+		assertTrue(HttpTunnelMessageUtils.isTunnelOpenResponse(response));
+		assertEquals(tunnel.getTunnelId().toString(), HttpTunnelMessageUtils.extractCookie(response));
+		NettyTestUtils.assertEquals(NettyTestUtils.createData(1234L), response.getContent());
+	}
+
+	@Test
+	public void testOpenResponseWithoutReply() {
+		final HttpTunnelAcceptedChannel tunnel = HttpTunnelServerTestUtils.createTunnel(serverChannel);
+		tunnel.internalReceiveInitialMessage(NettyTestUtils.createData(1234L), null);
+		tunnel.respondToOpen(openChannel, 8);
+
+		final ChannelBuffer response = NettyTestUtils.checkIsDownstreamMessageEvent(HttpTunnelServerTestUtils.getResponse(openChannel), ChannelBuffer.class);
+		assertEquals(ChannelBuffers.wrappedBuffer(HttpTunnelMessageUtils.encodeTunnelOpenResponse(tunnel.getEncodedTunnelId())), response);
+	}
+}
@@ -0,0 +1,91 @@
+package com.yammer.httptunnel.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.MessageEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.FakeSocketChannel;
+import com.yammer.httptunnel.util.EncodedResponseTemplate;
+import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+import com.yammer.httptunnel.util.HttpTunnelServerTestUtils;
+import com.yammer.httptunnel.util.NettyTestUtils;
+
+public class HttpTunnelAcceptedChannelKeepAliveTest {
+
+	private HttpTunnelAcceptedChannel tunnel;
+
+	@Before
+	public void setUp() {
+		tunnel = HttpTunnelServerTestUtils.createTunnel(HttpTunnelServerTestUtils.createServerChannel());
+	}
+
+	private void send(Object message) {
+		HttpTunnelServerTestUtils.send(tunnel, message);
+	}
+
+	private MessageEvent poll(boolean sampleRtt) {
+		final FakeSocketChannel channel = HttpTunnelServerTestUtils.createRequestChannel();
+		tunnel.pollQueuedData(channel, sampleRtt);
+
+		return HttpTunnelServerTestUtils.getResponse(channel);
+	}
+
+	private MessageEvent keepAlive() {
+		final FakeSocketChannel channel = HttpTunnelServerTestUtils.createRequestChannel();
+		tunnel.keepAlive(channel);
+
+		return HttpTunnelServerTestUtils.getResponse(channel);
+	}
+
+	private void assertIsPing(MessageEvent response) {
+		final ChannelBuffer encoded = NettyTestUtils.checkIsDownstreamMessageEvent(response, ChannelBuffer.class);
+		NettyTestUtils.assertEquals(HttpTunnelMessageUtils.encodeTunnelPingResponse(EncodedResponseTemplate.toHeaderBytes(tunnel.getTunnelId().toString())), encoded);
+	}
+
+	@Test
+	public void testKeepAliveIsAnsweredWithPing() {
+		this.send(NettyTestUtils.createData(1L));
+
+		this.assertIsPing(this.keepAlive());
+		assertEquals(8, tunnel.getStatistics().getQueuedBytes());
+
+		// The data is still there for the next real poll
+		final ChannelBuffer encoded = NettyTestUtils.checkIsDownstreamMessageEvent(this.poll(true), ChannelBuffer.class);
+		NettyTestUtils.assertEquals(HttpTunnelMessageUtils.encodeRecvDataResponse(NettyTestUtils.createData(1L)), encoded);
+	}
+
+	@Test
+	public void testDeferredPollIsNotSampled() {
+		this.send(NettyTestUtils.createData(1L));
+		this.poll(true);
+
+		this.send(NettyTestUtils.createData(2L));
+		this.poll(false);
+
+		assertEquals(0, tunnel.getStatistics().getSmoothedRtt(TimeUnit.NANOSECONDS));
+
+		this.send(NettyTestUtils.createData(3L));
+		this.poll(true);
+
+		assertTrue(tunnel.getStatistics().getSmoothedRtt(TimeUnit.NANOSECONDS) > 0);
+	}
+
+	@Test
+	public void testPollAfterKeepAliveIsNotSampled() {
+		this.send(NettyTestUtils.createData(1L));
+		this.poll(true);
+
+		this.keepAlive();
+
+		this.send(NettyTestUtils.createData(2L));
+		this.poll(true);
+
+		assertEquals(0, tunnel.getStatistics().getSmoothedRtt(TimeUnit.NANOSECONDS));
+	}
+}
@@ -0,0 +1,80 @@
+package com.yammer.httptunnel.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.FakeSocketChannel;
+import com.yammer.httptunnel.util.HttpTunnelRequest;
+import com.yammer.httptunnel.util.HttpTunnelServerTestUtils;
+
+public class HttpTunnelAdminEndpointTest {
+
+	private HttpTunnelServerChannel serverChannel;
+	private HttpTunnelAdminEndpoint endpoint;
+
+	@Before
+	public void setUp() {
+		serverChannel = HttpTunnelServerTestUtils.createServerChannel();
+		endpoint = new HttpTunnelAdminEndpoint(serverChannel);
+	}
+
+	@Test
+	public void testListsTunnels() {
+		final HttpTunnelAcceptedChannel first = serverChannel.createTunnel(new InetSocketAddress(1234));
+		final HttpTunnelAcceptedChannel second = serverChannel.createTunnel(new InetSocketAddress(5678));
+
+		// Queue some data, which stays queued as there is no poll request
+		HttpTunnelServerTestUtils.send(second, ChannelBuffers.wrappedBuffer(new byte[100]));
+
+		// Received data stays buffered while the tunnel isn't readable
+		first.setReadable(false);
+		first.internalReceiveMessage(ChannelBuffers.wrappedBuffer(new byte[30]), null);
+		first.internalReceiveMessage(ChannelBuffers.wrappedBuffer(new byte[20]), null);
+
+		final String[] lines = endpoint.snapshot(System.nanoTime()).toString(CharsetUtil.US_ASCII).split("\n");
+		assertEquals(3, lines.length);
+		assertTrue(lines[0].startsWith("id\t"));
+
+		for (int i = 1; i < lines.length; i++) {
+			final String[] columns = lines[i].split("\t");
+			assertEquals(9, columns.length);
+			assertEquals("-", columns[3]);
+
+			if (columns[0].equals(first.getTunnelId().toString())) {
+				assertEquals("0", columns[4]);
+				assertEquals("50", columns[5]);
+			}
+			else {
+				assertEquals(second.getTunnelId().toString(), columns[0]);
+				assertEquals("100", columns[4]);
+				assertEquals("0", columns[5]);
+			}
+		}
+
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testRespondsWithSnapshot() {
+		HttpTunnelServerTestUtils.createTunnel(serverChannel).close();
+
+		final FakeSocketChannel channel = HttpTunnelServerTestUtils.createRequestChannel();
+
+		endpoint.handle(channel, new HttpTunnelRequest(null, HttpTunnelAdminEndpoint.DEFAULT_PATH, HttpVersion.HTTP_1_1, null, null, ChannelBuffers.EMPTY_BUFFER));
+
+		final HttpResponse response = (HttpResponse) HttpTunnelServerTestUtils.getResponse(channel).getMessage();
+		assertEquals(HttpResponseStatus.OK, response.getStatus());
+		assertEquals(1, response.getContent().toString(CharsetUtil.US_ASCII).split("\n").length);
+	}
+}
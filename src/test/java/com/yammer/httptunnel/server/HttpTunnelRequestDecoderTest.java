@@ -0,0 +1,180 @@
+package com.yammer.httptunnel.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.trace.MessageTrace;
+import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+import com.yammer.httptunnel.util.HttpTunnelRequest;
+import com.yammer.httptunnel.util.NettyTestUtils;
+
+public class HttpTunnelRequestDecoderTest {
+
+	private static final String HOST = "10.0.0.3:12345";
+	private static final String TUNNEL_ID = "abc_123";
+	private static final String USER_AGENT = "test";
+
+	private DecoderEmbedder<Object> decoder;
+
+	private static ChannelBuffer encode(HttpRequest request) {
+		final EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(new HttpRequestEncoder());
+		encoder.offer(request);
+
+		final ChannelBuffer encoded = ChannelBuffers.dynamicBuffer();
+		for (Object buffer : encoder.pollAll())
+			encoded.writeBytes((ChannelBuffer) buffer);
+
+		return encoded;
+	}
+
+	private static ChannelBuffer toBuffer(String request) {
+		return ChannelBuffers.wrappedBuffer(request.getBytes());
+	}
+
+	@Before
+	public void setUp() {
+		decoder = new DecoderEmbedder<Object>(new HttpTunnelRequestDecoder());
+	}
+
+	@Test
+	public void testDecodesSendDataRequest() {
+		final ChannelBuffer data = NettyTestUtils.createData(1234L);
+
+		decoder.offer(encode(HttpTunnelMessageUtils.createSendDataRequest(HOST, TUNNEL_ID, data.duplicate(), USER_AGENT)));
+
+		final HttpTunnelRequest request = (HttpTunnelRequest) decoder.poll();
+		assertEquals(HttpMethod.POST, request.getMethod());
+		assertEquals(HttpVersion.HTTP_1_0, request.getProtocolVersion());
+		assertSame(HttpTunnelMessageUtils.CLIENT_SEND_REQUEST_URI, request.getPath());
+		assertEquals(TUNNEL_ID, request.getTunnelId());
+		assertEquals(USER_AGENT, request.getUserAgent());
+		assertEquals(data, request.getContent());
+
+		assertTrue(HttpTunnelMessageUtils.isSendDataRequest(request, USER_AGENT));
+		assertNull(decoder.poll());
+	}
+
+	@Test
+	public void testDecodesTraceHeader() {
+		final HttpRequest tracedRequest = HttpTunnelMessageUtils.createSendDataRequest(HOST, TUNNEL_ID, NettyTestUtils.createData(1L), USER_AGENT);
+		tracedRequest.setHeader(MessageTrace.HEADER, "abc;123");
+
+		decoder.offer(encode(tracedRequest));
+		decoder.offer(encode(HttpTunnelMessageUtils.createSendDataRequest(HOST, TUNNEL_ID, NettyTestUtils.createData(2L), USER_AGENT)));
+
+		assertEquals("abc;123", ((HttpTunnelRequest) decoder.poll()).getTrace());
+		assertNull(((HttpTunnelRequest) decoder.poll()).getTrace());
+	}
+
+	@Test
+	public void testDecodesPollHeader() {
+		final HttpRequest keepAlive = HttpTunnelMessageUtils.createReceiveDataRequest(HOST, TUNNEL_ID, USER_AGENT);
+		keepAlive.setHeader(HttpTunnelMessageUtils.POLL_HEADER, HttpTunnelMessageUtils.POLL_KEEP_ALIVE);
+
+		final HttpRequest deferred = HttpTunnelMessageUtils.createReceiveDataRequest(HOST, TUNNEL_ID, USER_AGENT);
+		deferred.setHeader(HttpTunnelMessageUtils.POLL_HEADER, HttpTunnelMessageUtils.POLL_DEFERRED);
+
+		decoder.offer(encode(keepAlive));
+		decoder.offer(encode(deferred));
+		decoder.offer(encode(HttpTunnelMessageUtils.createReceiveDataRequest(HOST, TUNNEL_ID, USER_AGENT)));
+
+		final HttpTunnelRequest keepAliveRequest = (HttpTunnelRequest) decoder.poll();
+		assertTrue(keepAliveRequest.isKeepAlive());
+		assertFalse(keepAliveRequest.isDeferred());
+
+		final HttpTunnelRequest deferredRequest = (HttpTunnelRequest) decoder.poll();
+		assertFalse(deferredRequest.isKeepAlive());
+		assertTrue(deferredRequest.isDeferred());
+
+		assertNull(((HttpTunnelRequest) decoder.poll()).getPoll());
+	}
+
+	@Test
+	public void testDecodesOpenTunnelRequest() {
+		decoder.offer(encode(HttpTunnelMessageUtils.createOpenTunnelRequest(HOST, USER_AGENT)));
+
+		final HttpTunnelRequest request = (HttpTunnelRequest) decoder.poll();
+		assertTrue(HttpTunnelMessageUtils.isOpenTunnelRequest(request, USER_AGENT));
+		assertNull(request.getTunnelId());
+		assertEquals(0, request.getContent().readableBytes());
+	}
+
+	@Test
+	public void testDecodesPipelinedRequests() {
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+		buffer.writeBytes(encode(HttpTunnelMessageUtils.createReceiveDataRequest(HOST, TUNNEL_ID, USER_AGENT)));
+		buffer.writeBytes(encode(HttpTunnelMessageUtils.createCloseTunnelRequest(HOST, TUNNEL_ID, USER_AGENT)));
+
+		decoder.offer(buffer);
+
+		assertTrue(HttpTunnelMessageUtils.isReceiveDataRequest((HttpTunnelRequest) decoder.poll(), USER_AGENT));
+		assertTrue(HttpTunnelMessageUtils.isCloseTunnelRequest((HttpTunnelRequest) decoder.poll(), USER_AGENT));
+		assertNull(decoder.poll());
+	}
+
+	@Test
+	public void testDecodesFragmentedRequest() {
+		final ChannelBuffer data = NettyTestUtils.createData(5678L);
+		final ChannelBuffer encoded = encode(HttpTunnelMessageUtils.createSendDataRequest(HOST, TUNNEL_ID, data.duplicate(), USER_AGENT));
+
+		while (encoded.readable()) {
+			assertNull(decoder.poll());
+			decoder.offer(encoded.readBytes(1));
+		}
+
+		final HttpTunnelRequest request = (HttpTunnelRequest) decoder.poll();
+		assertEquals(TUNNEL_ID, request.getTunnelId());
+		assertEquals(data, request.getContent());
+	}
+
+	@Test
+	public void testHeaderNamesAreCaseInsensitive() {
+		decoder.offer(toBuffer("POST /http-tunnel/poll HTTP/1.1\r\ncOOKIE: " + TUNNEL_ID + "\r\nuser-agent:" + USER_AGENT + "  \r\nCONTENT-LENGTH: 0\r\n\r\n"));
+
+		final HttpTunnelRequest request = (HttpTunnelRequest) decoder.poll();
+		assertEquals(HttpVersion.HTTP_1_1, request.getProtocolVersion());
+		assertEquals(TUNNEL_ID, request.getTunnelId());
+		assertEquals(USER_AGENT, request.getUserAgent());
+	}
+
+	@Test
+	public void testFallsBackForUnsupportedMethod() {
+		decoder.offer(toBuffer("GET /http-tunnel/poll HTTP/1.1\r\nCookie: " + TUNNEL_ID + "\r\n\r\n"));
+
+		final HttpRequest request = (HttpRequest) decoder.poll();
+		assertEquals(HttpMethod.GET, request.getMethod());
+		assertEquals(TUNNEL_ID, HttpTunnelMessageUtils.extractTunnelId(request));
+
+		assertNull(decoder.getPipeline().get(HttpTunnelRequestDecoder.class));
+	}
+
+	@Test
+	public void testFallsBackForChunkedRequest() {
+		decoder.offer(toBuffer("POST /http-tunnel/send HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n0\r\n\r\n"));
+
+		final HttpRequest request = (HttpRequest) decoder.poll();
+		assertEquals(ChannelBuffers.wrappedBuffer("abc".getBytes()), request.getContent());
+	}
+
+	@Test
+	public void testFallsBackForQueryString() {
+		decoder.offer(toBuffer("POST /http-tunnel/poll?x=1 HTTP/1.1\r\n\r\n"));
+
+		final HttpTunnelRequest request = HttpTunnelRequest.fromHttpRequest((HttpRequest) decoder.poll());
+		assertEquals(HttpTunnelMessageUtils.CLIENT_RECV_REQUEST_URI, request.getPath());
+	}
+}
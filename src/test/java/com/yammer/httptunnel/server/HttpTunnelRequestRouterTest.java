@@ -0,0 +1,82 @@
+package com.yammer.httptunnel.server;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+import com.yammer.httptunnel.util.HttpTunnelRequest;
+
+public class HttpTunnelRequestRouterTest {
+
+	private static final String USER_AGENT = HttpTunnelServerChannelConfig.DEFAULT_USER_AGENT;
+
+	private HttpTunnelServerChannelConfig config;
+	private HttpTunnelEndpoint openEndpoint;
+	private HttpTunnelRequestRouter router;
+
+	private static HttpTunnelRequest createRequest(HttpMethod method, String path, String userAgent) {
+		return new HttpTunnelRequest(method, path, HttpVersion.HTTP_1_1, null, userAgent, ChannelBuffers.EMPTY_BUFFER);
+	}
+
+	private static HttpTunnelEndpoint createEndpoint() {
+		return new HttpTunnelEndpoint() {
+			@Override
+			public void handle(Channel channel, HttpTunnelRequest request) { }
+		};
+	}
+
+	@Before
+	public void setUp() {
+		config = new HttpTunnelServerChannelConfig();
+		openEndpoint = createEndpoint();
+
+		final Map<String, HttpTunnelEndpoint> tunnelEndpoints = new HashMap<String, HttpTunnelEndpoint>();
+		tunnelEndpoints.put(HttpTunnelMessageUtils.OPEN_TUNNEL_REQUEST_URI, openEndpoint);
+
+		router = new HttpTunnelRequestRouter(config, tunnelEndpoints);
+	}
+
+	@Test
+	public void testRoutesTunnelEndpoint() {
+		assertSame(openEndpoint, router.route(createRequest(HttpMethod.POST, HttpTunnelMessageUtils.OPEN_TUNNEL_REQUEST_URI, USER_AGENT)));
+	}
+
+	@Test
+	public void testTunnelEndpointRequiresPostAndUserAgent() {
+		assertNull(router.route(createRequest(HttpMethod.GET, HttpTunnelMessageUtils.OPEN_TUNNEL_REQUEST_URI, USER_AGENT)));
+		assertNull(router.route(createRequest(HttpMethod.POST, HttpTunnelMessageUtils.OPEN_TUNNEL_REQUEST_URI, "other")));
+		assertNull(router.route(createRequest(HttpMethod.POST, HttpTunnelMessageUtils.OPEN_TUNNEL_REQUEST_URI, null)));
+	}
+
+	@Test
+	public void testRoutesAdditionalEndpoint() {
+		final HttpTunnelEndpoint statsEndpoint = createEndpoint();
+		config.addEndpoint("/stats", statsEndpoint);
+
+		assertSame(statsEndpoint, router.route(createRequest(HttpMethod.GET, "/stats", null)));
+
+		config.removeEndpoint("/stats");
+		assertNull(router.route(createRequest(HttpMethod.GET, "/stats", null)));
+	}
+
+	@Test
+	public void testUnknownPath() {
+		assertNull(router.route(createRequest(HttpMethod.POST, "/unknown", USER_AGENT)));
+		assertNull(router.route(createRequest(HttpMethod.POST, null, USER_AGENT)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCannotReplaceTunnelEndpoint() {
+		config.addEndpoint(HttpTunnelMessageUtils.CLIENT_RECV_REQUEST_URI, createEndpoint());
+	}
+}
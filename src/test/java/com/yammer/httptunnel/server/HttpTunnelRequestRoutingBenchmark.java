@@ -0,0 +1,109 @@
+package com.yammer.httptunnel.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+import com.yammer.httptunnel.util.HttpTunnelRequest;
+
+/**
+ * Micro benchmark comparing the per-request cost of dispatching a tunnel
+ * request by checking each endpoint in turn (parsing the URI for every check)
+ * against a single lookup in the routing table. Run from an IDE or with
+ * <code>java -cp ... com.yammer.httptunnel.server.HttpTunnelRequestRoutingBenchmark</code>.
+ */
+public class HttpTunnelRequestRoutingBenchmark {
+
+	private static final String HOST = "10.0.0.3:12345";
+	private static final String TUNNEL_ID = "abc_123";
+	private static final String USER_AGENT = HttpTunnelServerChannelConfig.DEFAULT_USER_AGENT;
+
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int ITERATIONS = 10;
+	private static final int OPERATIONS = 1000000;
+
+	private static int sink;
+
+	public static void main(String[] args) {
+		final HttpRequest[] requests = {
+			HttpTunnelMessageUtils.createOpenTunnelRequest(HOST, USER_AGENT),
+			HttpTunnelMessageUtils.createSendDataRequest(HOST, TUNNEL_ID, ChannelBuffers.wrappedBuffer(new byte[16]), USER_AGENT),
+			HttpTunnelMessageUtils.createReceiveDataRequest(HOST, TUNNEL_ID, USER_AGENT),
+			HttpTunnelMessageUtils.createCloseTunnelRequest(HOST, TUNNEL_ID, USER_AGENT),
+		};
+
+		final HttpTunnelRequest[] tunnelRequests = new HttpTunnelRequest[requests.length];
+		for (int i = 0; i < requests.length; i++)
+			tunnelRequests[i] = HttpTunnelRequest.fromHttpRequest(requests[i]);
+
+		final HttpTunnelRequestRouter router = createRouter();
+
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			sequential(requests);
+			routed(router, tunnelRequests);
+		}
+
+		long sequentialTime = 0;
+		long routedTime = 0;
+
+		for (int i = 0; i < ITERATIONS; i++) {
+			sequentialTime += sequential(requests);
+			routedTime += routed(router, tunnelRequests);
+		}
+
+		final long operations = (long) ITERATIONS * OPERATIONS;
+
+		System.out.println(String.format("sequential checks: %.1f ns/request", (double) sequentialTime / operations));
+		System.out.println(String.format("routing table:     %.1f ns/request", (double) routedTime / operations));
+		System.out.println("(" + sink + ")");
+	}
+
+	private static HttpTunnelRequestRouter createRouter() {
+		final HttpTunnelEndpoint endpoint = new HttpTunnelEndpoint() {
+			@Override
+			public void handle(Channel channel, HttpTunnelRequest request) { }
+		};
+
+		final Map<String, HttpTunnelEndpoint> tunnelEndpoints = new HashMap<String, HttpTunnelEndpoint>();
+		tunnelEndpoints.put(HttpTunnelMessageUtils.OPEN_TUNNEL_REQUEST_URI, endpoint);
+		tunnelEndpoints.put(HttpTunnelMessageUtils.CLIENT_SEND_REQUEST_URI, endpoint);
+		tunnelEndpoints.put(HttpTunnelMessageUtils.CLIENT_RECV_REQUEST_URI, endpoint);
+		tunnelEndpoints.put(HttpTunnelMessageUtils.CLOSE_TUNNEL_REQUEST_URI, endpoint);
+
+		return new HttpTunnelRequestRouter(new HttpTunnelServerChannelConfig(), tunnelEndpoints);
+	}
+
+	private static long sequential(HttpRequest[] requests) {
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < OPERATIONS; i++) {
+			final HttpRequest request = requests[i % requests.length];
+
+			if (HttpTunnelMessageUtils.isOpenTunnelRequest(request, USER_AGENT))
+				sink += 1;
+			else if (HttpTunnelMessageUtils.isSendDataRequest(request, USER_AGENT))
+				sink += 2;
+			else if (HttpTunnelMessageUtils.isReceiveDataRequest(request, USER_AGENT))
+				sink += 3;
+			else if (HttpTunnelMessageUtils.isCloseTunnelRequest(request, USER_AGENT))
+				sink += 4;
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	private static long routed(HttpTunnelRequestRouter router, HttpTunnelRequest[] requests) {
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < OPERATIONS; i++) {
+			if (router.route(requests[i % requests.length]) != null)
+				sink++;
+		}
+
+		return System.nanoTime() - start;
+	}
+}
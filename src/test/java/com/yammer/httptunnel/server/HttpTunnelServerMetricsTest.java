@@ -0,0 +1,66 @@
+package com.yammer.httptunnel.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.util.HttpTunnelServerTestUtils;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class HttpTunnelServerMetricsTest {
+
+	private MetricsRegistry registry;
+	private HttpTunnelServerChannelFactory factory;
+	private HttpTunnelServerChannel serverChannel;
+	private HttpTunnelServerMetrics metrics;
+
+	@Before
+	public void setUp() {
+		registry = new MetricsRegistry();
+		factory = HttpTunnelServerTestUtils.createServerChannelFactory(registry);
+		serverChannel = HttpTunnelServerTestUtils.createServerChannel(factory);
+
+		metrics = serverChannel.getServerMetrics();
+	}
+
+	@Test
+	public void testTunnelLifecycle() {
+		final HttpTunnelAcceptedChannel tunnel = HttpTunnelServerTestUtils.createTunnel(serverChannel);
+		assertEquals(1, metrics.tunnelsOpened.count());
+		assertEquals(0, metrics.tunnelsClosed.count());
+
+		tunnel.close();
+		assertEquals(1, metrics.tunnelsClosed.count());
+		assertEquals(0, metrics.tunnelsTimedOut.count());
+	}
+
+	@Test
+	public void testPollAnsweredWithData() {
+		final HttpTunnelAcceptedChannel tunnel = HttpTunnelServerTestUtils.createTunnel(serverChannel);
+
+		HttpTunnelServerTestUtils.send(tunnel, ChannelBuffers.wrappedBuffer(new byte[100]));
+		assertEquals(100, metrics.bytesQueued.sum());
+		assertEquals(0, metrics.bytesDelivered.sum());
+
+		tunnel.pollQueuedData(HttpTunnelServerTestUtils.createCompletingRequestChannel());
+
+		assertEquals(1, metrics.polls.count());
+		assertEquals(0, metrics.emptyPolls.count());
+		assertEquals(1, metrics.pollWait.count());
+		assertEquals(100, (long) metrics.responseSize.max());
+		assertEquals(100, metrics.bytesDelivered.sum());
+
+		tunnel.close();
+	}
+
+	@Test
+	public void testReleasedWithFactory() {
+		assertTrue(registry.allMetrics().size() > 0);
+
+		factory.releaseExternalResources();
+		assertEquals(0, registry.allMetrics().size());
+	}
+}
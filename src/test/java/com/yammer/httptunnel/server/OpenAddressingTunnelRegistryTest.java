@@ -0,0 +1,121 @@
+package com.yammer.httptunnel.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.netty.channel.Channels;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.util.HttpTunnelServerTestUtils;
+import com.yammer.httptunnel.util.TunnelId;
+
+public class OpenAddressingTunnelRegistryTest {
+
+	private HttpTunnelServerChannel serverChannel;
+	private OpenAddressingTunnelRegistry registry;
+
+	@Before
+	public void setUp() {
+		serverChannel = HttpTunnelServerTestUtils.createServerChannel();
+		registry = new OpenAddressingTunnelRegistry();
+	}
+
+	private HttpTunnelAcceptedChannel createTunnel(long mostSignificantBits, long leastSignificantBits) {
+		return new HttpTunnelAcceptedChannel(serverChannel, serverChannel.getFactory(), Channels.pipeline(), new HttpTunnelAcceptedChannelSink(), new InetSocketAddress(0), new TunnelId(mostSignificantBits, leastSignificantBits));
+	}
+
+	@Test
+	public void testPutGetRemove() {
+		final HttpTunnelAcceptedChannel tunnel = this.createTunnel(1L, 2L);
+
+		assertNull(registry.put(tunnel));
+		assertEquals(1, registry.size());
+		assertSame(tunnel, registry.get(1L, 2L));
+		assertNull(registry.get(1L, 3L));
+
+		assertSame(tunnel, registry.remove(tunnel.getTunnelId()));
+		assertEquals(0, registry.size());
+		assertNull(registry.get(1L, 2L));
+		assertNull(registry.remove(tunnel.getTunnelId()));
+	}
+
+	@Test
+	public void testDistinguishesIdsSharingRandomBits() {
+		final HttpTunnelAcceptedChannel first = this.createTunnel(1L, 42L);
+		final HttpTunnelAcceptedChannel second = this.createTunnel(2L, 42L);
+
+		registry.put(first);
+		registry.put(second);
+
+		assertSame(first, registry.get(1L, 42L));
+		assertSame(second, registry.get(2L, 42L));
+		assertNull(registry.get(3L, 42L));
+
+		registry.remove(first.getTunnelId());
+		assertSame(second, registry.get(2L, 42L));
+	}
+
+	@Test
+	public void testReplacesTunnelWithSameId() {
+		final HttpTunnelAcceptedChannel first = this.createTunnel(1L, 2L);
+		final HttpTunnelAcceptedChannel second = this.createTunnel(1L, 2L);
+
+		registry.put(first);
+		assertSame(first, registry.put(second));
+		assertEquals(1, registry.size());
+		assertSame(second, registry.get(1L, 2L));
+	}
+
+	@Test
+	public void testGrowsAndReusesRemovedSlots() {
+		final List<HttpTunnelAcceptedChannel> tunnels = new ArrayList<HttpTunnelAcceptedChannel>();
+		for (long i = 0; i < 1000; i++) {
+			final HttpTunnelAcceptedChannel tunnel = this.createTunnel(0L, i);
+			tunnels.add(tunnel);
+
+			registry.put(tunnel);
+
+			// Churn through removals to exercise rebuilding the table
+			if (i % 2 == 1)
+				registry.remove(tunnels.get((int) i - 1).getTunnelId());
+		}
+
+		assertEquals(500, registry.size());
+
+		for (long i = 0; i < 1000; i++) {
+			if (i % 2 == 1)
+				assertSame(tunnels.get((int) i), registry.get(0L, i));
+			else
+				assertNull(registry.get(0L, i));
+		}
+	}
+
+	@Test
+	public void testIteratesRegisteredTunnels() {
+		final Set<HttpTunnelAcceptedChannel> expected = new HashSet<HttpTunnelAcceptedChannel>();
+		for (long i = 0; i < 100; i++) {
+			final HttpTunnelAcceptedChannel tunnel = this.createTunnel(0L, i);
+			registry.put(tunnel);
+
+			if (i % 3 == 0)
+				registry.remove(tunnel.getTunnelId());
+			else
+				expected.add(tunnel);
+		}
+
+		final Set<HttpTunnelAcceptedChannel> iterated = new HashSet<HttpTunnelAcceptedChannel>();
+		for (HttpTunnelAcceptedChannel tunnel : registry)
+			assertTrue(iterated.add(tunnel));
+
+		assertEquals(expected, iterated);
+	}
+}
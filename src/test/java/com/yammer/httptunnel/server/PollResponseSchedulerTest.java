@@ -0,0 +1,112 @@
+package com.yammer.httptunnel.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.MessageEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.FakeSocketChannel;
+import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+import com.yammer.httptunnel.util.HttpTunnelServerTestUtils;
+import com.yammer.httptunnel.util.NettyTestUtils;
+
+public class PollResponseSchedulerTest {
+
+	private HttpTunnelServerChannel serverChannel;
+
+	@Before
+	public void setUp() {
+		serverChannel = HttpTunnelServerTestUtils.createServerChannel();
+	}
+
+	private ChannelFuture send(HttpTunnelAcceptedChannel tunnel, int size) {
+		return HttpTunnelServerTestUtils.send(tunnel, ChannelBuffers.wrappedBuffer(new byte[size]));
+	}
+
+	private MessageEvent poll(HttpTunnelAcceptedChannel tunnel) {
+		final FakeSocketChannel channel = HttpTunnelServerTestUtils.createRequestChannel();
+		tunnel.pollQueuedData(channel);
+
+		return HttpTunnelServerTestUtils.getResponse(channel);
+	}
+
+	private void assertResponseSize(int expected, MessageEvent response) {
+		final ChannelBuffer encoded = NettyTestUtils.checkIsDownstreamMessageEvent(response, ChannelBuffer.class);
+		assertEquals(HttpTunnelMessageUtils.encodeRecvDataResponse(ChannelBuffers.wrappedBuffer(new byte[expected])).readableBytes(), encoded.readableBytes());
+	}
+
+	@Test
+	public void testResponsesAreLimitedByWeight() {
+		serverChannel.getConfig().setPollResponseScheduler(new PollResponseScheduler(1000, 100000));
+
+		final HttpTunnelAcceptedChannel light = HttpTunnelServerTestUtils.createTunnel(serverChannel);
+		final HttpTunnelAcceptedChannel heavy = HttpTunnelServerTestUtils.createTunnel(serverChannel);
+		heavy.getConfig().setSchedulingWeight(3);
+
+		this.send(light, 10000);
+		this.send(heavy, 10000);
+
+		this.assertResponseSize(1000, this.poll(light));
+		this.assertResponseSize(3000, this.poll(heavy));
+		this.assertResponseSize(1000, this.poll(light));
+	}
+
+	@Test
+	public void testWindowDelaysResponses() {
+		final PollResponseScheduler scheduler = new PollResponseScheduler(1000, 1000);
+		serverChannel.getConfig().setPollResponseScheduler(scheduler);
+
+		final HttpTunnelAcceptedChannel first = HttpTunnelServerTestUtils.createTunnel(serverChannel);
+		final HttpTunnelAcceptedChannel second = HttpTunnelServerTestUtils.createTunnel(serverChannel);
+
+		this.send(first, 1000);
+		this.send(second, 1000);
+
+		final MessageEvent firstResponse = this.poll(first);
+		this.assertResponseSize(1000, firstResponse);
+
+		final FakeSocketChannel secondChannel = HttpTunnelServerTestUtils.createRequestChannel();
+		second.pollQueuedData(secondChannel);
+
+		// The window is full until the first response is written
+		assertNull(HttpTunnelServerTestUtils.getResponse(secondChannel));
+		assertEquals(1, scheduler.getActiveTunnels());
+		assertEquals(1000, scheduler.getBytesInFlight());
+
+		firstResponse.getFuture().setSuccess();
+
+		this.assertResponseSize(1000, HttpTunnelServerTestUtils.getResponse(secondChannel));
+		assertEquals(0, scheduler.getActiveTunnels());
+	}
+
+	@Test
+	public void testWriteCompletesOnceAllPartsAreSent() {
+		serverChannel.getConfig().setPollResponseScheduler(new PollResponseScheduler(1000, 100000));
+
+		final HttpTunnelAcceptedChannel tunnel = HttpTunnelServerTestUtils.createTunnel(serverChannel);
+		final ChannelFuture future = this.send(tunnel, 1500);
+
+		final MessageEvent head = this.poll(tunnel);
+		this.assertResponseSize(1000, head);
+		head.getFuture().setSuccess();
+		assertFalse(future.isDone());
+
+		final MessageEvent tail = this.poll(tunnel);
+		this.assertResponseSize(500, tail);
+		tail.getFuture().setSuccess();
+		assertTrue(future.isSuccess());
+		assertFalse(tunnel.hasQueuedData());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWindowSmallerThanQuantum() {
+		new PollResponseScheduler(1000, 500);
+	}
+}
@@ -0,0 +1,127 @@
+package com.yammer.httptunnel.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.FakeSocketChannel;
+import com.yammer.httptunnel.util.HttpTunnelMessageUtils;
+import com.yammer.httptunnel.util.HttpTunnelRequest;
+import com.yammer.httptunnel.util.HttpTunnelServerTestUtils;
+import com.yammer.httptunnel.util.NettyTestUtils;
+
+public class TrafficShaperTest {
+
+	private TrafficShaper shaper;
+
+	@Before
+	public void setUp() {
+		shaper = new TrafficShaper();
+	}
+
+	private HttpTunnelRequest createOpenRequest(String userAgent) {
+		return new HttpTunnelRequest(HttpMethod.POST, "/http-tunnel/open", HttpVersion.HTTP_1_1, null, userAgent, ChannelBuffers.EMPTY_BUFFER);
+	}
+
+	@Test
+	public void testTenantLimitIsShared() {
+		shaper.setTenantRates(1000, 1000);
+
+		final TrafficShaper.TunnelShaping first = shaper.newTunnel(this.createOpenRequest("a"));
+		final TrafficShaper.TunnelShaping second = shaper.newTunnel(this.createOpenRequest("a"));
+		final TrafficShaper.TunnelShaping other = shaper.newTunnel(this.createOpenRequest("b"));
+
+		assertEquals(2, shaper.getTenantCount());
+
+		assertEquals(0, first.upstreamReceived(1000));
+		assertTrue(second.upstreamReceived(1000) > 0);
+		assertEquals(0, other.upstreamReceived(1000));
+
+		first.close();
+		second.close();
+		other.close();
+
+		assertEquals(0, shaper.getTenantCount());
+	}
+
+	@Test
+	public void testTenantSpecificRates() {
+		shaper.setTenantRates(1000, 1000);
+		shaper.setTenantRates("gold", TrafficShaper.UNLIMITED, TrafficShaper.UNLIMITED);
+
+		final TrafficShaper.TunnelShaping gold = shaper.newTunnel(this.createOpenRequest("gold"));
+
+		assertEquals(0, gold.upstreamReceived(5000));
+		gold.downstreamSent(5000);
+		assertEquals(0, gold.getDownstreamDelay());
+		assertEquals(Integer.MAX_VALUE, gold.getMaxResponseSize());
+	}
+
+	private HttpTunnelAcceptedChannel createShapedTunnel() {
+		final HttpTunnelAcceptedChannel tunnel = HttpTunnelServerTestUtils.createTunnel(HttpTunnelServerTestUtils.createServerChannel());
+		tunnel.setShaping(shaper.newTunnel(this.createOpenRequest("a")));
+
+		return tunnel;
+	}
+
+	@Test
+	public void testPollResponsesAreHeldBack() {
+		shaper.setTunnelRates(TrafficShaper.UNLIMITED, 1000);
+
+		final HttpTunnelAcceptedChannel tunnel = this.createShapedTunnel();
+		HttpTunnelServerTestUtils.send(tunnel, ChannelBuffers.wrappedBuffer(new byte[3000]));
+
+		// Responses are limited to the burst size, and are sent until the
+		// bucket is in debt
+		for (int i = 0; i < 2; i++) {
+			final FakeSocketChannel channel = HttpTunnelServerTestUtils.createRequestChannel();
+			tunnel.pollQueuedData(channel);
+
+			final ChannelBuffer response = NettyTestUtils.checkIsDownstreamMessageEvent(HttpTunnelServerTestUtils.getResponse(channel), ChannelBuffer.class);
+			assertEquals(HttpTunnelMessageUtils.encodeRecvDataResponse(ChannelBuffers.wrappedBuffer(new byte[1000])).readableBytes(), response.readableBytes());
+		}
+
+		final FakeSocketChannel heldChannel = HttpTunnelServerTestUtils.createRequestChannel();
+		tunnel.pollQueuedData(heldChannel);
+
+		assertNull(HttpTunnelServerTestUtils.getResponse(heldChannel));
+		assertTrue(tunnel.hasQueuedData());
+	}
+
+	@Test
+	public void testFastOpenResponseIsShaped() {
+		shaper.setTunnelRates(TrafficShaper.UNLIMITED, 1000);
+
+		final HttpTunnelAcceptedChannel tunnel = this.createShapedTunnel();
+		HttpTunnelServerTestUtils.send(tunnel, ChannelBuffers.wrappedBuffer(new byte[3000]));
+
+		final FakeSocketChannel openChannel = HttpTunnelServerTestUtils.createRequestChannel();
+		tunnel.respondToOpen(openChannel, 100);
+
+		// The reply carried by the open response is limited to the burst size
+		final HttpResponse response = NettyTestUtils.checkIsDownstreamMessageEvent(HttpTunnelServerTestUtils.getResponse(openChannel), HttpResponse.class);
+		assertEquals(1000, response.getContent().readableBytes());
+	}
+
+	@Test
+	public void testFastOpenDataIsShaped() {
+		shaper.setTunnelRates(1000, TrafficShaper.UNLIMITED);
+
+		final HttpTunnelAcceptedChannel tunnel = this.createShapedTunnel();
+
+		// The open request carried more than the burst size, so the response
+		// is held back until the bucket is out of debt
+		final FakeSocketChannel openChannel = HttpTunnelServerTestUtils.createRequestChannel();
+		tunnel.respondToOpen(openChannel, 2000);
+
+		assertNull(HttpTunnelServerTestUtils.getResponse(openChannel));
+	}
+}
@@ -0,0 +1,116 @@
+package com.yammer.httptunnel.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+public class MessageTraceTest {
+
+	private RecordingTracer tracer;
+
+	@Before
+	public void setUp() {
+		tracer = new RecordingTracer();
+	}
+
+	@Test
+	public void testNotTracedWithoutTracer() {
+		assertNull(MessageTrace.start(null));
+		assertNull(MessageTrace.resume(null, "abc;123"));
+		assertNull(MessageTrace.resume(tracer, null));
+	}
+
+	@Test
+	public void testNotTracedUnlessSampled() {
+		tracer.traceId = null;
+		assertNull(MessageTrace.start(tracer));
+	}
+
+	@Test
+	public void testStagesRecorded() {
+		final MessageTrace trace = MessageTrace.start(tracer);
+		assertNotNull(trace);
+
+		trace.stageCompleted(TraceStage.QUEUED);
+		trace.stageCompleted(TraceStage.WRITTEN);
+
+		assertEquals(2, tracer.stages.size());
+		assertEquals(TraceStage.QUEUED, tracer.stages.get(0));
+		assertEquals(TraceStage.WRITTEN, tracer.stages.get(1));
+		assertEquals("trace", tracer.traceIds.get(1));
+	}
+
+	@Test
+	public void testResumedFromHeader() {
+		final String header = MessageTrace.start(tracer).toHeader();
+		assertTrue(header.startsWith("trace;"));
+
+		final MessageTrace resumed = MessageTrace.resume(tracer, header);
+		assertEquals("trace", resumed.getTraceId());
+		assertEquals(TraceStage.TRANSIT, tracer.stages.get(0));
+		assertTrue(tracer.durations.get(0) >= 0);
+
+		resumed.stageCompleted(TraceStage.BUFFERED);
+		assertEquals(TraceStage.BUFFERED, tracer.stages.get(1));
+	}
+
+	@Test
+	public void testMalformedHeaderIgnored() {
+		assertNull(MessageTrace.resume(tracer, "trace"));
+		assertNull(MessageTrace.resume(tracer, ";123"));
+		assertNull(MessageTrace.resume(tracer, "trace;abc"));
+		assertTrue(tracer.stages.isEmpty());
+	}
+
+	@Test
+	public void testSampledTracer() {
+		final MetricsRegistry registry = new MetricsRegistry();
+		final SampledMessageTracer sampledTracer = new SampledMessageTracer(registry, 4);
+
+		int sampled = 0;
+		for (int i = 0; i < 100; i++) {
+			if (sampledTracer.newTrace() != null)
+				sampled++;
+		}
+
+		assertEquals(25, sampled);
+
+		sampledTracer.stageCompleted("trace", TraceStage.QUEUED, 1000000L);
+
+		final Timer timer = (Timer) registry.allMetrics().get(new MetricName(SampledMessageTracer.class, "queued"));
+		assertEquals(1, timer.count());
+		assertEquals(1.0, timer.max(), 0.001);
+	}
+
+	private static class RecordingTracer implements MessageTracer {
+
+		String traceId = "trace";
+
+		final List<String> traceIds = new ArrayList<String>();
+		final List<TraceStage> stages = new ArrayList<TraceStage>();
+		final List<Long> durations = new ArrayList<Long>();
+
+		@Override
+		public String newTrace() {
+			return traceId;
+		}
+
+		@Override
+		public void stageCompleted(String traceId, TraceStage stage, long duration) {
+			traceIds.add(traceId);
+			stages.add(stage);
+			durations.add(duration);
+		}
+	}
+}
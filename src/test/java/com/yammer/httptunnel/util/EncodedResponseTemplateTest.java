@@ -0,0 +1,65 @@
+package com.yammer.httptunnel.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.junit.Test;
+
+public class EncodedResponseTemplateTest {
+
+	private static final String TUNNEL_ID = "abc_123";
+
+	private static ChannelBuffer encode(HttpResponse response) {
+		final EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(new HttpResponseEncoder());
+		encoder.offer(response);
+
+		final ChannelBuffer encoded = ChannelBuffers.dynamicBuffer();
+		for (Object buffer : encoder.pollAll())
+			encoded.writeBytes((ChannelBuffer) buffer);
+
+		return encoded;
+	}
+
+	@Test
+	public void testStaticResponsesMatchEncoder() {
+		assertEquals(encode(HttpTunnelMessageUtils.createTunnelCloseResponse()), HttpTunnelMessageUtils.encodeTunnelCloseResponse());
+		assertEquals(encode(HttpTunnelMessageUtils.createSendDataResponse()), HttpTunnelMessageUtils.encodeSendDataResponse());
+	}
+
+	@Test
+	public void testSlotResponsesMatchEncoder() {
+		final byte[] tunnelId = EncodedResponseTemplate.toHeaderBytes(TUNNEL_ID);
+
+		assertEquals(encode(HttpTunnelMessageUtils.createTunnelOpenResponse(TUNNEL_ID)), HttpTunnelMessageUtils.encodeTunnelOpenResponse(tunnelId));
+		assertEquals(encode(HttpTunnelMessageUtils.createTunnelPingResponse(TUNNEL_ID)), HttpTunnelMessageUtils.encodeTunnelPingResponse(tunnelId));
+	}
+
+	@Test
+	public void testCreatedBuffersAreIndependent() {
+		final ChannelBuffer first = HttpTunnelMessageUtils.encodeSendDataResponse();
+		final int length = first.readableBytes();
+
+		first.skipBytes(length);
+		assertFalse(first.readable());
+
+		final ChannelBuffer second = HttpTunnelMessageUtils.encodeSendDataResponse();
+		assertEquals(length, second.readableBytes());
+	}
+
+	@Test
+	public void testHasSlot() {
+		assertTrue(EncodedResponseTemplate.encodeWithSlot(HttpTunnelMessageUtils.createTunnelPingResponse(EncodedResponseTemplate.SLOT_MARKER)).hasSlot());
+		assertFalse(EncodedResponseTemplate.encode(HttpTunnelMessageUtils.createTunnelCloseResponse()).hasSlot());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingSlotMarker() {
+		EncodedResponseTemplate.encodeWithSlot(HttpTunnelMessageUtils.createTunnelCloseResponse());
+	}
+}
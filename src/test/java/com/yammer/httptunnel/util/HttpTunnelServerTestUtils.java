@@ -0,0 +1,116 @@
+package com.yammer.httptunnel.util;
+
+import java.net.InetSocketAddress;
+
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+
+import com.yammer.httptunnel.FakeChannelSink;
+import com.yammer.httptunnel.FakeServerSocketChannelFactory;
+import com.yammer.httptunnel.FakeSocketChannel;
+import com.yammer.httptunnel.server.HttpTunnelAcceptedChannel;
+import com.yammer.httptunnel.server.HttpTunnelServerChannel;
+import com.yammer.httptunnel.server.HttpTunnelServerChannelFactory;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * Creates the server end of HTTP tunnels on top of fake channels, so that
+ * tests can drive an accepted tunnel directly rather than through HTTP
+ * requests.
+ */
+public class HttpTunnelServerTestUtils {
+
+	private static final ChannelPipelineFactory EMPTY_PIPELINE_FACTORY = new ChannelPipelineFactory() {
+		@Override
+		public ChannelPipeline getPipeline() {
+			return Channels.pipeline();
+		}
+	};
+
+	public static HttpTunnelServerChannelFactory createServerChannelFactory(MetricsRegistry registry) {
+		final FakeServerSocketChannelFactory realChannelFactory = new FakeServerSocketChannelFactory();
+		realChannelFactory.sink = new FakeChannelSink();
+
+		return new HttpTunnelServerChannelFactory(realChannelFactory, registry);
+	}
+
+	/**
+	 * Creates a server channel whose tunnels have an empty pipeline, so
+	 * anything received is dropped.
+	 */
+	public static HttpTunnelServerChannel createServerChannel() {
+		return HttpTunnelServerTestUtils.createServerChannel(EMPTY_PIPELINE_FACTORY);
+	}
+
+	/**
+	 * Creates a server channel whose tunnels get their pipeline from the
+	 * given factory.
+	 */
+	public static HttpTunnelServerChannel createServerChannel(ChannelPipelineFactory pipelineFactory) {
+		return HttpTunnelServerTestUtils.createServerChannel(HttpTunnelServerTestUtils.createServerChannelFactory(Metrics.defaultRegistry()), pipelineFactory);
+	}
+
+	/**
+	 * Creates a server channel from the given factory, whose tunnels have an
+	 * empty pipeline.
+	 */
+	public static HttpTunnelServerChannel createServerChannel(HttpTunnelServerChannelFactory factory) {
+		return HttpTunnelServerTestUtils.createServerChannel(factory, EMPTY_PIPELINE_FACTORY);
+	}
+
+	private static HttpTunnelServerChannel createServerChannel(HttpTunnelServerChannelFactory factory, ChannelPipelineFactory pipelineFactory) {
+		final HttpTunnelServerChannel serverChannel = factory.newChannel(Channels.pipeline());
+		serverChannel.getConfig().setPipelineFactory(pipelineFactory);
+
+		return serverChannel;
+	}
+
+	public static HttpTunnelAcceptedChannel createTunnel(HttpTunnelServerChannel serverChannel) {
+		return serverChannel.createTunnel(new InetSocketAddress(0));
+	}
+
+	/**
+	 * Writes a message to the tunnel, where it stays queued until the tunnel
+	 * is polled.
+	 */
+	public static ChannelFuture send(HttpTunnelAcceptedChannel tunnel, Object message) {
+		return Channels.write(tunnel, message);
+	}
+
+	/**
+	 * Creates a channel for a poll or open request, on which any response is
+	 * kept until taken by {@link #getResponse(FakeSocketChannel)}. Writes to
+	 * the channel are never completed.
+	 */
+	public static FakeSocketChannel createRequestChannel() {
+		return new FakeSocketChannel(null, null, Channels.pipeline(), new FakeChannelSink());
+	}
+
+	/**
+	 * Creates a channel for a poll or open request, on which any response is
+	 * discarded as soon as it is written.
+	 */
+	public static FakeSocketChannel createCompletingRequestChannel() {
+		return new FakeSocketChannel(null, null, Channels.pipeline(), new AbstractChannelSink() {
+			@Override
+			public void eventSunk(ChannelPipeline pipeline, ChannelEvent e) {
+				if (e instanceof MessageEvent)
+					e.getFuture().setSuccess();
+			}
+		});
+	}
+
+	/**
+	 * @return the next response written to a channel created by
+	 *         {@link #createRequestChannel()}, or null if there is none.
+	 */
+	public static MessageEvent getResponse(FakeSocketChannel channel) {
+		return (MessageEvent) ((FakeChannelSink) channel.sink).events.poll();
+	}
+}
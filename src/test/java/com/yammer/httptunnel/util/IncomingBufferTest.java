@@ -0,0 +1,130 @@
+package com.yammer.httptunnel.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.FakeChannelSink;
+import com.yammer.httptunnel.FakeSocketChannel;
+
+public class IncomingBufferTest {
+
+	private BlockingQueue<ChannelBuffer> received;
+	private volatile boolean readable;
+
+	private IncomingBuffer<ChannelBuffer> buffer;
+
+	@Before
+	public void setUp() {
+		received = new LinkedBlockingQueue<ChannelBuffer>();
+		readable = false;
+
+		final FakeSocketChannel channel = new FakeSocketChannel(null, null, Channels.pipeline(new SimpleChannelUpstreamHandler() {
+			@Override
+			public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+				received.add((ChannelBuffer) e.getMessage());
+			}
+		}), new FakeChannelSink()) {
+			@Override
+			public boolean isReadable() {
+				return readable;
+			}
+		};
+
+		buffer = new IncomingBuffer<ChannelBuffer>(channel, 100, 200, 300);
+	}
+
+	private static ChannelBuffer createMessage(int size) {
+		return ChannelBuffers.wrappedBuffer(new byte[size]);
+	}
+
+	@Test
+	public void testOverCapacityBetweenWaterMarks() throws InterruptedException {
+		assertTrue(buffer.offer(createMessage(150)));
+		assertFalse(buffer.overCapacity());
+
+		assertTrue(buffer.offer(createMessage(60)));
+		assertTrue(buffer.overCapacity());
+		assertEquals(2, buffer.size());
+		assertEquals(210L, buffer.getBufferedBytes());
+
+		readable = true;
+		buffer.onInterestOpsChanged();
+
+		assertEquals(150, received.poll(1, TimeUnit.SECONDS).readableBytes());
+		assertEquals(60, received.poll(1, TimeUnit.SECONDS).readableBytes());
+
+		assertEquals(0L, buffer.getBufferedBytes());
+		assertFalse(buffer.overCapacity());
+	}
+
+	@Test
+	public void testStaysOverCapacityUntilLowWaterMark() {
+		buffer.updateThresholds(10, 20, 300);
+
+		assertTrue(buffer.offer(createMessage(25)));
+		assertTrue(buffer.overCapacity());
+
+		// Above the low water mark, so still over capacity
+		buffer.updateThresholds(10, 200, 300);
+		assertTrue(buffer.offer(createMessage(5)));
+		assertTrue(buffer.overCapacity());
+	}
+
+	@Test
+	public void testRejectsMessagesBeyondBounds() {
+		assertTrue(buffer.offer(createMessage(250)));
+		assertFalse(buffer.offer(createMessage(51)));
+		assertTrue(buffer.offer(createMessage(50)));
+
+		assertEquals(300L, buffer.getBufferedBytes());
+	}
+
+	@Test
+	public void testCoalescesQueuedMessagesUpToLimit() throws InterruptedException {
+		buffer.setCoalescingLimit(100);
+
+		buffer.offer(ChannelBuffers.wrappedBuffer(new byte[] { 1, 2 }));
+		buffer.offer(ChannelBuffers.wrappedBuffer(new byte[] { 3 }));
+		buffer.offer(createMessage(97));
+		buffer.offer(createMessage(50));
+
+		readable = true;
+		buffer.onInterestOpsChanged();
+
+		final ChannelBuffer merged = received.poll(1, TimeUnit.SECONDS);
+		assertEquals(100, merged.readableBytes());
+		assertEquals(1, merged.getByte(0));
+		assertEquals(3, merged.getByte(2));
+
+		assertEquals(50, received.poll(1, TimeUnit.SECONDS).readableBytes());
+		assertEquals(0, buffer.size());
+	}
+
+	@Test
+	public void testDeliversEachMessageWithoutCoalescing() throws InterruptedException {
+		final ChannelBuffer first = createMessage(10);
+		buffer.offer(first);
+		buffer.offer(createMessage(10));
+
+		readable = true;
+		buffer.onInterestOpsChanged();
+
+		assertSame(first, received.poll(1, TimeUnit.SECONDS));
+		assertEquals(10, received.poll(1, TimeUnit.SECONDS).readableBytes());
+	}
+}
@@ -0,0 +1,91 @@
+package com.yammer.httptunnel.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.yammer.httptunnel.MessagePriority;
+
+public class MessagePriorityQueueTest {
+
+	@Test
+	public void testServesHigherClassesFirst() {
+		final MessagePriorityQueue<String> queue = new MessagePriorityQueue<String>();
+
+		queue.offer("low", MessagePriority.LOW);
+		queue.offer("normal", MessagePriority.NORMAL);
+		queue.offer("high", MessagePriority.HIGH);
+		queue.offer("normal2", MessagePriority.NORMAL);
+
+		assertEquals("high", queue.poll());
+		assertEquals("normal", queue.poll());
+		assertEquals("normal2", queue.poll());
+		assertEquals("low", queue.poll());
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testKeepsClassUntilCurrentMessageRemoved() {
+		final MessagePriorityQueue<String> queue = new MessagePriorityQueue<String>();
+
+		queue.offer("low", MessagePriority.LOW);
+		assertEquals("low", queue.peek());
+		queue.taken();
+
+		// The low message is part way through being sent
+		queue.offer("high", MessagePriority.HIGH);
+		assertEquals("low", queue.peek());
+
+		assertEquals("low", queue.poll());
+		assertEquals("high", queue.poll());
+	}
+
+	@Test
+	public void testPeekedClassIsNotKeptUntilTaken() {
+		final MessagePriorityQueue<String> queue = new MessagePriorityQueue<String>();
+
+		queue.offer("low", MessagePriority.LOW);
+		assertEquals("low", queue.peek());
+
+		// Nothing of the low message was sent, so the high one overtakes it
+		queue.offer("high", MessagePriority.HIGH);
+		assertEquals("high", queue.peek());
+
+		assertEquals("high", queue.poll());
+		assertEquals("low", queue.poll());
+	}
+
+	@Test
+	public void testPollRemovesPeekedMessage() {
+		final MessagePriorityQueue<String> queue = new MessagePriorityQueue<String>();
+
+		queue.offer("normal", MessagePriority.NORMAL);
+		assertEquals("normal", queue.peek());
+
+		// Offered while the consumer is sending the peeked message
+		queue.offer("high", MessagePriority.HIGH);
+
+		assertEquals("normal", queue.poll());
+		assertEquals("high", queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testLowerClassesAreNotStarved() {
+		final MessagePriorityQueue<Integer> queue = new MessagePriorityQueue<Integer>(2);
+		final Integer low = -1;
+
+		queue.offer(low, MessagePriority.LOW);
+		for (int i = 0; i < 10; i++)
+			queue.offer(i, MessagePriority.HIGH);
+
+		assertEquals(0, (int) queue.poll());
+		assertEquals(1, (int) queue.poll());
+		assertSame(low, queue.poll());
+		assertEquals(2, (int) queue.poll());
+	}
+}
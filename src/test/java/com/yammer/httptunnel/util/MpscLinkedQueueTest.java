@@ -0,0 +1,83 @@
+package com.yammer.httptunnel.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class MpscLinkedQueueTest {
+
+	@Test
+	public void testFifoOrder() {
+		final MpscLinkedQueue<Integer> queue = new MpscLinkedQueue<Integer>();
+		assertTrue(queue.isEmpty());
+		assertNull(queue.peek());
+		assertNull(queue.poll());
+
+		for (int i = 0; i < 10; i++)
+			queue.offer(i);
+
+		assertFalse(queue.isEmpty());
+		assertEquals(Integer.valueOf(0), queue.peek());
+
+		for (int i = 0; i < 10; i++)
+			assertEquals(Integer.valueOf(i), queue.poll());
+
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testRejectsNull() {
+		new MpscLinkedQueue<Object>().offer(null);
+	}
+
+	@Test
+	public void testConcurrentProducersPreserveOrderPerProducer() throws InterruptedException {
+		final int producers = 4;
+		final int elements = 50000;
+
+		final MpscLinkedQueue<int[]> queue = new MpscLinkedQueue<int[]>();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		for (int i = 0; i < producers; i++) {
+			final int producer = i;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+
+					for (int j = 0; j < elements; j++)
+						queue.offer(new int[] { producer, j });
+				}
+			}.start();
+		}
+
+		start.countDown();
+
+		final int[] next = new int[producers];
+		int received = 0;
+
+		while (received < producers * elements) {
+			final int[] element = queue.poll();
+			if (element == null) {
+				Thread.yield();
+				continue;
+			}
+
+			assertEquals(next[element[0]]++, element[1]);
+			received++;
+		}
+
+		assertNull(queue.poll());
+	}
+}
@@ -0,0 +1,70 @@
+package com.yammer.httptunnel.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.yammer.httptunnel.HttpTunnelMetrics;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class SslHandlerFactoryTest {
+
+	private MetricsRegistry registry;
+	private SslHandlerFactory factory;
+	private ChannelPipeline pipeline;
+
+	@Before
+	public void setUp() {
+		registry = new MetricsRegistry();
+		factory = new SslHandlerFactory(new HttpTunnelMetrics(registry, SslHandlerFactoryTest.class, false), SslHandlerFactoryTest.class);
+		pipeline = Channels.pipeline(new SimpleChannelHandler());
+	}
+
+	@Test
+	public void testClientHandlerKeyedByPeer() throws Exception {
+		factory.addFirst(pipeline, SSLContext.getDefault(), InetSocketAddress.createUnresolved("tunnel.example.com", 8443));
+
+		final SslHandler handler = (SslHandler) pipeline.getFirst();
+		assertNotNull(handler);
+
+		final SSLEngine engine = handler.getEngine();
+		assertTrue(engine.getUseClientMode());
+		assertEquals("tunnel.example.com", engine.getPeerHost());
+		assertEquals(8443, engine.getPeerPort());
+
+		// The handshake handler sits between TLS and the rest of the pipeline
+		assertEquals(3, pipeline.getNames().size());
+		assertEquals(SslHandlerFactory.NAME, pipeline.getNames().get(0));
+	}
+
+	@Test
+	public void testServerHandler() throws Exception {
+		factory.addFirst(pipeline, SSLContext.getDefault(), null);
+
+		final SslHandler handler = pipeline.get(SslHandler.class);
+		assertFalse(handler.getEngine().getUseClientMode());
+	}
+
+	@Test
+	public void testMetricsRegistered() {
+		assertEquals(0, factory.getHandshakeCount());
+		assertEquals(0, factory.getResumedHandshakeCount());
+
+		assertTrue(registry.allMetrics().containsKey(new MetricName(SslHandlerFactoryTest.class, "tlsHandshakes")));
+		assertTrue(registry.allMetrics().containsKey(new MetricName(SslHandlerFactoryTest.class, "tlsResumptionRatio")));
+	}
+}
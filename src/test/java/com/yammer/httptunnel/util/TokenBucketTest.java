@@ -0,0 +1,43 @@
+package com.yammer.httptunnel.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	@Test
+	public void testBurstIsAvailableImmediately() {
+		final TokenBucket bucket = new TokenBucket(1000, 500);
+
+		assertEquals(500, bucket.getTokens());
+		assertEquals(0, bucket.getDelay(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testDebtDelaysUntilRepaid() {
+		final TokenBucket bucket = new TokenBucket(1000, 500);
+		bucket.consume(1500);
+
+		final long delay = bucket.getDelay(TimeUnit.MILLISECONDS);
+		assertTrue(delay > 900 && delay <= 1000);
+	}
+
+	@Test
+	public void testRefillIsCappedByBurst() throws InterruptedException {
+		final TokenBucket bucket = new TokenBucket(1000000, 1000);
+		bucket.consume(1000);
+
+		Thread.sleep(20);
+
+		assertEquals(1000, bucket.getTokens());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRateMustBePositive() {
+		new TokenBucket(0, 1000);
+	}
+}
@@ -0,0 +1,68 @@
+package com.yammer.httptunnel.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TunnelIdTest {
+
+	@Test
+	public void testEncodesCompactly() {
+		final TunnelId tunnelId = new TunnelId(-1L, 0L);
+		final String encoded = tunnelId.toString();
+
+		assertEquals(TunnelId.ENCODED_LENGTH, encoded.length());
+		assertEquals("P__________AAAAAAAAAAA", encoded);
+	}
+
+	@Test
+	public void testRoundTrips() {
+		final long[] values = { 0L, 1L, -1L, Long.MIN_VALUE, Long.MAX_VALUE, 0x0123456789abcdefL };
+
+		for (long most : values) {
+			for (long least : values) {
+				final String encoded = new TunnelId(most, least).toString();
+
+				assertTrue(TunnelId.isValid(encoded));
+				assertEquals(most, TunnelId.parseMostSignificantBits(encoded));
+				assertEquals(least, TunnelId.parseLeastSignificantBits(encoded));
+				assertEquals(new TunnelId(most, least), TunnelId.fromString(encoded));
+			}
+		}
+	}
+
+	@Test
+	public void testRejectsMalformedIds() {
+		assertFalse(TunnelId.isValid(null));
+		assertFalse(TunnelId.isValid(""));
+		assertFalse(TunnelId.isValid("AAAAAAAAAAAAAAAAAAAAA"));
+		assertFalse(TunnelId.isValid("AAAAAAAAAAAAAAAAAAAAA="));
+		assertFalse(TunnelId.isValid("AAAAAAAAAAAAAAAAAAAAAé"));
+
+		// The leading character of each half may only carry 4 bits
+		assertFalse(TunnelId.isValid("QAAAAAAAAAAAAAAAAAAAAA"));
+		assertFalse(TunnelId.isValid("AAAAAAAAAAAQAAAAAAAAAA"));
+
+		assertNull(TunnelId.fromString("abc_123"));
+	}
+
+	@Test
+	public void testDefaultGeneratorProducesUniqueIds() {
+		final TunnelIdGenerator generator = new DefaultTunnelIdGenerator(0x1234, new SecureRandom());
+		final Set<TunnelId> generated = new HashSet<TunnelId>();
+
+		for (int i = 0; i < 10000; i++) {
+			final TunnelId tunnelId = generator.generateId();
+
+			assertEquals(0x1234L, tunnelId.getMostSignificantBits() >>> 48);
+			assertTrue(generated.add(tunnelId));
+		}
+	}
+}